@@ -0,0 +1,103 @@
+/*
+ * This is the CatalogBenchmark class. It measures what it takes to list a folder of recordings:
+ * opening a RecordingCatalog that's already up to date (reading it back and checking every file
+ * against it), working every entry out from the recordings themselves as if there were no
+ * catalog, and sorting the entries the way the file list does.
+ */
+
+package sim.marble;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CatalogBenchmark {
+
+	// Small recordings are enough; the catalog never reads their rows
+	private static final int ROWS = 1000;
+
+	@Param({"100", "1000"})
+	public int recordings;
+
+	@Param({"date", "size", "name"})
+	public String order;
+
+	private File mDir;
+	private Comparator<RecordingCatalog.Entry> mOrder;
+	private RecordingCatalog mCatalog;
+
+	@Setup
+	public void setUp() throws IOException {
+		mDir = File.createTempFile("catalog", "");
+		mDir.delete();
+		mDir.mkdir();
+		long now = System.currentTimeMillis();
+		for (int i=0; i<recordings; i++) {
+			// Sizes and dates that aren't in the same order as the names
+			int[] rows = SyntheticRows.generate(ROWS + (i*7919)%ROWS, i);
+			File file = SyntheticRows.writeRecording(rows, RecordingFormat.ENCODING_DELTA);
+			File named = new File(mDir, "capture" + i + RecordingFormat.EXTENSION);
+			if (!file.renameTo(named))
+				throw new IOException("Couldn't move " + file + " to " + named);
+			named.setLastModified(now - (i*104729L)%(recordings*1000L));
+		}
+		mCatalog = RecordingCatalog.open(mDir);
+		if ("date".equals(order))
+			mOrder = RecordingCatalog.BY_DATE;
+		else if ("size".equals(order))
+			mOrder = RecordingCatalog.BY_SIZE;
+		else
+			mOrder = RecordingCatalog.BY_NAME;
+	}
+
+	@TearDown
+	public void tearDown() {
+		File[] files = mDir.listFiles();
+		if (files!=null) {
+			for (File file : files)
+				file.delete();
+		}
+		mDir.delete();
+	}
+
+	@Benchmark
+	public int openUpToDate() throws IOException {
+		return RecordingCatalog.open(mDir).getEntries(mOrder).size();
+	}
+
+	@Benchmark
+	public long describeEvery() throws IOException {
+		long rows = 0;
+		for (File file : mDir.listFiles()) {
+			if (RecordingFormat.isRecording(file.getName()))
+				rows += RecordingCatalog.describe(file).rows;
+		}
+		return rows;
+	}
+
+	@Benchmark
+	public List<RecordingCatalog.Entry> sort() {
+		return mCatalog.getEntries(mOrder);
+	}
+}
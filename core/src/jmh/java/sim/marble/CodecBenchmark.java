@@ -0,0 +1,103 @@
+/*
+ * This is the CodecBenchmark class. It measures the delta encoding recordings are stored with
+ * (see DeltaCodec), a block at a time as RecordingWriter and RecordingReader use it, along with
+ * the text formatting ReplayTransport does to play a recording back.
+ */
+
+package sim.marble;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+
+	private static final int COLS = SyntheticRows.COLS;
+	private static final int BLOCK_ROWS = DeltaCodec.BLOCK_ROWS;
+
+	@Param({"65536", "1048576"})
+	public int rows;
+
+	private int[] mRows;
+	// Every block encoded, one after the other, and where each one starts
+	private byte[] mEncoded;
+	private int[] mBlockOffsets;
+	private byte[] mBlock;
+	private int[] mDecoded;
+	private byte[] mText;
+
+	@Setup
+	public void setUp() {
+		mRows = SyntheticRows.generate(rows, 42);
+		int blocks = (rows + BLOCK_ROWS - 1) / BLOCK_ROWS;
+		mBlock = new byte[DeltaCodec.maxBlockSize(BLOCK_ROWS, COLS)];
+		mEncoded = new byte[blocks * mBlock.length];
+		mBlockOffsets = new int[blocks + 1];
+		int position = 0;
+		for (int block=0; block<blocks; block++) {
+			int count = Math.min(BLOCK_ROWS, rows - block*BLOCK_ROWS);
+			int size = DeltaCodec.encodeBlock(mRows, block*BLOCK_ROWS*COLS, count, COLS, mBlock);
+			System.arraycopy(mBlock, 0, mEncoded, position, size);
+			mBlockOffsets[block] = position;
+			position += size;
+		}
+		mBlockOffsets[blocks] = position;
+		mDecoded = new int[BLOCK_ROWS * COLS];
+		mText = new byte[BLOCK_ROWS * (COLS*12 + 1)];
+	}
+
+	@Benchmark
+	public long encode(RowCounter counter) {
+		long bytes = 0;
+		for (int row=0; row<rows; row+=BLOCK_ROWS) {
+			int count = Math.min(BLOCK_ROWS, rows - row);
+			bytes += DeltaCodec.encodeBlock(mRows, row*COLS, count, COLS, mBlock);
+			counter.rows += count;
+		}
+		return bytes;
+	}
+
+	@Benchmark
+	public int decode(RowCounter counter) throws IOException {
+		int checksum = 0;
+		for (int block=0; block<mBlockOffsets.length-1; block++) {
+			int offset = mBlockOffsets[block];
+			int count = DeltaCodec.getInt(mEncoded, offset);
+			int length = DeltaCodec.getInt(mEncoded, offset + 4);
+			DeltaCodec.decodeBlock(mEncoded, offset + DeltaCodec.BLOCK_HEADER_SIZE, length, count,
+					COLS, mDecoded);
+			checksum += mDecoded[0];
+			counter.rows += count;
+		}
+		return checksum;
+	}
+
+	@Benchmark
+	public long formatText(RowCounter counter) {
+		long bytes = 0;
+		for (int row=0; row<rows; row+=BLOCK_ROWS) {
+			int count = Math.min(BLOCK_ROWS, rows - row);
+			System.arraycopy(mRows, row*COLS, mDecoded, 0, count*COLS);
+			bytes += ReplayTransport.format(mDecoded, count*COLS, COLS, mText);
+			counter.rows += count;
+		}
+		return bytes;
+	}
+}
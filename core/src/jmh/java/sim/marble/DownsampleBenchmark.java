@@ -0,0 +1,90 @@
+/*
+ * This is the DownsampleBenchmark class. It measures what it costs to get a recording ready to be
+ * plotted: min/max downsampling a whole column to the width of a screen, building the pyramid of
+ * a recording, and downsampling from the pyramid instead, which is what PlotGraph does for a
+ * zoomed out view of a big recording.
+ */
+
+package sim.marble;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DownsampleBenchmark {
+
+	// Half the width of a 1080 pixel screen, a min and a max per two pixels
+	private static final int BUCKETS = 540;
+	// XPos
+	private static final int COLUMN = 7;
+
+	@Param({"65536", "1048576"})
+	public int rows;
+
+	private int[] mRows;
+	private IntColumnMatrix mMatrix;
+	private RecordingPyramid mPyramid;
+	private final int[] mOutIndex = new int[Downsampler.maxPoints(BUCKETS)];
+	private final int[] mOutValue = new int[Downsampler.maxPoints(BUCKETS)];
+	private final boolean[] mOutMinFirst = new boolean[Downsampler.maxPoints(BUCKETS)];
+
+	@Setup
+	public void setUp() throws IOException {
+		mRows = SyntheticRows.generate(rows, 42);
+		mMatrix = new IntColumnMatrix(SyntheticRows.COLS);
+		mMatrix.appendRows(mRows, 0, rows);
+		File recording = SyntheticRows.writeRecording(mRows, RecordingFormat.ENCODING_DELTA);
+		PyramidBuilder.of(mMatrix).write(recording);
+		RecordingPyramid.sidecarFor(recording).deleteOnExit();
+		mPyramid = RecordingPyramid.open(recording);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		mPyramid.close();
+	}
+
+	@Benchmark
+	public int minMaxColumn() {
+		int[] column = mMatrix.getColumn(COLUMN);
+		return Downsampler.minMax(column, 0, rows, BUCKETS, mOutIndex, mOutValue, 0);
+	}
+
+	/**
+	 * The min and max of every bucket of the level PlotGraph would pick for the whole recording,
+	 * and which of them came first
+	 */
+	@Benchmark
+	public int minMaxPyramid() throws IOException {
+		int level = mPyramid.pickLevel((rows + BUCKETS - 1) / BUCKETS);
+		int count = Math.min(mPyramid.getBuckets(level), mOutIndex.length);
+		mPyramid.readMinMax(level, COLUMN, 0, count, mOutIndex, mOutValue, mOutMinFirst);
+		return count;
+	}
+
+	@Benchmark
+	public PyramidBuilder buildPyramid() {
+		PyramidBuilder builder = new PyramidBuilder(SyntheticRows.COLS);
+		builder.onRows(mRows, rows);
+		return builder;
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * This is the FilterBenchmark class. It measures what the derived channels cost: the same chain
+ * PlotGraph and ReadData use (the magnitude of XPos, YPos and ZPos, low-pass filtered) plus a
+ * moving average and a derivative, worked out on live rows as they come in batches, and on a
+ * whole recording at once.
+ */
+
+package sim.marble;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilterBenchmark {
+
+	// The size of the batches BluetoothSerialService hands on
+	private static final int BATCH_ROWS = 64;
+
+	@Param({"65536", "1048576"})
+	public int rows;
+
+	private int[] mRows;
+	private IntColumnMatrix mMatrix;
+	private FilterChain mChain;
+	// The chain's outputs; the magnitude and the moving average only feed the other stages
+	private int mShakingCol, mSlopeCol;
+
+	@Setup
+	public void setUp() {
+		mRows = SyntheticRows.generate(rows, 42);
+		mMatrix = new IntColumnMatrix(SyntheticRows.COLS);
+		mMatrix.appendRows(mRows, 0, rows);
+		mChain = new FilterChain(SyntheticRows.COLS, BATCH_ROWS);
+		int magnitude = mChain.addMagnitude(7, 8, 9);
+		mShakingCol = mChain.addLowPass(magnitude, 0.125);
+		mSlopeCol = mChain.addDerivative(mChain.addMovingAverage(10, 16));
+	}
+
+	@Benchmark
+	public long filterBatches(RowCounter counter) {
+		mChain.reset();
+		mChain.setSink(counter);
+		int[] batch = new int[BATCH_ROWS * SyntheticRows.COLS];
+		for (int row=0; row<rows; row+=BATCH_ROWS) {
+			int count = Math.min(BATCH_ROWS, rows - row);
+			System.arraycopy(mRows, row*SyntheticRows.COLS, batch, 0, count*SyntheticRows.COLS);
+			mChain.onRows(batch, count);
+		}
+		return counter.rows;
+	}
+
+	@Benchmark
+	public IntColumnMatrix filterColumns(RowCounter counter) {
+		mChain.reset();
+		IntColumnMatrix derived = mChain.filter(mMatrix, mShakingCol, mSlopeCol);
+		counter.rows += derived.getRows();
+		return derived;
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * This is the IntMatrixBenchmark class. It measures what it costs to grow the tables rows are
+ * read into, a batch of 64 rows at a time (what BluetoothSerialService hands over), both from
+ * empty and with room made for every row up front, for the row-major IntMatrix and the
+ * column-major IntColumnMatrix.
+ */
+
+package sim.marble;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IntMatrixBenchmark {
+
+	private static final int BATCH_ROWS = 64;
+
+	@Param({"65536", "1048576"})
+	public int rows;
+
+	private int[] mBatch;
+
+	@Setup
+	public void setUp() {
+		mBatch = SyntheticRows.generate(BATCH_ROWS, 42);
+	}
+
+	@Benchmark
+	public IntMatrix appendGrowing() {
+		return append(new IntMatrix(0, SyntheticRows.COLS));
+	}
+
+	@Benchmark
+	public IntMatrix appendPresized() {
+		IntMatrix matrix = new IntMatrix(0, SyntheticRows.COLS);
+		matrix.ensureCapacity(rows);
+		return append(matrix);
+	}
+
+	@Benchmark
+	public IntColumnMatrix appendColumnsGrowing() {
+		return append(new IntColumnMatrix(SyntheticRows.COLS));
+	}
+
+	@Benchmark
+	public IntColumnMatrix appendColumnsPresized() {
+		IntColumnMatrix matrix = new IntColumnMatrix(SyntheticRows.COLS);
+		matrix.ensureCapacity(rows);
+		return append(matrix);
+	}
+
+	private <T extends IntTable> T append(T table) {
+		for (int row=0; row<rows; row+=BATCH_ROWS)
+			table.appendRows(mBatch, 0, Math.min(BATCH_ROWS, rows - row));
+		return table;
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * This is the ParseBenchmark class. It measures how fast rows get parsed: the text the board
+ * sends, fed to a RowTokenizer a read at a time the way BluetoothSerialService does, the same rows
+ * framed (see WireProtocol) and fed to a FrameDecoder, legacy text
+ * recordings read by TextRecordingReader, and binary recordings, raw and delta encoded, read by
+ * RecordingReader.
+ */
+
+package sim.marble;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+
+	// The size of the reads BluetoothSerialService makes
+	private static final int READ_SIZE = 1024;
+
+	/** Ten minutes and about three hours of rows at 100 rows/s */
+	@Param({"65536", "1048576"})
+	public int rows;
+
+	private byte[] mText;
+	private byte[] mFrames;
+	private File mTextFile, mRawFile, mDeltaFile;
+
+	@Setup
+	public void setUp() throws IOException {
+		int[] values = SyntheticRows.generate(rows, 42);
+		mText = SyntheticRows.toText(values);
+		mFrames = SyntheticRows.toFrames(values);
+		mTextFile = SyntheticRows.writeText(values);
+		mRawFile = SyntheticRows.writeRecording(values, RecordingFormat.ENCODING_RAW);
+		mDeltaFile = SyntheticRows.writeRecording(values, RecordingFormat.ENCODING_DELTA);
+	}
+
+	@Benchmark
+	public long tokenizeStream(RowCounter counter) {
+		RowTokenizer tokenizer = new RowTokenizer(SyntheticRows.COLS, 64);
+		for (int offset=0; offset<mText.length; offset+=READ_SIZE) {
+			tokenizer.feed(mText, offset, Math.min(READ_SIZE, mText.length - offset), counter);
+			tokenizer.flush(counter);
+		}
+		return tokenizer.getRowCount();
+	}
+
+	@Benchmark
+	public long decodeFrames(RowCounter counter) {
+		FrameDecoder decoder = new FrameDecoder(SyntheticRows.WIDTHS, 64);
+		for (int offset=0; offset<mFrames.length; offset+=READ_SIZE) {
+			decoder.feed(mFrames, offset, Math.min(READ_SIZE, mFrames.length - offset), counter);
+			decoder.flush(counter);
+		}
+		return decoder.getRowCount();
+	}
+
+	@Benchmark
+	public IntMatrix readTextRecording(RowCounter counter) throws IOException {
+		IntMatrix matrix = new IntMatrix(0, SyntheticRows.COLS);
+		TextRecordingReader.read(mTextFile, matrix);
+		counter.rows += matrix.getRows();
+		return matrix;
+	}
+
+	@Benchmark
+	public IntMatrix readRawRecording(RowCounter counter) throws IOException {
+		IntMatrix matrix = RecordingReader.read(mRawFile);
+		counter.rows += matrix.getRows();
+		return matrix;
+	}
+
+	@Benchmark
+	public IntMatrix readDeltaRecording(RowCounter counter) throws IOException {
+		IntMatrix matrix = RecordingReader.read(mDeltaFile);
+		counter.rows += matrix.getRows();
+		return matrix;
+	}
+}
@@ -0,0 +1,30 @@
+/*
+ * This is the RowCounter class. It's a JMH counter of the rows a benchmark got through, so that
+ * on top of the time per call, JMH reports rows/s (as "rows"), which is what the capture and the
+ * plots are actually limited by.
+ */
+
+package sim.marble;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class RowCounter implements RowSink {
+
+	public long rows;
+
+	@Setup(Level.Iteration)
+	public void reset() {
+		rows = 0;
+	}
+
+	@Override
+	public void onRows(int[] values, int count) {
+		rows += count;
+	}
+}
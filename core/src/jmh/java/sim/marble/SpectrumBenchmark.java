@@ -0,0 +1,80 @@
+/*
+ * This is the SpectrumBenchmark class. It measures what the spectrum PlotGraph shows costs: a
+ * single transform of a window, and streaming a whole recording's XPos, YPos and ZPos through a
+ * SpectrumAnalyzer, with the window size PlotGraph uses and a bigger one.
+ */
+
+package sim.marble;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpectrumBenchmark {
+
+	// The size of the chunks RecordingReader.read(File, RowSink) hands on
+	private static final int BATCH_ROWS = 4096;
+	private static final int[] COLUMNS = {7, 8, 9};
+
+	@Param({"65536", "1048576"})
+	public int rows;
+
+	@Param({"256", "1024"})
+	public int window;
+
+	private int[] mRows;
+	private Fft mFft;
+	private double[] mRe, mIm, mSignal;
+
+	@Setup
+	public void setUp() {
+		mRows = SyntheticRows.generate(rows, 42);
+		mFft = new Fft(window);
+		mRe = new double[window];
+		mIm = new double[window];
+		mSignal = new double[window];
+		Random random = new Random(42);
+		for (int i=0; i<window; i++)
+			mSignal[i] = random.nextGaussian();
+	}
+
+	@Benchmark
+	public double[] transform() {
+		System.arraycopy(mSignal, 0, mRe, 0, window);
+		Arrays.fill(mIm, 0);
+		mFft.transform(mRe, mIm);
+		return mRe;
+	}
+
+	@Benchmark
+	public long analyzeRecording(RowCounter counter) {
+		SpectrumAnalyzer analyzer = new SpectrumAnalyzer(SyntheticRows.COLS, COLUMNS, window,
+				window/2, 512);
+		int[] batch = new int[BATCH_ROWS * SyntheticRows.COLS];
+		for (int row=0; row<rows; row+=BATCH_ROWS) {
+			int count = Math.min(BATCH_ROWS, rows - row);
+			System.arraycopy(mRows, row*SyntheticRows.COLS, batch, 0, count*SyntheticRows.COLS);
+			analyzer.onRows(batch, count);
+		}
+		counter.rows += analyzer.getRows();
+		return analyzer.getWindows();
+	}
+}
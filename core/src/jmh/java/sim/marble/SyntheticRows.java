@@ -0,0 +1,112 @@
+/*
+ * This is the SyntheticRows class. It makes up rows that look like what the board sends, for the
+ * benchmarks to chew on: ten columns, of which the first six are small counters and flags, the
+ * accelerometer axes wander around a few hundred mG with a bit of noise on top, and the light
+ * level drifts slowly. The values matter because the delta encoding and the parser both do less
+ * work on small, slowly changing values, just like the real thing.
+ */
+
+package sim.marble;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+final class SyntheticRows {
+
+	static final int COLS = RecordingFormat.DEFAULT_SCHEMA.length;
+	/** The widths of the columns when framed; the counter's the only one that needs 4 bytes */
+	static final int[] WIDTHS = {4, 2, 2, 2, 2, 2, 2, 2, 2, 2};
+
+	// The number of rows the board puts in a frame
+	private static final int ROWS_PER_FRAME = 16;
+
+	private SyntheticRows() {}
+
+	/**
+	 * Makes up a number of rows, laid out one after the other. The same seed gives the same rows.
+	 */
+	static int[] generate(int rows, long seed) {
+		Random random = new Random(seed);
+		int[] values = new int[rows * COLS];
+		int x = 0, y = 0, z = 1000, light = 300;
+		for (int row=0, i=0; row<rows; row++) {
+			values[i++] = row & 0xFFFF;
+			values[i++] = random.nextInt(2);
+			values[i++] = random.nextInt(16);
+			values[i++] = 25 + random.nextInt(3);
+			values[i++] = random.nextInt(256);
+			values[i++] = 0;
+			x = wander(random, x, 8, 2000);
+			y = wander(random, y, 8, 2000);
+			z = wander(random, z, 8, 2000);
+			light = Math.max(0, wander(random, light, 2, 1000));
+			values[i++] = x + random.nextInt(5) - 2;
+			values[i++] = y + random.nextInt(5) - 2;
+			values[i++] = z + random.nextInt(5) - 2;
+			values[i++] = light;
+		}
+		return values;
+	}
+
+	private static int wander(Random random, int value, int step, int limit) {
+		value += random.nextInt(2*step + 1) - step;
+		return Math.max(-limit, Math.min(limit, value));
+	}
+
+	/**
+	 * Formats rows as the text the board sends
+	 */
+	static byte[] toText(int[] rows) {
+		byte[] text = new byte[rows.length * 12 + rows.length / COLS];
+		int length = ReplayTransport.format(rows, rows.length, COLS, text);
+		byte[] trimmed = new byte[length];
+		System.arraycopy(text, 0, trimmed, 0, length);
+		return trimmed;
+	}
+
+	/**
+	 * Frames rows the way a board that's switched to binary framing sends them
+	 */
+	static byte[] toFrames(int[] rows) {
+		int count = rows.length / COLS;
+		byte[] frames = new byte[(count/ROWS_PER_FRAME + 1)
+				* WireProtocol.maxFrameSize(ROWS_PER_FRAME, WIDTHS)];
+		int length = 0;
+		for (int row=0, sequence=0; row<count; row+=ROWS_PER_FRAME, sequence++)
+			length += WireProtocol.encodeFrame(sequence, rows, row*COLS,
+					Math.min(ROWS_PER_FRAME, count - row), WIDTHS, frames, length);
+		byte[] trimmed = new byte[length];
+		System.arraycopy(frames, 0, trimmed, 0, length);
+		return trimmed;
+	}
+
+	/**
+	 * Writes rows into a temporary binary recording, which is deleted when the JVM exits
+	 */
+	static File writeRecording(int[] rows, byte encoding) throws IOException {
+		File file = File.createTempFile("marble", RecordingFormat.EXTENSION);
+		file.deleteOnExit();
+		RecordingWriter writer = new RecordingWriter(file, RecordingFormat.DEFAULT_SCHEMA,
+				System.currentTimeMillis(), encoding);
+		writer.writeRows(rows, 0, rows.length / COLS);
+		writer.close();
+		return file;
+	}
+
+	/**
+	 * Writes rows into a temporary legacy text recording, which is deleted when the JVM exits
+	 */
+	static File writeText(int[] rows) throws IOException {
+		File file = File.createTempFile("marble", RecordingFormat.LEGACY_EXTENSION);
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(toText(rows));
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * This is the ColumnStatsTest class. It checks ColumnStats' running min, max, mean and variance
+ * against a straightforward pass over the same rows, that the histogram's bins meet up from
+ * Integer.MIN_VALUE all the way to Integer.MAX_VALUE, and that the stats come back the same after
+ * being written out.
+ */
+
+package sim.marble;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ColumnStatsTest {
+
+	private static final int COLS = 2;
+
+	@Test
+	public void keepsTheSameStatsAsAPassOverTheRows() {
+		Random random = new Random(12);
+		int count = 10000;
+		int[] rows = new int[count*COLS];
+		for (int row=0; row<count; row++) {
+			rows[row*COLS] = random.nextInt(511) - 255;
+			rows[row*COLS+1] = 40000 + random.nextInt(10000);
+		}
+		ColumnStats stats = new ColumnStats(COLS);
+		stats.add(rows, 0, 4000);
+		stats.onRows(Arrays.copyOfRange(rows, 4000*COLS, rows.length), count - 4000);
+		assertEquals(count, stats.getCount());
+		for (int col=0; col<COLS; col++) {
+			int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+			double sum = 0;
+			for (int row=0; row<count; row++) {
+				int value = rows[row*COLS+col];
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+				sum += value;
+			}
+			double mean = sum / count, squares = 0;
+			for (int row=0; row<count; row++)
+				squares += (rows[row*COLS+col] - mean) * (rows[row*COLS+col] - mean);
+			assertEquals(min, stats.getMin(col+1));
+			assertEquals(max, stats.getMax(col+1));
+			assertEquals(mean, stats.getMean(col+1), 1e-6);
+			assertEquals(squares / count, stats.getVariance(col+1), 1e-3);
+			long total = 0;
+			for (long binCount : stats.getHistogram(col+1))
+				total += binCount;
+			assertEquals(count, total);
+		}
+	}
+
+	@Test
+	public void binsTheExtremes() {
+		assertEquals(0, ColumnStats.binOf(Integer.MIN_VALUE));
+		assertEquals(ColumnStats.BINS-1, ColumnStats.binOf(Integer.MAX_VALUE));
+		assertEquals(32, ColumnStats.binOf(0));
+		assertEquals(33, ColumnStats.binOf(1));
+		assertEquals(31, ColumnStats.binOf(-1));
+		assertEquals(Integer.MIN_VALUE, ColumnStats.binLow(0));
+		assertEquals(-(1 << 30) - 1, ColumnStats.binHigh(0));
+		assertEquals(1 << 30, ColumnStats.binLow(ColumnStats.BINS-1));
+		assertEquals(Integer.MAX_VALUE, ColumnStats.binHigh(ColumnStats.BINS-1));
+		// Every bin holds its own bounds, and starts right after the one before it ends
+		for (int bin=0; bin<ColumnStats.BINS; bin++) {
+			assertEquals(bin, ColumnStats.binOf(ColumnStats.binLow(bin)));
+			assertEquals(bin, ColumnStats.binOf(ColumnStats.binHigh(bin)));
+			if (bin>0)
+				assertEquals(ColumnStats.binHigh(bin-1) + 1, ColumnStats.binLow(bin));
+		}
+	}
+
+	@Test
+	public void readsBackWhatItWrote() throws IOException {
+		ColumnStats stats = new ColumnStats(COLS);
+		stats.add(new int[] {Integer.MIN_VALUE, 3, Integer.MAX_VALUE, -3, 0, 0}, 0, 3);
+		ColumnStats withHistograms = readBack(stats, true);
+		assertEquals(3, withHistograms.getCount());
+		assertEquals(Integer.MIN_VALUE, withHistograms.getMin(1));
+		assertEquals(Integer.MAX_VALUE, withHistograms.getMax(1));
+		assertEquals(stats.getMean(2), withHistograms.getMean(2), 0);
+		assertEquals(stats.getVariance(2), withHistograms.getVariance(2), 0);
+		assertArrayEquals(stats.getHistogram(1), withHistograms.getHistogram(1));
+
+		ColumnStats without = readBack(stats, false);
+		assertFalse(without.hasHistograms());
+		assertNull(without.getHistogram(1));
+		assertEquals(-3, without.getMin(2));
+	}
+
+	private static ColumnStats readBack(ColumnStats stats, boolean withHistograms)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		stats.write(out, withHistograms);
+		out.close();
+		return ColumnStats.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * This is the DeltaCodecTest class. It checks that blocks of rows come back out of DeltaCodec
+ * exactly as they went in, including values that are far apart, and that a block that's been cut
+ * short or has bytes left over isn't taken as a good one.
+ */
+
+package sim.marble;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DeltaCodecTest {
+
+	private static final int COLS = 3;
+
+	@Test
+	public void roundTripsRows() throws IOException {
+		Random random = new Random(7);
+		int count = DeltaCodec.BLOCK_ROWS;
+		int[] rows = new int[count*COLS];
+		for (int i=0; i<rows.length; i++)
+			rows[i] = random.nextInt(2001) - 1000;
+		assertArrayEquals(rows, roundTrip(rows, 0, count));
+	}
+
+	@Test
+	public void roundTripsExtremes() throws IOException {
+		// The deltas between these overflow an int, and still have to come back the same
+		int[] rows = {
+			Integer.MIN_VALUE, Integer.MAX_VALUE, 0,
+			Integer.MAX_VALUE, Integer.MIN_VALUE, -1,
+			0, 0, 1,
+			Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE,
+		};
+		assertArrayEquals(rows, roundTrip(rows, 0, rows.length/COLS));
+	}
+
+	@Test
+	public void roundTripsFromAnOffset() throws IOException {
+		int[] rows = {9, 9, 9, 1, 2, 3, 4, 5, 6};
+		int[] expected = {1, 2, 3, 4, 5, 6};
+		assertArrayEquals(expected, roundTrip(rows, COLS, 2));
+	}
+
+	@Test
+	public void smallDeltasTakeAByte() {
+		int[] rows = new int[100*COLS];
+		for (int i=0; i<rows.length; i++)
+			rows[i] = 500 + i/COLS % 2;
+		byte[] block = new byte[DeltaCodec.maxBlockSize(100, COLS)];
+		int size = DeltaCodec.encodeBlock(rows, 0, 100, COLS, block);
+		// The first value of every column takes two bytes, every other one a single byte
+		assertEquals(DeltaCodec.BLOCK_HEADER_SIZE + 100*COLS + COLS, size);
+		assertEquals(100, DeltaCodec.getInt(block, 0));
+		assertEquals(size - DeltaCodec.BLOCK_HEADER_SIZE, DeltaCodec.getInt(block, 4));
+	}
+
+	@Test
+	public void rejectsAShortBlock() {
+		int[] rows = {1, 200000, 3, 4, 5, 6};
+		byte[] block = new byte[DeltaCodec.maxBlockSize(2, COLS)];
+		int size = DeltaCodec.encodeBlock(rows, 0, 2, COLS, block);
+		int length = size - DeltaCodec.BLOCK_HEADER_SIZE;
+		try {
+			DeltaCodec.decodeBlock(block, DeltaCodec.BLOCK_HEADER_SIZE, length - 1, 2, COLS,
+					new int[rows.length]);
+			fail("Decoded a block with its last byte missing");
+		} catch (IOException e) {
+			// Expected
+		}
+		try {
+			DeltaCodec.decodeBlock(block, DeltaCodec.BLOCK_HEADER_SIZE, length, 3, COLS,
+					new int[3*COLS]);
+			fail("Decoded more rows than the block has");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void rejectsBytesLeftOver() {
+		int[] rows = {1, 2, 3, 4, 5, 6};
+		byte[] block = new byte[DeltaCodec.maxBlockSize(2, COLS) + 1];
+		int size = DeltaCodec.encodeBlock(rows, 0, 2, COLS, block);
+		try {
+			DeltaCodec.decodeBlock(block, DeltaCodec.BLOCK_HEADER_SIZE,
+					size - DeltaCodec.BLOCK_HEADER_SIZE + 1, 2, COLS, new int[rows.length]);
+			fail("Decoded a block with a byte left over");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	private static int[] roundTrip(int[] rows, int offset, int count) throws IOException {
+		byte[] block = new byte[DeltaCodec.maxBlockSize(count, COLS)];
+		int size = DeltaCodec.encodeBlock(rows, offset, count, COLS, block);
+		assertEquals(count, DeltaCodec.getInt(block, 0));
+		int[] decoded = new int[count*COLS];
+		DeltaCodec.decodeBlock(block, DeltaCodec.BLOCK_HEADER_SIZE, DeltaCodec.getInt(block, 4),
+				count, COLS, decoded);
+		assertEquals(size, DeltaCodec.BLOCK_HEADER_SIZE + DeltaCodec.getInt(block, 4));
+		return decoded;
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * This is the DownsamplerTest class. It checks that Downsampler keeps the first and last values of
+ * a range and every bucket's min and max, in the order they came in, and never more points than
+ * maxPoints() says.
+ */
+
+package sim.marble;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DownsamplerTest {
+
+	@Test
+	public void keepsEveryValueOfAShortRange() {
+		int[] values = {5, 3, 8, 1, 9, 2};
+		int[] index = new int[Downsampler.maxPoints(2)], value = new int[index.length];
+		assertEquals(6, Downsampler.minMax(values, 0, 6, 2, index, value, 0));
+		assertArrayEquals(new int[] {0, 1, 2, 3, 4, 5}, index);
+		assertArrayEquals(values, value);
+		assertEquals(0, Downsampler.minMax(values, 3, 3, 2, index, value, 0));
+	}
+
+	@Test
+	public void keepsTheEndsAndThePeaksInOrder() {
+		Random random = new Random(8);
+		int[] values = new int[100000];
+		for (int i=0; i<values.length; i++)
+			values[i] = random.nextInt(1000);
+		values[12345] = 5000;
+		values[67890] = -5000;
+		int buckets = 300, from = 10, to = values.length - 10;
+		int offset = 7;
+		int[] index = new int[offset + Downsampler.maxPoints(buckets)];
+		int[] value = new int[index.length];
+		int count = Downsampler.minMax(values, from, to, buckets, index, value, offset);
+		assertTrue(count<=Downsampler.maxPoints(buckets));
+		assertEquals(from, index[offset]);
+		assertEquals(to-1, index[offset+count-1]);
+		boolean hasMax = false, hasMin = false;
+		for (int i=offset; i<offset+count; i++) {
+			assertEquals(values[index[i]], value[i]);
+			if (i>offset)
+				assertTrue(index[i]>index[i-1]);
+			hasMax |= index[i]==12345;
+			hasMin |= index[i]==67890;
+		}
+		assertTrue(hasMax);
+		assertTrue(hasMin);
+	}
+
+	@Test
+	public void keepsABucketsMaxFirstIfItCameFirst() {
+		// Too many values for every one to be kept with a single bucket, whose max comes first
+		int[] values = {0, 1, 9, 2, -9, 3, -8, 4, 8, 0};
+		int[] index = new int[Downsampler.maxPoints(1)], value = new int[index.length];
+		int count = Downsampler.minMax(values, 0, values.length, 1, index, value, 0);
+		assertEquals(4, count);
+		assertArrayEquals(new int[] {0, 2, 4, 9}, Arrays.copyOf(index, count));
+		assertArrayEquals(new int[] {0, 9, -9, 0}, Arrays.copyOf(value, count));
+		// And the other way round
+		values[2] = -10;
+		count = Downsampler.minMax(values, 0, values.length, 1, index, value, 0);
+		assertArrayEquals(new int[] {0, 2, 8, 9}, Arrays.copyOf(index, count));
+		assertArrayEquals(new int[] {0, -10, 8, 0}, Arrays.copyOf(value, count));
+	}
+
+	@Test
+	public void keepsOnePointForAFlatBucket() {
+		int[] values = new int[50];
+		Arrays.fill(values, 4);
+		int[] index = new int[Downsampler.maxPoints(5)], value = new int[index.length];
+		int count = Downsampler.minMax(values, 0, 50, 5, index, value, 0);
+		// The two ends, and one point for each bucket
+		assertEquals(7, count);
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * This is the FftTest class. It checks Fft against a naive discrete Fourier transform, worked out
+ * straight from the definition, for every size up to 1024.
+ */
+
+package sim.marble;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FftTest {
+
+	@Test
+	public void matchesANaiveTransform() {
+		Random random = new Random(25);
+		for (int size=2; size<=1024; size*=2) {
+			double[] re = new double[size], im = new double[size];
+			for (int i=0; i<size; i++) {
+				re[i] = random.nextGaussian() * 100;
+				im[i] = random.nextGaussian() * 100;
+			}
+			double[] expectedRe = new double[size], expectedIm = new double[size];
+			for (int k=0; k<size; k++) {
+				for (int n=0; n<size; n++) {
+					double angle = -2*Math.PI * ((long)k*n % size) / size;
+					expectedRe[k] += re[n]*Math.cos(angle) - im[n]*Math.sin(angle);
+					expectedIm[k] += re[n]*Math.sin(angle) + im[n]*Math.cos(angle);
+				}
+			}
+			new Fft(size).transform(re, im);
+			for (int k=0; k<size; k++) {
+				assertEquals("Size " + size + ", bin " + k, expectedRe[k], re[k], 1e-8*size);
+				assertEquals("Size " + size + ", bin " + k, expectedIm[k], im[k], 1e-8*size);
+			}
+		}
+	}
+
+	@Test
+	public void turnsDownSizesThatArentPowersOfTwo() {
+		for (int size : new int[] {0, 1, 3, 100}) {
+			try {
+				new Fft(size);
+				fail("Made an Fft of " + size);
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+		}
+	}
+}
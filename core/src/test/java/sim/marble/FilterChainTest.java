@@ -0,0 +1,120 @@
+/*
+ * This is the FilterChainTest class. It checks every kind of stage against values worked out by
+ * hand, and that a chain gives the same derived columns whether the rows are streamed through it
+ * in batches or filter()ed from a matrix.
+ */
+
+package sim.marble;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FilterChainTest {
+
+	@Test
+	public void worksEveryStageOut() {
+		FilterChain chain = new FilterChain(3, 16);
+		int average = chain.addMovingAverage(1, 3);
+		int lowPass = chain.addLowPass(2, 0.5);
+		int derivative = chain.addDerivative(3);
+		int magnitude = chain.addMagnitude(1, 2, 3);
+		assertArrayEquals(new int[] {4, 5, 6, 7}, new int[] {average, lowPass, derivative,
+				magnitude});
+		assertEquals(7, chain.getCols());
+		assertEquals(4, chain.getStageCount());
+
+		IntColumnMatrix values = new IntColumnMatrix(3);
+		values.appendRow(new int[] {3, 0, 5});
+		values.appendRow(new int[] {6, 100, 7});
+		values.appendRow(new int[] {9, 100, 4});
+		values.appendRow(new int[] {12, 100, 0});
+		IntColumnMatrix derived = chain.filter(values, average, lowPass, derivative, magnitude);
+		// Averaged over what there is until the window's full, then the last three
+		assertArrayEquals(new int[] {3, 4, 6, 9}, column(derived, 1));
+		assertArrayEquals(new int[] {0, 50, 75, 88}, column(derived, 2));
+		assertArrayEquals(new int[] {0, 2, -3, -4}, column(derived, 3));
+		// sqrt(9+0+25) = 5.83, sqrt(36+10000+49), sqrt(81+10000+16), sqrt(144+10000+0)
+		assertArrayEquals(new int[] {6, 100, 100, 101}, column(derived, 4));
+	}
+
+	@Test
+	public void streamsTheSameAsItFilters() {
+		Random random = new Random(24);
+		int cols = 3, count = 1000;
+		int[] rows = new int[count*cols];
+		for (int i=0; i<rows.length; i++)
+			rows[i] = random.nextInt(511) - 255;
+		IntColumnMatrix values = new IntColumnMatrix(cols);
+		values.appendRows(rows, 0, count);
+
+		FilterChain streamed = chain(cols);
+		RowCollector sink = new RowCollector(streamed.getCols());
+		streamed.setSink(sink);
+		// In lots that don't line up with the chain's batches
+		for (int row=0; row<count; ) {
+			int lot = Math.min(row % 13 + 1, count - row);
+			int[] batch = new int[lot*cols];
+			System.arraycopy(rows, row*cols, batch, 0, batch.length);
+			streamed.onRows(batch, lot);
+			row += lot;
+		}
+		FilterChain filtered = chain(cols);
+		IntColumnMatrix derived = filtered.filter(values, 5, 7);
+
+		assertEquals(count, sink.rows.size());
+		for (int row=0; row<count; row++) {
+			int[] widened = sink.rows.get(row);
+			for (int col=0; col<cols; col++)
+				assertEquals(rows[row*cols + col], widened[col]);
+			assertEquals(widened[4], derived.get(row+1, 1));
+			assertEquals(widened[6], derived.get(row+1, 2));
+		}
+
+		// After a reset it starts over, just like a new chain
+		filtered.reset();
+		IntColumnMatrix again = filtered.filter(values, 5, 7);
+		assertArrayEquals(derived.toRowArray(), again.toRowArray());
+	}
+
+	/**
+	 * The shaking's chain, with a derivative of it on the end
+	 */
+	private static FilterChain chain(int cols) {
+		FilterChain chain = new FilterChain(cols, 8);
+		int magnitude = chain.addMagnitude(1, 2, 3);
+		int smoothed = chain.addLowPass(magnitude, 0.1);
+		chain.addMovingAverage(smoothed, 5);
+		chain.addDerivative(smoothed);
+		return chain;
+	}
+
+	@Test
+	public void turnsDownColumnsThatArentThereYet() {
+		FilterChain chain = new FilterChain(3, 8);
+		try {
+			chain.addDerivative(5);
+			fail("Took a column that isn't there yet");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		int derivative = chain.addDerivative(3);
+		try {
+			chain.filter(new IntColumnMatrix(3), 2);
+			fail("Kept a column that isn't derived");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		assertEquals(0, chain.filter(new IntColumnMatrix(3), derivative).getRows());
+	}
+
+	private static int[] column(IntColumnMatrix matrix, int col) {
+		int[] values = new int[matrix.getRows()];
+		System.arraycopy(matrix.getColumn(col), 0, values, 0, values.length);
+		return values;
+	}
+}
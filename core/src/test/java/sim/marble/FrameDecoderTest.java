@@ -0,0 +1,145 @@
+/*
+ * This is the FrameDecoderTest class. It checks that FrameDecoder gets the same rows out of the
+ * frames however they're split across reads, finds its way back to the next frame after garbage
+ * or a frame whose CRC doesn't match, counts the frames that were lost, and skips the ones that
+ * were sent twice.
+ */
+
+package sim.marble;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+public class FrameDecoderTest {
+
+	private static final int[] WIDTHS = {4, 2, 2};
+	private static final int COLS = WIDTHS.length;
+
+	@Test
+	public void decodesFramesSplitAnywhere() {
+		byte[] bytes = concat(frame(0, 1, 2), frame(1, 3), frame(2, 4, 5, 6));
+		int[] expected = rows(1, 2, 3, 4, 5, 6);
+		for (int split=0; split<=bytes.length; split++) {
+			FrameDecoder decoder = new FrameDecoder(WIDTHS, 64);
+			RowCollector sink = new RowCollector(COLS);
+			decoder.feed(bytes, 0, split, sink);
+			decoder.feed(bytes, split, bytes.length - split, sink);
+			decoder.flush(sink);
+			assertArrayEquals("Split at " + split, expected, sink.toArray());
+			assertEquals(3, decoder.getFrameCount());
+			assertEquals(0, decoder.getLostFrames());
+			assertEquals(0, decoder.getCorruptFrames());
+		}
+	}
+
+	@Test
+	public void decodesAByteAtATime() {
+		byte[] bytes = concat(frame(0, 1, 2), frame(1, 3));
+		FrameDecoder decoder = new FrameDecoder(WIDTHS, 1);
+		RowCollector sink = new RowCollector(COLS);
+		for (int i=0; i<bytes.length; i++)
+			decoder.feed(bytes, i, 1, sink);
+		assertArrayEquals(rows(1, 2, 3), sink.toArray());
+		assertEquals(3, decoder.getRowCount());
+	}
+
+	@Test
+	public void resyncsAfterGarbage() {
+		// A sync marker that isn't the start of a frame, then one with no rows
+		byte[] garbage = {1, 2, WireProtocol.SYNC_1, WireProtocol.SYNC_2, 0, 0, 1, 7,
+				WireProtocol.SYNC_1, WireProtocol.SYNC_2, 0, 1, 0};
+		byte[] bytes = concat(garbage, frame(0, 1), garbage, frame(1, 2));
+		FrameDecoder decoder = new FrameDecoder(WIDTHS, 64);
+		RowCollector sink = new RowCollector(COLS);
+		decoder.feed(bytes, 0, bytes.length, sink);
+		decoder.flush(sink);
+		assertArrayEquals(rows(1, 2), sink.toArray());
+		assertEquals(0, decoder.getLostFrames());
+		// Every run of garbage only counts once
+		assertEquals(2, decoder.getCorruptFrames());
+	}
+
+	@Test
+	public void throwsAwayACorruptFrame() {
+		byte[] corrupt = frame(1, 2);
+		corrupt[WireProtocol.HEADER_SIZE + 1] ^= 0x40;
+		byte[] bytes = concat(frame(0, 1), corrupt, frame(2, 3));
+		FrameDecoder decoder = new FrameDecoder(WIDTHS, 64);
+		RowCollector sink = new RowCollector(COLS);
+		decoder.feed(bytes, 0, bytes.length, sink);
+		decoder.flush(sink);
+		assertArrayEquals(rows(1, 3), sink.toArray());
+		assertEquals(2, decoder.getFrameCount());
+		assertEquals(1, decoder.getLostFrames());
+		assertEquals(1, decoder.getCorruptFrames());
+	}
+
+	@Test
+	public void skipsDuplicates() {
+		byte[] bytes = concat(frame(0, 1), frame(1, 2), frame(1, 2), frame(0, 1), frame(3, 4));
+		FrameDecoder decoder = new FrameDecoder(WIDTHS, 64);
+		RowCollector sink = new RowCollector(COLS);
+		decoder.feed(bytes, 0, bytes.length, sink);
+		decoder.flush(sink);
+		assertArrayEquals(rows(1, 2, 4), sink.toArray());
+		assertEquals(2, decoder.getDuplicateFrames());
+		assertEquals(1, decoder.getLostFrames());
+		assertEquals(3, decoder.getFrameCount());
+	}
+
+	@Test
+	public void countsLostFramesAcrossTheWrap() {
+		byte[] bytes = concat(frame(65534, 1), frame(65535, 2), frame(0, 3), frame(2, 4));
+		FrameDecoder decoder = new FrameDecoder(WIDTHS, 64);
+		RowCollector sink = new RowCollector(COLS);
+		decoder.feed(bytes, 0, bytes.length, sink);
+		decoder.flush(sink);
+		assertArrayEquals(rows(1, 2, 3, 4), sink.toArray());
+		assertEquals(1, decoder.getLostFrames());
+		assertEquals(0, decoder.getDuplicateFrames());
+	}
+
+	@Test
+	public void keepsAPartFrameForTheNextFeed() {
+		byte[] bytes = frame(0, 1, 2);
+		FrameDecoder decoder = new FrameDecoder(WIDTHS, 64);
+		RowCollector sink = new RowCollector(COLS);
+		decoder.feed(bytes, 0, bytes.length - 1, sink);
+		decoder.flush(sink);
+		assertTrue(sink.rows.isEmpty());
+		decoder.feed(bytes, bytes.length - 1, 1, sink);
+		decoder.flush(sink);
+		assertArrayEquals(rows(1, 2), sink.toArray());
+	}
+
+	/**
+	 * Makes up the rows for the given seeds, each row {seed*100000, seed, -seed}
+	 */
+	private static int[] rows(int... seeds) {
+		int[] rows = new int[seeds.length*COLS];
+		for (int i=0; i<seeds.length; i++) {
+			rows[i*COLS] = seeds[i]*100000;
+			rows[i*COLS + 1] = seeds[i];
+			rows[i*COLS + 2] = -seeds[i];
+		}
+		return rows;
+	}
+
+	private static byte[] frame(int sequence, int... seeds) {
+		byte[] frame = new byte[WireProtocol.maxFrameSize(seeds.length, WIDTHS)];
+		WireProtocol.encodeFrame(sequence, rows(seeds), 0, seeds.length, WIDTHS, frame, 0);
+		return frame;
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] part : parts)
+			out.write(part, 0, part.length);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * This is the IntColumnMatrixTest class. It checks that an IntColumnMatrix holds the same rows as
+ * an IntMatrix they were appended to, that its columns and their buffers only show the rows it
+ * has, and that rows past the end can't be read or written.
+ */
+
+package sim.marble;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.IntBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class IntColumnMatrixTest {
+
+	private static final int COLS = 4;
+
+	@Test
+	public void holdsTheSameRowsAsAnIntMatrix() {
+		Random random = new Random(5);
+		int[] rows = new int[1000*COLS];
+		for (int i=0; i<rows.length; i++)
+			rows[i] = random.nextInt();
+		IntMatrix matrix = new IntMatrix(0, COLS);
+		IntColumnMatrix columns = new IntColumnMatrix(COLS);
+		// In odd lots, one row at a time as well
+		for (int row=0; row<1000; ) {
+			int count = Math.min(row % 7 + 1, 1000 - row);
+			if (count==1) {
+				int[] one = new int[COLS];
+				System.arraycopy(rows, row*COLS, one, 0, COLS);
+				matrix.appendRow(one);
+				columns.appendRow(one);
+			} else {
+				matrix.appendRows(rows, row*COLS, count);
+				columns.appendRows(rows, row*COLS, count);
+			}
+			row += count;
+		}
+		assertEquals(1000, columns.getRows());
+		assertArrayEquals(rows, columns.toRowArray());
+		assertArrayEquals(rows, IntColumnMatrix.copyOf(matrix).toRowArray());
+		for (int row=1; row<=1000; row++) {
+			for (int col=1; col<=COLS; col++)
+				assertEquals(matrix.get(row, col), columns.get(row, col));
+		}
+	}
+
+	@Test
+	public void showsOnlyTheRowsItHas() {
+		IntColumnMatrix matrix = new IntColumnMatrix(COLS);
+		for (int row=0; row<20; row++)
+			matrix.appendRow(new int[] {row, row+1, row+2, row+3});
+		assertTrue(matrix.getCapacity()>20);
+		assertEquals(matrix.getCapacity(), matrix.getColumn(2).length);
+		IntBuffer buffer = matrix.getColumnBuffer(2);
+		assertEquals(20, buffer.remaining());
+		assertEquals(1, buffer.get(0));
+		assertEquals(20, buffer.get(19));
+		try {
+			buffer.put(0, 5);
+			fail("Wrote to a column buffer");
+		} catch (ReadOnlyBufferException e) {
+			// Expected
+		}
+		matrix.trimToSize();
+		assertEquals(20, matrix.getCapacity());
+		assertEquals(20, matrix.getColumn(1).length);
+	}
+
+	@Test
+	public void failsOnRowsPastTheEnd() {
+		IntColumnMatrix matrix = new IntColumnMatrix(COLS);
+		matrix.ensureCapacity(50);
+		matrix.appendRow(new int[] {1, 2, 3, 4});
+		matrix.set(1, 4, 8);
+		assertEquals(8, matrix.get(1, 4));
+		for (int row : new int[] {0, 2, 50}) {
+			try {
+				matrix.get(row, 1);
+				fail("Read row " + row);
+			} catch (IndexOutOfBoundsException e) {
+				// Expected
+			}
+			try {
+				matrix.set(row, 1, 1);
+				fail("Wrote row " + row);
+			} catch (IndexOutOfBoundsException e) {
+				// Expected
+			}
+		}
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * This is the IntMatrixTest class. It checks that an IntMatrix grows by half again as rows are
+ * appended, keeping every row, that rows past the end can't be read or written even when there's
+ * room for them in the backing array, and that toArray() leaves none of that room in.
+ */
+
+package sim.marble;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class IntMatrixTest {
+
+	private static final int COLS = 3;
+
+	@Test
+	public void growsGeometrically() {
+		IntMatrix matrix = new IntMatrix(0, COLS);
+		int grown = 0, capacity = matrix.getCapacity();
+		for (int row=0; row<10000; row++) {
+			matrix.appendRow(new int[] {row, -row, row*2});
+			if (matrix.getCapacity()!=capacity) {
+				// Every time it grows, it's by at least half again
+				assertTrue(matrix.getCapacity()>=capacity + capacity/2);
+				capacity = matrix.getCapacity();
+				grown++;
+			}
+		}
+		assertEquals(10000, matrix.getRows());
+		assertTrue("Grew " + grown + " times", grown<25);
+		for (int row=1; row<=10000; row++) {
+			assertEquals(row-1, matrix.get(row, 1));
+			assertEquals(1-row, matrix.get(row, 2));
+			assertEquals((row-1)*2, matrix.get(row, 3));
+		}
+	}
+
+	@Test
+	public void appendsRowsFromAnOffset() {
+		IntMatrix matrix = new IntMatrix(1, COLS);
+		matrix.set(1, 2, 7);
+		matrix.appendRows(new int[] {9, 9, 9, 1, 2, 3, 4, 5, 6}, COLS, 2);
+		matrix.addRow();
+		assertArrayEquals(new int[] {0, 7, 0, 1, 2, 3, 4, 5, 6, 0, 0, 0}, matrix.toArray());
+	}
+
+	@Test
+	public void failsOnRowsPastTheEnd() {
+		IntMatrix matrix = new IntMatrix(0, COLS);
+		matrix.ensureCapacity(100);
+		matrix.appendRow(new int[] {1, 2, 3});
+		assertTrue(matrix.getCapacity()>=100);
+		assertRowFails(matrix, 0);
+		assertRowFails(matrix, 2);
+		assertRowFails(matrix, 100);
+		assertEquals(3, matrix.get(1, 3));
+	}
+
+	private static void assertRowFails(IntMatrix matrix, int row) {
+		try {
+			matrix.get(row, 1);
+			fail("Read row " + row);
+		} catch (IndexOutOfBoundsException e) {
+			// Expected
+		}
+		try {
+			matrix.set(row, 1, 1);
+			fail("Wrote row " + row);
+		} catch (IndexOutOfBoundsException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void toArrayTrimsTheSpareCapacity() {
+		IntMatrix matrix = new IntMatrix(0, COLS);
+		for (int row=0; row<17; row++)
+			matrix.appendRow(new int[] {row, row, row});
+		assertTrue(matrix.getCapacity()>17);
+		int[] data = matrix.toArray();
+		assertEquals(17*COLS, data.length);
+		assertEquals(matrix.getSize(), data.length);
+		assertEquals(17, matrix.getCapacity());
+		assertEquals(16, data[16*COLS]);
+	}
+
+	@Test
+	public void wrapsAnArrayWithRoomToSpare() {
+		int[] data = {1, 2, 3, 4, 5, 6, 0, 0, 0};
+		IntMatrix matrix = new IntMatrix(data, 2, COLS);
+		assertEquals(3, matrix.getCapacity());
+		matrix.appendRow(new int[] {7, 8, 9});
+		assertArrayEquals(new int[] {1, 2, 3, 4, 5, 6, 7, 8, 9}, matrix.toArray());
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * This is the RecordingCatalogTest class. It checks that the catalog takes a recording's duration
+ * from the end time kept in it, so copying or touching the file doesn't change it, and that it's
+ * kept across saving and loading the catalog.
+ */
+
+package sim.marble;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RecordingCatalogTest {
+
+	private static final long START_TIME = 1500000000000L;
+
+	private File mDir;
+
+	@Before
+	public void setUp() throws IOException {
+		mDir = File.createTempFile("catalog", "");
+		mDir.delete();
+		mDir.mkdir();
+	}
+
+	@After
+	public void tearDown() {
+		for (File file : mDir.listFiles())
+			file.delete();
+		mDir.delete();
+	}
+
+	@Test
+	public void takesTheDurationFromTheEndTime() throws IOException {
+		File file = new File(mDir, "capture" + RecordingFormat.EXTENSION);
+		RecordingWriter writer = new RecordingWriter(file, RecordingFormat.DEFAULT_SCHEMA,
+				START_TIME);
+		writer.writeRow(new int[RecordingFormat.DEFAULT_SCHEMA.length]);
+		writer.setEndTime(START_TIME + 90000);
+		writer.close();
+		// As if it had been copied onto the device a good while later
+		file.setLastModified(START_TIME + 5000000);
+
+		List<RecordingCatalog.Entry> entries = RecordingCatalog.open(mDir)
+				.getEntries(RecordingCatalog.BY_NAME);
+		assertEquals(1, entries.size());
+		assertEquals(START_TIME + 90000, entries.get(0).endTime);
+		assertEquals(90000, entries.get(0).getDuration());
+
+		// The same again from the saved catalog
+		RecordingCatalog.Entry loaded = RecordingCatalog.load(mDir)
+				.getEntries(RecordingCatalog.BY_NAME).get(0);
+		assertEquals(START_TIME + 90000, loaded.endTime);
+		assertEquals(90000, loaded.getDuration());
+	}
+
+	@Test
+	public void doesntKnowTheDurationOfATextRecording() throws IOException {
+		File file = new File(mDir, "capture" + RecordingFormat.LEGACY_EXTENSION);
+		file.createNewFile();
+		file.setLastModified(START_TIME);
+		RecordingCatalog.Entry entry = RecordingCatalog.open(mDir)
+				.getEntries(RecordingCatalog.BY_NAME).get(0);
+		assertEquals(-1, entry.endTime);
+		assertEquals(-1, entry.getDuration());
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * This is the RecordingExporterTest class. It exports binary and text recordings in every format
+ * and reads what came out back in, checks that a recording's copy keeps its gaps and end time, and
+ * that two recordings with the same name aren't exported over each other.
+ */
+
+package sim.marble;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RecordingExporterTest {
+
+	private static final String[] SCHEMA = {"XPos", "YPos", "ZPos", "Luminance"};
+	private static final int COLS = SCHEMA.length;
+	private static final int ROWS = 3000;
+	private static final long START_TIME = 1500000000000L;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private File mRecording, mOutputDir;
+	private int[] mRows;
+
+	@Before
+	public void setUp() throws IOException {
+		mRecording = new File(mFolder.getRoot(), "capture" + RecordingFormat.EXTENSION);
+		mOutputDir = new File(mFolder.getRoot(), "export");
+		mRows = new int[ROWS*COLS];
+		for (int i=0; i<mRows.length; i++)
+			mRows[i] = (i % 7==0 ? -1 : 1) * i * 31;
+		// Values as wide as they come, sign and all
+		mRows[0] = Integer.MIN_VALUE;
+		mRows[1] = Integer.MAX_VALUE;
+		RecordingWriter writer = new RecordingWriter(mRecording, SCHEMA, START_TIME,
+				RecordingFormat.ENCODING_DELTA);
+		writer.writeRows(mRows, 0, 1000);
+		writer.addGap(1000, START_TIME + 1000, START_TIME + 1500);
+		writer.writeRows(mRows, 1000*COLS, ROWS - 1000);
+		writer.setEndTime(START_TIME + 4000);
+		writer.close();
+	}
+
+	@Test
+	public void exportsCsv() throws IOException {
+		RecordingExporter.Result result = export(RecordingExporter.FORMAT_CSV, mRecording);
+		assertEquals(Arrays.asList(new File(mOutputDir, "capture.mrb.csv")), result.outputs);
+		StringBuilder expected = new StringBuilder("XPos,YPos,ZPos,Luminance\n");
+		for (int i=0; i<mRows.length; i++)
+			expected.append(mRows[i]).append((i+1) % COLS==0 ? "\n" : ",");
+		assertEquals(expected.toString(), read(result.outputs.get(0)));
+	}
+
+	@Test
+	public void exportsTheBinaryFormat() throws IOException {
+		RecordingExporter.Result result = export(RecordingExporter.FORMAT_BINARY, mRecording);
+		File copy = result.outputs.get(0);
+		assertEquals(new File(mOutputDir, "capture.mrb.mrb"), copy);
+		assertArrayEquals(mRows, RecordingReader.read(copy).toArray());
+		assertEquals(START_TIME, RecordingReader.readHeader(copy).startTime);
+		assertArrayEquals(SCHEMA, RecordingReader.readHeader(copy).schema);
+		assertEquals(START_TIME + 4000, RecordingReader.readEndTime(copy));
+		List<RecordingFormat.Gap> gaps = RecordingReader.readGaps(copy);
+		assertEquals(1, gaps.size());
+		assertEquals(1000, gaps.get(0).row);
+	}
+
+	@Test
+	public void exportsAFilePerColumn() throws IOException {
+		RecordingExporter.Result result = export(RecordingExporter.FORMAT_COLUMNS, mRecording);
+		assertEquals(COLS, result.outputs.size());
+		for (int col=0; col<COLS; col++) {
+			File file = result.outputs.get(col);
+			assertEquals("capture.mrb." + SCHEMA[col] + RecordingExporter.COLUMN_EXTENSION,
+					file.getName());
+			assertEquals(ROWS*4, file.length());
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(file)));
+			try {
+				for (int row=0; row<ROWS; row++)
+					assertEquals(mRows[row*COLS + col], in.readInt());
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	@Test
+	public void exportsATextRecording() throws IOException {
+		File text = new File(mFolder.getRoot(), "old.txt");
+		int cols = RecordingFormat.DEFAULT_SCHEMA.length;
+		OutputStream out = new FileOutputStream(text);
+		try {
+			out.write("1 2 3 4 5 6 7 8 9 10\nnot a row\n-1 -2 -3 -4 -5 -6 -7 -8 -9 -10\n"
+					.getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+		RecordingExporter.Result result = export(RecordingExporter.FORMAT_BINARY, text);
+		assertEquals(2, result.rows);
+		IntMatrix rows = RecordingReader.read(result.outputs.get(0));
+		assertEquals(cols, rows.getCols());
+		assertEquals(2, rows.getRows());
+		assertEquals(10, rows.get(1, cols));
+		assertEquals(-10, rows.get(2, cols));
+	}
+
+	@Test
+	public void exportsSeveralInOrder() throws IOException {
+		File other = new File(mFolder.getRoot(), "short" + RecordingFormat.EXTENSION);
+		RecordingWriter writer = new RecordingWriter(other, SCHEMA, START_TIME);
+		writer.writeRows(mRows, 0, 10);
+		writer.close();
+		File missing = new File(mFolder.getRoot(), "missing" + RecordingFormat.EXTENSION);
+		RecordingExporter exporter = new RecordingExporter(RecordingExporter.FORMAT_CSV,
+				mOutputDir, 2);
+		List<RecordingExporter.Result> results = exporter.export(
+				Arrays.asList(other, missing, mRecording));
+		assertEquals(3, results.size());
+		assertEquals(other, results.get(0).recording);
+		assertEquals(10, results.get(0).rows);
+		assertNull(results.get(0).error);
+		// One that fails doesn't stop the others
+		assertEquals(missing, results.get(1).recording);
+		assertNotNull(results.get(1).error);
+		assertEquals(ROWS, results.get(2).rows);
+		assertEquals(3, exporter.getProgress().filesDone);
+		assertEquals(1, exporter.getProgress().filesFailed);
+	}
+
+	@Test
+	public void turnsDownTwoRecordingsWithTheSameName() throws IOException {
+		File elsewhere = new File(mFolder.newFolder("elsewhere"), mRecording.getName());
+		RecordingExporter exporter = new RecordingExporter(RecordingExporter.FORMAT_CSV,
+				mOutputDir);
+		try {
+			exporter.export(Arrays.asList(mRecording, elsewhere));
+			fail("Exported two recordings to the same files");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		// Nothing was started
+		assertEquals(0, exporter.getProgress().files);
+	}
+
+	private RecordingExporter.Result export(int format, File recording) throws IOException {
+		RecordingExporter.Result result = new RecordingExporter(format, mOutputDir)
+				.export(recording);
+		if (result.error!=null)
+			throw result.error;
+		return result;
+	}
+
+	private static String read(File file) throws IOException {
+		byte[] bytes = new byte[(int)file.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			in.readFully(bytes);
+		} finally {
+			in.close();
+		}
+		return new String(bytes, "UTF-8");
+	}
+}
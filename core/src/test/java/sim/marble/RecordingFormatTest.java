@@ -0,0 +1,298 @@
+/*
+ * This is the RecordingFormatTest class. It writes recordings with RecordingWriter and reads them
+ * back with RecordingReader, with both encodings, and checks that the recordings older versions
+ * wrote (which are put together by hand here, as those versions did) can still be read: v2 with
+ * no encoding byte and no gaps, v3 with no gaps, and v4 with gaps but no end time.
+ */
+
+package sim.marble;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RecordingFormatTest {
+
+	private static final String[] SCHEMA = {"XPos", "YPos", "ZPos", "Luminance"};
+	private static final int COLS = SCHEMA.length;
+	private static final long START_TIME = 1500000000000L;
+
+	private File mFile;
+
+	@Before
+	public void setUp() throws IOException {
+		mFile = File.createTempFile("recording", RecordingFormat.EXTENSION);
+	}
+
+	@After
+	public void tearDown() {
+		mFile.delete();
+	}
+
+	@Test
+	public void roundTripsRaw() throws IOException {
+		roundTrip(RecordingFormat.ENCODING_RAW);
+	}
+
+	@Test
+	public void roundTripsDelta() throws IOException {
+		roundTrip(RecordingFormat.ENCODING_DELTA);
+	}
+
+	private void roundTrip(byte encoding) throws IOException {
+		int[] rows = rows(5000);
+		RecordingWriter writer = new RecordingWriter(mFile, SCHEMA, START_TIME, encoding);
+		writer.writeRows(rows, 0, 2000);
+		writer.addGap(2000, START_TIME + 2000, START_TIME + 3000);
+		for (int row=2000; row<5000; row++)
+			writer.writeRow(Arrays.copyOfRange(rows, row*COLS, (row+1)*COLS));
+		writer.setEndTime(START_TIME + 6000);
+		writer.close();
+
+		RecordingFormat.Header header = RecordingReader.readHeader(mFile);
+		assertEquals(RecordingFormat.VERSION, header.version);
+		assertEquals(encoding, header.encoding);
+		assertEquals(START_TIME, header.startTime);
+		assertArrayEquals(SCHEMA, header.schema);
+		assertEquals(5000, RecordingReader.countRows(mFile));
+		assertArrayEquals(rows, RecordingReader.read(mFile).toArray());
+
+		List<RecordingFormat.Gap> gaps = RecordingReader.readGaps(mFile);
+		assertEquals(1, gaps.size());
+		assertGap(gaps.get(0), 2000, START_TIME + 2000, START_TIME + 3000);
+		assertEquals(START_TIME + 6000, RecordingReader.readEndTime(mFile));
+		// 5000 rows in the 5 s the connection was up
+		assertEquals(1000.0, RecordingReader.readRowsPerSecond(mFile), 1e-9);
+
+		ColumnStats stats = RecordingReader.readStats(mFile);
+		assertNotNull(stats);
+		assertEquals(5000, stats.getCount());
+		// Columns are 1-based here
+		assertEquals(0, stats.getMin(1));
+		assertEquals(4999, stats.getMax(1));
+		assertTrue(stats.hasHistograms());
+	}
+
+	@Test
+	public void readsARecordingThatWasNeverClosed() throws IOException {
+		int[] rows = rows(100);
+		RecordingWriter writer = new RecordingWriter(mFile, SCHEMA, START_TIME,
+				RecordingFormat.ENCODING_RAW);
+		writer.writeRows(rows, 0, 100);
+		writer.close();
+		// Cut it off half way through a row, as if the app died mid-capture
+		RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+		try {
+			file.setLength(RecordingReader.readHeader(mFile).dataOffset + 50*COLS*4 + 6);
+		} finally {
+			file.close();
+		}
+		assertEquals(50, RecordingReader.countRows(mFile));
+		assertArrayEquals(Arrays.copyOf(rows, 50*COLS),
+				RecordingReader.read(mFile).toArray());
+		assertNull(RecordingReader.readStats(mFile));
+		assertTrue(RecordingReader.readGaps(mFile).isEmpty());
+		assertEquals(0, RecordingReader.readEndTime(mFile));
+	}
+
+	@Test
+	public void rejectsACorruptBlockCount() throws IOException {
+		assertCorruptBlock(Integer.MAX_VALUE, 100);
+		assertCorruptBlock(DeltaCodec.BLOCK_ROWS + 1, 100);
+		assertCorruptBlock(-1, 100);
+	}
+
+	@Test
+	public void rejectsACorruptBlockLength() throws IOException {
+		assertCorruptBlock(DeltaCodec.BLOCK_ROWS, Integer.MAX_VALUE);
+		assertCorruptBlock(DeltaCodec.BLOCK_ROWS,
+				DeltaCodec.maxBlockSize(DeltaCodec.BLOCK_ROWS, COLS));
+		assertCorruptBlock(DeltaCodec.BLOCK_ROWS, -1);
+	}
+
+	/**
+	 * Writes a delta recording, overwrites the start of its second block, and checks that
+	 * everything that reads the blocks turns it down with an IOException, rather than trying to
+	 * make room for it
+	 */
+	private void assertCorruptBlock(int count, int length) throws IOException {
+		RecordingWriter writer = new RecordingWriter(mFile, SCHEMA, START_TIME,
+				RecordingFormat.ENCODING_DELTA);
+		writer.writeRows(rows(3000), 0, 3000);
+		writer.close();
+		RowIndex index = RowIndex.build(mFile);
+		long position = index.getOffset(index.find(DeltaCodec.BLOCK_ROWS));
+
+		RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+		try {
+			file.seek(position);
+			file.writeInt(count);
+			file.writeInt(length);
+		} finally {
+			file.close();
+		}
+		try {
+			RecordingReader.read(mFile);
+			fail("Read a corrupt block");
+		} catch (IOException e) {
+			// As it should
+		}
+		try {
+			RowIndex.build(mFile);
+			fail("Indexed a corrupt block");
+		} catch (IOException e) {
+			// As it should
+		}
+
+		// Without the footer, the rows are counted from the blocks
+		file = new RandomAccessFile(mFile, "rw");
+		try {
+			file.setLength(file.length() - RecordingFormat.FOOTER_SIZE);
+		} finally {
+			file.close();
+		}
+		try {
+			RecordingReader.countRows(mFile);
+			fail("Counted a corrupt block");
+		} catch (IOException e) {
+			// As it should
+		}
+	}
+
+	@Test
+	public void readsVersion2() throws IOException {
+		int[] rows = rows(300);
+		writeOld(2, rows, false);
+		assertOld(2, rows);
+		assertTrue(RecordingReader.readGaps(mFile).isEmpty());
+	}
+
+	@Test
+	public void readsVersion3() throws IOException {
+		int[] rows = rows(300);
+		writeOld(3, rows, false);
+		assertOld(3, rows);
+		assertTrue(RecordingReader.readGaps(mFile).isEmpty());
+	}
+
+	@Test
+	public void readsVersion4() throws IOException {
+		int[] rows = rows(300);
+		writeOld(4, rows, true);
+		assertOld(4, rows);
+		List<RecordingFormat.Gap> gaps = RecordingReader.readGaps(mFile);
+		assertEquals(2, gaps.size());
+		assertGap(gaps.get(0), 100, 10, 20);
+		assertGap(gaps.get(1), 200, 30, 50);
+		// Version 4 didn't keep the end time
+		assertEquals(0, RecordingReader.readEndTime(mFile));
+		assertTrue(Double.isNaN(RecordingReader.readRowsPerSecond(mFile)));
+	}
+
+	private void assertOld(int version, int[] rows) throws IOException {
+		RecordingFormat.Header header = RecordingReader.readHeader(mFile);
+		assertEquals(version, header.version);
+		assertEquals(RecordingFormat.ENCODING_RAW, header.encoding);
+		assertArrayEquals(SCHEMA, header.schema);
+		assertEquals(rows.length/COLS, RecordingReader.countRows(mFile));
+		assertArrayEquals(rows, RecordingReader.read(mFile).toArray());
+		ColumnStats stats = RecordingReader.readStats(mFile);
+		assertNotNull(stats);
+		assertEquals(rows.length/COLS, stats.getCount());
+	}
+
+	/**
+	 * Writes a raw recording the way an older version did. Versions before 3 had no encoding
+	 * byte, versions before 4 had no gaps, and versions before 5 had no end time after the gaps.
+	 */
+	private void writeOld(int version, int[] rows, boolean withGaps) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(mFile)));
+		try {
+			ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+			DataOutputStream payload = new DataOutputStream(payloadBytes);
+			payload.writeShort(COLS);
+			payload.writeLong(START_TIME);
+			for (String name : SCHEMA)
+				payload.writeUTF(name);
+			if (version>=3)
+				payload.writeByte(RecordingFormat.ENCODING_RAW);
+			payload.flush();
+			out.writeInt(RecordingFormat.MAGIC);
+			out.writeShort(version);
+			out.writeInt(payloadBytes.size());
+			payloadBytes.writeTo(out);
+
+			for (int value : rows)
+				out.writeInt(value);
+
+			if (version>=4) {
+				long[][] gaps = withGaps ? new long[][] {{100, 10, 20}, {200, 30, 50}}
+						: new long[0][];
+				out.writeInt(gaps.length);
+				for (long[] gap : gaps) {
+					for (long value : gap)
+						out.writeLong(value);
+				}
+				out.writeInt(4 + gaps.length*RecordingFormat.GAP_SIZE);
+				out.writeInt(RecordingFormat.GAPS_MAGIC);
+			}
+
+			ColumnStats stats = new ColumnStats(COLS);
+			stats.onRows(rows, rows.length/COLS);
+			ByteArrayOutputStream statsBytes = new ByteArrayOutputStream();
+			DataOutputStream statsOut = new DataOutputStream(statsBytes);
+			stats.write(statsOut, version>=3);
+			statsOut.flush();
+			statsBytes.writeTo(out);
+			out.writeInt(statsBytes.size());
+			out.writeInt(RecordingFormat.STATS_MAGIC);
+
+			out.writeLong(rows.length/COLS);
+			out.writeInt(RecordingFormat.FOOTER_MAGIC);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void assertGap(RecordingFormat.Gap gap, long row, long lostTime,
+			long resumedTime) {
+		assertEquals(row, gap.row);
+		assertEquals(lostTime, gap.lostTime);
+		assertEquals(resumedTime, gap.resumedTime);
+	}
+
+	/**
+	 * Makes up rows that look a bit like the board's: a counter, a slow wave, some noise, and a
+	 * value that jumps about
+	 */
+	private static int[] rows(int count) {
+		int[] rows = new int[count*COLS];
+		Random random = new Random(count);
+		for (int row=0; row<count; row++) {
+			rows[row*COLS] = row;
+			rows[row*COLS + 1] = (int)(1000*Math.sin(row/50.0));
+			rows[row*COLS + 2] = random.nextInt(200) - 100;
+			rows[row*COLS + 3] = random.nextInt();
+		}
+		return rows;
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * This is the RecordingPyramidTest class. It builds pyramids with PyramidBuilder, from rows fed
+ * in as they'd be captured and from a matrix that's been read in full, and checks every bucket of
+ * every level against the rows themselves, including which of its min and max came first. It also
+ * checks that a pyramid isn't used once the recording it was built for has changed.
+ */
+
+package sim.marble;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RecordingPyramidTest {
+
+	private static final int COLS = 2;
+	// The last bucket's short
+	private static final int ROWS = 37*RecordingPyramid.BASE_BUCKET_ROWS + 13;
+
+	private File mRecording;
+	private IntColumnMatrix mMatrix;
+
+	@Before
+	public void setUp() throws IOException {
+		// It's only the recording's length and time that matter to the pyramid
+		mRecording = File.createTempFile("recording", RecordingFormat.EXTENSION);
+		FileOutputStream out = new FileOutputStream(mRecording);
+		try {
+			out.write(new byte[100]);
+		} finally {
+			out.close();
+		}
+		mRecording.setLastModified(1500000000000L);
+		Random random = new Random(9);
+		mMatrix = new IntColumnMatrix(COLS);
+		for (int row=0; row<ROWS; row++) {
+			// The second column has ties, so it matters which one comes first
+			mMatrix.appendRow(new int[] {random.nextInt(2001) - 1000, random.nextInt(4)});
+		}
+	}
+
+	@After
+	public void tearDown() {
+		mRecording.delete();
+		RecordingPyramid.sidecarFor(mRecording).delete();
+	}
+
+	@Test
+	public void keepsEveryBucketsMinAndMaxInOrder() throws IOException {
+		PyramidBuilder.of(mMatrix).write(mRecording);
+		assertPyramid();
+	}
+
+	@Test
+	public void buildsTheSamePyramidFromCapturedRows() throws IOException {
+		PyramidBuilder builder = new PyramidBuilder(COLS);
+		int[] rows = mMatrix.toRowArray();
+		// In odd lots, the way a capture hands them over
+		for (int row=0; row<ROWS; ) {
+			int count = Math.min(row % 100 + 1, ROWS - row);
+			int[] batch = new int[count*COLS];
+			System.arraycopy(rows, row*COLS, batch, 0, batch.length);
+			builder.onRows(batch, count);
+			row += count;
+		}
+		assertEquals(ROWS, builder.getRows());
+		builder.write(mRecording);
+		assertPyramid();
+	}
+
+	private void assertPyramid() throws IOException {
+		RecordingPyramid pyramid = RecordingPyramid.open(mRecording);
+		assertNotNull(pyramid);
+		try {
+			assertEquals(ROWS, pyramid.getRows());
+			assertEquals(COLS, pyramid.getCols());
+			int levels = pyramid.getLevels();
+			assertEquals(1, pyramid.getBuckets(levels-1));
+			for (int level=0; level<levels; level++) {
+				int bucketRows = pyramid.getBucketRows(level);
+				assertEquals(RecordingPyramid.BASE_BUCKET_ROWS << level, bucketRows);
+				int buckets = pyramid.getBuckets(level);
+				assertEquals((ROWS + bucketRows - 1) / bucketRows, buckets);
+				int[] min = new int[buckets], max = new int[buckets];
+				boolean[] minFirst = new boolean[buckets];
+				for (int col=1; col<=COLS; col++) {
+					pyramid.readMinMax(level, col, 0, buckets, min, max, minFirst);
+					for (int bucket=0; bucket<buckets; bucket++) {
+						String where = "Level " + level + ", column " + col + ", bucket " + bucket;
+						int[] expected = scan(col, bucket*bucketRows,
+								Math.min((bucket+1)*bucketRows, ROWS));
+						assertEquals(where, expected[0], min[bucket]);
+						assertEquals(where, expected[1], max[bucket]);
+						assertEquals(where, expected[2]==1, minFirst[bucket]);
+					}
+				}
+			}
+			// A range from the middle of a level, too
+			int[] min = new int[3], max = new int[3];
+			pyramid.readMinMax(1, 1, 5, 3, min, max, null);
+			int bucketRows = pyramid.getBucketRows(1);
+			for (int i=0; i<3; i++) {
+				int[] expected = scan(1, (5+i)*bucketRows, (6+i)*bucketRows);
+				assertArrayEquals(new int[] {expected[0], expected[1]},
+						new int[] {min[i], max[i]});
+			}
+		} finally {
+			pyramid.close();
+		}
+	}
+
+	/**
+	 * Returns the min and max of a column's rows, and 1 if the min came first (at the first row
+	 * either of them is at), or 0 if it didn't
+	 */
+	private int[] scan(int col, int from, int to) {
+		int[] column = mMatrix.getColumn(col);
+		int minAt = from, maxAt = from;
+		for (int row=from; row<to; row++) {
+			if (column[row]<column[minAt])
+				minAt = row;
+			if (column[row]>column[maxAt])
+				maxAt = row;
+		}
+		return new int[] {column[minAt], column[maxAt], minAt<=maxAt ? 1 : 0};
+	}
+
+	@Test
+	public void turnsDownAStalePyramid() throws IOException {
+		PyramidBuilder.of(mMatrix).write(mRecording);
+		RecordingPyramid pyramid = RecordingPyramid.open(mRecording);
+		assertNotNull(pyramid);
+		pyramid.close();
+
+		mRecording.setLastModified(1600000000000L);
+		assertNull(RecordingPyramid.open(mRecording));
+		mRecording.setLastModified(1500000000000L);
+		assertNotNull(reopen());
+
+		RandomAccessFile file = new RandomAccessFile(mRecording, "rw");
+		try {
+			file.setLength(101);
+		} finally {
+			file.close();
+		}
+		mRecording.setLastModified(1500000000000L);
+		assertNull(RecordingPyramid.open(mRecording));
+	}
+
+	@Test
+	public void turnsDownAnotherVersion() throws IOException {
+		PyramidBuilder.of(mMatrix).write(mRecording);
+		RandomAccessFile file = new RandomAccessFile(RecordingPyramid.sidecarFor(mRecording), "rw");
+		try {
+			// The version comes right after the magic
+			file.seek(4);
+			file.writeShort(RecordingPyramid.VERSION + 1);
+		} finally {
+			file.close();
+		}
+		assertNull(RecordingPyramid.open(mRecording));
+	}
+
+	private RecordingPyramid reopen() throws IOException {
+		RecordingPyramid pyramid = RecordingPyramid.open(mRecording);
+		if (pyramid!=null)
+			pyramid.close();
+		return pyramid;
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * This is the RecordingWindowTest class. It reads windows of recordings whose blocks don't line up
+ * with the RowIndex's entries (some are flushed short, so an entry can start several blocks before
+ * the row that's wanted), with both encodings, and checks every window against the rows that were
+ * written. It also checks the index kept next to a recording, and reading the rows in order with a
+ * Cursor.
+ */
+
+package sim.marble;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RecordingWindowTest {
+
+	private static final String[] SCHEMA = {"XPos", "YPos", "ZPos"};
+	private static final int COLS = SCHEMA.length;
+	private static final int ROWS = 5000;
+
+	private File mFile;
+	private int[] mRows;
+
+	@Before
+	public void setUp() throws IOException {
+		mFile = File.createTempFile("window", RecordingFormat.EXTENSION);
+		mRows = new int[ROWS*COLS];
+		Random random = new Random(16);
+		for (int i=0; i<mRows.length; i++)
+			mRows[i] = i/COLS*10 + random.nextInt(7) - 3;
+	}
+
+	@After
+	public void tearDown() {
+		mFile.delete();
+		RowIndex.sidecarFor(mFile).delete();
+	}
+
+	@Test
+	public void findsTheEntryAtOrBeforeARow() throws IOException {
+		write(RecordingFormat.ENCODING_DELTA);
+		RowIndex index = RowIndex.build(mFile);
+		assertEquals(ROWS, index.getRows());
+		assertTrue(index.getEntryCount()>1);
+		assertEquals(0, index.getFirstRow(0));
+		for (long row=0; row<ROWS; row++) {
+			int entry = index.find(row);
+			assertTrue(index.getFirstRow(entry)<=row);
+			if (entry+1<index.getEntryCount())
+				assertTrue(index.getFirstRow(entry+1)>row);
+		}
+		// Entries are at least INTERVAL_ROWS apart, even though some blocks are shorter
+		for (int entry=1; entry<index.getEntryCount(); entry++)
+			assertTrue(index.getFirstRow(entry) - index.getFirstRow(entry-1)
+					>=RowIndex.INTERVAL_ROWS);
+		assertEquals(-1, new RowIndex().find(0));
+	}
+
+	@Test
+	public void keepsTheIndexNextToTheRecording() throws IOException {
+		write(RecordingFormat.ENCODING_DELTA);
+		assertNull(RowIndex.load(mFile));
+		RowIndex built = RowIndex.open(mFile);
+		RowIndex loaded = RowIndex.load(mFile);
+		assertNotNull(loaded);
+		assertEquals(built.getRows(), loaded.getRows());
+		assertEquals(built.getEntryCount(), loaded.getEntryCount());
+		for (int entry=0; entry<built.getEntryCount(); entry++) {
+			assertEquals(built.getFirstRow(entry), loaded.getFirstRow(entry));
+			assertEquals(built.getOffset(entry), loaded.getOffset(entry));
+		}
+		// Once the recording's changed, the index kept next to it isn't used
+		mFile.setLastModified(mFile.lastModified() - 10000);
+		assertNull(RowIndex.load(mFile));
+	}
+
+	@Test
+	public void readsRawWindows() throws IOException {
+		write(RecordingFormat.ENCODING_RAW);
+		assertWindows();
+	}
+
+	@Test
+	public void readsDeltaWindows() throws IOException {
+		write(RecordingFormat.ENCODING_DELTA);
+		assertWindows();
+	}
+
+	private void assertWindows() throws IOException {
+		RecordingWindow window = RecordingWindow.open(mFile);
+		try {
+			assertEquals(ROWS, window.getRows());
+			assertEquals(COLS, window.getCols());
+			long[] froms = {0, 1, 1023, 1024, 1025, 1100, 2047, 2500, 4095, 4999};
+			int[] counts = {1, 2, 100, 1024, 1500, 3000};
+			for (long from : froms) {
+				for (int count : counts) {
+					IntMatrix table = new IntMatrix(0, COLS);
+					int n = window.read(from, count, table);
+					int expected = (int)Math.min(count, ROWS - from);
+					assertEquals(expected, n);
+					assertArrayEquals("from " + from + ", " + count + " rows",
+							Arrays.copyOfRange(mRows, (int)from*COLS, (int)(from + n)*COLS),
+							table.toArray());
+				}
+			}
+			// Past the end, nothing's read
+			assertEquals(0, window.read(ROWS, 10, new IntMatrix(0, COLS)));
+		} finally {
+			window.close();
+		}
+	}
+
+	@Test
+	public void readsRawRowsInOrder() throws IOException {
+		write(RecordingFormat.ENCODING_RAW);
+		assertCursor();
+	}
+
+	@Test
+	public void readsDeltaRowsInOrder() throws IOException {
+		write(RecordingFormat.ENCODING_DELTA);
+		assertCursor();
+	}
+
+	private void assertCursor() throws IOException {
+		RecordingWindow window = RecordingWindow.open(mFile);
+		try {
+			for (long from : new long[] {0, 700, 1024, 3333}) {
+				RecordingWindow.Cursor cursor = window.cursor(from);
+				int[] rows = new int[(ROWS - (int)from)*COLS];
+				int[] chunk = new int[255*COLS];
+				int done = 0, n;
+				// Taken a few rows at a time, the way ReplayTransport does
+				while ((n = cursor.read(chunk, 255))>0) {
+					System.arraycopy(chunk, 0, rows, done*COLS, n*COLS);
+					done += n;
+					assertEquals(from + done, cursor.getRow());
+				}
+				assertEquals(ROWS - from, done);
+				assertArrayEquals("from " + from,
+						Arrays.copyOfRange(mRows, (int)from*COLS, mRows.length), rows);
+			}
+		} finally {
+			window.close();
+		}
+	}
+
+	/**
+	 * Writes the rows in odd sized lots, flushing now and then so some blocks come out short
+	 */
+	private void write(byte encoding) throws IOException {
+		RecordingWriter writer = new RecordingWriter(mFile, SCHEMA, 0, encoding);
+		int row = 0, lot = 0;
+		while (row<ROWS) {
+			int count = Math.min(ROWS - row, 97 + 131*(lot%5));
+			writer.writeRows(mRows, row*COLS, count);
+			if (lot++%3==1)
+				writer.flush();
+			row += count;
+		}
+		writer.close();
+	}
+}
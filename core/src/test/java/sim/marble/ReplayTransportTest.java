@@ -0,0 +1,110 @@
+/*
+ * This is the ReplayTransportTest class. It plays recordings back as fast as they can be read, as
+ * text and as frames once the handshake's been sent, and checks that what comes out parses back
+ * into every row of the recording, in order.
+ */
+
+package sim.marble;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReplayTransportTest {
+
+	private static final int COLS = RecordingFormat.DEFAULT_SCHEMA.length;
+	private static final int ROWS = 3000;
+
+	private File mFile;
+	private int[] mRows;
+
+	@Before
+	public void setUp() throws IOException {
+		mFile = File.createTempFile("replay", RecordingFormat.EXTENSION);
+		mRows = new int[ROWS*COLS];
+		Random random = new Random(19);
+		for (int i=0; i<mRows.length; i++)
+			mRows[i] = i%COLS==0 ? random.nextInt() : random.nextInt(2000) - 1000;
+		RecordingWriter writer = new RecordingWriter(mFile, RecordingFormat.DEFAULT_SCHEMA, 0,
+				RecordingFormat.ENCODING_DELTA);
+		writer.writeRows(mRows, 0, ROWS);
+		writer.close();
+	}
+
+	@After
+	public void tearDown() {
+		mFile.delete();
+		RowIndex.sidecarFor(mFile).delete();
+	}
+
+	@Test
+	public void playsTextBack() throws IOException {
+		Transport.Connection connection = connect();
+		RowCollector sink = new RowCollector(COLS);
+		RowTokenizer tokenizer = new RowTokenizer(COLS, 64);
+		InputStream in = connection.getInputStream();
+		byte[] buffer = new byte[1000];
+		int n;
+		while ((n = in.read(buffer))>0)
+			tokenizer.feed(buffer, 0, n, sink);
+		tokenizer.flush(sink);
+		connection.close();
+		assertArrayEquals(mRows, sink.toArray());
+	}
+
+	@Test
+	public void playsFramesBack() throws IOException {
+		Transport.Connection connection = connect();
+		connection.getOutputStream().write(WireProtocol.BINARY_COMMAND.getBytes());
+		InputStream in = connection.getInputStream();
+		WireProtocol.Handshake handshake = new WireProtocol.Handshake(COLS);
+		RowCollector sink = new RowCollector(COLS);
+		FrameDecoder decoder = null;
+		byte[] buffer = new byte[1000];
+		int n;
+		while ((n = in.read(buffer))>0) {
+			if (decoder!=null) {
+				decoder.feed(buffer, 0, n, sink);
+				continue;
+			}
+			int end = handshake.scan(buffer, 0, n);
+			assertTrue("rows came before the answer", end>=0);
+			int[] widths = handshake.getWidths();
+			assertNotNull(widths);
+			// The first column takes every int there is, the rest fit in a short
+			assertEquals(4, widths[0]);
+			assertEquals(2, widths[1]);
+			decoder = new FrameDecoder(widths, 64);
+			decoder.feed(buffer, end, n - end, sink);
+		}
+		decoder.flush(sink);
+		connection.close();
+		assertEquals(0, decoder.getLostFrames());
+		assertArrayEquals(mRows, sink.toArray());
+	}
+
+	@Test(expected = IOException.class)
+	public void failsOnceItsClosed() throws IOException {
+		Transport.Connection connection = connect();
+		InputStream in = connection.getInputStream();
+		connection.close();
+		in.read(new byte[100]);
+	}
+
+	private Transport.Connection connect() throws IOException {
+		Transport.Connection connection = new ReplayTransport(mFile, ReplayTransport.MAX_SPEED)
+				.createConnection();
+		connection.connect();
+		return connection;
+	}
+}
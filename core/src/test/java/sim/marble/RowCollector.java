@@ -0,0 +1,38 @@
+/*
+ * This is the RowCollector class. It's a RowSink for the tests that keeps every row it's handed,
+ * copied, since the sinks' arrays are reused, along with how many batches they came in.
+ */
+
+package sim.marble;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+class RowCollector implements RowSink {
+
+	private final int cols;
+	final List<int[]> rows = new ArrayList<int[]>();
+	int batches = 0;
+
+	RowCollector(int cols) {
+		this.cols = cols;
+	}
+
+	@Override
+	public void onRows(int[] batch, int count) {
+		batches++;
+		for (int row=0; row<count; row++)
+			rows.add(Arrays.copyOfRange(batch, row*cols, (row+1)*cols));
+	}
+
+	/**
+	 * Returns every row so far, laid out one after the other
+	 */
+	int[] toArray() {
+		int[] values = new int[rows.size()*cols];
+		for (int row=0; row<rows.size(); row++)
+			System.arraycopy(rows.get(row), 0, values, row*cols, cols);
+		return values;
+	}
+}
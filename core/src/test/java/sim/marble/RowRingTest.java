@@ -0,0 +1,166 @@
+/*
+ * This is the RowRingTest class. It checks what each of RowRing's overflow policies does once
+ * every slot's full: OVERFLOW_BLOCK holds the producer up until there's room, OVERFLOW_DROP_OLDEST
+ * overwrites the oldest slots and counts their rows as overrun, and OVERFLOW_SPILL keeps every row
+ * in a spill file and hands them over in order. Gaps have to come out where they were put in
+ * whatever the policy.
+ */
+
+package sim.marble;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RowRingTest {
+
+	private static final int COLS = 2;
+	private static final int SLOT_ROWS = 4;
+	private static final int CAPACITY = 2;
+
+	@Test
+	public void blockHoldsTheProducerUp() throws InterruptedException {
+		final RowRing ring = new RowRing(COLS, SLOT_ROWS, CAPACITY, RowRing.OVERFLOW_BLOCK, null);
+		put(ring, 1);
+		put(ring, 2);
+		Thread producer = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				put(ring, 3);
+			}
+		});
+		producer.start();
+		// It can't put its rows in until a slot's been taken out
+		long deadline = System.currentTimeMillis() + 5000;
+		while (producer.getState()!=Thread.State.WAITING && System.currentTimeMillis()<deadline)
+			Thread.sleep(1);
+		assertEquals(Thread.State.WAITING, producer.getState());
+		assertEquals(CAPACITY, ring.getDepth());
+
+		// Taking the slots out lets it in; its row may well come out in the same take()
+		Recorder recorder = new Recorder();
+		while (recorder.events.size()<3 && ring.take(recorder, 5000)>0)
+			;
+		producer.join(5000);
+		assertFalse(producer.isAlive());
+		assertEquals(Arrays.asList("row 1", "row 2", "row 3"), recorder.events);
+		assertEquals(1, ring.getFullCount());
+		assertTrue(ring.getBlockedNanos()>0);
+		assertEquals(0, ring.getOverrunRows());
+	}
+
+	@Test
+	public void dropOldestOverwritesTheOldestSlots() {
+		RowRing ring = new RowRing(COLS, SLOT_ROWS, CAPACITY, RowRing.OVERFLOW_DROP_OLDEST, null);
+		for (int i=1; i<=3; i++)
+			put(ring, i);
+		ring.putGap(10, 20);
+		put(ring, 4);
+		Recorder recorder = new Recorder();
+		ring.take(recorder, 0);
+		assertEquals(Arrays.asList("gap 10-20", "row 4"), recorder.events);
+		assertEquals(3, ring.getOverrunRows());
+		assertEquals(3, ring.getOverrunSlots());
+		assertEquals(4, ring.getRowsPut());
+
+		// It carries on as normal once there's room again
+		put(ring, 5);
+		recorder.events.clear();
+		ring.take(recorder, 0);
+		assertEquals(Arrays.asList("row 5"), recorder.events);
+	}
+
+	@Test
+	public void spillKeepsEveryRowInOrder() throws IOException {
+		File spillFile = File.createTempFile("ring", RowRing.SPILL_EXTENSION);
+		spillFile.delete();
+		RowRing ring = new RowRing(COLS, SLOT_ROWS, CAPACITY, RowRing.OVERFLOW_SPILL, spillFile);
+		List<String> expected = new ArrayList<String>();
+		for (int i=1; i<=6; i++) {
+			put(ring, i);
+			expected.add("row " + i);
+			if (i==4) {
+				ring.putGap(10, 20);
+				expected.add("gap 10-20");
+			}
+		}
+		assertTrue(spillFile.isFile());
+		assertEquals(4, ring.getSpilledRows());
+
+		Recorder recorder = new Recorder();
+		ring.take(recorder, 0);
+		// Anything put in once the slots have been emptied still comes after what was spilled
+		put(ring, 7);
+		expected.add("row 7");
+		ring.close();
+		while (ring.take(recorder, 0)>=0)
+			;
+		assertEquals(expected, recorder.events);
+		assertEquals(0, ring.getOverrunRows());
+		assertFalse(spillFile.exists());
+	}
+
+	@Test
+	public void closeLetsTheConsumerFinish() {
+		RowRing ring = new RowRing(COLS, SLOT_ROWS, CAPACITY, RowRing.OVERFLOW_BLOCK, null);
+		put(ring, 1);
+		ring.close();
+		// Nothing more goes in once it's closed, but what's there still comes out
+		put(ring, 2);
+		Recorder recorder = new Recorder();
+		assertEquals(1, ring.take(recorder, 0));
+		assertEquals(-1, ring.take(recorder, 0));
+		assertEquals(Arrays.asList("row 1"), recorder.events);
+	}
+
+	@Test
+	public void splitsBigBatchesAcrossSlots() {
+		RowRing ring = new RowRing(COLS, SLOT_ROWS, 4, RowRing.OVERFLOW_BLOCK, null);
+		int[] rows = new int[10*COLS];
+		for (int row=0; row<10; row++) {
+			rows[row*COLS] = row;
+			rows[row*COLS + 1] = -row;
+		}
+		ring.onRows(rows, 10);
+		Recorder recorder = new Recorder();
+		assertEquals(3, ring.take(recorder, 0));
+		assertEquals(10, recorder.events.size());
+		assertEquals("row 9", recorder.events.get(9));
+	}
+
+	/**
+	 * Puts in a single row, {value, -value}
+	 */
+	private static void put(RowRing ring, int value) {
+		ring.onRows(new int[] {value, -value}, 1);
+	}
+
+	/**
+	 * Writes down every row (by its first value) and gap it's handed, in order
+	 */
+	private static class Recorder implements RowRing.Consumer {
+		final List<String> events = new ArrayList<String>();
+
+		@Override
+		public void onRows(int[] rows, int count) {
+			for (int row=0; row<count; row++) {
+				assertEquals(-rows[row*COLS], rows[row*COLS + 1]);
+				events.add("row " + rows[row*COLS]);
+			}
+		}
+
+		@Override
+		public void onGap(long lostTime, long resumedTime) {
+			events.add("gap " + lostTime + "-" + resumedTime);
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * This is the RowTokenizerTest class. It checks that RowTokenizer parses the board's text the
+ * same however it's split across reads and however often it's flushed, as a line can be cut
+ * anywhere between two Bluetooth reads, and that it skips what isn't a row.
+ */
+
+package sim.marble;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class RowTokenizerTest {
+
+	private static final String TEXT = "1 2 3\r\n-4\t5   6\n#BIN 1 2 2 2\n7 8 9\n"
+			+ "10 11\n12 x 13\n2147483647 -2147483647 0\n99999999999 1 2\n14 15 16";
+	private static final int[] ROWS = {
+		1, 2, 3,
+		-4, 5, 6,
+		7, 8, 9,
+		Integer.MAX_VALUE, -Integer.MAX_VALUE, 0,
+		14, 15, 16,
+	};
+
+	@Test
+	public void parsesInOneGo() {
+		RowTokenizer tokenizer = new RowTokenizer(3, 64);
+		RowCollector sink = new RowCollector(3);
+		byte[] bytes = TEXT.getBytes();
+		tokenizer.feed(bytes, 0, bytes.length, sink);
+		tokenizer.finish(sink);
+		assertArrayEquals(ROWS, sink.toArray());
+		assertEquals(5, tokenizer.getRowCount());
+		// "10 11", "12 x 13" and the value that overflows; the message isn't malformed
+		assertEquals(3, tokenizer.getMalformedCount());
+	}
+
+	@Test
+	public void parsesLinesSplitAnywhere() {
+		byte[] bytes = TEXT.getBytes();
+		for (int split=0; split<=bytes.length; split++) {
+			RowTokenizer tokenizer = new RowTokenizer(3, 64);
+			RowCollector sink = new RowCollector(3);
+			tokenizer.feed(bytes, 0, split, sink);
+			tokenizer.feed(bytes, split, bytes.length - split, sink);
+			tokenizer.finish(sink);
+			assertArrayEquals("Split at " + split, ROWS, sink.toArray());
+		}
+	}
+
+	@Test
+	public void parsesAByteAtATimeWithFlushes() {
+		byte[] bytes = TEXT.getBytes();
+		// Flushing after every byte hands over the batch while a line's half parsed, which
+		// mustn't lose the values parsed so far
+		RowTokenizer tokenizer = new RowTokenizer(3, 2);
+		RowCollector sink = new RowCollector(3);
+		for (int i=0; i<bytes.length; i++) {
+			tokenizer.feed(bytes, i, 1, sink);
+			tokenizer.flush(sink);
+		}
+		tokenizer.finish(sink);
+		assertArrayEquals(ROWS, sink.toArray());
+	}
+
+	@Test
+	public void flushKeepsTheLineBeingParsed() {
+		RowTokenizer tokenizer = new RowTokenizer(3, 4);
+		RowCollector sink = new RowCollector(3);
+		byte[] first = "1 2 3\n4 5".getBytes(), second = " 6\n".getBytes();
+		tokenizer.feed(first, 0, first.length, sink);
+		tokenizer.flush(sink);
+		assertArrayEquals(new int[] {1, 2, 3}, sink.toArray());
+		tokenizer.feed(second, 0, second.length, sink);
+		tokenizer.flush(sink);
+		assertArrayEquals(new int[] {1, 2, 3, 4, 5, 6}, sink.toArray());
+		assertEquals(2, sink.batches);
+	}
+
+	@Test
+	public void handsOverFullBatches() {
+		RowTokenizer tokenizer = new RowTokenizer(1, 2);
+		RowCollector sink = new RowCollector(1);
+		byte[] bytes = "1\n2\n3\n4\n5\n".getBytes();
+		tokenizer.feed(bytes, 0, bytes.length, sink);
+		assertEquals(2, sink.batches);
+		assertEquals(4, sink.rows.size());
+		tokenizer.flush(sink);
+		assertArrayEquals(new int[] {1, 2, 3, 4, 5}, sink.toArray());
+	}
+
+	@Test
+	public void keepsTheRejectedLines() {
+		RowTokenizer tokenizer = new RowTokenizer(3, 64);
+		RowCollector sink = new RowCollector(3);
+		byte[] bytes = TEXT.getBytes();
+		tokenizer.feed(bytes, 0, bytes.length, sink);
+		tokenizer.finish(sink);
+		assertArrayEquals(new long[] {5, 6, 8}, tokenizer.getRejectedLines());
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * This is the SpectrumAnalyzerTest class. It feeds sines of known frequencies through
+ * SpectrumAnalyzer and checks that they come out in the right bins with the right power, and that
+ * once the spectrogram's full, its frames are merged two by two into what they'd have been
+ * otherwise.
+ */
+
+package sim.marble;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SpectrumAnalyzerTest {
+
+	private static final int SIZE = 64;
+	private static final int COLS = 4;
+
+	@Test
+	public void findsEachColumnsFrequency() {
+		// The first column doesn't get analysed; the last is flat, apart from gravity
+		SpectrumAnalyzer analyzer = new SpectrumAnalyzer(COLS, new int[] {2, 3, 4}, SIZE,
+				SIZE/2, 8);
+		int rows = SIZE*20;
+		analyzer.onRows(sines(0, rows, new double[] {1, 100, 40, 0}), rows);
+		assertEquals(rows, analyzer.getRows());
+		assertEquals(39, analyzer.getWindows());
+		assertEquals(SIZE/2 + 1, analyzer.getBins());
+		assertEquals(3, analyzer.getSeriesCount());
+
+		double[] power = new double[analyzer.getBins()];
+		analyzer.getSpectrum(0, power);
+		assertEquals(8, peak(power));
+		// A sine's mean square is half its amplitude squared
+		assertEquals(100*100 / 2.0, sum(power), 100*100 / 2.0 * 0.05);
+		analyzer.getSpectrum(1, power);
+		assertEquals(20, peak(power));
+		assertEquals(40*40 / 2.0, sum(power), 40*40 / 2.0 * 0.05);
+		analyzer.getSpectrum(2, power);
+		assertTrue(sum(power)<1e-6);
+		assertEquals(8.0 / SIZE, analyzer.getFrequency(8), 0);
+		assertEquals(8.0 / SIZE * 50, analyzer.getFrequency(8, 50), 1e-12);
+	}
+
+	@Test
+	public void mergesFramesOnceTheyreFull() {
+		SpectrumAnalyzer merged = new SpectrumAnalyzer(COLS, new int[] {2}, SIZE, SIZE, 4);
+		SpectrumAnalyzer unmerged = new SpectrumAnalyzer(COLS, new int[] {2}, SIZE, SIZE, 64);
+		// A window at a time, each louder than the one before
+		for (int window=0; window<11; window++) {
+			int[] rows = sines(window*SIZE, SIZE, new double[] {0, 10*(window+1), 0, 0});
+			merged.onRows(rows, SIZE);
+			unmerged.onRows(rows, SIZE);
+		}
+		assertEquals(11, unmerged.getFrameCount());
+		assertEquals(1, unmerged.getWindowsPerFrame());
+		// 4 frames of a window each are merged into 2 on the 5th, which fill back up to 4 and
+		// are merged into 2 of 4 windows on the 9th; the last 3 aren't a whole frame yet
+		assertEquals(4, merged.getWindowsPerFrame());
+		assertEquals(2, merged.getFrameCount());
+		for (int frame=0; frame<merged.getFrameCount(); frame++) {
+			float[] actual = merged.getFrame(frame);
+			for (int bin=0; bin<merged.getBins(); bin++) {
+				double expected = 0;
+				for (int i=0; i<4; i++)
+					expected += unmerged.getFrame(frame*4 + i)[bin];
+				assertEquals("Frame " + frame + ", bin " + bin, expected / 4, actual[bin],
+						1e-4 * Math.max(1, expected));
+			}
+		}
+	}
+
+	/**
+	 * Makes rows whose second column's a sine of 8 cycles per window and third 20 cycles per
+	 * window, with the given amplitude for each column, on top of an offset
+	 * @param from The row the first one's at
+	 */
+	private static int[] sines(int from, int count, double[] amplitudes) {
+		int[] rows = new int[count*COLS];
+		double[] cycles = {3, 8, 20, 0};
+		for (int row=0; row<count; row++) {
+			for (int col=0; col<COLS; col++) {
+				double angle = 2*Math.PI * cycles[col] * (from + row) / SIZE;
+				rows[row*COLS + col] = 1000 + (int)Math.round(amplitudes[col] * Math.sin(angle));
+			}
+		}
+		return rows;
+	}
+
+	private static int peak(double[] power) {
+		int peak = 0;
+		for (int bin=1; bin<power.length; bin++) {
+			if (power[bin]>power[peak])
+				peak = bin;
+		}
+		return peak;
+	}
+
+	private static double sum(double[] power) {
+		double sum = 0;
+		for (double value : power)
+			sum += value;
+		return sum;
+	}
+}
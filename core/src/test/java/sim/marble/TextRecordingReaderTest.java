@@ -0,0 +1,94 @@
+/*
+ * This is the TextRecordingReaderTest class. It splits a text recording into more ranges than it
+ * has threads, and checks that the rows come back in file order, the same as reading it on one
+ * thread or streaming it, and that the lines that were skipped keep their numbers in the file
+ * rather than in their range.
+ */
+
+package sim.marble;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TextRecordingReaderTest {
+
+	private static final int COLS = 3;
+	private static final int LINES = 20000;
+	// Lines (1-based) that aren't rows, spread over several ranges
+	private static final long[] MALFORMED = {2, 5000, 5001, 9999, 17000, LINES};
+
+	private File mFile;
+	private int[] mRows;
+
+	@Before
+	public void setUp() throws IOException {
+		mFile = File.createTempFile("recording", ".txt");
+		StringBuilder text = new StringBuilder();
+		mRows = new int[(LINES - MALFORMED.length)*COLS];
+		int index = 0, malformed = 0;
+		for (int line=1; line<=LINES; line++) {
+			if (malformed<MALFORMED.length && MALFORMED[malformed]==line) {
+				text.append(malformed % 2==0 ? "1 2" : "3 x 4");
+				malformed++;
+			} else {
+				for (int col=0; col<COLS; col++) {
+					int value = line*(col+1) - 7*col;
+					mRows[index++] = value;
+					text.append(col==0 ? "" : " ").append(value);
+				}
+			}
+			// The last line doesn't end in a newline, and some end in CRLF
+			if (line<LINES)
+				text.append(line % 3==0 ? "\r\n" : "\n");
+		}
+		OutputStream out = new FileOutputStream(mFile);
+		try {
+			out.write(text.toString().getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+	}
+
+	@After
+	public void tearDown() {
+		mFile.delete();
+	}
+
+	@Test
+	public void readsOnOneThread() throws IOException {
+		IntMatrix table = new IntMatrix(0, COLS);
+		assertResult(TextRecordingReader.readSequential(mFile, table));
+		assertArrayEquals(mRows, table.toArray());
+	}
+
+	@Test
+	public void readsRangesInParallelInFileOrder() throws IOException {
+		for (int ranges : new int[] {2, 7, 64}) {
+			IntColumnMatrix table = new IntColumnMatrix(COLS);
+			assertResult(TextRecordingReader.readParallel(mFile, table, ranges, 3));
+			assertArrayEquals("In " + ranges + " ranges", mRows, table.toRowArray());
+		}
+	}
+
+	@Test
+	public void streamsTheRows() throws IOException {
+		RowCollector sink = new RowCollector(COLS);
+		assertResult(TextRecordingReader.read(mFile, COLS, sink));
+		assertArrayEquals(mRows, sink.toArray());
+	}
+
+	private void assertResult(TextRecordingReader.Result result) {
+		assertEquals(LINES - MALFORMED.length, result.rows);
+		assertEquals(MALFORMED.length, result.malformed);
+		assertArrayEquals(MALFORMED, result.rejectedLines);
+	}
+}
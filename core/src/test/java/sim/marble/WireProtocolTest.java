@@ -0,0 +1,87 @@
+/*
+ * This is the WireProtocolTest class. It checks the CRC against the standard check value of
+ * CRC-16/CCITT, the frames the way a board would send them, and the handshake's answer, however
+ * it's split across reads and whatever text comes before it.
+ */
+
+package sim.marble;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class WireProtocolTest {
+
+	private static final int[] WIDTHS = {4, 2, 2};
+
+	@Test
+	public void crcMatchesTheCheckValue() {
+		byte[] bytes = "123456789".getBytes();
+		assertEquals(0x29B1, WireProtocol.crc16(bytes, 0, bytes.length));
+		// Only the range asked for counts
+		byte[] padded = "xx123456789yy".getBytes();
+		assertEquals(0x29B1, WireProtocol.crc16(padded, 2, bytes.length));
+		assertEquals(0xFFFF, WireProtocol.crc16(bytes, 0, 0));
+	}
+
+	@Test
+	public void framesRows() {
+		int[] rows = {70000, -2, 40000, -70000, 3, -40000};
+		byte[] frame = new byte[WireProtocol.maxFrameSize(2, WIDTHS)];
+		int size = WireProtocol.encodeFrame(0x1234, rows, 0, 2, WIDTHS, frame, 0);
+		assertEquals(frame.length, size);
+		assertEquals(WireProtocol.SYNC_1, frame[0]);
+		assertEquals(WireProtocol.SYNC_2, frame[1]);
+		assertEquals(0x12, frame[2]);
+		assertEquals(0x34, frame[3]);
+		assertEquals(2, frame[4]);
+		// The CRC covers everything from the sequence number up to the CRC itself
+		int crc = (frame[size-2] & 0xFF) << 8 | frame[size-1] & 0xFF;
+		assertEquals(WireProtocol.crc16(frame, 2, size - 4), crc);
+
+		// Values that don't fit a 2 byte column are clamped
+		RowCollector sink = new RowCollector(3);
+		FrameDecoder decoder = new FrameDecoder(WIDTHS, 16);
+		decoder.feed(frame, 0, size, sink);
+		decoder.flush(sink);
+		assertArrayEquals(new int[] {70000, -2, Short.MAX_VALUE, -70000, 3, Short.MIN_VALUE},
+				sink.toArray());
+	}
+
+	@Test
+	public void parsesTheAnswer() {
+		assertArrayEquals(WIDTHS, WireProtocol.parseAnswer("#BIN 1 4 2 2", 3));
+		assertArrayEquals(WIDTHS, WireProtocol.parseAnswer(
+				WireProtocol.formatAnswer(WIDTHS).trim(), 3));
+		assertNull(WireProtocol.parseAnswer("#BIN 1 4 2", 3));
+		assertNull(WireProtocol.parseAnswer("#BIN 2 4 2 2", 3));
+		assertNull(WireProtocol.parseAnswer("#BIN 1 4 3 2", 3));
+		assertNull(WireProtocol.parseAnswer("1 4 2 2", 3));
+	}
+
+	@Test
+	public void findsTheAnswerSplitAcrossReads() {
+		// The first frame would start right after the answer
+		byte[] bytes = ("1 2 3\r\n#BOOT\n4 5 6\n" + WireProtocol.formatAnswer(WIDTHS) + "x")
+				.getBytes();
+		int answerEnd = bytes.length - 1;
+		for (int split=0; split<=bytes.length; split++) {
+			WireProtocol.Handshake handshake = new WireProtocol.Handshake(3);
+			int end = handshake.scan(bytes, 0, split);
+			if (end<0)
+				end = handshake.scan(bytes, split, bytes.length - split);
+			assertEquals("Split at " + split, answerEnd, end);
+			assertArrayEquals(WIDTHS, handshake.getWidths());
+		}
+	}
+
+	@Test
+	public void readsAnAnswerThatCantBeUsed() {
+		byte[] bytes = "#BIN 1 4 8 2\n".getBytes();
+		WireProtocol.Handshake handshake = new WireProtocol.Handshake(3);
+		assertEquals(bytes.length, handshake.scan(bytes, 0, bytes.length));
+		assertNull(handshake.getWidths());
+	}
+}
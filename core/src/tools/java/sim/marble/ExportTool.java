@@ -0,0 +1,63 @@
+/*
+ * This is the ExportTool class. It runs RecordingExporter from the command line, so recordings
+ * pulled off the phone can be converted on a PC, printing the progress as it goes:
+ *   java -cp target/marble-core-1.0.jar sim.marble.ExportTool csv|binary|columns <output dir>
+ *       <recording>...
+ * It lives in the core module only, so the app doesn't carry a main() it can't use.
+ */
+
+package sim.marble;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public final class ExportTool {
+
+	private static final List<String> FORMATS = Arrays.asList("csv", "binary", "columns");
+
+	private ExportTool() {}
+
+	/**
+	 * Exports the recordings given on the command line.
+	 * Usage: ExportTool csv|binary|columns output-dir recording...
+	 */
+	public static void main(String[] args) throws IOException {
+		// The FORMAT_ constants are in the same order
+		int format = args.length<3 ? -1 : FORMATS.indexOf(args[0]);
+		if (format<0) {
+			System.err.println("Usage: ExportTool csv|binary|columns output-dir recording...");
+			System.exit(2);
+		}
+		List<File> recordings = new ArrayList<File>();
+		for (int i=2; i<args.length; i++)
+			recordings.add(new File(args[i]));
+		RecordingExporter exporter = new RecordingExporter(format, new File(args[1]));
+		exporter.setListener(new RecordingExporter.Listener() {
+			@Override
+			public void onProgress(RecordingExporter.Progress progress) {
+				System.out.println(progress.filesDone + "/" + progress.files + " recordings, "
+						+ progress.rows + " rows, " + progress.getRowsPerSecond() + " rows/s, "
+						+ progress.getBytesPerSecond() / 1024 + " kB/s");
+			}
+		});
+		List<RecordingExporter.Result> results;
+		try {
+			results = exporter.export(recordings);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(2);
+			return;
+		}
+		boolean isFailed = false;
+		for (RecordingExporter.Result result : results) {
+			if (result.error!=null) {
+				System.err.println(result.recording + ": " + result.error.getMessage());
+				isFailed = true;
+			}
+		}
+		System.exit(isFailed ? 1 : 0);
+	}
+}
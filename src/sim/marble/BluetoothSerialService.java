@@ -19,12 +19,15 @@ package sim.marble;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.UUID;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
-import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.os.Bundle;
 import android.os.Handler;
@@ -40,6 +43,16 @@ import android.util.Log;
  * bluetooth-remote-control/source/browse/trunk/src/pro/apus/blueremote/BluetoothSerialService.java?r=3).
  * That source code, in turn, was adapted from the BluetoothChatService class by Android's BluetoothChat
  * app. 
+ * <p>The connections themselves are made over a Transport: a board over Bluetooth RFCOMM, or e.g.
+ * a TCP socket or a recording being played back, to run the rest of the capture without a board.
+ * <p>If the connection's lost after it was made, the same device is connected to again, waiting
+ * longer after every attempt that fails (see ReconnectPolicy), until it's back or the policy
+ * gives up. Only then does the service go back to STATE_NONE.
+ * <p>Every connection starts by asking the board to switch to binary framing (see WireProtocol).
+ * Until it answers, and for good if it doesn't, the rows are read as text.
+ * <p>The rows themselves never go through the UI thread's message queue: they're handed to the
+ * row listener and the RowRing on the thread that reads them. The UI Activity's only told that
+ * more have come in, with at most one MESSAGE_READ waiting at a time, however far behind it is.
  */
 public class BluetoothSerialService {
 	// Debugging
@@ -47,20 +60,79 @@ public class BluetoothSerialService {
 	private static final boolean D = true;
 
 
-	private static final UUID SerialPortServiceClass_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+	// The max number of rows sent to the Handler in a single message
+	private static final int ROWS_PER_MESSAGE = 64;
+
+	/** Try again after half a second, then a second, two, four and eight seconds, and give up
+	 * after a minute */
+	public static final ReconnectPolicy DEFAULT_RECONNECT_POLICY =
+			new ReconnectPolicy(500, 8000, 60000);
 
 	// Member fields
-	private final BluetoothAdapter mAdapter;
 	private final Handler mHandler;
 	private ConnectThread mConnectThread;
 	private ConnectedThread mConnectedThread;
 	private int mState;
+	private volatile RowSink mRowListener;
+	private volatile RowRing mRowRing;
+	// Whether there's a MESSAGE_READ the UI Activity hasn't got to yet
+	private final AtomicBoolean mIsReadPending = new AtomicBoolean(false);
+	// Written by the ConnectedThread only
+	private volatile long mRowsRead = 0;
+	private volatile long mBytesRead = 0;
+
+	// Reconnecting: the Transport connected over last, and how the current outage is going
+	private ReconnectPolicy mReconnectPolicy = DEFAULT_RECONNECT_POLICY;
+	private boolean mIsFramingEnabled = true;
+	private Transport mTransport;
+	private boolean mIsReconnecting = false;
+	private int mReconnectAttempts = 0;
+	private long mLostTime = 0;
+	private long mAttemptTime = 0;
+
+	// Metrics
+	private int mReconnectCount = 0;
+	private int mFailedAttemptCount = 0;
+	private long mTotalDowntimeMillis = 0;
+	private long mLastDowntimeMillis = 0;
+	private long mMaxDowntimeMillis = 0;
+	private long mLastReconnectMillis = 0;
+	private long mMaxReconnectMillis = 0;
 
 	// Constants that indicate the current connection state
 	public static final int STATE_NONE = 0;       // we're doing nothing
 	public static final int STATE_LISTEN = 1;     // now listening for incoming connections
 	public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
 	public static final int STATE_CONNECTED = 3;  // now connected to a remote device
+	public static final int STATE_RECONNECTING = 4; // lost the connection, trying to get it back
+
+	/**
+	 * How to go about getting a lost connection back.
+	 */
+	public static class ReconnectPolicy {
+		/** How long to wait before the first attempt, in ms; doubled after every failed one */
+		public final long initialDelayMillis;
+		/** The longest to wait between two attempts, in ms */
+		public final long maxDelayMillis;
+		/** Give up once the connection's been down this long, in ms */
+		public final long giveUpMillis;
+
+		public ReconnectPolicy(long initialDelayMillis, long maxDelayMillis, long giveUpMillis) {
+			this.initialDelayMillis = initialDelayMillis;
+			this.maxDelayMillis = maxDelayMillis;
+			this.giveUpMillis = giveUpMillis;
+		}
+
+		/**
+		 * Returns how long to wait before an attempt, in ms
+		 * @param attempt The number of attempts made so far
+		 */
+		public long getDelay(int attempt) {
+			long delay = initialDelayMillis << Math.min(attempt, 30);
+			return delay<0 ? maxDelayMillis : Math.min(delay, maxDelayMillis);
+		}
+	}
 
 	/**
 	 * Constructor. Prepares a new BluetoothChat session.
@@ -68,7 +140,6 @@ public class BluetoothSerialService {
 	 * @param handler  A Handler to send messages back to the UI Activity
 	 */
 	public BluetoothSerialService(Context context, Handler handler) {
-		mAdapter = BluetoothAdapter.getDefaultAdapter();
 		mState = STATE_NONE;
 		mHandler = handler;
 	}
@@ -91,12 +162,103 @@ public class BluetoothSerialService {
 		return mState;
 	}
 
+	/**
+	 * Set a RowSink that gets every batch of rows as soon as it's parsed, on the thread that
+	 * reads from the socket rather than the UI thread, e.g. to feed a live graph. It mustn't
+	 * block, and mustn't keep the array it's given.
+	 * @param listener  The RowSink, or null to stop */
+	public void setRowListener(RowSink listener) {
+		mRowListener = listener;
+	}
+
+	/**
+	 * Set the RowRing every row goes into, e.g. a CaptureWriter's, after the row listener's had
+	 * it. When the connection's got back after it was lost, the gap goes in too, before any of
+	 * the rows read afterwards.
+	 * @param ring  The RowRing, or null to stop */
+	public void setRowRing(RowRing ring) {
+		mRowRing = ring;
+	}
+
+	/**
+	 * Let the next MESSAGE_READ be sent. The UI Activity calls this when it handles one, before
+	 * it looks at getRowsRead() and getBytesRead(). */
+	public void acknowledgeRead() {
+		mIsReadPending.set(false);
+	}
+
+	/**
+	 * Return the number of rows read over every connection so far. */
+	public long getRowsRead() {
+		return mRowsRead;
+	}
+
+	/**
+	 * Return the number of bytes read over every connection so far. */
+	public long getBytesRead() {
+		return mBytesRead;
+	}
+
+	/**
+	 * Set how a lost connection is got back.
+	 * @param policy  The ReconnectPolicy, or null to go straight to STATE_NONE instead */
+	public synchronized void setReconnectPolicy(ReconnectPolicy policy) {
+		mReconnectPolicy = policy;
+	}
+
+	/**
+	 * Set whether new connections ask the board for binary framing, or just read text.
+	 * On by default. */
+	public synchronized void setFramingEnabled(boolean isEnabled) {
+		mIsFramingEnabled = isEnabled;
+	}
+
+	/**
+	 * Return whether the board's sending binary frames over the current connection. */
+	public synchronized boolean isFramed() {
+		return mConnectedThread != null && mConnectedThread.mmDecoder != null;
+	}
+
+	/**
+	 * Return the number of lines received during the current connection that weren't
+	 * complete rows, or 0 if there's no connection. */
+	public synchronized long getMalformedRows() {
+		if (mConnectedThread == null) return 0;
+		return mConnectedThread.mmTokenizer.getMalformedCount();
+	}
+
+	/**
+	 * Return the number of frames that went missing during the current connection, from the
+	 * gaps in their sequence numbers, or 0 if there's no connection or it isn't framed. */
+	public synchronized long getLostFrames() {
+		if (mConnectedThread == null || mConnectedThread.mmDecoder == null) return 0;
+		return mConnectedThread.mmDecoder.getLostFrames();
+	}
+
+	/**
+	 * Return the number of frames skipped during the current connection because they'd been
+	 * received already, or 0 if there's no connection or it isn't framed. */
+	public synchronized long getDuplicateFrames() {
+		if (mConnectedThread == null || mConnectedThread.mmDecoder == null) return 0;
+		return mConnectedThread.mmDecoder.getDuplicateFrames();
+	}
+
+	/**
+	 * Return the number of frames thrown away during the current connection because their CRC
+	 * didn't match, or 0 if there's no connection or it isn't framed. */
+	public synchronized long getCorruptFrames() {
+		if (mConnectedThread == null || mConnectedThread.mmDecoder == null) return 0;
+		return mConnectedThread.mmDecoder.getCorruptFrames();
+	}
+
 	/**
 	 * Start the chat service. Specifically start AcceptThread to begin a
 	 * session in listening (server) mode. Called by the Activity onResume() */
 	public synchronized void start() {
 		if (D) Log.d(TAG, "start");
 
+		stopReconnecting();
+
 		// Cancel any thread attempting to make a connection
 		if (mConnectThread != null) {
 			mConnectThread.cancel(); 
@@ -113,11 +275,22 @@ public class BluetoothSerialService {
 	}
 
 	/**
-	 * Start the ConnectThread to initiate a connection to a remote device.
+	 * Start the ConnectThread to initiate a connection to a remote device over Bluetooth.
 	 * @param device  The BluetoothDevice to connect
 	 */
-	public synchronized void connect(BluetoothDevice device) {
-		if (D) Log.d(TAG, "connect to: " + device);
+	public void connect(BluetoothDevice device) {
+		connect(new BluetoothTransport(device));
+	}
+
+	/**
+	 * Start the ConnectThread to initiate a connection over any Transport.
+	 * @param transport  The Transport to connect over
+	 */
+	public synchronized void connect(Transport transport) {
+		if (D) Log.d(TAG, "connect to: " + transport.getName());
+
+		stopReconnecting();
+		mTransport = transport;
 
 		// Cancel any thread attempting to make a connection
 		if (mState == STATE_CONNECTING) {
@@ -128,17 +301,17 @@ public class BluetoothSerialService {
 		if (mConnectedThread != null) {mConnectedThread.cancel(); mConnectedThread = null;}
 
 		// Start the thread to connect with the given device
-		mConnectThread = new ConnectThread(device);
+		mConnectThread = new ConnectThread(transport);
 		mConnectThread.start();
 		setState(STATE_CONNECTING);
 	}
 
 	/**
-	 * Start the ConnectedThread to begin managing a Bluetooth connection
-	 * @param socket  The BluetoothSocket on which the connection was made
-	 * @param device  The BluetoothDevice that has been connected
+	 * Start the ConnectedThread to begin managing a connection
+	 * @param connection  The Connection that was made
+	 * @param transport  The Transport it was made over
 	 */
-	public synchronized void connected(BluetoothSocket socket, BluetoothDevice device) {
+	public synchronized void connected(Transport.Connection connection, Transport transport) {
 		if (D) Log.d(TAG, "connected");
 
 		// Cancel the thread that completed the connection
@@ -153,16 +326,38 @@ public class BluetoothSerialService {
 			mConnectedThread = null;
 		}
 
-		// Start the thread to manage the connection and perform transmissions
-		mConnectedThread = new ConnectedThread(socket);
-		mConnectedThread.start();
+		if (mIsReconnecting) {
+			// Work out how long the connection was down, and tell the UI Activity
+			long now = System.currentTimeMillis();
+			mIsReconnecting = false;
+			mReconnectCount++;
+			mLastDowntimeMillis = now - mLostTime;
+			mTotalDowntimeMillis += mLastDowntimeMillis;
+			mMaxDowntimeMillis = Math.max(mMaxDowntimeMillis, mLastDowntimeMillis);
+			mLastReconnectMillis = now - mAttemptTime;
+			mMaxReconnectMillis = Math.max(mMaxReconnectMillis, mLastReconnectMillis);
+			if (D) Log.d(TAG, "reconnected after " + mLastDowntimeMillis + "ms, "
+					+ mReconnectAttempts + " attempts");
+			// The thread that read the rows from before the gap is done, and the next one
+			// hasn't started, so the gap goes in right between them
+			RowRing ring = mRowRing;
+			if (ring != null)
+				ring.putGap(mLostTime, now);
+			mHandler.obtainMessage(ReadData.MESSAGE_RECONNECTED, mReconnectAttempts, -1,
+					new long[] {mLostTime, now}).sendToTarget();
+		} else {
+			// Send the name of the connected device back to the UI Activity
+			Message msg = mHandler.obtainMessage(ReadData.MESSAGE_DEVICE_NAME);
+			Bundle bundle = new Bundle();
+			bundle.putString(ReadData.DEVICE_NAME, transport.getName());
+			msg.setData(bundle);
+			mHandler.sendMessage(msg);
+		}
 
-		// Send the name of the connected device back to the UI Activity
-		Message msg = mHandler.obtainMessage(ReadData.MESSAGE_DEVICE_NAME);
-		Bundle bundle = new Bundle();
-		bundle.putString(ReadData.DEVICE_NAME, device.getName());
-		msg.setData(bundle);
-		mHandler.sendMessage(msg);
+		// Start the thread to manage the connection and perform transmissions. It's only started
+		// now so that its first rows go in behind the gap, not ahead of it
+		mConnectedThread = new ConnectedThread(connection, mIsFramingEnabled);
+		mConnectedThread.start();
 
 		setState(STATE_CONNECTED);
 	}
@@ -173,6 +368,8 @@ public class BluetoothSerialService {
 	public synchronized void stop() {
 		if (D) Log.d(TAG, "stop");
 
+		stopReconnecting();
+		mTransport = null;
 
 		if (mConnectThread != null) {
 			mConnectThread.cancel(); 
@@ -205,9 +402,18 @@ public class BluetoothSerialService {
 	}
 
 	/**
-	 * Indicate that the connection attempt failed and notify the UI Activity.
+	 * Indicate that the connection attempt failed and notify the UI Activity, or try again
+	 * later if it was an attempt to reconnect.
+	 * @param thread  The ConnectThread that failed; nothing's done if it was cancelled
 	 */
-	private void connectionFailed() {
+	private synchronized void connectionFailed(ConnectThread thread) {
+		if (thread != mConnectThread) return;
+		mConnectThread = null;
+		if (mIsReconnecting) {
+			mFailedAttemptCount++;
+			scheduleReconnect();
+			return;
+		}
 		setState(STATE_NONE);
 
 		// Send a failure message back to the Activity
@@ -219,17 +425,120 @@ public class BluetoothSerialService {
 	}
 
 	/**
-	 * Indicate that the connection was lost and notify the UI Activity.
+	 * Indicate that the connection was lost and notify the UI Activity, then start trying to
+	 * get it back, if there's a ReconnectPolicy.
+	 * @param thread  The ConnectedThread that lost it; nothing's done if it was cancelled
 	 */
-	private void connectionLost() {
-		setState(STATE_NONE);
+	private synchronized void connectionLost(ConnectedThread thread) {
+		if (thread != mConnectedThread) return;
+		mConnectedThread = null;
+		boolean reconnect = mReconnectPolicy != null && mTransport != null;
 
 		// Send a failure message back to the Activity
 		Message msg = mHandler.obtainMessage(ReadData.MESSAGE_TOAST);
 		Bundle bundle = new Bundle();
-		bundle.putString(ReadData.TOAST, "Connection was lost");
+		bundle.putString(ReadData.TOAST,
+				reconnect ? "Connection was lost, reconnecting" : "Connection was lost");
 		msg.setData(bundle);
 		mHandler.sendMessage(msg);
+
+		if (!reconnect) {
+			setState(STATE_NONE);
+			return;
+		}
+		mIsReconnecting = true;
+		mReconnectAttempts = 0;
+		mLostTime = System.currentTimeMillis();
+		setState(STATE_RECONNECTING);
+		scheduleReconnect();
+	}
+
+	/**
+	 * Post the next attempt to reconnect, after the delay the ReconnectPolicy asks for, or
+	 * give up if the connection would have been down too long by then.
+	 */
+	private void scheduleReconnect() {
+		long delay = mReconnectPolicy.getDelay(mReconnectAttempts);
+		if (System.currentTimeMillis() + delay - mLostTime > mReconnectPolicy.giveUpMillis) {
+			if (D) Log.d(TAG, "giving up reconnecting after " + mReconnectAttempts + " attempts");
+			mIsReconnecting = false;
+			mTotalDowntimeMillis += System.currentTimeMillis() - mLostTime;
+			setState(STATE_NONE);
+
+			Message msg = mHandler.obtainMessage(ReadData.MESSAGE_TOAST);
+			Bundle bundle = new Bundle();
+			bundle.putString(ReadData.TOAST, "Unable to reconnect to device");
+			msg.setData(bundle);
+			mHandler.sendMessage(msg);
+			return;
+		}
+		mHandler.postDelayed(mReconnect, delay);
+	}
+
+	// An attempt to reconnect, posted by scheduleReconnect()
+	private final Runnable mReconnect = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (BluetoothSerialService.this) {
+				if (!mIsReconnecting) return;
+				if (D) Log.d(TAG, "reconnect attempt " + (mReconnectAttempts + 1));
+				mReconnectAttempts++;
+				mAttemptTime = System.currentTimeMillis();
+				mConnectThread = new ConnectThread(mTransport);
+				mConnectThread.start();
+			}
+		}
+	};
+
+	/**
+	 * Stop trying to get a lost connection back, if that's what's going on. */
+	private void stopReconnecting() {
+		if (mIsReconnecting) {
+			mIsReconnecting = false;
+			mTotalDowntimeMillis += System.currentTimeMillis() - mLostTime;
+		}
+		mHandler.removeCallbacks(mReconnect);
+	}
+
+	/**
+	 * Return the number of times a lost connection was got back. */
+	public synchronized int getReconnectCount() {
+		return mReconnectCount;
+	}
+
+	/**
+	 * Return the number of attempts to reconnect that failed. */
+	public synchronized int getFailedAttemptCount() {
+		return mFailedAttemptCount;
+	}
+
+	/**
+	 * Return how long the connection's been down altogether, in ms, not counting the current
+	 * outage if there is one. */
+	public synchronized long getTotalDowntimeMillis() {
+		return mTotalDowntimeMillis;
+	}
+
+	/**
+	 * Return how long the connection was down the last time it was got back, in ms, from the
+	 * moment it was lost. */
+	public synchronized long getLastDowntimeMillis() {
+		return mLastDowntimeMillis;
+	}
+
+	public synchronized long getMaxDowntimeMillis() {
+		return mMaxDowntimeMillis;
+	}
+
+	/**
+	 * Return how long the attempt that got the connection back took the last time, in ms,
+	 * i.e. the reconnect latency without the waiting between attempts. */
+	public synchronized long getLastReconnectMillis() {
+		return mLastReconnectMillis;
+	}
+
+	public synchronized long getMaxReconnectMillis() {
+		return mMaxReconnectMillis;
 	}
 
 	/**
@@ -238,60 +547,58 @@ public class BluetoothSerialService {
 	 * succeeds or fails.
 	 */
 	private class ConnectThread extends Thread {
-		private final BluetoothSocket mmSocket;
-		private final BluetoothDevice mmDevice;
+		private final Transport.Connection mmConnection;
+		private final Transport mmTransport;
 
-		public ConnectThread(BluetoothDevice device) {
-			mmDevice = device;
-			BluetoothSocket tmp = null;
+		public ConnectThread(Transport transport) {
+			mmTransport = transport;
+			Transport.Connection tmp = null;
 
-			// Get a BluetoothSocket for a connection with the
-			// given BluetoothDevice
+			// Get a Connection for the given Transport
 			try {
-				tmp = device.createRfcommSocketToServiceRecord( SerialPortServiceClass_UUID );
+				tmp = transport.createConnection();
 			} catch (Exception e) {
 				Log.e(TAG, "create() failed", e);
 			}
-			mmSocket = tmp;
+			mmConnection = tmp;
 		}
 
 		public void run() {
 			Log.i(TAG, "BEGIN mConnectThread");
 			setName("ConnectThread");
 
-			// Always cancel discovery because it will slow down a connection
-			mAdapter.cancelDiscovery();
-
-			// Make a connection to the BluetoothSocket
+			// Make the connection
 			try {
+				if (mmConnection == null) throw new IOException("No connection");
 				// This is a blocking call and will only return on a
 				// successful connection or an exception
-				mmSocket.connect();
+				mmConnection.connect();
 			} catch (IOException e) {
-				connectionFailed();
-				// Close the socket
-				try {
-					mmSocket.close();
-				} catch (IOException e2) {
-					Log.e(TAG, "unable to close() socket during connection failure", e2);
-				}
+				connectionFailed(this);
+				// Close the connection
+				cancel();
 				// Start the service over to restart listening mode
 				//BluetoothSerialService.this.start();
 				return;
 			}
 
-			// Reset the ConnectThread because we're done
+			// Reset the ConnectThread because we're done, unless it was cancelled meanwhile
 			synchronized (BluetoothSerialService.this) {
+				if (mConnectThread != this) {
+					cancel();
+					return;
+				}
 				mConnectThread = null;
-			}
 
-			// Start the connected thread
-			connected(mmSocket, mmDevice);
+				// Start the connected thread
+				connected(mmConnection, mmTransport);
+			}
 		}
 
 		public void cancel() {
+			if (mmConnection == null) return;
 			try {
-				mmSocket.close();
+				mmConnection.close();
 			} catch (IOException e) {
 				Log.e(TAG, "close() of connect socket failed", e);
 			}
@@ -301,23 +608,58 @@ public class BluetoothSerialService {
 	/**
 	 * This thread runs during a connection with a remote device.
 	 * It handles all incoming and outgoing transmissions.
+	 * Incoming bytes are parsed into rows right here, and only complete rows are sent to
+	 * the UI Activity, as int[] batches. They're parsed as text until the board answers the
+	 * handshake, and decoded as frames after that.
 	 */
-	private class ConnectedThread extends Thread {
-		private final BluetoothSocket mmSocket;
+	private class ConnectedThread extends Thread implements RowSink {
+		private final Transport.Connection mmConnection;
 		private final InputStream mmInStream;
 		private final OutputStream mmOutStream;
+		private final RowTokenizer mmTokenizer =
+				new RowTokenizer(RecordingFormat.DEFAULT_SCHEMA.length, ROWS_PER_MESSAGE);
+		private volatile FrameDecoder mmDecoder;
+		// Looks for the board's answer until it's found or the handshake times out
+		private WireProtocol.Handshake mmHandshake;
+		// Set while the answer's awaited; whichever of the reader and the timeout clears it
+		// first decides how the handshake ended
+		private final AtomicBoolean mmIsAwaitingAnswer = new AtomicBoolean(false);
+		private int mmPendingBytes = 0;
+		// Every write goes through here, one at a time and in order, whichever thread it comes
+		// from: the reader's, or the UI thread's, which mustn't write to a TCP socket itself
+		private final ExecutorService mmWriter = Executors.newSingleThreadExecutor(
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						return new Thread(runnable, "ConnectedWriter");
+					}
+				});
+
+		// Posted when the handshake starts, so that it times out even if the board never sends
+		// a byte. The reader would only find out once it got some.
+		private final Runnable mmHandshakeTimeout = new Runnable() {
+			@Override
+			public void run() {
+				if (!mmIsAwaitingAnswer.compareAndSet(true, false))
+					return;
+				if (D) Log.d(TAG, "no answer to the handshake, reading text");
+				write(WireProtocol.TEXT_COMMAND.getBytes());
+			}
+		};
 
 
-		public ConnectedThread(BluetoothSocket socket) {
+		public ConnectedThread(Transport.Connection connection, boolean isFramingEnabled) {
 			Log.d(TAG, "create ConnectedThread");
-			mmSocket = socket;
+			mmConnection = connection;
+			if (isFramingEnabled)
+				mmHandshake = new WireProtocol.Handshake(mmTokenizer.getCols());
 			InputStream tmpIn = null;
 			OutputStream tmpOut = null;
 
-			// Get the BluetoothSocket input and output streams
+			// Get the Connection's input and output streams
 			try {
-				tmpIn = socket.getInputStream();
-				tmpOut = socket.getOutputStream();
+				tmpIn = connection.getInputStream();
+				tmpOut = connection.getOutputStream();
 			} catch (IOException e) {
 				Log.e(TAG, "temp sockets not created", e);
 			}
@@ -331,27 +673,110 @@ public class BluetoothSerialService {
 			byte[] buffer = new byte[1024];
 			int bytes;
 
+			if (mmHandshake != null) {
+				mmIsAwaitingAnswer.set(true);
+				write(WireProtocol.BINARY_COMMAND.getBytes());
+				mHandler.postDelayed(mmHandshakeTimeout, WireProtocol.HANDSHAKE_TIMEOUT_MILLIS);
+			}
+
 			// Keep listening to the InputStream while connected
 			while (true) {
 				try {
 					// Read from the InputStream
 					bytes = mmInStream.read(buffer);
-					String message = new String(buffer, 0, bytes);
-					// Send the obtained bytes to the UI Activity
-					mHandler.obtainMessage(ReadData.MESSAGE_READ, bytes, -1, message).sendToTarget();
+					if (bytes < 0) throw new IOException("End of stream");
+					mmPendingBytes += bytes;
+					FrameDecoder decoder = mmDecoder;
+					if (decoder != null) {
+						// Decode the obtained frames and send the rows to the UI Activity
+						decoder.feed(buffer, 0, bytes, this);
+						decoder.flush(this);
+						continue;
+					}
+					int end = -1;
+					if (mmHandshake != null && !mmIsAwaitingAnswer.get()) {
+						// Timed out, and the board's been told to send text
+						mmHandshake = null;
+					}
+					if (mmHandshake != null) {
+						end = mmHandshake.scan(buffer, 0, bytes);
+						if (end >= 0 && !mmIsAwaitingAnswer.compareAndSet(true, false)) {
+							// Too late: the board's been told to send text already
+							end = -1;
+							mmHandshake = null;
+						} else if (end >= 0) {
+							mHandler.removeCallbacks(mmHandshakeTimeout);
+						}
+					}
+					// Parse the obtained bytes and send the complete rows to the UI Activity
+					mmTokenizer.feed(buffer, 0, end < 0 ? bytes : end, this);
+					mmTokenizer.flush(this);
+					if (end >= 0) {
+						// The board answered; whatever comes after the answer is frames
+						int[] widths = mmHandshake.getWidths();
+						mmHandshake = null;
+						if (widths != null) {
+							if (D) Log.d(TAG, "reading frames, widths " + Arrays.toString(widths));
+							decoder = new FrameDecoder(widths, ROWS_PER_MESSAGE);
+							decoder.feed(buffer, end, bytes - end, this);
+							decoder.flush(this);
+							mmDecoder = decoder;
+						} else {
+							Log.e(TAG, "can't read the frames the board offered, reading text");
+							write(WireProtocol.TEXT_COMMAND.getBytes());
+							mmTokenizer.feed(buffer, end, bytes - end, this);
+							mmTokenizer.flush(this);
+						}
+					}
 				} catch (IOException e) {
 					Log.e(TAG, "disconnected", e);
-					connectionLost();
+					mHandler.removeCallbacks(mmHandshakeTimeout);
+					mmWriter.shutdown();
+					connectionLost(this);
 					break;
 				}
 			}
 		}
 
 		/**
-		 * Write to the connected OutStream.
+		 * Hands a batch of rows to the row listener and then the RowRing, if any, and lets
+		 * the UI Activity know, unless it hasn't got to the last MESSAGE_READ yet.
+		 */
+		@Override
+		public void onRows(int[] rows, int count) {
+			RowSink listener = mRowListener;
+			if (listener != null)
+				listener.onRows(rows, count);
+			RowRing ring = mRowRing;
+			if (ring != null)
+				ring.onRows(rows, count);
+			mRowsRead += count;
+			mBytesRead += mmPendingBytes;
+			mmPendingBytes = 0;
+			if (mIsReadPending.compareAndSet(false, true))
+				mHandler.obtainMessage(ReadData.MESSAGE_READ).sendToTarget();
+		}
+
+		/**
+		 * Write to the connected OutStream. The bytes are queued for the writer thread, and
+		 * dropped once the connection's closed.
 		 * @param buffer  The bytes to write
 		 */
-		public void write(byte[] buffer) {
+		public void write(final byte[] buffer) {
+			try {
+				mmWriter.execute(new Runnable() {
+					@Override
+					public void run() {
+						writeNow(buffer);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				if (D) Log.d(TAG, "connection closed, not writing " + buffer.length + " bytes");
+			}
+		}
+
+		// Only ever called on the writer thread
+		private void writeNow(byte[] buffer) {
 			try {
 				mmOutStream.write(buffer);
 
@@ -364,8 +789,11 @@ public class BluetoothSerialService {
 		}
 
 		public void cancel() {
+			mHandler.removeCallbacks(mmHandshakeTimeout);
+			mmIsAwaitingAnswer.set(false);
+			mmWriter.shutdownNow();
 			try {
-				mmSocket.close();
+				mmConnection.close();
 			} catch (IOException e) {
 				Log.e(TAG, "close() of connect socket failed", e);
 			}
@@ -0,0 +1,76 @@
+/*
+ * This is the BluetoothTransport class. It reads from a board over Bluetooth RFCOMM, using the
+ * serial port profile the board's module (an HC-06) offers.
+ */
+
+package sim.marble;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+public class BluetoothTransport implements Transport {
+
+	private static final UUID SerialPortServiceClass_UUID =
+			UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+	private final BluetoothAdapter mAdapter;
+	private final BluetoothDevice mDevice;
+
+	/**
+	 * @param device The paired board
+	 */
+	public BluetoothTransport(BluetoothDevice device) {
+		mAdapter = BluetoothAdapter.getDefaultAdapter();
+		mDevice = device;
+	}
+
+	public BluetoothDevice getDevice() {
+		return mDevice;
+	}
+
+	@Override
+	public Connection createConnection() throws IOException {
+		// Get a BluetoothSocket for a connection with the given BluetoothDevice
+		final BluetoothSocket socket =
+				mDevice.createRfcommSocketToServiceRecord(SerialPortServiceClass_UUID);
+		return new Connection() {
+			@Override
+			public void connect() throws IOException {
+				// Always cancel discovery because it will slow down a connection
+				mAdapter.cancelDiscovery();
+				socket.connect();
+			}
+
+			@Override
+			public InputStream getInputStream() throws IOException {
+				return socket.getInputStream();
+			}
+
+			@Override
+			public OutputStream getOutputStream() throws IOException {
+				return socket.getOutputStream();
+			}
+
+			@Override
+			public void close() throws IOException {
+				socket.close();
+			}
+		};
+	}
+
+	@Override
+	public String getName() {
+		return mDevice.getName();
+	}
+
+	@Override
+	public String getAddress() {
+		return mDevice.getAddress();
+	}
+}
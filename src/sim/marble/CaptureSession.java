@@ -0,0 +1,220 @@
+/*
+ * This is the CaptureSession class. It's everything ReadData keeps for capturing from a single
+ * board (or anything else that sends what a board does, see Transport): the
+ * BluetoothSerialService reading from it, and the recording its rows go into, written
+ * by a CaptureWriter along with the pyramid that's built as they're written.
+ * ReadData runs one of these per board, all at once. Every session has its own reader thread (in
+ * its BluetoothSerialService) and its own writer thread, so a board that's slow or drops out
+ * doesn't hold up the others. The rows go straight from the one to the other, through the
+ * CaptureWriter's RowRing; the UI thread only ever looks at how far they've got.
+ */
+
+package sim.marble;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+
+public class CaptureSession {
+
+	private static final boolean D = false;
+	private static final String TAG = "Capture Session";
+
+	private final Transport mTransport;
+	private final File mFile;
+	private final BluetoothSerialService mService;
+	private RecordingWriter mRecordingWriter;
+	private PyramidBuilder mPyramidBuilder;
+	private CaptureWriter mCaptureWriter;
+	private boolean mHasStarted = false, mIsDone = false;
+
+	/**
+	 * @param context The Activity the capture's running in
+	 * @param transport What the board's read over
+	 * @param file The recording to write
+	 * @param handler Gets the BluetoothSerialService's messages, on the UI thread
+	 */
+	public CaptureSession(Context context, Transport transport, File file, Handler handler) {
+		mTransport = transport;
+		mFile = file;
+		mService = new BluetoothSerialService(context, handler);
+	}
+
+	/**
+	 * Creates the recording and starts the CaptureWriter writing to it.
+	 * @param startTime The time the capture was started, in ms
+	 * @param policy When the CaptureWriter flushes
+	 */
+	public void openRecording(long startTime, CaptureWriter.Policy policy) throws IOException {
+		// The readings change slowly, so they're stored delta encoded, about a byte a value
+		mRecordingWriter = new RecordingWriter(mFile, RecordingFormat.DEFAULT_SCHEMA, startTime,
+				RecordingFormat.ENCODING_DELTA);
+		// The pyramid's built as the rows are written, so PlotGraph doesn't have to
+		mPyramidBuilder = new PyramidBuilder(RecordingFormat.DEFAULT_SCHEMA.length);
+		mCaptureWriter = new CaptureWriter(mRecordingWriter, policy, mPyramidBuilder,
+				new File(mFile.getPath() + RowRing.SPILL_EXTENSION));
+		mCaptureWriter.start();
+		if (D) Log.i(TAG, "Recording " + mFile.getAbsolutePath() + " opened");
+	}
+
+	/**
+	 * Starts connecting to the board. Once it's connected, the rows it sends go straight into
+	 * the recording, if it's open.
+	 */
+	public void connect() {
+		mService.start();
+		if (isRecording())
+			mService.setRowRing(mCaptureWriter.getRing());
+		mService.connect(mTransport);
+	}
+
+	/**
+	 * Stops reading from the board.
+	 */
+	public void stop() {
+		if (D) Log.i(TAG, mTransport.getAddress() + ": " + mService.getReconnectCount()
+				+ " reconnects, " + mService.getTotalDowntimeMillis() + "ms down, max reconnect "
+				+ mService.getMaxReconnectMillis() + "ms, " + mService.getLostFrames()
+				+ " frames lost, " + mService.getDuplicateFrames() + " duplicate frames, "
+				+ mService.getMalformedRows() + " malformed rows");
+		mService.setRowListener(null);
+		mService.setRowRing(null);
+		mService.stop();
+	}
+
+	/**
+	 * Waits for the CaptureWriter to write whatever's left, which then writes the recording's
+	 * footer and closes it, so that PlotGraph can read all of it. The recording's pyramid and
+	 * row index are then written next to it, and the recording's added to the catalog in the
+	 * background.
+	 */
+	public void closeRecording() {
+		if (!isRecording())
+			return;
+		mCaptureWriter.finish();
+		if (mCaptureWriter.getError()!=null)
+			Log.e(TAG, "IOException at writing the recording: "
+					+ mCaptureWriter.getError().getMessage());
+		if (D) Log.i(TAG, "Recording closed; max write " + mCaptureWriter.getMaxWriteNanos()
+				+ "ns, max flush " + mCaptureWriter.getMaxFlushNanos()
+				+ "ns, max queue depth " + mCaptureWriter.getMaxQueueDepth() + ", "
+				+ mCaptureWriter.getOverrunRows() + " rows overrun, "
+				+ mCaptureWriter.getSpilledRows() + " rows spilled");
+		if (mCaptureWriter.getError()==null && mPyramidBuilder.getRows()>0) {
+			try {
+				mPyramidBuilder.write(mFile);
+			} catch (IOException e) {
+				Log.e(TAG, "IOException at writing the pyramid: " + e.getMessage());
+			}
+			try {
+				mRecordingWriter.getRowIndex().write(mFile);
+			} catch (IOException e) {
+				Log.e(TAG, "IOException at writing the row index: " + e.getMessage());
+			}
+			final File recording = mFile;
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						RecordingCatalog.update(recording);
+					} catch (IOException e) {
+						Log.e(TAG, "IOException at updating the catalog: " + e.getMessage());
+					}
+				}
+			}).start();
+		}
+	}
+
+	/**
+	 * Deletes the recording, along with whatever's kept next to it, if no rows were written.
+	 * Only to be used once the recording's closed.
+	 * @return Whether it was deleted
+	 */
+	public boolean deleteIfEmpty() {
+		if (hasRows())
+			return false;
+		mFile.delete();
+		RecordingPyramid.sidecarFor(mFile).delete();
+		RowIndex.sidecarFor(mFile).delete();
+		return true;
+	}
+
+	/**
+	 * Checks if the recording's open and being written to
+	 */
+	public boolean isRecording() {
+		return mCaptureWriter!=null && mCaptureWriter.isAlive();
+	}
+
+	/**
+	 * Checks if any rows were written to the recording
+	 */
+	public boolean hasRows() {
+		return mRecordingWriter!=null && mRecordingWriter.getRowCount()>0;
+	}
+
+	public Transport getTransport() {
+		return mTransport;
+	}
+
+	public File getFile() {
+		return mFile;
+	}
+
+	public BluetoothSerialService getService() {
+		return mService;
+	}
+
+	/**
+	 * Checks if the board's been connected to at some point
+	 */
+	public boolean hasStarted() {
+		return mHasStarted;
+	}
+
+	public void setStarted(boolean hasStarted) {
+		mHasStarted = hasStarted;
+	}
+
+	/**
+	 * Checks if the capture from this board is over, and its recording closed
+	 */
+	public boolean isDone() {
+		return mIsDone;
+	}
+
+	public void setDone(boolean isDone) {
+		mIsDone = isDone;
+	}
+
+	/**
+	 * Returns the number of bytes read from the board
+	 */
+	public long getBytesRead() {
+		return mService.getBytesRead();
+	}
+
+	/**
+	 * Returns the number of rows handed over to be written
+	 */
+	public long getRowsSubmitted() {
+		return mCaptureWriter==null ? 0 : mCaptureWriter.getRowsSubmitted();
+	}
+
+	/**
+	 * Returns the number of rows dropped because the writing had fallen too far behind
+	 */
+	public long getOverrunRows() {
+		return mCaptureWriter==null ? 0 : mCaptureWriter.getOverrunRows();
+	}
+
+	/**
+	 * Returns the number of rows which are safe in the recording
+	 */
+	public long getRowsFlushed() {
+		return mCaptureWriter==null ? 0 : mCaptureWriter.getRowsFlushed();
+	}
+}
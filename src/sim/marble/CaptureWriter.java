@@ -0,0 +1,312 @@
+/*
+ * This is the CaptureWriter class. It's the thread that writes the rows received during a capture
+ * into the recording, so that neither the reader thread nor the UI thread ever has to wait on
+ * the disk.
+ * Rows are handed over straight from the reader thread through a RowRing, written as they come
+ * in, and flushed (and optionally synced to storage) once enough rows or enough time has gone by,
+ * whichever's first. Anything that's been flushed survives the app crashing. What happens when
+ * the writing falls so far behind that the ring's full is up to the Policy.
+ * Gaps in the capture go through the ring too, so they end up right after the rows that came in
+ * before them, however far behind the writing is.
+ */
+
+package sim.marble;
+
+import java.io.File;
+import java.io.IOException;
+
+public class CaptureWriter extends Thread {
+
+	/**
+	 * When to flush the rows that have been written, and what to do if they can't be written
+	 * as fast as they come in.
+	 */
+	public static class Policy {
+		/** The max number of batches waiting to be written */
+		public final int queueCapacity;
+		/** The most rows in a batch */
+		public final int batchRows;
+		/** What to do when queueCapacity batches are waiting, one of RowRing's OVERFLOW_ */
+		public final int overflow;
+		/** Flush once this many rows have been written since the last flush */
+		public final int flushRows;
+		/** Flush once this much time has gone by since the last flush, in ms */
+		public final long flushMillis;
+		/** Whether a flush should also wait for the rows to hit the storage */
+		public final boolean sync;
+
+		/**
+		 * Makes a Policy that waits for room when the queue's full, so no rows are ever dropped,
+		 * with batches of up to 64 rows.
+		 */
+		public Policy(int queueCapacity, int flushRows, long flushMillis, boolean sync) {
+			this(queueCapacity, 64, RowRing.OVERFLOW_BLOCK, flushRows, flushMillis, sync);
+		}
+
+		public Policy(int queueCapacity, int batchRows, int overflow, int flushRows,
+				long flushMillis, boolean sync) {
+			this.queueCapacity = queueCapacity;
+			this.batchRows = batchRows;
+			this.overflow = overflow;
+			this.flushRows = flushRows;
+			this.flushMillis = flushMillis;
+			this.sync = sync;
+		}
+	}
+
+	private final RecordingWriter mWriter;
+	private final Policy mPolicy;
+	private final RowSink mListener;
+	private final RowRing mRing;
+	private volatile IOException mError = null;
+	private long mPendingRows = 0;
+	// The rows taken out of the ring, whether or not they could be written
+	private long mRowsTaken = 0;
+
+	// Metrics; only written by this thread, apart from the ones noted
+	private volatile long mRowsWritten = 0;
+	private volatile long mRowsFlushed = 0;
+	private volatile long mFlushCount = 0;
+	private volatile long mWriteCount = 0;
+	private volatile long mTotalWriteNanos = 0;
+	private volatile long mMaxWriteNanos = 0;
+	private volatile long mMaxFlushNanos = 0;
+
+	/**
+	 * @param writer The recording the rows are written to. It's closed once the thread finishes.
+	 * @param policy When to flush
+	 */
+	public CaptureWriter(RecordingWriter writer, Policy policy) {
+		this(writer, policy, null);
+	}
+
+	/**
+	 * @param writer The recording the rows are written to. It's closed once the thread finishes.
+	 * @param policy When to flush
+	 * @param listener Also gets every batch once it's been written, on this thread; can be null
+	 */
+	public CaptureWriter(RecordingWriter writer, Policy policy, RowSink listener) {
+		this(writer, policy, listener, null);
+	}
+
+	/**
+	 * @param writer The recording the rows are written to. It's closed once the thread finishes.
+	 * @param policy When to flush
+	 * @param listener Also gets every batch once it's been written, on this thread; can be null
+	 * @param spillFile Where the rows go when the queue's full, if the policy says to spill
+	 */
+	public CaptureWriter(RecordingWriter writer, Policy policy, RowSink listener,
+			File spillFile) {
+		super("CaptureWriter");
+		mWriter = writer;
+		mPolicy = policy;
+		mListener = listener;
+		mRing = new RowRing(writer.getCols(), policy.batchRows, policy.queueCapacity,
+				policy.overflow, spillFile);
+	}
+
+	/**
+	 * Returns the ring the rows (and gaps) are handed over through. It takes them from one
+	 * thread at a time.
+	 */
+	public RowRing getRing() {
+		return mRing;
+	}
+
+	/**
+	 * Writes whatever's still queued, closes the recording and waits for the thread to end.
+	 * Nothing more's taken in.
+	 */
+	public void finish() {
+		mRing.close();
+		boolean interrupted = false;
+		while (isAlive()) {
+			try {
+				join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	@Override
+	public void run() {
+		RowRing.Consumer consumer = new RowRing.Consumer() {
+			@Override
+			public void onRows(int[] rows, int count) {
+				mRowsTaken += count;
+				mPendingRows += write(rows, count);
+			}
+
+			@Override
+			public void onGap(long lostTime, long resumedTime) {
+				mWriter.addGap(mRowsTaken, lostTime, resumedTime);
+			}
+		};
+		long lastFlush = System.currentTimeMillis();
+		boolean isFinishing = false;
+		while (!isFinishing) {
+			// Wait for rows, but no longer than until the next timed flush is due
+			long wait = mPendingRows>0
+					? Math.max(lastFlush + mPolicy.flushMillis - System.currentTimeMillis(), 0)
+					: mPolicy.flushMillis;
+			isFinishing = mRing.take(consumer, wait)<0;
+
+			long now = System.currentTimeMillis();
+			if (mPendingRows>0 && (isFinishing || mPendingRows>=mPolicy.flushRows
+					|| now-lastFlush>=mPolicy.flushMillis)) {
+				flush();
+				mPendingRows = 0;
+				lastFlush = now;
+			}
+		}
+		try {
+			mWriter.close();
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private int write(int[] rows, int count) {
+		if (mError!=null)
+			return 0;
+		long start = System.nanoTime();
+		try {
+			mWriter.writeRows(rows, 0, count);
+		} catch (IOException e) {
+			fail(e);
+			return 0;
+		}
+		long nanos = System.nanoTime() - start;
+		mWriteCount++;
+		mTotalWriteNanos += nanos;
+		if (nanos>mMaxWriteNanos)
+			mMaxWriteNanos = nanos;
+		mRowsWritten += count;
+		if (mListener!=null)
+			mListener.onRows(rows, count);
+		return count;
+	}
+
+	private void flush() {
+		if (mError!=null)
+			return;
+		long start = System.nanoTime();
+		try {
+			if (mPolicy.sync)
+				mWriter.sync();
+			else mWriter.flush();
+		} catch (IOException e) {
+			fail(e);
+			return;
+		}
+		long nanos = System.nanoTime() - start;
+		if (nanos>mMaxFlushNanos)
+			mMaxFlushNanos = nanos;
+		mFlushCount++;
+		mRowsFlushed = mRowsWritten;
+	}
+
+	// Only the first error's kept. The ring's still drained afterwards so that the reader never
+	// waits on it forever; the rows just aren't written.
+	private void fail(IOException e) {
+		if (mError==null)
+			mError = e;
+	}
+
+	//////////////////////////
+	//*      METRICS       *//
+	//////////////////////////
+
+	/**
+	 * Returns the first error the thread ran into, or null if there hasn't been one.
+	 * Nothing more is written once there's been an error.
+	 */
+	public IOException getError() {
+		return mError;
+	}
+
+	/**
+	 * Returns the number of rows written to the recording so far
+	 */
+	public long getRowsWritten() {
+		return mRowsWritten;
+	}
+
+	/**
+	 * Returns the number of rows handed over to be written so far
+	 */
+	public long getRowsSubmitted() {
+		return mRing.getRowsPut();
+	}
+
+	/**
+	 * Returns the number of rows which have been flushed, i.e. are safe if the app dies
+	 */
+	public long getRowsFlushed() {
+		return mRowsFlushed;
+	}
+
+	public long getFlushCount() {
+		return mFlushCount;
+	}
+
+	/**
+	 * Returns the average time a batch took to be written, in ns
+	 */
+	public long getAverageWriteNanos() {
+		long count = mWriteCount;
+		return count==0 ? 0 : mTotalWriteNanos / count;
+	}
+
+	/**
+	 * Returns the longest time a batch took to be written, in ns
+	 */
+	public long getMaxWriteNanos() {
+		return mMaxWriteNanos;
+	}
+
+	/**
+	 * Returns the longest time a flush took, in ns
+	 */
+	public long getMaxFlushNanos() {
+		return mMaxFlushNanos;
+	}
+
+	/**
+	 * Returns the number of batches currently waiting to be written
+	 */
+	public int getQueueDepth() {
+		return mRing.getDepth();
+	}
+
+	/**
+	 * Returns the most batches that were waiting to be written at once
+	 */
+	public int getMaxQueueDepth() {
+		return mRing.getHighWaterMark();
+	}
+
+	/**
+	 * Returns the number of times rows were handed over while the queue was full
+	 */
+	public long getQueueFullCount() {
+		return mRing.getFullCount();
+	}
+
+	/**
+	 * Returns the number of rows that were dropped because the queue was full
+	 */
+	public long getOverrunRows() {
+		return mRing.getOverrunRows();
+	}
+
+	/**
+	 * Returns the number of rows that were spilled to disk because the queue was full
+	 */
+	public long getSpilledRows() {
+		return mRing.getSpilledRows();
+	}
+}
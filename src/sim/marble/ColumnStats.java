@@ -0,0 +1,211 @@
+/*
+ * This is the ColumnStats class. It keeps running statistics of every column of a recording as
+ * the rows come in: min, max, count, mean and variance, plus a coarse histogram. The mean and
+ * variance are kept with Welford's method, so they stay accurate over hours of rows without ever
+ * having to go over them again.
+ * The histogram has a bin per power of two, on either side of zero (see binOf()), so it needs no
+ * idea of the range of a column up front: the accelerometer columns, which stay within 255, and
+ * the lux column, which goes up to 50k, both come out with a handful of bins in use.
+ * RecordingWriter keeps one for every recording and writes it at the end, next to the footer
+ * (see RecordingFormat), where RecordingReader.readStats() can get it back without reading any
+ * of the rows.
+ */
+
+package sim.marble;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public class ColumnStats implements RowSink {
+
+	/** The number of bins in a histogram: 32 for negative values, 32 for the rest */
+	public static final int BINS = 64;
+
+	private final int cols;
+	private long mCount = 0;
+	private final int[] mMin, mMax;
+	private final double[] mMean, mM2;
+	// Null if the histograms weren't kept, e.g. in the catalog
+	private final long[][] mHistograms;
+
+	public ColumnStats(int cols) {
+		this(cols, true);
+	}
+
+	private ColumnStats(int cols, boolean hasHistograms) {
+		this.cols = cols;
+		mMin = new int[cols];
+		mMax = new int[cols];
+		mMean = new double[cols];
+		mM2 = new double[cols];
+		mHistograms = hasHistograms ? new long[cols][BINS] : null;
+	}
+
+	@Override
+	public void onRows(int[] rows, int count) {
+		add(rows, 0, count);
+	}
+
+	/**
+	 * Adds a number of rows which are laid out one after the other in a single array.
+	 * @param rows The array holding the rows
+	 * @param offset The index in rows of the first value of the first row
+	 * @param count The number of rows to be added
+	 */
+	public void add(int[] rows, int offset, int count) {
+		int index = offset;
+		for (int row=0; row<count; row++) {
+			boolean isFirst = mCount==0;
+			long n = ++mCount;
+			for (int col=0; col<cols; col++) {
+				int value = rows[index++];
+				if (isFirst || value<mMin[col])
+					mMin[col] = value;
+				if (isFirst || value>mMax[col])
+					mMax[col] = value;
+				double delta = value - mMean[col];
+				mMean[col] += delta / n;
+				mM2[col] += delta * (value - mMean[col]);
+				if (mHistograms!=null)
+					mHistograms[col][binOf(value)]++;
+			}
+		}
+	}
+
+	public int getCols() {
+		return cols;
+	}
+
+	/**
+	 * Returns the number of rows added so far
+	 */
+	public long getCount() {
+		return mCount;
+	}
+
+	/**
+	 * Returns the lowest value of a column, or 0 if there are no rows
+	 * @param col The column, 1-based
+	 */
+	public int getMin(int col) {
+		return mMin[col-1];
+	}
+
+	/**
+	 * Returns the highest value of a column, or 0 if there are no rows
+	 * @param col The column, 1-based
+	 */
+	public int getMax(int col) {
+		return mMax[col-1];
+	}
+
+	/**
+	 * @param col The column, 1-based
+	 */
+	public double getMean(int col) {
+		return mMean[col-1];
+	}
+
+	/**
+	 * Returns the (population) variance of a column, or 0 if there are no rows
+	 * @param col The column, 1-based
+	 */
+	public double getVariance(int col) {
+		return mCount==0 ? 0 : mM2[col-1] / mCount;
+	}
+
+	/**
+	 * @param col The column, 1-based
+	 */
+	public double getStandardDeviation(int col) {
+		return Math.sqrt(getVariance(col));
+	}
+
+	public boolean hasHistograms() {
+		return mHistograms!=null;
+	}
+
+	/**
+	 * Returns the number of values of a column that fell into each bin
+	 * @param col The column, 1-based
+	 * @return A copy of the histogram, BINS long, or null if it wasn't kept
+	 */
+	public long[] getHistogram(int col) {
+		return mHistograms==null ? null : mHistograms[col-1].clone();
+	}
+
+	/**
+	 * Returns the bin a value falls into. Bin 32 holds 0, bin 33 holds 1, bin 34 holds 2 to 3,
+	 * bin 35 holds 4 to 7 and so on; the bins below 32 mirror them for negative values (by way
+	 * of ~value), so bin 31 holds -1, bin 30 holds -2, bin 29 holds -4 to -3, and bin 0 holds
+	 * everything below -2^30.
+	 */
+	public static int binOf(int value) {
+		if (value>=0)
+			return 32 + (32 - Integer.numberOfLeadingZeros(value));
+		return 31 - (32 - Integer.numberOfLeadingZeros(~value));
+	}
+
+	/**
+	 * Returns the lowest value that falls into a bin
+	 */
+	public static int binLow(int bin) {
+		if (bin>=32)
+			return bin==32 ? 0 : 1 << (bin-33);
+		return ~binHigh(63-bin);
+	}
+
+	/**
+	 * Returns the highest value that falls into a bin
+	 */
+	public static int binHigh(int bin) {
+		if (bin>=32)
+			return bin==32 ? 0 : (int)((1L << (bin-32)) - 1);
+		return ~binLow(63-bin);
+	}
+
+	/**
+	 * Writes the statistics out.
+	 * @param out The stream to write to
+	 * @param withHistograms Whether to write the histograms too, which take up most of the space
+	 */
+	public void write(DataOutputStream out, boolean withHistograms) throws IOException {
+		withHistograms &= mHistograms!=null;
+		out.writeShort(cols);
+		out.writeLong(mCount);
+		out.writeBoolean(withHistograms);
+		for (int col=0; col<cols; col++) {
+			out.writeInt(mMin[col]);
+			out.writeInt(mMax[col]);
+			out.writeDouble(mMean[col]);
+			out.writeDouble(mM2[col]);
+			if (withHistograms) {
+				for (long count : mHistograms[col])
+					out.writeLong(count);
+			}
+		}
+	}
+
+	/**
+	 * Reads statistics written by write().
+	 */
+	public static ColumnStats read(DataInputStream in) throws IOException {
+		int cols = in.readShort();
+		long count = in.readLong();
+		boolean hasHistograms = in.readBoolean();
+		ColumnStats stats = new ColumnStats(cols, hasHistograms);
+		stats.mCount = count;
+		for (int col=0; col<cols; col++) {
+			stats.mMin[col] = in.readInt();
+			stats.mMax[col] = in.readInt();
+			stats.mMean[col] = in.readDouble();
+			stats.mM2[col] = in.readDouble();
+			if (hasHistograms) {
+				for (int bin=0; bin<BINS; bin++)
+					stats.mHistograms[col][bin] = in.readLong();
+			}
+		}
+		return stats;
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * This is the DecimatedGraphView class. It's a LineGraphView that lets PlotGraph know whenever
+ * the part of the graph that's on screen (the viewport) changes, e.g. after a pinch or a scroll,
+ * so that the series can be downsampled again for what's now being shown.
+ */
+
+package sim.marble;
+
+import android.content.Context;
+import android.graphics.Canvas;
+
+import com.jjoe64.graphview.GraphViewDataInterface;
+import com.jjoe64.graphview.GraphViewSeries.GraphViewSeriesStyle;
+import com.jjoe64.graphview.LineGraphView;
+
+public class DecimatedGraphView extends LineGraphView {
+
+	public interface OnViewportChangeListener {
+		/**
+		 * Called (on the UI thread, after the graph's been drawn) when the viewport changes.
+		 * @param start The x value at the left edge of the graph
+		 * @param size The range of x values across the graph
+		 * @param width The width of the graph in pixels
+		 */
+		void onViewportChanged(double start, double size, int width);
+	}
+
+	private OnViewportChangeListener mListener;
+	private double mLastStart = Double.NaN, mLastSize = Double.NaN;
+	private int mLastWidth = -1;
+
+	private final Runnable mNotifyListener = new Runnable() {
+		@Override
+		public void run() {
+			if (mListener!=null)
+				mListener.onViewportChanged(mLastStart, mLastSize, mLastWidth);
+		}
+	};
+
+	public DecimatedGraphView(Context context, String title) {
+		super(context, title);
+	}
+
+	public void setOnViewportChangeListener(OnViewportChangeListener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Returns the x value at the left edge of the graph the last time it was drawn, or NaN if it
+	 * hasn't been drawn yet. Together with getViewportSize(), it's what's needed to put the
+	 * viewport back with setViewPort().
+	 */
+	public double getViewportStart() {
+		return mLastStart;
+	}
+
+	/**
+	 * GraphView doesn't tell anyone about its viewport, but it does pass it into here every time
+	 * a series is drawn, so this is where changes get picked up. The listener's posted rather
+	 * than called, since it'll most likely change the series that are being drawn.
+	 */
+	@Override
+	public void drawSeries(Canvas canvas, GraphViewDataInterface[] values, float graphwidth,
+			float graphheight, float border, double minX, double minY, double diffX, double diffY,
+			float horstart, GraphViewSeriesStyle style) {
+		super.drawSeries(canvas, values, graphwidth, graphheight, border, minX, minY, diffX, diffY,
+				horstart, style);
+		int width = (int)graphwidth;
+		if (minX!=mLastStart || diffX!=mLastSize || width!=mLastWidth) {
+			mLastStart = minX;
+			mLastSize = diffX;
+			mLastWidth = width;
+			removeCallbacks(mNotifyListener);
+			post(mNotifyListener);
+		}
+	}
+}
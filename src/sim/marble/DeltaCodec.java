@@ -0,0 +1,133 @@
+/*
+ * This is the DeltaCodec class. It encodes and decodes the blocks of rows of a recording that's
+ * stored with RecordingFormat.ENCODING_DELTA.
+ * The accelerometer and light readings only change a little from one row to the next, so rather
+ * than the values themselves, each column stores the difference from the value in the row before
+ * it. The differences are zigzag encoded (0, -1, 1, -2, 2... become 0, 1, 2, 3, 4...) so that
+ * small negative ones stay small, and then written as varints: 7 bits per byte, with the top bit
+ * set on every byte but the last. Most values end up taking a single byte instead of four.
+ * Every block starts over from 0, so a block can be decoded without any of the ones before it.
+ *
+ * Layout of a block, all values big-endian:
+ *   int row count, int length of the encoded values in bytes, then the encoded values, one
+ *   column after the other: the varints of every row of the first column, then the second...
+ */
+
+package sim.marble;
+
+import java.io.IOException;
+
+public final class DeltaCodec {
+
+	/** The number of rows RecordingWriter puts in a block, unless it's flushed sooner */
+	public static final int BLOCK_ROWS = 1024;
+	/** Size of the start of a block: row count and length */
+	public static final int BLOCK_HEADER_SIZE = 4 + 4;
+	// A 32 bit varint takes at most 5 bytes
+	private static final int MAX_VARINT_SIZE = 5;
+
+	private DeltaCodec() {}
+
+	/**
+	 * Returns the most bytes a block of the given size can take, including its header
+	 */
+	public static int maxBlockSize(int rows, int cols) {
+		return BLOCK_HEADER_SIZE + rows*cols*MAX_VARINT_SIZE;
+	}
+
+	/**
+	 * Checks the start of a block that's been read back from a recording, before anything's
+	 * allocated for it. A corrupt or torn one could otherwise ask for any amount of memory.
+	 * @param count The row count from the block's header
+	 * @param length The length from the block's header
+	 * @param cols The number of values per row
+	 * @param position Where the block starts, for the message
+	 * @throws IOException If the block can't have been written by encodeBlock()
+	 */
+	public static void checkBlockHeader(int count, int length, int cols, long position)
+			throws IOException {
+		if (count<=0 || count>BLOCK_ROWS || length<0
+				|| length>maxBlockSize(count, cols) - BLOCK_HEADER_SIZE)
+			throw new IOException("Corrupt block at " + position);
+	}
+
+	/**
+	 * Encodes a number of rows which are laid out one after the other into a block.
+	 * @param rows The array holding the rows
+	 * @param offset The index in rows of the first value of the first row
+	 * @param count The number of rows to be encoded
+	 * @param cols The number of values per row
+	 * @param out Gets the block, from index 0; must have room for maxBlockSize(count, cols)
+	 * @return The size of the block in bytes, including its header
+	 */
+	public static int encodeBlock(int[] rows, int offset, int count, int cols, byte[] out) {
+		int position = BLOCK_HEADER_SIZE;
+		for (int col=0; col<cols; col++) {
+			int previous = 0;
+			for (int index=offset+col, end=offset+count*cols; index<end; index+=cols) {
+				int value = rows[index];
+				int delta = value - previous;
+				previous = value;
+				int zigzag = (delta << 1) ^ (delta >> 31);
+				while ((zigzag & ~0x7F)!=0) {
+					out[position++] = (byte)((zigzag & 0x7F) | 0x80);
+					zigzag >>>= 7;
+				}
+				out[position++] = (byte)zigzag;
+			}
+		}
+		putInt(out, 0, count);
+		putInt(out, 4, position - BLOCK_HEADER_SIZE);
+		return position;
+	}
+
+	/**
+	 * Decodes the values of a block back into rows which are laid out one after the other.
+	 * @param in The array holding the encoded values, without the block's header
+	 * @param offset The index in in of the first encoded value
+	 * @param length The length of the encoded values in bytes
+	 * @param count The number of rows in the block
+	 * @param cols The number of values per row
+	 * @param out Gets the rows, from index 0; must have room for count*cols values
+	 * @throws IOException If the block doesn't hold exactly count rows
+	 */
+	public static void decodeBlock(byte[] in, int offset, int length, int count, int cols,
+			int[] out) throws IOException {
+		int position = offset, end = offset + length;
+		int size = count*cols;
+		try {
+			for (int col=0; col<cols; col++) {
+				int previous = 0;
+				for (int index=col; index<size; index+=cols) {
+					int b = in[position++];
+					int zigzag = b & 0x7F;
+					for (int shift=7; b<0; shift+=7) {
+						b = in[position++];
+						zigzag |= (b & 0x7F) << shift;
+					}
+					previous += (zigzag >>> 1) ^ -(zigzag & 1);
+					out[index] = previous;
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Block ended unexpectedly");
+		}
+		if (position!=end)
+			throw new IOException("Block has " + (end-position) + " bytes left over");
+	}
+
+	/**
+	 * Reads an int from the start of a block
+	 */
+	public static int getInt(byte[] in, int offset) {
+		return (in[offset] << 24) | ((in[offset+1] & 0xFF) << 16)
+				| ((in[offset+2] & 0xFF) << 8) | (in[offset+3] & 0xFF);
+	}
+
+	private static void putInt(byte[] out, int offset, int value) {
+		out[offset] = (byte)(value >>> 24);
+		out[offset+1] = (byte)(value >>> 16);
+		out[offset+2] = (byte)(value >>> 8);
+		out[offset+3] = (byte)value;
+	}
+}
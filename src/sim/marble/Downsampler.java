@@ -0,0 +1,94 @@
+/*
+ * This is the Downsampler class. It cuts a series down to a set number of points before it's
+ * handed to GraphView, so that the number of points drawn depends on the width of the screen
+ * rather than on the length of the recording.
+ * It uses min/max buckets: the range is split into buckets, and only the lowest and the highest
+ * value of each bucket are kept, in the order they come in. Unlike simply keeping every nth value,
+ * this never loses a peak, which is what we're looking for in the data anyway.
+ */
+
+package sim.marble;
+
+public final class Downsampler {
+
+	private Downsampler() {}
+
+	/**
+	 * Returns the most points minMax() can put out for the given number of buckets
+	 */
+	public static int maxPoints(int buckets) {
+		return 2*buckets + 2;
+	}
+
+	/**
+	 * Downsamples values[from] up to (but not including) values[to] into min/max buckets.
+	 * The first and last values of the range are always kept, so the downsampled series covers
+	 * the same x range as the original one. If the range is small enough, every value is kept.
+	 * @param values The series
+	 * @param from The index of the first value of the range
+	 * @param to The index after the last value of the range
+	 * @param buckets The number of buckets, e.g. half the width in pixels
+	 * @param outIndex Gets the index (in values) of each point kept; must have room for
+	 *        maxPoints(buckets) points from outOffset on
+	 * @param outValue Gets the value of each point kept
+	 * @param outOffset Where to start putting points in outIndex and outValue
+	 * @return The number of points kept
+	 */
+	public static int minMax(int[] values, int from, int to, int buckets,
+			int[] outIndex, int[] outValue, int outOffset) {
+		int length = to - from;
+		int out = outOffset;
+		if (length<=0)
+			return 0;
+		if (length<=maxPoints(buckets) || buckets<1) {
+			for (int i=from; i<to; i++) {
+				outIndex[out] = i;
+				outValue[out++] = values[i];
+			}
+			return out - outOffset;
+		}
+
+		outIndex[out] = from;
+		outValue[out++] = values[from];
+
+		// The first and last values are kept anyway, so only bucket the ones in between
+		int inner = length - 2;
+		for (int bucket=0; bucket<buckets; bucket++) {
+			int start = from + 1 + (int)((long)inner * bucket / buckets);
+			int end = from + 1 + (int)((long)inner * (bucket+1) / buckets);
+			if (start>=end)
+				continue;
+			int minIndex = start, maxIndex = start;
+			int min = values[start], max = min;
+			for (int i=start+1; i<end; i++) {
+				int value = values[i];
+				if (value<min) {
+					min = value;
+					minIndex = i;
+				} else if (value>max) {
+					max = value;
+					maxIndex = i;
+				}
+			}
+			// Keep them in the order they came in; a flat bucket only needs the one point
+			if (minIndex==maxIndex) {
+				outIndex[out] = minIndex;
+				outValue[out++] = min;
+			} else if (minIndex<maxIndex) {
+				outIndex[out] = minIndex;
+				outValue[out++] = min;
+				outIndex[out] = maxIndex;
+				outValue[out++] = max;
+			} else {
+				outIndex[out] = maxIndex;
+				outValue[out++] = max;
+				outIndex[out] = minIndex;
+				outValue[out++] = min;
+			}
+		}
+
+		outIndex[out] = to-1;
+		outValue[out++] = values[to-1];
+		return out - outOffset;
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * This is the Fft class. It's an in-place radix-2 fast Fourier transform of a fixed size, for
+ * SpectrumAnalyzer. Everything that only depends on the size (the twiddle factors, i.e. the sines
+ * and cosines, and the bit-reversed order the values are swapped into) is worked out once when
+ * it's made, so a transform doesn't call Math.sin() or allocate anything, and the same Fft can be
+ * used for every window of a recording.
+ */
+
+package sim.marble;
+
+public class Fft {
+
+	private final int size;
+	// cos(2*pi*k/size) and -sin(2*pi*k/size), for k up to size/2
+	private final double[] mCos;
+	private final double[] mSin;
+	// The index every value's swapped with before the butterflies
+	private final int[] mReversed;
+
+	/**
+	 * @param size The number of values transformed, a power of two of at least 2
+	 */
+	public Fft(int size) {
+		if (size<2 || (size & (size-1))!=0)
+			throw new IllegalArgumentException("Size " + size + " isn't a power of two");
+		this.size = size;
+		mCos = new double[size/2];
+		mSin = new double[size/2];
+		for (int k=0; k<size/2; k++) {
+			double angle = 2*Math.PI*k / size;
+			mCos[k] = Math.cos(angle);
+			mSin[k] = -Math.sin(angle);
+		}
+		int bits = Integer.numberOfTrailingZeros(size);
+		mReversed = new int[size];
+		for (int i=0; i<size; i++)
+			mReversed[i] = Integer.reverse(i) >>> (32 - bits);
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Transforms the values in place, i.e. X[k] = sum of x[n]*e^(-2*pi*i*k*n/size), not scaled.
+	 * @param re The real parts, size values
+	 * @param im The imaginary parts, size values
+	 */
+	public void transform(double[] re, double[] im) {
+		int[] reversed = mReversed;
+		for (int i=0; i<size; i++) {
+			int j = reversed[i];
+			if (j>i) {
+				double t = re[i]; re[i] = re[j]; re[j] = t;
+				t = im[i]; im[i] = im[j]; im[j] = t;
+			}
+		}
+		double[] cos = mCos, sin = mSin;
+		for (int half=1; half<size; half<<=1) {
+			// The twiddle factors for this pass are every (size/2/half)th one in the table
+			int step = size / (half<<1);
+			for (int start=0; start<size; start+=half<<1) {
+				for (int k=0, twiddle=0; k<half; k++, twiddle+=step) {
+					int a = start + k, b = a + half;
+					double wr = cos[twiddle], wi = sin[twiddle];
+					double tr = re[b]*wr - im[b]*wi;
+					double ti = re[b]*wi + im[b]*wr;
+					re[b] = re[a] - tr;
+					im[b] = im[a] - ti;
+					re[a] += tr;
+					im[a] += ti;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,279 @@
+/*
+ * This is the FilterChain class. It works out channels that aren't in the recording from the ones
+ * that are, e.g. how hard the marble's being shaken (the magnitude of XPos, YPos and ZPos),
+ * smoothed so that the noise doesn't drown it out.
+ * A chain's made of stages, each putting out one derived column: a moving average, a low-pass
+ * filter (an exponential moving average), a derivative or a magnitude. A stage can take the
+ * column of an earlier stage as its input, so e.g. the magnitude can be smoothed and then
+ * differentiated. Every stage only keeps a few values of state (the moving average keeps its
+ * window), all in primitive arrays, and nothing's allocated once the chain's built.
+ * All the stages are worked out in a single pass, a row at a time, either on live rows (it's a
+ * RowSink, handing the rows on with the derived columns added after the others) or on a recording
+ * that's been read into an IntColumnMatrix (see filter()). Either way, the derived columns are
+ * numbered after the recording's own, in the order the stages were added. filter() only keeps
+ * the columns it's asked for; every other stage's value only lives as long as its row.
+ */
+
+package sim.marble;
+
+import java.util.Arrays;
+
+public class FilterChain implements RowSink {
+
+	public static final int STAGE_MOVING_AVERAGE = 0;
+	public static final int STAGE_LOW_PASS = 1;
+	public static final int STAGE_DERIVATIVE = 2;
+	public static final int STAGE_MAGNITUDE = 3;
+
+	// The low-pass filter's weight and state are fixed point, with this many fractional bits;
+	// few enough that the difference of any two ints times the weight still fits a long
+	private static final int FIXED_POINT_BITS = 12;
+	private static final long FIXED_POINT_HALF = 1L << (FIXED_POINT_BITS - 1);
+
+	private final int cols;
+	private final int batchRows;
+	private RowSink mSink;
+
+	// Every stage's kind, inputs (0-based columns of the widened row) and state
+	private int mStages = 0;
+	private int[] mKinds = new int[0];
+	private int[][] mInputs = new int[0][];
+	// The moving averages' windows, and where the next value goes in them
+	private int[][] mWindows = new int[0][];
+	private int[] mHeads = new int[0];
+	// The number of values seen since the last reset, up to the window size
+	private int[] mCounts = new int[0];
+	// The moving averages' sums, the low-pass filters' outputs (fixed point) and the last value
+	// the derivatives saw
+	private long[] mStates = new long[0];
+	// The low-pass filters' weights, fixed point
+	private long[] mWeights = new long[0];
+
+	// Rows widened with the derived columns, handed on to the sink
+	private int[] mBatch;
+	// A single widened row, for filter()
+	private int[] mRow;
+
+	/**
+	 * @param cols The number of columns in the rows that are fed in
+	 * @param batchRows The most rows handed on to the sink at once
+	 */
+	public FilterChain(int cols, int batchRows) {
+		this.cols = cols;
+		this.batchRows = batchRows;
+		mBatch = new int[cols * batchRows];
+		mRow = new int[cols];
+	}
+
+	/**
+	 * Sets where the rows go, with the derived columns added. Can be null, e.g. when the chain's
+	 * only used with filter().
+	 */
+	public void setSink(RowSink sink) {
+		mSink = sink;
+	}
+
+	/**
+	 * Adds a moving average of the last so many values of a column. Until the window's filled,
+	 * it's the average of the values seen so far.
+	 * @param col The column, 1-based; can be an earlier stage's
+	 * @param window The number of values averaged
+	 * @return The derived column, 1-based
+	 */
+	public int addMovingAverage(int col, int window) {
+		if (window<1)
+			throw new IllegalArgumentException("Window of " + window + " values");
+		int stage = addStage(STAGE_MOVING_AVERAGE, col);
+		mWindows[stage] = new int[window];
+		return cols + stage + 1;
+	}
+
+	/**
+	 * Adds a low-pass filter of a column: every value put out is the last one moved towards the
+	 * new input by the given weight. The first value's passed straight through.
+	 * @param col The column, 1-based; can be an earlier stage's
+	 * @param weight How much of every new value's taken in, more than 0 and up to 1; e.g. 0.1
+	 *        smooths over about the last 10 values
+	 * @return The derived column, 1-based
+	 */
+	public int addLowPass(int col, double weight) {
+		if (!(weight>0 && weight<=1))
+			throw new IllegalArgumentException("Weight of " + weight);
+		int stage = addStage(STAGE_LOW_PASS, col);
+		mWeights[stage] = Math.max(1, Math.round(weight * (1L << FIXED_POINT_BITS)));
+		return cols + stage + 1;
+	}
+
+	/**
+	 * Adds the difference between every value of a column and the one before it. The first
+	 * value's difference is 0.
+	 * @param col The column, 1-based; can be an earlier stage's
+	 * @return The derived column, 1-based
+	 */
+	public int addDerivative(int col) {
+		return cols + addStage(STAGE_DERIVATIVE, col) + 1;
+	}
+
+	/**
+	 * Adds the magnitude of a vector spread over three columns, sqrt(x*x + y*y + z*z), rounded.
+	 * @param x The first component's column, 1-based; can be an earlier stage's
+	 * @param y The second component's column
+	 * @param z The third component's column
+	 * @return The derived column, 1-based
+	 */
+	public int addMagnitude(int x, int y, int z) {
+		return cols + addStage(STAGE_MAGNITUDE, x, y, z) + 1;
+	}
+
+	private int addStage(int kind, int... inputs) {
+		int stage = mStages;
+		int[] columns = new int[inputs.length];
+		for (int i=0; i<inputs.length; i++) {
+			if (inputs[i]<1 || inputs[i]>cols + stage)
+				throw new IllegalArgumentException("No column " + inputs[i] + " before stage "
+						+ (stage+1));
+			columns[i] = inputs[i]-1;
+		}
+		mStages++;
+		mKinds = Arrays.copyOf(mKinds, mStages);
+		mInputs = Arrays.copyOf(mInputs, mStages);
+		mWindows = Arrays.copyOf(mWindows, mStages);
+		mHeads = Arrays.copyOf(mHeads, mStages);
+		mCounts = Arrays.copyOf(mCounts, mStages);
+		mStates = Arrays.copyOf(mStates, mStages);
+		mWeights = Arrays.copyOf(mWeights, mStages);
+		mKinds[stage] = kind;
+		mInputs[stage] = columns;
+		mBatch = new int[getCols() * batchRows];
+		mRow = new int[getCols()];
+		return stage;
+	}
+
+	/**
+	 * Returns the number of columns in the rows handed on: the ones fed in, then the derived ones
+	 */
+	public int getCols() {
+		return cols + mStages;
+	}
+
+	/**
+	 * Returns the number of derived columns
+	 */
+	public int getStageCount() {
+		return mStages;
+	}
+
+	/**
+	 * Forgets everything the stages have seen, so the next row's treated as the first one,
+	 * e.g. at the start of another recording.
+	 */
+	public void reset() {
+		Arrays.fill(mHeads, 0);
+		Arrays.fill(mCounts, 0);
+		Arrays.fill(mStates, 0);
+	}
+
+	@Override
+	public void onRows(int[] rows, int count) {
+		int width = getCols();
+		for (int done=0; done<count; ) {
+			int n = Math.min(count - done, batchRows);
+			for (int row=0; row<n; row++) {
+				System.arraycopy(rows, (done+row)*cols, mBatch, row*width, cols);
+				step(mBatch, row*width);
+			}
+			if (mSink!=null)
+				mSink.onRows(mBatch, n);
+			done += n;
+		}
+	}
+
+	/**
+	 * Works out the derived columns of a whole recording in a single pass, carrying on from
+	 * whatever rows the chain's seen before. Only the columns asked for are kept; the stages in
+	 * between (e.g. the magnitude that's then smoothed) are worked out a row at a time, and
+	 * never take up a column of their own.
+	 * @param values The recording, with the columns the chain was made for
+	 * @param derivedCols The derived columns to keep, 1-based, as the add methods returned them
+	 * @return The columns asked for, in the same order, as many rows as the recording
+	 */
+	public IntColumnMatrix filter(IntColumnMatrix values, int... derivedCols) {
+		int[] stages = new int[derivedCols.length];
+		for (int i=0; i<derivedCols.length; i++) {
+			if (derivedCols[i]<=cols || derivedCols[i]>cols + mStages)
+				throw new IllegalArgumentException("No derived column " + derivedCols[i]);
+			stages[i] = derivedCols[i] - 1;
+		}
+		int rows = values.getRows();
+		IntColumnMatrix derived = new IntColumnMatrix(rows, stages.length);
+		int[][] in = new int[cols][];
+		for (int col=0; col<cols; col++)
+			in[col] = values.getColumn(col+1);
+		int[][] out = new int[stages.length][];
+		for (int i=0; i<stages.length; i++)
+			out[i] = derived.getColumn(i+1);
+		int[] row = mRow;
+		for (int i=0; i<rows; i++) {
+			for (int col=0; col<cols; col++)
+				row[col] = in[col][i];
+			step(row, 0);
+			for (int j=0; j<stages.length; j++)
+				out[j][i] = row[stages[j]];
+		}
+		return derived;
+	}
+
+	/**
+	 * Works out every stage of a single row, in order, each into its own column after the
+	 * recording's.
+	 * @param row The array holding the widened row
+	 * @param offset The index of the row's first value
+	 */
+	private void step(int[] row, int offset) {
+		for (int stage=0; stage<mStages; stage++) {
+			int[] inputs = mInputs[stage];
+			int input = row[offset + inputs[0]];
+			int output;
+			switch (mKinds[stage]) {
+			case STAGE_MOVING_AVERAGE:
+				int[] window = mWindows[stage];
+				int head = mHeads[stage];
+				if (mCounts[stage]==window.length)
+					mStates[stage] -= window[head];
+				else mCounts[stage]++;
+				window[head] = input;
+				mStates[stage] += input;
+				mHeads[stage] = head+1==window.length ? 0 : head+1;
+				output = (int)(mStates[stage] / mCounts[stage]);
+				break;
+
+			case STAGE_LOW_PASS:
+				long target = (long)input << FIXED_POINT_BITS;
+				if (mCounts[stage]==0) {
+					mCounts[stage] = 1;
+					mStates[stage] = target;
+				} else {
+					mStates[stage] += (target - mStates[stage]) * mWeights[stage]
+							>> FIXED_POINT_BITS;
+				}
+				output = (int)((mStates[stage] + FIXED_POINT_HALF) >> FIXED_POINT_BITS);
+				break;
+
+			case STAGE_DERIVATIVE:
+				long difference = mCounts[stage]==0 ? 0 : input - mStates[stage];
+				mCounts[stage] = 1;
+				mStates[stage] = input;
+				output = (int)Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, difference));
+				break;
+
+			default: // STAGE_MAGNITUDE
+				double x = input, y = row[offset + inputs[1]], z = row[offset + inputs[2]];
+				// It's never negative, so adding a half and truncating rounds it; the cast
+				// saturates at Integer.MAX_VALUE
+				output = (int)(Math.sqrt(x*x + y*y + z*z) + 0.5);
+				break;
+			}
+			row[offset + cols + stage] = output;
+		}
+	}
+}
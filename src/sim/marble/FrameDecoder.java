@@ -0,0 +1,196 @@
+/*
+ * This is the FrameDecoder class. It turns the frames sent by a board that's switched to binary
+ * framing (see WireProtocol) into rows of ints, as the bytes come in, the way RowTokenizer does
+ * for text. Frames can be split across any number of reads.
+ * A frame whose CRC doesn't match is thrown away, and the decoder looks for the next sync marker
+ * after the start of it. Frames that never arrived (or were thrown away) are counted from the
+ * gaps in the sequence numbers of the ones that did.
+ * A frame whose sequence number is the same as, or behind, the last one's is a duplicate (e.g. the
+ * board sent it again), so its rows are skipped rather than taking it for the sequence having
+ * wrapped around after almost 65536 lost frames. That means a gap of more than 32767 frames looks
+ * like a duplicate too; at 50 frames a second, that's over ten minutes of frames lost in a row.
+ */
+
+package sim.marble;
+
+public class FrameDecoder {
+
+	private final int cols;
+	private final int batchRows;
+	private final int[] mWidths;
+	private final int mRowSize;
+	private final int[] mBatch;
+	private int mRowsInBatch = 0;
+
+	// The bytes that haven't been decoded yet; always starts at a frame, or where one's looked for
+	private final byte[] mBuffer;
+	private int mLength = 0;
+	// The sequence number the next frame should have, or -1 before the first one
+	private int mNextSequence = -1;
+	private boolean mIsInSync = true;
+
+	private volatile long mRowCount = 0;
+	private volatile long mFrameCount = 0;
+	private volatile long mLostFrames = 0;
+	private volatile long mDuplicateFrames = 0;
+	private volatile long mCorruptFrames = 0;
+
+	/**
+	 * @param widths The width of every column in bytes, as the board said
+	 * @param batchRows The max number of rows handed to the RowSink at once
+	 */
+	public FrameDecoder(int[] widths, int batchRows) {
+		this.cols = widths.length;
+		this.batchRows = batchRows;
+		mWidths = widths.clone();
+		mRowSize = WireProtocol.getRowSize(widths);
+		mBatch = new int[cols * batchRows];
+		// Room for two of the biggest frames, so that most reads are taken in one go
+		mBuffer = new byte[2 * WireProtocol.maxFrameSize(WireProtocol.MAX_ROWS_PER_FRAME, widths)];
+	}
+
+	/**
+	 * Decodes the given bytes. Every time the batch fills up it's handed to the sink; call
+	 * flush() to hand over a batch that isn't full yet.
+	 * @param buffer The bytes that were read
+	 * @param offset The index of the first byte to decode
+	 * @param length The number of bytes to decode
+	 * @param sink Where the rows go
+	 */
+	public void feed(byte[] buffer, int offset, int length, RowSink sink) {
+		while (length>0) {
+			int n = Math.min(length, mBuffer.length - mLength);
+			System.arraycopy(buffer, offset, mBuffer, mLength, n);
+			mLength += n;
+			offset += n;
+			length -= n;
+			decode(sink);
+		}
+	}
+
+	/**
+	 * Hands whatever rows are in the batch to the sink. A frame that's only been partly read is
+	 * kept for the next feed().
+	 * @param sink Where the rows go
+	 */
+	public void flush(RowSink sink) {
+		if (mRowsInBatch>0) {
+			sink.onRows(mBatch, mRowsInBatch);
+			mRowsInBatch = 0;
+		}
+	}
+
+	/**
+	 * Returns the number of values in a row
+	 */
+	public int getCols() {
+		return cols;
+	}
+
+	/**
+	 * Returns the number of rows decoded so far
+	 */
+	public long getRowCount() {
+		return mRowCount;
+	}
+
+	/**
+	 * Returns the number of frames decoded so far
+	 */
+	public long getFrameCount() {
+		return mFrameCount;
+	}
+
+	/**
+	 * Returns the number of frames that were skipped in the sequence so far, i.e. that were
+	 * lost on the way or thrown away here
+	 */
+	public long getLostFrames() {
+		return mLostFrames;
+	}
+
+	/**
+	 * Returns the number of frames skipped so far because their sequence number was the same as,
+	 * or behind, the one before
+	 */
+	public long getDuplicateFrames() {
+		return mDuplicateFrames;
+	}
+
+	/**
+	 * Returns the number of times the decoder lost sync so far: a frame's CRC didn't match, or
+	 * there was something other than a frame where one should have started
+	 */
+	public long getCorruptFrames() {
+		return mCorruptFrames;
+	}
+
+	/**
+	 * Decodes every whole frame in the buffer, and moves whatever's left to the start of it.
+	 */
+	private void decode(RowSink sink) {
+		byte[] buffer = mBuffer;
+		int position = 0;
+		while (mLength - position>=WireProtocol.HEADER_SIZE) {
+			int rows = buffer[position+4] & 0xFF;
+			if (buffer[position]!=WireProtocol.SYNC_1 || buffer[position+1]!=WireProtocol.SYNC_2
+					|| rows==0) {
+				loseSync();
+				position++;
+				continue;
+			}
+			int size = WireProtocol.HEADER_SIZE + rows*mRowSize + WireProtocol.CRC_SIZE;
+			if (mLength - position<size)
+				break;
+			int crcOffset = position + size - WireProtocol.CRC_SIZE;
+			int crc = (buffer[crcOffset] & 0xFF) << 8 | buffer[crcOffset+1] & 0xFF;
+			if (WireProtocol.crc16(buffer, position + 2, size - 2 - WireProtocol.CRC_SIZE)!=crc) {
+				// The sync marker may just have been part of a value; look again right after it
+				loseSync();
+				position++;
+				continue;
+			}
+			mIsInSync = true;
+			int sequence = (buffer[position+2] & 0xFF) << 8 | buffer[position+3] & 0xFF;
+			// How far ahead of the expected one it is, from -32768 to 32767 across the wrap
+			int skipped = mNextSequence<0 ? 0 : (short)(sequence - mNextSequence);
+			if (skipped<0) {
+				mDuplicateFrames++;
+			} else {
+				mLostFrames += skipped;
+				mNextSequence = (sequence + 1) & 0xFFFF;
+				mFrameCount++;
+				decodeRows(buffer, position + WireProtocol.HEADER_SIZE, rows, sink);
+			}
+			position += size;
+		}
+		System.arraycopy(buffer, position, buffer, 0, mLength - position);
+		mLength -= position;
+	}
+
+	private void decodeRows(byte[] buffer, int position, int rows, RowSink sink) {
+		int[] widths = mWidths;
+		for (int row=0; row<rows; row++) {
+			int index = mRowsInBatch*cols;
+			for (int col=0; col<cols; col++) {
+				if (widths[col]==4) {
+					mBatch[index++] = buffer[position] << 24 | (buffer[position+1] & 0xFF) << 16
+							| (buffer[position+2] & 0xFF) << 8 | buffer[position+3] & 0xFF;
+					position += 4;
+				} else {
+					mBatch[index++] = buffer[position] << 8 | buffer[position+1] & 0xFF;
+					position += 2;
+				}
+			}
+			mRowCount++;
+			if (++mRowsInBatch==batchRows)
+				flush(sink);
+		}
+	}
+
+	private void loseSync() {
+		if (mIsInSync)
+			mCorruptFrames++;
+		mIsInSync = false;
+	}
+}
@@ -0,0 +1,43 @@
+/*
+ * This is the Futures class. It waits on the work that's been handed to a pool of threads, e.g.
+ * the ranges of a text recording parsed on every core (TextRecordingReader), or the recordings
+ * converted at the same time (RecordingExporter), and gets any IOException back out of it.
+ */
+
+package sim.marble;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+public final class Futures {
+
+	private Futures() {}
+
+	/**
+	 * Waits for the future's result, even if the thread's interrupted while it waits. The
+	 * interrupt's put back once it's done.
+	 * @param future What to wait for
+	 * @return Its result
+	 * @throws IOException If that's what the work threw
+	 */
+	public static <T> T getUninterruptibly(Future<T> future) throws IOException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return future.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException)
+						throw (IOException)e.getCause();
+					throw new RuntimeException(e.getCause());
+				}
+			}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * This is the IntColumnMatrix class. It's the column-major sibling of IntMatrix: every column
+ * is kept in its own int[], so reading a whole column (e.g. a series to be plotted) is a
+ * sequential scan of a single array instead of a strided walk through every row.
+ * Columns grow by half again when they run out of room, the same as IntMatrix.
+ */
+
+package sim.marble;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+public class IntColumnMatrix implements IntTable {
+	private static final int MIN_CAPACITY = 16;
+
+	private int rows;
+	private final int cols;
+	private final int[][] columns;
+
+	/**
+	 * Allocate an empty matrix with the indicated number of columns.
+	 * @param cols The column (horizontal or x) dimension for the matrix
+	 */
+	public IntColumnMatrix(int cols) {
+		this(0, cols);
+	}
+
+	/**
+	 * Allocate a matrix with the indicated initial dimensions, all set to 0.
+	 * @param rows The row (vertical or y) dimension for the matrix
+	 * @param cols The column (horizontal or x) dimension for the matrix
+	 */
+	public IntColumnMatrix(int rows, int cols) {
+		this.rows = rows;
+		this.cols = cols;
+		columns = new int[cols][rows];
+	}
+
+	/**
+	 * Makes a column-major copy of a row-major matrix.
+	 * @param matrix The matrix to be copied
+	 */
+	public static IntColumnMatrix copyOf(IntMatrix matrix) {
+		IntColumnMatrix copy = new IntColumnMatrix(matrix.getCols());
+		copy.appendRows(matrix.toArray(), 0, matrix.getRows());
+		return copy;
+	}
+
+	@Override
+	public int getRows() {
+		return rows;
+	}
+
+	@Override
+	public int getCols() {
+		return cols;
+	}
+
+	/**
+	 * Returns the number of rows the matrix can hold before its columns have to grow
+	 */
+	public int getCapacity() {
+		return cols==0 ? rows : columns[0].length;
+	}
+
+	@Override
+	public int get(int row, int col) {
+		checkRow(row);
+		return columns[col-1][row-1];
+	}
+
+	@Override
+	public void set(int row, int col, int value) {
+		checkRow(row);
+		columns[col-1][row-1] = value;
+	}
+
+	// The columns usually have room for more rows than there are, the same as IntMatrix
+	private void checkRow(int row) {
+		if (row<1 || row>rows)
+			throw new IndexOutOfBoundsException("Row " + row + " of " + rows);
+	}
+
+	/**
+	 * Returns the backing array of a column. Only the first getRows() values are valid, and
+	 * the array is replaced whenever the matrix grows, so don't hold on to it across appends.
+	 * @param col The column, 1-based
+	 */
+	public int[] getColumn(int col) {
+		return columns[col-1];
+	}
+
+	/**
+	 * Returns a read-only view of a column, holding exactly getRows() values.
+	 * @param col The column, 1-based
+	 */
+	public IntBuffer getColumnBuffer(int col) {
+		return IntBuffer.wrap(columns[col-1], 0, rows).slice().asReadOnlyBuffer();
+	}
+
+	@Override
+	public void appendRow(int[] row) {
+		ensureCapacity(rows+1);
+		for (int col=0; col<cols; col++)
+			columns[col][rows] = row[col];
+		rows++;
+	}
+
+	@Override
+	public void appendRows(int[] rows, int offset, int count) {
+		ensureCapacity(this.rows+count);
+		// Go column by column, so that each column's written to sequentially
+		for (int col=0; col<cols; col++) {
+			int[] column = columns[col];
+			int index = offset + col;
+			for (int row=this.rows, end=this.rows+count; row<end; row++) {
+				column[row] = rows[index];
+				index += cols;
+			}
+		}
+		this.rows += count;
+	}
+
+	@Override
+	public void ensureCapacity(int minRows) {
+		int capacity = getCapacity();
+		if (minRows<=capacity || cols==0)
+			return;
+		long newCapacity = Math.max((long)capacity + (capacity>>1), MIN_CAPACITY);
+		newCapacity = Math.min(Math.max(newCapacity, minRows), Integer.MAX_VALUE - 8);
+		for (int col=0; col<cols; col++)
+			columns[col] = Arrays.copyOf(columns[col], (int)newCapacity);
+	}
+
+	@Override
+	public void trimToSize() {
+		if (getCapacity()==rows)
+			return;
+		for (int col=0; col<cols; col++)
+			columns[col] = Arrays.copyOf(columns[col], rows);
+	}
+
+	/**
+	 * Returns a row-major copy of the data, the same layout as IntMatrix.toArray().
+	 */
+	public int[] toRowArray() {
+		int[] data = new int[rows*cols];
+		for (int col=0; col<cols; col++) {
+			int[] column = columns[col];
+			int index = col;
+			for (int row=0; row<rows; row++) {
+				data[index] = column[row];
+				index += cols;
+			}
+		}
+		return data;
+	}
+}
@@ -1,13 +1,17 @@
 /*
  * This is the IntMatrix class. It is a one-dimensional integer matrix acting as a two-dimensional one,
  * with functions to work on this matrix.
+ * The backing array can hold more rows than the matrix currently has (its capacity), and grows by
+ * half again whenever it runs out of room, so appending rows one by one only costs amortized O(1).
  */
 
 package sim.marble;
 
 import java.util.Arrays;
 
-public class IntMatrix {
+public class IntMatrix implements IntTable {
+	private static final int MIN_CAPACITY = 16;
+
 	private int rows;
 	private int cols;
 	private int[] data;
@@ -25,7 +29,7 @@ public class IntMatrix {
 
 	/**
 	 * Wraps an existing int[] array into an IntMatrix object with the specified
-	 * dimensions.
+	 * dimensions. Any room in the array past the last row is used as spare capacity.
 	 * @param data The primitive int[] array to wrap
 	 * @param rows The row (vertical or y) dimension for the matrix 
 	 * @param cols The column (horizontal or x) dimension for the matrix
@@ -52,10 +56,78 @@ public class IntMatrix {
 	}
 
 	/**
-	 * Adds a new row to the matrix
+	 * Makes sure a row is one the matrix has. The backing array usually has room for more rows
+	 * than that, which mustn't be read or written as if they were there.
+	 * @param row The row index, 1-based
+	 */
+	private void checkRow(int row) {
+		if (row<1 || row>rows)
+			throw new IndexOutOfBoundsException("Row " + row + " of " + rows);
+	}
+
+	/**
+	 * Adds a new row, set to 0, to the matrix
 	 */
 	public void addRow() {
-		data = Arrays.copyOf(data, ++rows*cols);
+		ensureCapacity(rows+1);
+		Arrays.fill(data, rows*cols, (rows+1)*cols, 0);
+		rows++;
+	}
+
+	/**
+	 * Appends a copy of the given row to the end of the matrix
+	 * @param row The values of the row; must hold at least getCols() values
+	 */
+	public void appendRow(int[] row) {
+		appendRows(row, 0, 1);
+	}
+
+	/**
+	 * Appends a number of rows, which are laid out one after the other in a single array,
+	 * to the end of the matrix in one go.
+	 * @param rows The array holding the rows
+	 * @param offset The index in rows of the first value of the first row
+	 * @param count The number of rows to be appended
+	 */
+	public void appendRows(int[] rows, int offset, int count) {
+		ensureCapacity(this.rows+count);
+		System.arraycopy(rows, offset, data, this.rows*cols, count*cols);
+		this.rows += count;
+	}
+
+	/**
+	 * Makes sure the matrix can hold at least the given number of rows without its backing
+	 * array having to be copied again.
+	 * @param minRows The number of rows the matrix should have room for
+	 */
+	public void ensureCapacity(int minRows) {
+		int capacity = getCapacity();
+		if (minRows<=capacity)
+			return;
+		if (cols==0)
+			return;
+		int maxRows = Integer.MAX_VALUE / cols;
+		if (minRows>maxRows)
+			throw new OutOfMemoryError("IntMatrix can't hold " + minRows + " rows");
+		// Grow by half again; the long keeps it from overflowing past maxRows
+		long newCapacity = Math.max((long)capacity + (capacity>>1), MIN_CAPACITY);
+		newCapacity = Math.min(Math.max(newCapacity, minRows), maxRows);
+		data = Arrays.copyOf(data, (int)newCapacity * cols);
+	}
+
+	/**
+	 * Shrinks the backing array to hold just the rows the matrix currently has.
+	 */
+	public void trimToSize() {
+		if (data.length!=rows*cols)
+			data = Arrays.copyOf(data, rows*cols);
+	}
+
+	/**
+	 * Returns the number of rows the matrix can hold before its backing array has to grow
+	 */
+	public int getCapacity() {
+		return cols==0 ? rows : data.length / cols;
 	}
 
 	/**
@@ -63,6 +135,7 @@ public class IntMatrix {
 	 * @return The data at the wanted index
 	 */
 	public int get(int row, int col) {
+		checkRow(row);
 		return data[getIndex(row, col, cols)];
 	}
 
@@ -104,8 +177,8 @@ public class IntMatrix {
 		int colsToCopy = Math.min(cols, this.cols);
 		int rowsToCopy = Math.min(rows, this.rows);
 		for (int i = 1; i <= rowsToCopy; ++i) {
-			int oldRowStart = getIndex(1, i, this.cols);
-			int newRowStart = getIndex(1, i, cols);
+			int oldRowStart = getIndex(i, 1, this.cols);
+			int newRowStart = getIndex(i, 1, cols);
 			System.arraycopy(data, oldRowStart, newData, newRowStart,
 					colsToCopy
 					);
@@ -122,13 +195,16 @@ public class IntMatrix {
 	 * @param value The value to be set
 	 */
 	public void set(int row, int col, int value) {
+		checkRow(row);
 		data[getIndex(row, col, cols)] = value;
 	}
 
 	/**
-	 * Returns the data in the primitive int[] form.
+	 * Returns the data in the primitive int[] form. Any spare capacity is trimmed off first,
+	 * so the array holds exactly getSize() values.
 	 */
 	public int[] toArray() {
+		trimToSize();
 		return data;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,56 @@
+/*
+ * This is the IntTable interface. It's what both IntMatrix (row-major) and IntColumnMatrix
+ * (column-major) look like from the outside, so that whatever reads or parses recordings can fill
+ * either one. Rows and columns are 1-based, like in IntMatrix.
+ */
+
+package sim.marble;
+
+public interface IntTable {
+
+	/**
+	 * Returns the number of rows
+	 */
+	int getRows();
+
+	/**
+	 * Returns the number of columns
+	 */
+	int getCols();
+
+	/**
+	 * Returns the value at the specified index
+	 * @throws IndexOutOfBoundsException If the row isn't one of getRows()
+	 */
+	int get(int row, int col);
+
+	/**
+	 * Sets the value at the specified index
+	 * @throws IndexOutOfBoundsException If the row isn't one of getRows()
+	 */
+	void set(int row, int col, int value);
+
+	/**
+	 * Appends a copy of the given row to the end of the table
+	 * @param row The values of the row; must hold at least getCols() values
+	 */
+	void appendRow(int[] row);
+
+	/**
+	 * Appends a number of rows, which are laid out one after the other in a single array
+	 * @param rows The array holding the rows
+	 * @param offset The index in rows of the first value of the first row
+	 * @param count The number of rows to be appended
+	 */
+	void appendRows(int[] rows, int offset, int count);
+
+	/**
+	 * Makes room for at least the given number of rows in total
+	 */
+	void ensureCapacity(int minRows);
+
+	/**
+	 * Drops any room kept for rows that haven't been appended
+	 */
+	void trimToSize();
+}
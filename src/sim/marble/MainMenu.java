@@ -1,6 +1,8 @@
 package sim.marble;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 import sim.example.readandroid.R;
@@ -96,8 +98,9 @@ public class MainMenu extends Activity {
 
 	/**
 	 * BT adapter has already been enabled. Or at least it SHOULD BE
-	 * <p>Gets the paired Marble, which will then be assigned to the global BluetoothDevice
-	 * variable for ReadData to work on, or if it hasn't been paired yet, bring up a dialogue.
+	 * <p>Gets every paired Marble, which will then be assigned to the global BluetoothDevice
+	 * list for ReadData to capture from all at once, or if none has been paired yet, bring up a
+	 * dialogue.
 	 * <p>The SerialService and everything is done in the ReadData activity, not here. This is as 
 	 * far as we need to go in this MainMenu activity.
 	 * <p>Last but not least this is called at the onStart() function.
@@ -105,14 +108,14 @@ public class MainMenu extends Activity {
 	private void getPairedDevice() {
 		Set<BluetoothDevice> mmDevices = mAdapter.getBondedDevices();
 
-		// Find BlueBee; once found then break. If it ain't there, bring up the alert dialogue.
+		// Find every BlueBee. If there ain't any, bring up the alert dialogue.
 		// REMEMBER TO CHANGE BLUEBEE TO WHATEVER THE THING WILL BE CALLED
+		List<BluetoothDevice> mmMarbles = new ArrayList<BluetoothDevice>();
 		for (BluetoothDevice device : mmDevices) {
-			if (device.getName().equals("HC-06")) {
-				mMarble.setDevice(device);
-				break;
-			}
+			if ("HC-06".equals(device.getName()))
+				mmMarbles.add(device);
 		}
+		mMarble.setDevices(mmMarbles);
 		if (mMarble.getDevice()==null) {
 			new AlertDialog.Builder(this)
 			.setIcon(android.R.drawable.ic_dialog_alert)
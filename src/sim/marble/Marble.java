@@ -1,12 +1,23 @@
 package sim.marble;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import android.app.ActivityManager;
 import android.app.Application;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
 
 public class Marble extends Application {
+	// The share of the app's heap the RecordingCache gets
+	private static final int RECORDING_CACHE_DIVISOR = 4;
+
 	private BluetoothAdapter mAdapter;
-	private BluetoothDevice mDevice;
+	private RecordingCache mRecordingCache;
+	private List<BluetoothDevice> mDevices = Collections.emptyList();
 	private boolean mIsAdapterNull = true;
 	private boolean mIsAdapterEnabled = false;
 
@@ -31,20 +42,38 @@ public class Marble extends Application {
 	}
 
 	/**
-	 * Get the device set in MainMenu. To be used in ReadData
-	 * @return mDevice The device (BlueBee)
+	 * Get the first device set in MainMenu.
+	 * @return The device (BlueBee), or <tt>null</tt> if there isn't one
 	 */
 	public BluetoothDevice getDevice() {
-		return mDevice;
+		return mDevices.isEmpty() ? null : mDevices.get(0);
 	}
 	
 	/**
-	 * Sets the device to be used by ReadData later.
+	 * Sets the only device to be used by ReadData later.
 	 * Make sure this is done in MainMenu.
 	 * @param d The device to be put into the class (BlueBee).
 	 */
 	public void setDevice(BluetoothDevice d) {
-		mDevice = d;
+		setDevices(Collections.singletonList(d));
+	}
+
+	/**
+	 * Get every device set in MainMenu. To be used in ReadData, which captures from all of
+	 * them at once.
+	 * @return The devices (BlueBees); empty if there aren't any
+	 */
+	public List<BluetoothDevice> getDevices() {
+		return mDevices;
+	}
+
+	/**
+	 * Sets the devices to be used by ReadData later.
+	 * Make sure this is done in MainMenu.
+	 * @param devices The devices to be put into the class (BlueBees).
+	 */
+	public void setDevices(List<BluetoothDevice> devices) {
+		mDevices = Collections.unmodifiableList(new ArrayList<BluetoothDevice>(devices));
 	}
 	
 	/**
@@ -95,4 +124,37 @@ public class Marble extends Application {
 	public boolean isAdapterEnabled() {
 		return mIsAdapterEnabled;
 	}
+
+	/**
+	 * Gets the cache of recordings PlotGraph has read, shared by every PlotGraph.
+	 * <p>It gets a quarter of the app's heap to start with; change it with
+	 * RecordingCache.setBudget().
+	 */
+	public synchronized RecordingCache getRecordingCache() {
+		if (mRecordingCache==null) {
+			ActivityManager manager = (ActivityManager)getSystemService(Context.ACTIVITY_SERVICE);
+			long heap = (long)manager.getMemoryClass() * 1024 * 1024;
+			mRecordingCache = new RecordingCache(heap / RECORDING_CACHE_DIVISOR);
+		}
+		return mRecordingCache;
+	}
+
+	/**
+	 * Lets go of the cached recordings when the system's running low on memory: all of them
+	 * once the app's in the background, half of them otherwise.
+	 */
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		RecordingCache cache;
+		synchronized (this) {
+			cache = mRecordingCache;
+		}
+		if (cache==null)
+			return;
+		if (level>=ComponentCallbacks2.TRIM_MEMORY_BACKGROUND)
+			cache.trimToSize(0);
+		else if (level>=ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+			cache.trimToSize(cache.getSize() / 2);
+	}
 }
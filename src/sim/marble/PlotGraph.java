@@ -1,22 +1,30 @@
 /*
  * This is the PlotGraph activity which, as the name would suggest, plots a graph based on data
- * from a text file, which are represented as string literals.
- * The data is first read from the file and fed into an IntMatrix object, which is a one-dimensional
- * integer matrix acting as a two-dimensional one.  
+ * from a recording. Recordings are binary (see RecordingFormat); older ones are text files, where
+ * the data are represented as string literals.
+ * The data is first read from the file and fed into an IntColumnMatrix object, which keeps every
+ * column in its own array, so that each series to be plotted can be read in one sequential go.
  * From there, the graph can now be plotted. Graph is coded with the GraphView APIs
  * (android-graphview.org).
+ * Recordings that were plotted lately are kept by the app's RecordingCache, so flipping back to
+ * one of them doesn't read it again.
+ * Binary recordings too big for the heap, and ones whose pyramid is already there, are never
+ * read in full. Only a window of rows around what's on screen is read (see RecordingWindow), and
+ * only when zoomed in far enough to need the rows themselves; anything further out is drawn from
+ * the pyramid. Recordings are read, and windows of them, in the background.
  */
 
 package sim.marble;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 
 import sim.example.readandroid.R;
 
@@ -29,11 +37,17 @@ import com.jjoe64.graphview.LineGraphView;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.DialogInterface;
+import android.graphics.Bitmap;
 import android.graphics.Color;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.ImageView;
 import android.widget.LinearLayout;
+import android.widget.TextView;
 import android.widget.Toast;
 
 public class PlotGraph extends Activity {
@@ -43,34 +57,135 @@ public class PlotGraph extends Activity {
 	private static final String TAG = "Plot Graph";
 
 	// Static constants 
+	// Points kept on each side of the viewport, as a fraction of the width in pixels, so that
+	// the rest of the recording's still there to scroll to
+	private static final int OUTSIDE_POINTS_DIVISOR = 8;
 	private static final String MAIN_MENU_ACTIVITY = "MainMenu";
 	private static final String READ_DATA_ACTIVITY = "ReadData";
-	private static final String SAVE_DATA = "Chosen_file";
-	private static final String COLS = "cols";
-	private static final String ROWS = "rows";
+	// Recordings that would take up more than this share of the heap are read a window at a time
+	private static final int WINDOWED_HEAP_DIVISOR = 4;
+	// The number of derived columns kept alongside the recording's: the shaking
+	private static final int DERIVED_COLS = 1;
+	// The fewest rows read into a window; a recording that's no longer than that is read in full
+	private static final int WINDOW_ROWS = 64 * 1024;
+	// The shaking of a window is worked out from this many rows before it as well, by when the
+	// low-pass filter's forgotten where it started
+	private static final int SHAKING_WARMUP_ROWS = 128;
+	private static final String SAVE_FILE = "Chosen_file";
+	private static final String SAVE_FILE_MODIFIED = "Chosen_file_modified";
+	// The columns that are plotted, 1-based: XPos, YPos, ZPos and Luminance
+	private static final int[] PLOTTED_COLUMNS = {7, 8, 9, 10};
+	// How hard the marble's being shaken is plotted as well: the magnitude of XPos, YPos and
+	// ZPos, low-pass filtered with this weight, i.e. over about the last 8 rows
+	private static final double SHAKING_SMOOTHING = 0.125;
+	// The spectrum of XPos, YPos and ZPos is worked out over windows of 256 rows, each
+	// overlapping the one before by half, and the spectrogram kept to 512 frames; anything
+	// more than 60dB below its loudest is drawn black
+	private static final int SPECTRUM_WINDOW = 256;
+	private static final int SPECTROGRAM_FRAMES = 512;
+	private static final double SPECTROGRAM_RANGE_DB = 60;
+	private static final int MENU_SPECTRUM = Menu.FIRST;
+	// The orders the file list can be sorted in; the first one's the default
+	@SuppressWarnings("unchecked")
+	private static final Comparator<RecordingCatalog.Entry>[] SORT_ORDERS = new Comparator[] {
+		RecordingCatalog.BY_DATE, RecordingCatalog.BY_SIZE, RecordingCatalog.BY_NAME
+	};
+	private static final String[] SORT_NAMES = {"date", "size", "name"};
+	// The formats the recordings can be exported in, and what they're called in the list
+	private static final int[] EXPORT_FORMATS = {RecordingExporter.FORMAT_CSV,
+		RecordingExporter.FORMAT_BINARY, RecordingExporter.FORMAT_COLUMNS};
+	private static final String[] EXPORT_FORMAT_NAMES = {"CSV", "Binary (.mrb)",
+		"One file per column (.i32)"};
+	// Where exported recordings go, in FILE_DIR
+	private static final String EXPORT_DIR = "Export";
 
 	private final File FILE_DIR = new File(Environment.getExternalStorageDirectory(), "Marble");
 
 	private AlertDialog mStartDialog;
-	private BufferedReader mBufferedReader;
-	private GraphViewData[] mDataPosX, mDataPosY, mDataPosZ, mDataLum;
-	private GraphViewSeries mSeriesPosX, mSeriesPosY, mSeriesPosZ, mSeriesLum;
+	private GraphViewData[] mDataPosX, mDataPosY, mDataPosZ, mDataLum, mDataShaking;
+	private GraphViewSeries mSeriesPosX, mSeriesPosY, mSeriesPosZ, mSeriesLum, mSeriesShaking;
 	//	private int mMaxValue = 255;
-	private IntMatrix mDataValues;
+	// All of the recording, or just the window of it starting at row mWindowStart if mWindow's
+	// open
+	private IntColumnMatrix mDataValues;
+	// The channels worked out from mDataValues (see deriveChannels()), numbered after its own
+	// columns, or null if there aren't any
+	private IntColumnMatrix mDerived;
+	// The shaking's column, or 0 if there isn't any
+	private int mShakingCol;
+	private RecordingWindow mWindow;
+	// The rows of the window that are only there to warm the shaking up, and aren't any use
+	// otherwise
+	private int mWindowStart = 0, mWindowWarmupRows = 0;
+	// The window that's being read, and the rows it'll be of use for
+	private AsyncTask<Void, Void, IntColumnMatrix[]> mWindowTask;
+	private int mWindowTaskFrom, mWindowTaskTo;
+	private LoadTask mLoadTask;
+	// The number of rows in the whole recording
+	private int mRows;
 	private LinearLayout mGraph;
-	private LineGraphView mGraphView;
-	private List<String> mFileNames;
+	// Lux gets a graph of its own under mGraphView, as it goes up to 50k where the rest stay
+	// around 255
+	private DecimatedGraphView mGraphView, mLuxGraphView;
+	private boolean mIsDecimated;
+	// What's on screen, as it was last downsampled
+	private double mViewportStart, mViewportSize;
+	private int mViewportWidth;
+	// The series being downsampled in the background (see refreshSeries()), and whether the
+	// viewport's changed again since
+	private AsyncTask<Void, Void, Sampler> mResampleTask;
+	private boolean mIsResamplePending = false;
+	// The min and max of the shaking over the whole recording, or null if there isn't any
+	private int[] mShakingRange;
+	// The y axes of the two graphs (see fitAxisGroups())
+	private int mAxisMin, mAxisMax, mLuxMin, mLuxMax;
+	private RecordingPyramid mPyramid;
+	private ColumnStats mStats;
+	private RecordingCatalog mCatalog;
+	private int mSortOrder = 0;
 	private String mCallingActivity, mGraphTitle;
+	// The recording that's plotted, and when it was last modified when it was read
+	private File mFile;
+	private long mFileModified;
+	private boolean mIsRetained = false, mIsDestroyed = false;
+	private AsyncTask<Void, Void, Spectrum> mSpectrumTask;
 
+	/**
+	 * What's kept across a configuration change (e.g. a rotation), so that the new PlotGraph
+	 * carries on with the same matrix, pyramid and series instead of copying them through the
+	 * Bundle or reading the recording again.
+	 */
+	private static class RetainedData {
+		File file;
+		long fileModified;
+		String graphTitle;
+		IntColumnMatrix dataValues, derived;
+		int shakingCol;
+		int[] shakingRange;
+		RecordingWindow window;
+		int windowStart, windowWarmupRows, rows;
+		RecordingPyramid pyramid;
+		LoadTask loadTask;
+		ColumnStats stats;
+		GraphViewData[] dataPosX, dataPosY, dataPosZ, dataLum, dataShaking;
+		boolean isDecimated;
+		double viewportStart = Double.NaN, viewportSize;
+		RecordingCatalog catalog;
+		int sortOrder;
+	}
+
+	@SuppressWarnings("deprecation")
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.plot_graph);
 
-		mFileNames = new ArrayList<String>();
 		mGraph = (LinearLayout)findViewById(R.id.graph);
 
 		mCallingActivity = getIntent().getStringExtra("CallingActivity");
-		if (savedInstanceState==null) {
+		RetainedData retained = (RetainedData)getLastNonConfigurationInstance();
+		if (retained!=null) {
+			restoreRetainedData(retained);
+		} else if (savedInstanceState==null) {
 			if (mCallingActivity.equals(READ_DATA_ACTIVITY)) {
 				readFile(getIntent().getStringExtra("File"));
 			} else if (mCallingActivity.equals(MAIN_MENU_ACTIVITY)) {
@@ -79,48 +194,183 @@ public class PlotGraph extends Activity {
 		}
 	}
 
+	/**
+	 * Only gets here with nothing carried over if the process was killed in the meantime, in
+	 * which case the recording's read again from its path in the Bundle.
+	 */
 	protected void onRestoreInstanceState(Bundle savedInstanceState) {
-		int[] selected = savedInstanceState.getIntArray(SAVE_DATA);
-		if (selected!=null) {
-			mDataValues = new IntMatrix(selected, savedInstanceState.getInt(ROWS),
-					savedInstanceState.getInt(COLS));
-			plotGraph();
-		} else {
-			if (mCallingActivity.equals(MAIN_MENU_ACTIVITY)) {
-				inflateFileList();
-			}
+		super.onRestoreInstanceState(savedInstanceState);
+		if (mDataValues!=null || mCatalog!=null || mLoadTask!=null)
+			return;
+		String path = savedInstanceState.getString(SAVE_FILE);
+		if (path!=null) {
+			if (new File(path).lastModified()!=savedInstanceState.getLong(SAVE_FILE_MODIFIED))
+				Log.w(TAG, "Recording has changed since it was plotted: " + path);
+			readFile(path);
+		} else if (mCallingActivity.equals(MAIN_MENU_ACTIVITY)) {
+			inflateFileList();
 		}
 	}
 
+	/**
+	 * Only the path and last-modified time of the recording go into the Bundle, even if it's
+	 * still being read; the data itself is carried over by onRetainNonConfigurationInstance().
+	 */
 	protected void onSaveInstanceState(Bundle outState) {
-		if (mDataValues!=null) {
-			if (D) Log.i(TAG, "mDataValues being fed into the outState");
-			outState.putIntArray(SAVE_DATA, mDataValues.toArray());
-			outState.putInt(COLS, mDataValues.getCols());
-			outState.putInt(ROWS, mDataValues.getRows());
+		if (mLoadTask!=null) {
+			outState.putString(SAVE_FILE, mLoadTask.getFile().getPath());
+			outState.putLong(SAVE_FILE_MODIFIED, mLoadTask.getFile().lastModified());
+		} else if (mFile!=null) {
+			outState.putString(SAVE_FILE, mFile.getPath());
+			outState.putLong(SAVE_FILE_MODIFIED, mFileModified);
 		}
 		super.onSaveInstanceState(outState);
 	}
 
+	@Override
+	@Deprecated
+	public Object onRetainNonConfigurationInstance() {
+		RetainedData retained = new RetainedData();
+		retained.file = mFile;
+		retained.fileModified = mFileModified;
+		retained.graphTitle = mGraphTitle;
+		retained.dataValues = mDataValues;
+		retained.derived = mDerived;
+		retained.shakingCol = mShakingCol;
+		retained.shakingRange = mShakingRange;
+		retained.window = mWindow;
+		retained.windowStart = mWindowStart;
+		retained.windowWarmupRows = mWindowWarmupRows;
+		retained.rows = mRows;
+		retained.pyramid = mPyramid;
+		retained.stats = mStats;
+		retained.dataPosX = mDataPosX;
+		retained.dataPosY = mDataPosY;
+		retained.dataPosZ = mDataPosZ;
+		retained.dataLum = mDataLum;
+		retained.dataShaking = mDataShaking;
+		retained.isDecimated = mIsDecimated;
+		if (mGraphView!=null && mGraphView.getViewportSize()>0) {
+			retained.viewportStart = mGraphView.getViewportStart();
+			retained.viewportSize = mGraphView.getViewportSize();
+		}
+		retained.catalog = mCatalog;
+		retained.sortOrder = mSortOrder;
+		// A recording that's still being read is handed to the new PlotGraph once it's done
+		retained.loadTask = mLoadTask;
+		if (mLoadTask!=null)
+			mLoadTask.attach(null);
+		// The pyramid and window are now the new PlotGraph's to close
+		mIsRetained = true;
+		return retained;
+	}
+
+	/**
+	 * Picks up where the PlotGraph before the configuration change left off: the same graph if
+	 * a recording was plotted, or the same file list if one was being picked.
+	 */
+	private void restoreRetainedData(RetainedData retained) {
+		mFile = retained.file;
+		mFileModified = retained.fileModified;
+		mGraphTitle = retained.graphTitle;
+		mDataValues = retained.dataValues;
+		mDerived = retained.derived;
+		mShakingCol = retained.shakingCol;
+		mShakingRange = retained.shakingRange;
+		mWindow = retained.window;
+		mWindowStart = retained.windowStart;
+		mWindowWarmupRows = retained.windowWarmupRows;
+		mRows = retained.rows;
+		mPyramid = retained.pyramid;
+		mStats = retained.stats;
+		mDataPosX = retained.dataPosX;
+		mDataPosY = retained.dataPosY;
+		mDataPosZ = retained.dataPosZ;
+		mDataLum = retained.dataLum;
+		mDataShaking = retained.dataShaking;
+		mIsDecimated = retained.isDecimated;
+		mCatalog = retained.catalog;
+		mSortOrder = retained.sortOrder;
+		if (retained.loadTask!=null) {
+			mLoadTask = retained.loadTask;
+			mLoadTask.attach(this);
+		} else if (mDataValues!=null) {
+			plotGraph();
+			if (retained.viewportSize>0 && !Double.isNaN(retained.viewportStart)) {
+				mGraphView.setViewPort(retained.viewportStart, retained.viewportSize);
+				mLuxGraphView.setViewPort(retained.viewportStart, retained.viewportSize);
+			}
+		} else if (mCatalog!=null) {
+			showFileList();
+		}
+	}
+
 	/**
-	 * <p>Inflates an AlertDialog containing all the files that are present in the directory.</p>
+	 * <p>Loads the catalog of recordings in the background, and then inflates an AlertDialog
+	 * containing all the recordings that are present in the directory.</p>
 	 * <p>The selected file's name will be passed into readFile() where the data in that file
 	 * will be plotted.
 	 */
 	private void inflateFileList() {
-		// Passes the filenames into the List, i.e. just "Bla.txt" instead of "/storage/..."
-		final File[] mmFiles = FILE_DIR.listFiles();
+		new AsyncTask<Void, Void, RecordingCatalog>() {
+
+			@Override
+			protected RecordingCatalog doInBackground(Void... params) {
+				try {
+					return RecordingCatalog.open(FILE_DIR);
+				} catch (IOException e) {
+					Log.e(TAG, "Error loading the catalog: " + e.getMessage());
+					return null;
+				}
+			}
+
+			@Override
+			protected void onPostExecute(RecordingCatalog catalog) {
+				// The dialog can't be shown by a PlotGraph that's gone, e.g. after a rotation;
+				// the new one loads the catalog again
+				if (isFinishing() || mIsDestroyed)
+					return;
+				if (catalog==null) {
+					Toast.makeText(PlotGraph.this, "Recordings can't be listed",
+							Toast.LENGTH_SHORT).show();
+					finish();
+					return;
+				}
+				mCatalog = catalog;
+				showFileList();
+			}
+		}.execute();
+	}
+
+	/**
+	 * Shows the recordings in the catalog in the current sort order. The sort button moves on to
+	 * the next order and shows the list again.
+	 */
+	private void showFileList() {
+		final List<RecordingCatalog.Entry> mmEntries = mCatalog.getEntries(SORT_ORDERS[mSortOrder]);
+		String[] mmLabels = new String[mmEntries.size()];
 		DecimalFormat mmFormat = new DecimalFormat("0.00");
-		String item, fileName;
-		for (File file : mmFiles) {
-			fileName = file.getPath().substring(FILE_DIR.getPath().length()+1);
-			item = fileName +
-					" (" + mmFormat.format(file.length()/1024) + "kB)";
-			mFileNames.add(item);
-		}
-		String[] mmFileNames = new String[mFileNames.size()];
-		mmFileNames = mFileNames.toArray(mmFileNames);
-		sortFileNames(mmFileNames);
+		for (int i=0; i<mmLabels.length; i++) {
+			RecordingCatalog.Entry entry = mmEntries.get(i);
+			StringBuilder label = new StringBuilder(entry.name)
+			.append(" (").append(mmFormat.format(entry.length/1024.0)).append("kB");
+			if (entry.rows>=0)
+				label.append(", ").append(entry.rows).append(" rows");
+			if (entry.getDuration()>=0)
+				label.append(", ").append(formatDuration(entry.getDuration()));
+			label.append(')');
+			// The range of each plotted column, straight from the catalog
+			if (entry.stats!=null && entry.stats.getCount()>0) {
+				for (int col : PLOTTED_COLUMNS) {
+					if (col>entry.schema.length)
+						continue;
+					label.append(col==PLOTTED_COLUMNS[0] ? "\n" : ", ")
+					.append(entry.schema[col-1]).append(' ')
+					.append(entry.stats.getMin(col)).append("..").append(entry.stats.getMax(col));
+				}
+			}
+			mmLabels[i] = label.toString();
+		}
 		mStartDialog = new AlertDialog.Builder(this)
 		.setTitle("Choose the file to use:")
 		.setOnCancelListener(new DialogInterface.OnCancelListener() {
@@ -132,129 +382,923 @@ public class PlotGraph extends Activity {
 				finish();
 			}
 		})
-		.setItems(mmFileNames, new DialogInterface.OnClickListener() {
+		.setItems(mmLabels, new DialogInterface.OnClickListener() {
 
 			@Override
 			public void onClick(DialogInterface dialogue, int which) {
-				readFile(mmFiles[which].getPath());
+				readFile(mCatalog.getFile(mmEntries.get(which)).getPath());
+			}
+		})
+		.setNeutralButton("Sort by " + SORT_NAMES[(mSortOrder+1) % SORT_ORDERS.length],
+				new DialogInterface.OnClickListener() {
+
+			@Override
+			public void onClick(DialogInterface dialogue, int which) {
+				mSortOrder = (mSortOrder+1) % SORT_ORDERS.length;
+				showFileList();
+			}
+		})
+		.setPositiveButton("Export all", new DialogInterface.OnClickListener() {
+
+			@Override
+			public void onClick(DialogInterface dialogue, int which) {
+				chooseExportFormat(mmEntries);
 			}
 		})
 		.show();
 	}
 
-	private static void sortFileNames(String[] files) {
-		int count = 0, i=0, length = files.length-1;
-		String tmp;
-		while (count != length) {
-			if (files[i].compareTo(files[i+1])>0) {
-				count = 0;
-				tmp = files[i];
-				files[i] = files[i+1];
-				files[i+1] = tmp;
+	/**
+	 * Asks which format the recordings are to be exported in, and then exports them all.
+	 * Cancelling goes back to the file list.
+	 * @param entries The recordings to export
+	 */
+	private void chooseExportFormat(final List<RecordingCatalog.Entry> entries) {
+		mStartDialog = new AlertDialog.Builder(this)
+		.setTitle("Export " + entries.size() + " recordings as:")
+		.setOnCancelListener(new DialogInterface.OnCancelListener() {
+
+			@Override
+			public void onCancel(DialogInterface dialogue) {
+				showFileList();
 			}
-			count++;
-			if (i==length-1)
-				i=0;
-			else i++;
-		}
-		if (D) {
-			for (String a : files)
-				Log.i(TAG, a);
-		}
+		})
+		.setItems(EXPORT_FORMAT_NAMES, new DialogInterface.OnClickListener() {
+
+			@Override
+			public void onClick(DialogInterface dialogue, int which) {
+				exportAll(entries, EXPORT_FORMATS[which]);
+			}
+		})
+		.show();
 	}
 
 	/**
-	 * <p>Read file character by character, and feed values into dataValues.</p>
-	 * Once a whitespace is read, the value is parsed into the appropriate column in the
-	 * int double array.</br>
-	 * Once a newline is read, the array dynamically gets a new row, except when a new row
-	 * which doesn't have a full set of values has been hit. When that happens, the loop
-	 * breaks, because that's when we're done.
-	 * <p>By default the max y value, or mMaxValue is 255, which is the max value the
-	 * accelerometer will spit out, but the light sensor can go up to 50k. mMaxValue will
-	 * be reset to the highest value in the data if needed.
+	 * <p>Exports the recordings to EXPORT_DIR in the background (see RecordingExporter), showing
+	 * how far it's got, and then shows the file list again.</p>
+	 * The export can be cancelled; whatever was written of the recordings that weren't done is
+	 * left behind.
+	 * @param entries The recordings to export
+	 * @param format One of RecordingExporter's FORMAT_ constants
+	 */
+	private void exportAll(List<RecordingCatalog.Entry> entries, int format) {
+		final List<File> mmFiles = new ArrayList<File>();
+		for (RecordingCatalog.Entry entry : entries)
+			mmFiles.add(mCatalog.getFile(entry));
+		final File mmOutputDir = new File(FILE_DIR, EXPORT_DIR);
+		final RecordingExporter mmExporter = new RecordingExporter(format, mmOutputDir);
+		final AlertDialog mmProgressDialog = new AlertDialog.Builder(this)
+		.setTitle("Exporting " + mmFiles.size() + " recordings")
+		.setMessage("Starting...")
+		.setCancelable(false)
+		.setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
+
+			@Override
+			public void onClick(DialogInterface dialogue, int which) {
+				mmExporter.cancel();
+			}
+		})
+		.show();
+		mStartDialog = mmProgressDialog;
+
+		new AsyncTask<Void, RecordingExporter.Progress, List<RecordingExporter.Result>>() {
+
+			@Override
+			protected List<RecordingExporter.Result> doInBackground(Void... params) {
+				mmExporter.setListener(new RecordingExporter.Listener() {
+
+					@Override
+					public void onProgress(RecordingExporter.Progress progress) {
+						publishProgress(progress);
+					}
+				});
+				try {
+					return mmExporter.export(mmFiles);
+				} catch (IOException e) {
+					Log.e(TAG, "IOException at exporting: " + e.getMessage());
+					return null;
+				}
+			}
+
+			@Override
+			protected void onProgressUpdate(RecordingExporter.Progress... progress) {
+				if (mIsDestroyed)
+					return;
+				RecordingExporter.Progress latest = progress[progress.length-1];
+				mmProgressDialog.setMessage(latest.filesDone + " of " + latest.files
+						+ " done, " + latest.rows + " rows (" + latest.getRowsPerSecond()
+						+ " rows/s)");
+			}
+
+			@Override
+			protected void onPostExecute(List<RecordingExporter.Result> results) {
+				if (mIsDestroyed)
+					return;
+				mmProgressDialog.dismiss();
+				int failed = 0;
+				if (results!=null) {
+					for (RecordingExporter.Result result : results) {
+						if (result.error!=null) {
+							failed++;
+							if (D) Log.i(TAG, "Exporting " + result.recording + " failed: "
+									+ result.error.getMessage());
+						}
+					}
+				}
+				String message = results==null ? "Recordings can't be exported"
+						: (results.size() - failed) + " recordings exported to "
+						+ mmOutputDir.getPath() + (failed>0 ? ", " + failed + " failed" : "");
+				Toast.makeText(PlotGraph.this, message, Toast.LENGTH_LONG).show();
+				if (!isFinishing())
+					showFileList();
+			}
+		}.execute();
+	}
+
+	private static String formatDuration(long millis) {
+		long seconds = millis/1000;
+		if (seconds<60)
+			return seconds + "s";
+		if (seconds<3600)
+			return seconds/60 + "m " + seconds%60 + "s";
+		return seconds/3600 + "h " + seconds/60%60 + "m";
+	}
+
+	/**
+	 * <p>Reads the file in the background (see load()) and then plots the data in it.</p>
+	 * Binary recordings (.mrb) are read in bulk with RecordingReader; anything else is treated
+	 * as a legacy text recording and goes through readTextFile().
 	 * @param fileName The name of the file to be read from
 	 */
 	private void readFile(String fileName) {
 		File file = new File(fileName);
 		mGraphTitle = fileName.substring(FILE_DIR.getPath().length()+1, fileName.indexOf('.'));
+		if (!file.isFile()) {
+			Toast.makeText(this, "File can't be found", Toast.LENGTH_SHORT).show();
+			return;
+		}
+		if (!file.canRead()) {
+			Toast.makeText(this, "File can't be read", Toast.LENGTH_SHORT).show();
+		}
+		Toast.makeText(this, "Reading " + mGraphTitle + "...", Toast.LENGTH_SHORT).show();
+		mLoadTask = new LoadTask(this, file);
+		mLoadTask.execute();
+	}
+
+	/**
+	 * What load() gets ready to be plotted
+	 */
+	private static class Loaded {
+		// All of the recording, or an empty matrix with its columns if it's read a window at a
+		// time
+		IntColumnMatrix dataValues, derived;
+		int shakingCol, rows;
+		int[] shakingRange;
+		ColumnStats stats;
+		RecordingWindow window;
+		RecordingPyramid pyramid;
+		RecordingCache.Entry cached;
+		// The whole recording downsampled for the screen's width, unless it was in the cache for
+		// that width already
+		Sampler sampler;
+		int width;
+		// Why it couldn't be plotted, or null if it can be
+		String error;
+	}
+
+	/**
+	 * Reads a recording in the background (see load()). It's carried over a configuration change
+	 * like everything else (see RetainedData), and hands what it's read to whichever PlotGraph
+	 * it's attached to by the time it's done.
+	 */
+	private static class LoadTask extends AsyncTask<Void, Void, Loaded> {
+
+		private final File mmFile;
+		private final RecordingCache mmCache;
+		private final long mmHeapBudget;
+		private final int mmWidth;
+		private PlotGraph mmActivity;
+		private Loaded mmLoaded;
+
+		LoadTask(PlotGraph activity, File file) {
+			mmActivity = activity;
+			mmFile = file;
+			mmCache = ((Marble)activity.getApplication()).getRecordingCache();
+			mmHeapBudget = Runtime.getRuntime().maxMemory()/WINDOWED_HEAP_DIVISOR;
+			mmWidth = activity.getResources().getDisplayMetrics().widthPixels;
+		}
+
+		File getFile() {
+			return mmFile;
+		}
+
+		/**
+		 * Hands the task over to another PlotGraph, or to none while it's being swapped for a
+		 * new one. If it's already done, what it's read is handed over straight away.
+		 */
+		void attach(PlotGraph activity) {
+			mmActivity = activity;
+			if (mmActivity!=null && mmLoaded!=null)
+				mmActivity.onLoaded(mmFile, mmLoaded);
+		}
+
+		@Override
+		protected Loaded doInBackground(Void... params) {
+			return load(mmFile, mmCache, mmHeapBudget, mmWidth);
+		}
+
+		@Override
+		protected void onPostExecute(Loaded loaded) {
+			mmLoaded = loaded;
+			if (mmActivity!=null)
+				mmActivity.onLoaded(mmFile, mmLoaded);
+		}
+
+		@Override
+		protected void onCancelled(Loaded loaded) {
+			// Nothing's left to plot it, so the recording and its pyramid are closed
+			if (loaded!=null)
+				close(loaded.window, loaded.pyramid);
+		}
+	}
+
+	/**
+	 * <p>Reads a recording, or as much of it as is needed to plot it, and opens its pyramid.
+	 * Called in the background, by LoadTask.</p>
+	 * Recordings that were opened lately are still in the cache, unless they've changed. A binary
+	 * recording whose pyramid is already there isn't read at all; it's drawn from the pyramid,
+	 * and only a window of it's read once it's zoomed in, so opening it again takes about the
+	 * same time however long it is. Otherwise it's read in full, unless it's too big for the
+	 * heap, and its pyramid is built.
+	 * Either way, it's downsampled for the whole recording to start with here as well, as that
+	 * can take reading the pyramid.
+	 * @param heapBudget The most bytes the recording can take up to be read in full
+	 * @param width The width of the screen in pixels
+	 */
+	private static Loaded load(File file, RecordingCache cache, long heapBudget, int width) {
+		Loaded loaded = new Loaded();
+		loaded.width = width;
 		try {
-			if (file==null || !file.isFile()) {
-				Toast.makeText(this, "File can't be found", Toast.LENGTH_SHORT).show();
-				return;
+			loaded.cached = cache.get(file);
+			if (loaded.cached!=null) {
+				if (D) Log.d(TAG, "File found in the cache");
+				loaded.dataValues = loaded.cached.dataValues;
+				loaded.stats = loaded.cached.stats;
+				loaded.derived = loaded.cached.derived;
+			} else if (RecordingFormat.isBinary(file.getName())) {
+				int cols = RecordingReader.readHeader(file).getCols();
+				long rows = RecordingReader.countRows(file);
+				loaded.stats = RecordingReader.readStats(file);
+				// The derived columns take up the heap just like the recording's own
+				boolean isTooBig = rows*(cols+DERIVED_COLS)*4>heapBudget;
+				if (rows>WINDOW_ROWS) {
+					loaded.pyramid = openPyramid(file, rows, cols,
+							isTooBig || cols<PLOTTED_COLUMNS[2] ? 0 : DERIVED_COLS);
+				}
+				loaded.dataValues = new IntColumnMatrix(cols);
+				if (loaded.pyramid!=null || isTooBig) {
+					if (D) Log.d(TAG, "Reading it a window at a time");
+					loaded.window = RecordingWindow.open(file);
+				} else {
+					if (D) Log.d(TAG, "File found, feeding values into dataValues");
+					RecordingReader.read(file, loaded.dataValues);
+				}
+			} else {
+				loaded.dataValues = readTextFile(file);
 			}
-			if (!file.canRead()) {
-				Toast.makeText(this, "File can't be read", Toast.LENGTH_SHORT).show();
+
+			int cols = loaded.dataValues.getCols();
+			if (loaded.window!=null) {
+				loaded.rows = (int)loaded.window.getRows();
+				if (loaded.pyramid==null) {
+					if (D) Log.d(TAG, "Building the pyramid");
+					// Goes through the recording a chunk at a time, never all of it at once
+					PyramidBuilder builder = new PyramidBuilder(cols);
+					loaded.window.scan(builder);
+					builder.write(file);
+					loaded.pyramid = openPyramid(file, loaded.rows, cols, 0);
+				}
+				// Without the pyramid, the whole recording would have to be read to draw it
+				if (loaded.pyramid==null) {
+					close(loaded.window, null);
+					loaded.error = "Recording too big to plot";
+					return loaded;
+				}
+				// Each window works its own shaking out, if the pyramid has it for the rest
+				loaded.shakingCol = loaded.pyramid.getCols()>cols ? cols+1 : 0;
+			} else {
+				loaded.rows = loaded.dataValues.getRows();
+				if (loaded.cached==null)
+					loaded.derived = deriveChannels(loaded.dataValues);
+				loaded.shakingCol = loaded.derived!=null ? cols+1 : 0;
+				loaded.pyramid = buildPyramid(file, loaded.dataValues, loaded.derived);
 			}
-			if (D) Log.d(TAG, "File found, feeding values into dataValues");
+			loaded.shakingRange = findShakingRange(loaded);
 
-			mBufferedReader = new BufferedReader(new FileReader(file));
-			String[] parts;
-			String line;
-			int rowPos = 1, colPos = 1, data;
-			mDataValues = new IntMatrix(1,10);
-			while ((line = mBufferedReader.readLine())!=null) {
-				parts = line.split(" ");
-				if (parts.length!=10)
-					continue;
-				for (String part : parts) {
-					// parse the string literal into an integer and feed it to data
-					data = Integer.parseInt(part);
-					// if the lux value aka the data at the ninth colPos is greater
-					// than mMaxValue, feed data into mMaxValue
-					//					if ((data>mMaxValue) && (colPos==10))
-					//						mMaxValue = data;
-					mDataValues.set(rowPos, colPos, data);
-					colPos++;
+			// The series only need downsampling again if they were cached for another width
+			if (loaded.cached==null || loaded.cached.width!=width) {
+				loaded.sampler = new Sampler(loaded.dataValues, loaded.derived, loaded.shakingCol,
+						loaded.pyramid, loaded.rows, 0, 0, 0, loaded.rows, width);
+				loaded.sampler.run();
+				if (loaded.sampler.isPyramidBroken()) {
+					close(null, loaded.pyramid);
+					loaded.pyramid = null;
+					if (loaded.window!=null)
+						throw new IOException("The pyramid can't be read");
 				}
-				colPos = 1;
-				rowPos++;
-				mDataValues.addRow();
 			}
-			// If everything's OK, close the things and start to plot the graph;
-			mBufferedReader.close();
 			if (D) {
-				Log.d(TAG, "Read successful, plotting graph");
-				Log.d(TAG, "Size of dataValues: " + mDataValues.getSize());
+				Log.d(TAG, "Read successful");
+				Log.d(TAG, "Size of dataValues: " + loaded.dataValues.getRows() + "x" + cols);
 			}
-			plotGraph();
 		} catch(FileNotFoundException e) {
 			Log.e(TAG, "Error opening file: " + e.getMessage());
+			close(loaded.window, loaded.pyramid);
+			loaded.error = "File can't be found";
 		} catch (IOException e) {
 			Log.e(TAG, "Error reading(IOException): " + e.getMessage());
+			close(loaded.window, loaded.pyramid);
+			loaded.error = "File can't be read";
 		}
+		return loaded;
 	}
 
 	/**
-	 * <p>FIX THE DATALENGTH VARIABLE IF THE WAY DATA'S RECORDED IN THE ARDUINO HAS CHANGED
-	 * <br>FOR EXAMPLE IF THERE AREN'T ANY SIX-COLUMN ROWS ANYMORE
-	 * <p>As the name would suggest, this plots a graph from the data that's been read.</p>
-	 * The data is dynamically appended value by value and the graph is redrawn to fit
-	 * all the data that's currently been read to give a visual effect.
-	 * @param dataValues The values to be plotted
+	 * Works out the range of the shaking over the whole recording, as it isn't in the stats.
+	 * It's taken from the pyramid's coarsest level if it has the shaking, as a window only has
+	 * some of the rows, or else from every row. Called in the background, by load().
+	 * @return The min and max, or null if there isn't any shaking or it can't be read
 	 */
-	private void plotGraph() {
+	private static int[] findShakingRange(Loaded loaded) {
+		int col = loaded.shakingCol;
+		if (col==0)
+			return null;
+		int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+		RecordingPyramid pyramid = loaded.pyramid;
+		if (pyramid!=null && pyramid.getCols()>=col && pyramid.getLevels()>0) {
+			int level = pyramid.getLevels()-1, buckets = pyramid.getBuckets(level);
+			int[] bucketMin = new int[buckets], bucketMax = new int[buckets];
+			try {
+				pyramid.readMinMax(level, col, 0, buckets, bucketMin, bucketMax, null);
+			} catch (IOException e) {
+				Log.e(TAG, "Error reading the pyramid: " + e.getMessage());
+				return null;
+			}
+			for (int i=0; i<buckets; i++) {
+				min = Math.min(min, bucketMin[i]);
+				max = Math.max(max, bucketMax[i]);
+			}
+		} else if (loaded.window==null) {
+			int[] shaking = loaded.derived.getColumn(col - loaded.dataValues.getCols());
+			for (int i=0, rows=loaded.derived.getRows(); i<rows; i++) {
+				min = Math.min(min, shaking[i]);
+				max = Math.max(max, shaking[i]);
+			}
+		}
+		return max>=min ? new int[] {min, max} : null;
+	}
 
-		// Get the number of rows dataValues has sans the last row which doesn't have ten columns
-		int dataLength = mDataValues.getRows()-1;
+	/**
+	 * Plots what LoadTask's read, in place of whatever was plotted before.
+	 */
+	private void onLoaded(File file, Loaded loaded) {
+		mLoadTask = null;
+		if (loaded.error!=null) {
+			Toast.makeText(this, loaded.error, Toast.LENGTH_SHORT).show();
+			return;
+		}
+		closeWindow();
+		closePyramid();
+		mDataValues = loaded.dataValues;
+		mDerived = loaded.derived;
+		mShakingCol = loaded.shakingCol;
+		mShakingRange = loaded.shakingRange;
+		mStats = loaded.stats;
+		mWindow = loaded.window;
+		mWindowStart = 0;
+		mWindowWarmupRows = 0;
+		mRows = loaded.rows;
+		mPyramid = loaded.pyramid;
+		mFile = file;
+		mFileModified = file.lastModified();
+		if (D) Log.d(TAG, "Plotting graph");
 
-		// Initialise four different GraphViewData[] for the four different sets o' data
-		// Feed the appropriate values into them
-		mDataPosX = new GraphViewData[dataLength];
-		mDataPosY = new GraphViewData[dataLength];
-		mDataPosZ = new GraphViewData[dataLength];
-		mDataLum = new GraphViewData[dataLength];
+		RecordingCache cache = ((Marble)getApplication()).getRecordingCache();
+		RecordingCache.Entry cached = loaded.cached;
+		GraphViewData[][] series = loaded.sampler!=null ? loaded.sampler.getSeries()
+				: cached.series;
+		mDataPosX = series[0];
+		mDataPosY = series[1];
+		mDataPosZ = series[2];
+		mDataLum = series[3];
+		mDataShaking = series.length>4 ? series[4] : null;
+		mIsDecimated = loaded.sampler!=null ? loaded.sampler.isDecimated() : cached.isDecimated;
+		plotGraph();
+		// A window's no use to anyone else, so it isn't cached
+		if (mWindow==null && loaded.sampler!=null) {
+			cache.put(file, new RecordingCache.Entry(file, mDataValues, mStats, mDerived,
+					loaded.sampler.getSeries(), mIsDecimated, loaded.width));
+		}
+		if (D) Log.d(TAG, cache.toString());
+	}
 
-		// Feed the values in, create a new line graph, and feed the data into it
-		for (int i=0; i<dataLength; i++) {
-			mDataPosX[i] = new GraphViewData(i,mDataValues.get(i+1, 7));
-			mDataPosY[i] = new GraphViewData(i,mDataValues.get(i+1, 8));
-			mDataPosZ[i] = new GraphViewData(i,mDataValues.get(i+1, 9));
-			mDataLum[i]  = new GraphViewData(i,mDataValues.get(i+1, 10));
+	/**
+	 * Opens the pyramid kept next to a recording, if it's up to date and has every column that's
+	 * plotted.
+	 * @param rows The number of rows in the recording
+	 * @param cols The number of the recording's own columns
+	 * @param derivedCols The number of derived columns the pyramid must have after those
+	 * @return The pyramid, or null if it isn't there or has to be built again
+	 */
+	private static RecordingPyramid openPyramid(File file, long rows, int cols, int derivedCols)
+			throws IOException {
+		RecordingPyramid pyramid = RecordingPyramid.open(file);
+		if (pyramid!=null && (pyramid.getRows()!=rows || pyramid.getCols()<cols + derivedCols
+				|| pyramid.getCols()>cols + DERIVED_COLS)) {
+			pyramid.close();
+			return null;
+		}
+		return pyramid;
+	}
+
+	/**
+	 * Opens the pyramid kept next to a recording that's been read in full, building it first,
+	 * derived channels and all, if it isn't there or is out of date. Without a pyramid, the
+	 * graph's still downsampled, just from every row.
+	 * @param derived The channels derived from the recording; can be null
+	 * @return The pyramid, or null if it can't be built
+	 */
+	private static RecordingPyramid buildPyramid(File file, IntColumnMatrix dataValues,
+			IntColumnMatrix derived) {
+		int derivedCols = derived!=null ? derived.getCols() : 0;
+		try {
+			RecordingPyramid pyramid = openPyramid(file, dataValues.getRows(),
+					dataValues.getCols(), derivedCols);
+			if (pyramid==null) {
+				if (D) Log.d(TAG, "Building the pyramid");
+				PyramidBuilder.of(dataValues, derived).write(file);
+				pyramid = openPyramid(file, dataValues.getRows(), dataValues.getCols(),
+						derivedCols);
+			}
+			return pyramid;
+		} catch (IOException e) {
+			Log.e(TAG, "Error opening the pyramid: " + e.getMessage());
+			return null;
 		}
+	}
 
-		// Create a new line graph and add each dataset as an individual series
-		mGraphView = new LineGraphView(this, mGraphTitle);
+	/**
+	 * <p>Works out the derived channels of a recording, all in a single pass (see FilterChain).
+	 * </p>
+	 * Recordings that are read a window at a time get them a window at a time (see loadWindow()),
+	 * and ones without XPos, YPos and ZPos don't get any.
+	 * @param values All of the recording, or a window of it
+	 * @return The derived channels, or null if there aren't any
+	 */
+	private static IntColumnMatrix deriveChannels(IntColumnMatrix values) {
+		if (values.getCols()<PLOTTED_COLUMNS[2])
+			return null;
+		FilterChain chain = new FilterChain(values.getCols(), 1);
+		int magnitude = chain.addMagnitude(PLOTTED_COLUMNS[0], PLOTTED_COLUMNS[1],
+				PLOTTED_COLUMNS[2]);
+		// Only the shaking's kept, as the first derived column; the magnitude's just on the way
+		return chain.filter(values, chain.addLowPass(magnitude, SHAKING_SMOOTHING));
+	}
+
+	private void closeWindow() {
+		if (mWindowTask!=null) {
+			mWindowTask.cancel(false);
+			mWindowTask = null;
+		}
+		close(mWindow, null);
+		mWindow = null;
+	}
+
+	private void closePyramid() {
+		if (mResampleTask!=null) {
+			mResampleTask.cancel(false);
+			mResampleTask = null;
+		}
+		mIsResamplePending = false;
+		close(null, mPyramid);
+		mPyramid = null;
+	}
+
+	/**
+	 * Closes a recording that's read a window at a time and a pyramid, either of which can be
+	 * null.
+	 */
+	private static void close(RecordingWindow window, RecordingPyramid pyramid) {
+		try {
+			if (window!=null)
+				window.close();
+		} catch (IOException e) {
+			Log.e(TAG, "Error closing the recording: " + e.getMessage());
+		}
+		try {
+			if (pyramid!=null)
+				pyramid.close();
+		} catch (IOException e) {
+			Log.e(TAG, "Error closing the pyramid: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * <p>Read a legacy text file, and feed values into a new matrix.</p>
+	 * The file is parsed byte by byte by TextRecordingReader (on every core, if it's big enough);
+	 * each line becomes a row, except
+	 * when a line which doesn't have a full set of values has been hit. That line is skipped.
+	 * <p>By default the max y value, or mMaxValue is 255, which is the max value the
+	 * accelerometer will spit out, but the light sensor can go up to 50k. mMaxValue will
+	 * be reset to the highest value in the data if needed.
+	 * @param file The file to be read from
+	 * @return The rows of the file
+	 */
+	private static IntColumnMatrix readTextFile(File file) throws IOException {
+		IntColumnMatrix dataValues = new IntColumnMatrix(10);
+		TextRecordingReader.Result result = TextRecordingReader.read(file, dataValues);
+		if (result.malformed>0) {
+			Log.w(TAG, "Skipped " + result.malformed + " malformed lines, starting with "
+					+ Arrays.toString(result.rejectedLines));
+		}
+		return dataValues;
+	}
+
+	/**
+	 * <p>Downsamples the series again for what's on screen, and hands them to the graph.</p>
+	 * Everything that's in memory is downsampled there and then. Whenever there's a pyramid
+	 * it's done in the background instead, so the UI thread's never held up reading it; the
+	 * series are handed over once they're ready. If the viewport changes again in the meantime,
+	 * only the last one's downsampled after that.
+	 * @param start The first row on screen, 0-based
+	 * @param size The number of rows across the screen
+	 * @param width The width of the graph in pixels
+	 */
+	private void refreshSeries(double start, double size, int width) {
+		mViewportStart = start;
+		mViewportSize = size;
+		mViewportWidth = width;
+		if (mResampleTask!=null) {
+			mIsResamplePending = true;
+			return;
+		}
+		final Sampler mmSampler = new Sampler(mDataValues, mDerived, mShakingCol, mPyramid, mRows,
+				mWindowStart, mWindowWarmupRows, start, size, width);
+		if (mWindow!=null) {
+			loadWindow(mmSampler.mmFrom, mmSampler.mmTo, mRows, mmSampler.mmInside,
+					mmSampler.mmOutside);
+		}
+		if (mPyramid==null) {
+			mmSampler.run();
+			showSeries(mmSampler);
+			return;
+		}
+		mResampleTask = new AsyncTask<Void, Void, Sampler>() {
+
+			@Override
+			protected Sampler doInBackground(Void... params) {
+				mmSampler.run();
+				return mmSampler;
+			}
+
+			@Override
+			protected void onPostExecute(Sampler sampler) {
+				mResampleTask = null;
+				if (mIsDestroyed)
+					return;
+				if (sampler.isPyramidBroken())
+					closePyramid();
+				showSeries(sampler);
+				if (mIsResamplePending) {
+					mIsResamplePending = false;
+					refreshSeries(mViewportStart, mViewportSize, mViewportWidth);
+				}
+			}
+		};
+		// Not on the serial executor, where it'd wait for a spectrum to be worked out first
+		mResampleTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+	}
+
+	/**
+	 * Puts what a Sampler's downsampled into mDataPosX and friends, and hands it to the graph.
+	 * Data points are only drawn when nothing on screen had to be dropped.
+	 */
+	private void showSeries(Sampler sampler) {
+		GraphViewData[][] series = sampler.getSeries();
+		mDataPosX = series[0];
+		mDataPosY = series[1];
+		mDataPosZ = series[2];
+		mDataLum = series[3];
+		mDataShaking = series[4];
+		mIsDecimated = sampler.isDecimated();
+		if (mGraphView==null)
+			return;
+		mGraphView.setDrawDataPoints(!mIsDecimated);
+		mLuxGraphView.setDrawDataPoints(!mIsDecimated);
+		mSeriesPosX.resetData(mDataPosX);
+		mSeriesPosY.resetData(mDataPosY);
+		mSeriesPosZ.resetData(mDataPosZ);
+		mSeriesLum.resetData(mDataLum);
+		if (mSeriesShaking!=null)
+			mSeriesShaking.resetData(mDataShaking);
+	}
+
+	/**
+	 * <p>Downsamples the plotted series for a graph of a given width showing a given range of
+	 * rows.</p>
+	 * The rows on screen are cut down to about one point per pixel with min/max buckets, so
+	 * no peaks are lost; the rows either side of the screen get a much coarser pass.
+	 * Wherever there are enough rows per point, the buckets come from the pyramid, so zooming
+	 * takes about the same time however long the recording is.
+	 * It's handed everything it reads from up front and has buffers of its own, so it can be run
+	 * in the background, while the activity carries on with a new window or viewport.
+	 */
+	private static class Sampler {
+
+		private final IntColumnMatrix mmValues, mmDerived;
+		private final int mmShakingCol, mmRows;
+		// Where mmValues starts, and where its rows start being any use, if it's a window
+		private final int mmWindowStart, mmWindowBase;
+		private RecordingPyramid mmPyramid;
+		private boolean mmIsPyramidBroken = false;
+		// The rows on screen, and the number of buckets for the rows on and off screen
+		final int mmFrom, mmTo, mmInside, mmOutside;
+		private int[] mmPointIndex, mmPointValue, mmBucketMin, mmBucketMax;
+		private boolean[] mmBucketMinFirst;
+		private GraphViewData[][] mmSeries;
+
+		/**
+		 * @param values All of the recording, or the window of it that's been read
+		 * @param derived The channels worked out from values; can be null
+		 * @param shakingCol The shaking's column, or 0 if there isn't any
+		 * @param pyramid The recording's pyramid; can be null
+		 * @param rows The number of rows in the whole recording
+		 * @param windowStart The row values starts at, if it's a window; 0 otherwise
+		 * @param warmupRows The rows of the window that are only there to warm the shaking up
+		 * @param start The first row on screen, 0-based
+		 * @param size The number of rows across the screen
+		 * @param width The width of the graph in pixels
+		 */
+		Sampler(IntColumnMatrix values, IntColumnMatrix derived, int shakingCol,
+				RecordingPyramid pyramid, int rows, int windowStart, int warmupRows,
+				double start, double size, int width) {
+			mmValues = values;
+			mmDerived = derived;
+			mmShakingCol = shakingCol;
+			mmPyramid = pyramid;
+			mmRows = rows;
+			mmWindowStart = windowStart;
+			mmWindowBase = windowStart + warmupRows;
+			mmFrom = (int)Math.max(Math.min(Math.floor(start), rows), 0);
+			mmTo = (int)Math.max(Math.min(Math.ceil(start + size) + 1, rows), mmFrom);
+			mmInside = Math.max(width/2, 1);
+			mmOutside = Math.max(width/OUTSIDE_POINTS_DIVISOR, 1);
+		}
+
+		/**
+		 * Downsamples XPos, YPos, ZPos, lux and the shaking, in that order.
+		 */
+		void run() {
+			int maxPoints = Downsampler.maxPoints(mmInside) + 2*Downsampler.maxPoints(mmOutside);
+			mmPointIndex = new int[maxPoints];
+			mmPointValue = new int[maxPoints];
+			mmBucketMin = new int[mmInside+1];
+			mmBucketMax = new int[mmInside+1];
+			mmBucketMinFirst = new boolean[mmInside+1];
+			mmSeries = new GraphViewData[5][];
+			for (int i=0; i<PLOTTED_COLUMNS.length; i++)
+				mmSeries[i] = downsample(PLOTTED_COLUMNS[i]);
+			mmSeries[4] = mmShakingCol==0 ? null : downsample(mmShakingCol);
+		}
+
+		/**
+		 * Returns XPos, YPos, ZPos, lux and the shaking, or null in place of the shaking if
+		 * there isn't any
+		 */
+		GraphViewData[][] getSeries() {
+			return mmSeries;
+		}
+
+		/**
+		 * Checks if any of the rows on screen had to be dropped
+		 */
+		boolean isDecimated() {
+			return mmTo-mmFrom>Downsampler.maxPoints(mmInside);
+		}
+
+		/**
+		 * Checks if the pyramid couldn't be read, in which case it's no use any more; whatever
+		 * it was needed for was downsampled from the rows, as far as there were any.
+		 */
+		boolean isPyramidBroken() {
+			return mmIsPyramidBroken;
+		}
+
+		private GraphViewData[] downsample(int col) {
+			int count = downsampleRange(col, 0, mmFrom, mmOutside, 0);
+			count += downsampleRange(col, mmFrom, mmTo, mmInside, count);
+			count += downsampleRange(col, mmTo, mmRows, mmOutside, count);
+			GraphViewData[] data = new GraphViewData[count];
+			for (int i=0; i<count; i++)
+				data[i] = new GraphViewData(mmPointIndex[i], mmPointValue[i]);
+			return data;
+		}
+
+		/**
+		 * Downsamples a range of a column into mmPointIndex and mmPointValue, from the given
+		 * offset. If there are at least as many rows per point as there are in the pyramid's
+		 * finest buckets, the min and max of each pyramid bucket are used, without looking at the
+		 * rows themselves. So are the finest buckets, for rows that aren't in the window yet (see
+		 * loadWindow()).
+		 * @return The number of points put out
+		 */
+		private int downsampleRange(int col, int from, int to, int buckets, int offset) {
+			if (to<=from)
+				return 0;
+			// Derived columns come after the recording's own, in the pyramid as well
+			int cols = mmValues.getCols();
+			if (isInPyramid(col) && usesPyramid(mmPyramid, from, to, buckets)) {
+				int count = downsamplePyramid(col, from, to, buckets, offset);
+				if (count>=0)
+					return count;
+			}
+			// The rows are only there from mmWindowBase on if it's a window
+			IntColumnMatrix values = col>cols ? mmDerived : mmValues;
+			int end = values==null ? mmWindowBase : mmWindowStart + values.getRows();
+			if (from<mmWindowBase || to>end) {
+				if (isInPyramid(col)) {
+					int count = downsamplePyramid(col, from, to, buckets, offset);
+					if (count>=0)
+						return count;
+				}
+				// Without the pyramid, whatever part of the range is there will have to do
+				from = Math.max(from, mmWindowBase);
+				to = Math.min(to, end);
+				if (to<=from)
+					return 0;
+			}
+			int count = Downsampler.minMax(values.getColumn(col>cols ? col - cols : col),
+					from - mmWindowStart, to - mmWindowStart, buckets, mmPointIndex, mmPointValue,
+					offset);
+			if (mmWindowStart>0) {
+				for (int i=offset; i<offset+count; i++)
+					mmPointIndex[i] += mmWindowStart;
+			}
+			return count;
+		}
+
+		private boolean isInPyramid(int col) {
+			return mmPyramid!=null && col<=mmPyramid.getCols();
+		}
+
+		/**
+		 * Downsamples a range of a column from the pyramid, putting each bucket's min and max out
+		 * in the order they came in, just like Downsampler does. The level's picked so there are
+		 * about as many buckets as points wanted, or it's the finest one if they'd all be bigger.
+		 * @return The number of points put out, or -1 if the pyramid can't be read
+		 */
+		private int downsamplePyramid(int col, int from, int to, int buckets, int offset) {
+			int rowsPerPoint = (to - from + buckets - 1) / buckets;
+			int level = mmPyramid.pickLevel(rowsPerPoint);
+			int bucketRows = mmPyramid.getBucketRows(level);
+			int first = from / bucketRows, count = (to-1) / bucketRows - first + 1;
+			try {
+				mmPyramid.readMinMax(level, col, first, count, mmBucketMin, mmBucketMax,
+						mmBucketMinFirst);
+			} catch (IOException e) {
+				Log.e(TAG, "Error reading the pyramid: " + e.getMessage());
+				// It's closed by whoever handed it over
+				mmPyramid = null;
+				mmIsPyramidBroken = true;
+				return -1;
+			}
+			int out = offset;
+			for (int i=0; i<count; i++) {
+				int start = (first+i) * bucketRows;
+				int firstRow = Math.max(start, from);
+				int lastRow = Math.min(start + bucketRows, to) - 1;
+				// A flat bucket only needs the one point
+				if (mmBucketMin[i]==mmBucketMax[i]) {
+					mmPointIndex[out] = firstRow;
+					mmPointValue[out++] = mmBucketMin[i];
+					continue;
+				}
+				mmPointIndex[out] = firstRow;
+				mmPointValue[out++] = mmBucketMinFirst[i] ? mmBucketMin[i] : mmBucketMax[i];
+				mmPointIndex[out] = lastRow;
+				mmPointValue[out++] = mmBucketMinFirst[i] ? mmBucketMax[i] : mmBucketMin[i];
+			}
+			return out - offset;
+		}
+	}
+
+	/**
+	 * Checks if a range will be downsampled from the pyramid rather than from the rows
+	 * @param pyramid The recording's pyramid; can be null
+	 */
+	private static boolean usesPyramid(RecordingPyramid pyramid, int from, int to, int buckets) {
+		int rowsPerPoint = (to - from + buckets - 1) / buckets;
+		return pyramid!=null && pyramid.getLevels()>0
+				&& rowsPerPoint>=RecordingPyramid.BASE_BUCKET_ROWS;
+	}
+
+	/**
+	 * <p>Makes sure the window holds every row a Sampler will need for the given viewport,
+	 * i.e. the rows of every range that won't come from the pyramid. If it doesn't, a new
+	 * window's read around them in the background, at least WINDOW_ROWS long, unless one that'll
+	 * hold them is being read already.</p>
+	 * Until it's there, those ranges are drawn from the pyramid's finest buckets; once it is, the
+	 * series are downsampled again. The window's shaking is worked out as soon as it's read.
+	 */
+	private void loadWindow(int from, int to, int rows, int inside, int outside) {
+		int needFrom = Integer.MAX_VALUE, needTo = Integer.MIN_VALUE;
+		int[][] ranges = {{0, from, outside}, {from, to, inside}, {to, rows, outside}};
+		for (int[] range : ranges) {
+			if (range[1]>range[0] && !usesPyramid(mPyramid, range[0], range[1], range[2])) {
+				needFrom = Math.min(needFrom, range[0]);
+				needTo = Math.max(needTo, range[1]);
+			}
+		}
+		if (needFrom>=needTo || (needFrom>=mWindowStart + mWindowWarmupRows
+				&& needTo<=mWindowStart + mDataValues.getRows()))
+			return;
+		if (mWindowTask!=null) {
+			if (needFrom>=mWindowTaskFrom && needTo<=mWindowTaskTo)
+				return;
+			mWindowTask.cancel(false);
+		}
+		int length = Math.min(Math.max(needTo - needFrom, WINDOW_ROWS), rows);
+		int start = Math.max(0, Math.min(needFrom - (length - (needTo - needFrom))/2,
+				rows - length));
+		mWindowTaskFrom = start;
+		mWindowTaskTo = start + length;
+		final int mmWarmupRows = mShakingCol>0 ? Math.min(start, SHAKING_WARMUP_ROWS) : 0;
+		final int mmStart = start - mmWarmupRows, mmLength = length + mmWarmupRows;
+		final RecordingWindow mmWindow = mWindow;
+		final boolean mmHasShaking = mShakingCol>0;
+		if (D) Log.d(TAG, "Reading rows " + mmStart + " to " + (mmStart+mmLength));
+		mWindowTask = new AsyncTask<Void, Void, IntColumnMatrix[]>() {
+
+			@Override
+			protected IntColumnMatrix[] doInBackground(Void... params) {
+				IntColumnMatrix window = new IntColumnMatrix(mmWindow.getCols());
+				try {
+					mmWindow.read(mmStart, mmLength, window);
+				} catch (IOException e) {
+					Log.e(TAG, "Error reading the window: " + e.getMessage());
+					return null;
+				}
+				return new IntColumnMatrix[] {window,
+						mmHasShaking ? deriveChannels(window) : null};
+			}
+
+			@Override
+			protected void onPostExecute(IntColumnMatrix[] window) {
+				mWindowTask = null;
+				if (mIsDestroyed || window==null || mmWindow!=mWindow)
+					return;
+				mDataValues = window[0];
+				mDerived = window[1];
+				mWindowStart = mmStart;
+				mWindowWarmupRows = mmWarmupRows;
+				if (mGraphView!=null)
+					refreshSeries(mViewportStart, mViewportSize, mViewportWidth);
+			}
+		};
+		mWindowTask.execute();
+	}
+
+	/**
+	 * <p>As the name would suggest, this plots a graph from the data that's been read.</p>
+	 * The series are downsampled to the width of the screen first (see load()),
+	 * and again whenever the graph's zoomed or scrolled, so however long the recording is,
+	 * only about a screen's worth of points is ever drawn.
+	 */
+	private void plotGraph() {
+		fitAxisGroups();
+
+		// Create a new line graph and add each dataset as an individual series.
+		// Whenever the graph's zoomed or scrolled, the series are downsampled again for the
+		// part that's on screen. Lux has its own graph underneath, which follows it
+		mGraphView = new DecimatedGraphView(this, mGraphTitle);
+		mGraphView.setOnViewportChangeListener(new DecimatedGraphView.OnViewportChangeListener() {
+
+			@Override
+			public void onViewportChanged(double start, double size, int width) {
+				followViewport(mLuxGraphView, start, size);
+				refreshSeries(start, size, width);
+			}
+		});
+		mLuxGraphView = new DecimatedGraphView(this, "");
+		mLuxGraphView.setOnViewportChangeListener(
+				new DecimatedGraphView.OnViewportChangeListener() {
+
+			@Override
+			public void onViewportChanged(double start, double size, int width) {
+				// The main graph downsamples once it's followed, for its own width
+				followViewport(mGraphView, start, size);
+			}
+		});
 
 		mSeriesPosX = new GraphViewSeries("XPos/mG", null, mDataPosX);
 		mSeriesPosY = new GraphViewSeries("YPos/mG", null, mDataPosY);
@@ -268,21 +1312,262 @@ public class PlotGraph extends Activity {
 		mGraphView.addSeries(mSeriesPosX);
 		mGraphView.addSeries(mSeriesPosY);
 		mGraphView.addSeries(mSeriesPosZ);
-		mGraphView.addSeries(mSeriesLum);
+		mLuxGraphView.addSeries(mSeriesLum);
+		mSeriesShaking = null;
+		if (mDataShaking!=null) {
+			mSeriesShaking = new GraphViewSeries("|XYZ|/mG", null, mDataShaking);
+			mSeriesShaking.getStyle().color = Color.rgb(200, 40, 40);
+			mGraphView.addSeries(mSeriesShaking);
+		}
+
+		// Set the graphs' style up, add a legend and finally plot the graphs on screen
+		for (DecimatedGraphView graph : new DecimatedGraphView[] {mGraphView, mLuxGraphView}) {
+			graph.getGraphViewStyle().setGridStyle(GridStyle.VERTICAL);
+			graph.getGraphViewStyle().setHorizontalLabelsColor(0xFFA81414);
+			graph.getGraphViewStyle().setVerticalLabelsColor(0xFFA81414);
+			graph.setDrawDataPoints(!mIsDecimated);
+			graph.setDataPointsRadius((float)5);
+			graph.setScalable(true);
+			graph.setShowLegend(true);
+			graph.setLegendAlign(LegendAlign.TOP);
+			graph.getGraphViewStyle().setLegendSpacing(30);
+			graph.getGraphViewStyle().setLegendWidth(300);
+		}
+		setYAxisBounds();
+		mGraph.addView(mGraphView, new LinearLayout.LayoutParams(
+				LinearLayout.LayoutParams.MATCH_PARENT, 0, 3));
+		mGraph.addView(mLuxGraphView, new LinearLayout.LayoutParams(
+				LinearLayout.LayoutParams.MATCH_PARENT, 0, 1));
+	}
+
+	/**
+	 * Scrolls or zooms one of the graphs to match the other one, if it doesn't already.
+	 */
+	private void followViewport(DecimatedGraphView graph, double start, double size) {
+		if (graph.getViewportStart()==start && graph.getViewportSize()==size)
+			return;
+		graph.setViewPort(start, size);
+		graph.redrawAll();
+	}
+
+	/**
+	 * <p>Works out the y axes from the stats kept at the end of the recording, so they don't
+	 * jump about while scrolling.</p>
+	 * XPos, YPos, ZPos and the shaking share the main graph's axis, and lux has the other
+	 * graph's to itself, going from its own min to its max.
+	 * Without stats (legacy text recordings) GraphView fits both axes to what's on screen.
+	 */
+	private void fitAxisGroups() {
+		mAxisMin = mAxisMax = mLuxMin = mLuxMax = 0;
+		if (mStats==null || mStats.getCount()==0 || mStats.getCols()!=mDataValues.getCols())
+			return;
+		mLuxMin = mStats.getMin(PLOTTED_COLUMNS[3]);
+		mLuxMax = mStats.getMax(PLOTTED_COLUMNS[3]);
+		int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+		for (int i=0; i<3; i++) {
+			min = Math.min(min, mStats.getMin(PLOTTED_COLUMNS[i]));
+			max = Math.max(max, mStats.getMax(PLOTTED_COLUMNS[i]));
+		}
+		// The shaking isn't in the stats, so its range was looked up when it was loaded
+		if (mShakingRange!=null) {
+			min = Math.min(min, mShakingRange[0]);
+			max = Math.max(max, mShakingRange[1]);
+		}
+		if (max<=min)
+			return;
+		mAxisMin = min;
+		mAxisMax = max;
+	}
+
+	/**
+	 * Fixes the y axes to what fitAxisGroups() worked out, where it could.
+	 */
+	private void setYAxisBounds() {
+		if (mAxisMax>mAxisMin)
+			mGraphView.setManualYAxisBounds(mAxisMax, mAxisMin);
+		if (mLuxMax>mLuxMin)
+			mLuxGraphView.setManualYAxisBounds(mLuxMax, mLuxMin);
+	}
+
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu) {
+		menu.add(Menu.NONE, MENU_SPECTRUM, Menu.NONE, "Spectrum");
+		return true;
+	}
+
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item) {
+		if (item.getItemId()!=MENU_SPECTRUM)
+			return super.onOptionsItemSelected(item);
+		if (mFile==null || mSpectrumTask!=null)
+			return true;
+		analyzeSpectrum(mFile);
+		return true;
+	}
+
+	/**
+	 * What came out of analysing a recording's spectrum
+	 */
+	private static class Spectrum {
+		SpectrumAnalyzer analyzer;
+		// The rate the rows came in at, or NaN if it isn't known
+		double rowsPerSecond = Double.NaN;
+	}
+
+	/**
+	 * <p>Works out the spectrum of XPos, YPos and ZPos of the recording in the background (see
+	 * SpectrumAnalyzer), and then shows it.</p>
+	 * The recording's streamed through from the file rather than taken from mDataValues, so it
+	 * works the same for recordings that are read a window at a time.
+	 * @param file The recording
+	 */
+	private void analyzeSpectrum(final File file) {
+		Toast.makeText(this, "Working out the spectrum...", Toast.LENGTH_SHORT).show();
+		mSpectrumTask = new AsyncTask<Void, Void, Spectrum>() {
 
-		// Set the graph's style up, add a legend and finally plot the graph on screen
-		mGraphView.getGraphViewStyle().setGridStyle(GridStyle.VERTICAL);
-		mGraphView.getGraphViewStyle().setHorizontalLabelsColor(0xFFA81414);
-		mGraphView.getGraphViewStyle().setVerticalLabelsColor(0xFFA81414);
-		mGraphView.setDrawDataPoints(true);
-		mGraphView.setDataPointsRadius((float)5);
-		mGraphView.setScalable(true);
+			@Override
+			protected Spectrum doInBackground(Void... params) {
+				try {
+					Spectrum spectrum = new Spectrum();
+					boolean isBinary = RecordingFormat.isBinary(file.getName());
+					int cols = isBinary ? RecordingReader.readHeader(file).getCols()
+							: RecordingFormat.DEFAULT_SCHEMA.length;
+					if (cols<PLOTTED_COLUMNS[2])
+						return null;
+					final SpectrumAnalyzer analyzer = new SpectrumAnalyzer(cols,
+							new int[] {PLOTTED_COLUMNS[0], PLOTTED_COLUMNS[1], PLOTTED_COLUMNS[2]},
+							SPECTRUM_WINDOW, SPECTRUM_WINDOW/2, SPECTROGRAM_FRAMES);
+					RowSink sink = new RowSink() {
 
-		mGraphView.setShowLegend(true);
-		mGraphView.setLegendAlign(LegendAlign.TOP);
-		mGraphView.getGraphViewStyle().setLegendSpacing(30);
-		mGraphView.getGraphViewStyle().setLegendWidth(300);
-		mGraph.addView(mGraphView);
+						@Override
+						public void onRows(int[] rows, int count) {
+							// Stops reading as soon as the task's cancelled, e.g. by onDestroy()
+							if (isCancelled())
+								throw new CancellationException();
+							analyzer.onRows(rows, count);
+						}
+					};
+					spectrum.analyzer = analyzer;
+					if (isBinary) {
+						RecordingReader.read(file, sink);
+						spectrum.rowsPerSecond = RecordingReader.readRowsPerSecond(file);
+					} else {
+						TextRecordingReader.read(file, cols, sink);
+					}
+					return spectrum;
+				} catch (IOException e) {
+					Log.e(TAG, "Error reading the recording: " + e.getMessage());
+					return null;
+				} catch (CancellationException e) {
+					return null;
+				}
+			}
+
+			@Override
+			protected void onPostExecute(Spectrum spectrum) {
+				mSpectrumTask = null;
+				if (mIsDestroyed)
+					return;
+				if (spectrum==null || spectrum.analyzer.getWindows()==0) {
+					Toast.makeText(PlotGraph.this, "Recording too short for a spectrum",
+							Toast.LENGTH_SHORT).show();
+					return;
+				}
+				showSpectrum(spectrum);
+			}
+		}.execute();
+	}
+
+	/**
+	 * <p>Shows the spectrum: a graph of the power of XPos, YPos and ZPos at every frequency,
+	 * averaged over the whole recording, in dB, and under it the spectrogram, time going from
+	 * left to right and frequency from the bottom up.</p>
+	 * Frequencies are in Hz if the rate the rows came in at is known, or else in cycles per row.
+	 */
+	private void showSpectrum(Spectrum spectrum) {
+		SpectrumAnalyzer analyzer = spectrum.analyzer;
+		boolean isHz = !Double.isNaN(spectrum.rowsPerSecond);
+		int bins = analyzer.getBins();
+		int height = getResources().getDisplayMetrics().heightPixels / 3;
+
+		LineGraphView graph = new LineGraphView(this, isHz ? "Power/dB by frequency/Hz"
+				: "Power/dB by frequency/cycles per row");
+		String[] titles = {"XPos", "YPos", "ZPos"};
+		int[] colors = {Color.rgb(108, 98, 13), Color.rgb(100, 150, 25), Color.rgb(30,180,20)};
+		double[] power = new double[bins];
+		for (int series=0; series<analyzer.getSeriesCount(); series++) {
+			analyzer.getSpectrum(series, power);
+			GraphViewData[] data = new GraphViewData[bins];
+			for (int bin=0; bin<bins; bin++) {
+				double frequency = isHz ? analyzer.getFrequency(bin, spectrum.rowsPerSecond)
+						: analyzer.getFrequency(bin);
+				data[bin] = new GraphViewData(frequency, toDecibels(power[bin]));
+			}
+			GraphViewSeries graphSeries = new GraphViewSeries(titles[series], null, data);
+			graphSeries.getStyle().color = colors[series];
+			graph.addSeries(graphSeries);
+		}
+		graph.setShowLegend(true);
+		graph.setLegendAlign(LegendAlign.TOP);
+		graph.setLayoutParams(new LinearLayout.LayoutParams(LinearLayout.LayoutParams.MATCH_PARENT,
+				height));
+
+		ImageView spectrogram = new ImageView(this);
+		spectrogram.setImageBitmap(drawSpectrogram(analyzer));
+		spectrogram.setScaleType(ImageView.ScaleType.FIT_XY);
+		spectrogram.setLayoutParams(new LinearLayout.LayoutParams(
+				LinearLayout.LayoutParams.MATCH_PARENT, height));
+
+		TextView caption = new TextView(this);
+		long frameRows = (long)analyzer.getWindowsPerFrame() * analyzer.getHop();
+		caption.setText(analyzer.getWindows() + " windows of " + SPECTRUM_WINDOW + " rows; "
+				+ "every column of the spectrogram is " + (isHz
+				? new DecimalFormat("0.0").format(frameRows / spectrum.rowsPerSecond) + "s"
+				: frameRows + " rows"));
+
+		LinearLayout layout = new LinearLayout(this);
+		layout.setOrientation(LinearLayout.VERTICAL);
+		layout.addView(graph);
+		layout.addView(spectrogram);
+		layout.addView(caption);
+		mStartDialog = new AlertDialog.Builder(this)
+		.setTitle("Spectrum of " + mGraphTitle)
+		.setView(layout)
+		.setPositiveButton("OK", null)
+		.show();
+	}
+
+	/**
+	 * Draws the spectrogram, a pixel per frame and frequency, from black through red and yellow
+	 * to white as the power goes up, over the top SPECTROGRAM_RANGE_DB of it.
+	 */
+	private static Bitmap drawSpectrogram(SpectrumAnalyzer analyzer) {
+		int frames = analyzer.getFrameCount(), bins = analyzer.getBins();
+		double max = Double.NEGATIVE_INFINITY;
+		for (int frame=0; frame<frames; frame++) {
+			for (float power : analyzer.getFrame(frame))
+				max = Math.max(max, toDecibels(power));
+		}
+		double min = max - SPECTROGRAM_RANGE_DB;
+		int[] pixels = new int[frames * bins];
+		for (int frame=0; frame<frames; frame++) {
+			float[] power = analyzer.getFrame(frame);
+			for (int bin=0; bin<bins; bin++) {
+				double level = (toDecibels(power[bin]) - min) / SPECTROGRAM_RANGE_DB;
+				level = Math.max(0, Math.min(1, level));
+				int red = (int)(255 * Math.min(1, 3*level));
+				int green = (int)(255 * Math.max(0, Math.min(1, 3*level - 1)));
+				int blue = (int)(255 * Math.max(0, 3*level - 2));
+				// The lowest frequency's at the bottom
+				pixels[(bins-1 - bin)*frames + frame] = Color.rgb(red, green, blue);
+			}
+		}
+		return Bitmap.createBitmap(pixels, frames, bins, Bitmap.Config.ARGB_8888);
+	}
+
+	private static double toDecibels(double power) {
+		// Anything quieter than this is as good as nothing
+		return 10 * Math.log10(Math.max(power, 1e-6));
 	}
 
 	//////////////////////////
@@ -311,6 +1596,21 @@ public class PlotGraph extends Activity {
 	protected void onDestroy() {
 		if (mStartDialog!=null && mStartDialog.isShowing())
 			mStartDialog.dismiss();
+		mIsDestroyed = true;
+		// It'd hold on to this PlotGraph until it's read the whole recording
+		if (mSpectrumTask!=null)
+			mSpectrumTask.cancel(true);
+		if (mWindowTask!=null)
+			mWindowTask.cancel(false);
+		if (mResampleTask!=null)
+			mResampleTask.cancel(false);
+		if (!mIsRetained) {
+			// Whatever it reads is closed once it's done, as there's nothing left to plot it
+			if (mLoadTask!=null)
+				mLoadTask.cancel(false);
+			closePyramid();
+			closeWindow();
+		}
 		super.onDestroy();
 	}
 }
@@ -0,0 +1,268 @@
+/*
+ * This is the PyramidBuilder class. It builds the pyramid of a recording (see RecordingPyramid)
+ * and writes it next to the recording.
+ * Rows can be fed in as they're captured, since it's a RowSink, in which case only the first
+ * level's buckets are kept in memory (one bucket per 64 rows). The coarser levels are worked out
+ * from the first one when the pyramid's written.
+ * Which of a bucket's min and max came first is kept along with them. When two buckets are merged,
+ * it's taken from whichever bucket both came from, or else it's whether the min came from the
+ * first of them.
+ */
+
+package sim.marble;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class PyramidBuilder implements RowSink {
+
+	private static final int MAX_LEVELS = 31;
+
+	private final int cols;
+	// The buckets of the first level, one array per column
+	private int[][] mMin, mMax;
+	private boolean[][] mMinFirst;
+	private int mBuckets = 0;
+
+	// The bucket being filled, and the rows of it its min and max were found at
+	private final int[] mBucketMin, mBucketMax;
+	private final int[] mBucketMinAt, mBucketMaxAt;
+	private int mBucketCount = 0;
+	private int mRows = 0;
+
+	public PyramidBuilder(int cols) {
+		this.cols = cols;
+		mMin = new int[cols][16];
+		mMax = new int[cols][16];
+		mMinFirst = new boolean[cols][16];
+		mBucketMin = new int[cols];
+		mBucketMax = new int[cols];
+		mBucketMinAt = new int[cols];
+		mBucketMaxAt = new int[cols];
+	}
+
+	/**
+	 * Builds the pyramid of a matrix that's already been read in full.
+	 */
+	public static PyramidBuilder of(IntColumnMatrix matrix) {
+		return of(matrix, null);
+	}
+
+	/**
+	 * Builds the pyramid of a matrix that's already been read in full, along with the channels
+	 * derived from it, which come after its own columns.
+	 * @param derived The derived channels, as many rows as the matrix; can be null
+	 */
+	public static PyramidBuilder of(IntColumnMatrix matrix, IntColumnMatrix derived) {
+		int cols = matrix.getCols() + (derived!=null ? derived.getCols() : 0);
+		PyramidBuilder builder = new PyramidBuilder(cols);
+		builder.addColumns(matrix, derived);
+		return builder;
+	}
+
+	@Override
+	public void onRows(int[] rows, int count) {
+		int index = 0;
+		for (int row=0; row<count; row++) {
+			for (int col=0; col<cols; col++) {
+				int value = rows[index++];
+				if (mBucketCount==0 || value<mBucketMin[col]) {
+					mBucketMin[col] = value;
+					mBucketMinAt[col] = mBucketCount;
+				}
+				if (mBucketCount==0 || value>mBucketMax[col]) {
+					mBucketMax[col] = value;
+					mBucketMaxAt[col] = mBucketCount;
+				}
+			}
+			mRows++;
+			if (++mBucketCount==RecordingPyramid.BASE_BUCKET_ROWS)
+				endBucket();
+		}
+	}
+
+	/**
+	 * Adds every row of a matrix and its derived channels, a whole column at a time.
+	 */
+	private void addColumns(IntColumnMatrix matrix, IntColumnMatrix derived) {
+		int rows = matrix.getRows();
+		int bucketRows = RecordingPyramid.BASE_BUCKET_ROWS;
+		int buckets = (rows + bucketRows - 1) / bucketRows;
+		int matrixCols = matrix.getCols();
+		ensureCapacity(buckets);
+		for (int col=0; col<cols; col++) {
+			int[] column = col<matrixCols ? matrix.getColumn(col+1)
+					: derived.getColumn(col+1 - matrixCols);
+			int[] min = mMin[col], max = mMax[col];
+			boolean[] minFirst = mMinFirst[col];
+			for (int bucket=0; bucket<buckets; bucket++) {
+				int start = bucket*bucketRows, end = Math.min(start+bucketRows, rows);
+				int bucketMin = column[start], bucketMax = bucketMin;
+				int minAt = start, maxAt = start;
+				for (int i=start; i<end; i++) {
+					int value = column[i];
+					if (value<bucketMin) {
+						bucketMin = value;
+						minAt = i;
+					}
+					if (value>bucketMax) {
+						bucketMax = value;
+						maxAt = i;
+					}
+				}
+				min[bucket] = bucketMin;
+				max[bucket] = bucketMax;
+				minFirst[bucket] = minAt<=maxAt;
+			}
+		}
+		mBuckets = buckets;
+		mRows = rows;
+	}
+
+	/**
+	 * Returns the number of rows added so far
+	 */
+	public int getRows() {
+		return mRows;
+	}
+
+	/**
+	 * Writes the pyramid next to the recording. The recording mustn't change afterwards, or the
+	 * pyramid won't be used.
+	 * @param recording The recording the rows came from
+	 */
+	public void write(File recording) throws IOException {
+		if (mBucketCount>0)
+			endBucket();
+
+		// Level 0 is the first level; every level after that halves the number of buckets
+		int[][][] min = new int[MAX_LEVELS][][], max = new int[MAX_LEVELS][][];
+		boolean[][][] minFirst = new boolean[MAX_LEVELS][][];
+		int[] bucketRows = new int[MAX_LEVELS];
+		int buckets = mBuckets;
+		int levels = 0;
+		if (buckets>0 && cols>0) {
+			min[0] = new int[cols][];
+			max[0] = new int[cols][];
+			minFirst[0] = new boolean[cols][];
+			for (int col=0; col<cols; col++) {
+				min[0][col] = Arrays.copyOf(mMin[col], buckets);
+				max[0][col] = Arrays.copyOf(mMax[col], buckets);
+				minFirst[0][col] = Arrays.copyOf(mMinFirst[col], buckets);
+			}
+			bucketRows[0] = RecordingPyramid.BASE_BUCKET_ROWS;
+			levels = 1;
+			while (levels<MAX_LEVELS && min[levels-1][0].length>1) {
+				halve(min, max, minFirst, bucketRows, levels);
+				levels++;
+			}
+		}
+
+		// It's written to a file of its own first, so that a pyramid that's half written is never
+		// opened, and two of them being built at once (e.g. across a rotation) can't get mixed up
+		File file = RecordingPyramid.sidecarFor(recording);
+		File temp = File.createTempFile(file.getName(), ".tmp",
+				file.getAbsoluteFile().getParentFile());
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp)));
+		boolean isWritten = false;
+		try {
+			out.writeInt(RecordingPyramid.MAGIC);
+			out.writeShort(RecordingPyramid.VERSION);
+			out.writeLong(recording.length());
+			out.writeLong(recording.lastModified());
+			out.writeInt(mRows);
+			out.writeShort(cols);
+			out.writeShort(levels);
+			long offset = RecordingPyramid.HEADER_SIZE
+					+ (long)levels * RecordingPyramid.LEVEL_ENTRY_SIZE;
+			for (int level=0; level<levels; level++) {
+				int levelBuckets = min[level][0].length;
+				out.writeInt(bucketRows[level]);
+				out.writeInt(levelBuckets);
+				out.writeLong(offset);
+				offset += (long)levelBuckets * cols * RecordingPyramid.BUCKET_SIZE;
+			}
+			for (int level=0; level<levels; level++) {
+				for (int col=0; col<cols; col++) {
+					for (int value : min[level][col])
+						out.writeInt(value);
+					for (int value : max[level][col])
+						out.writeInt(value);
+					for (boolean value : minFirst[level][col])
+						out.writeByte(value ? 1 : 0);
+				}
+			}
+			isWritten = true;
+		} finally {
+			out.close();
+			if (!isWritten)
+				temp.delete();
+		}
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("Couldn't replace " + file.getPath());
+		}
+	}
+
+	/**
+	 * Works out a level from the one before it, merging every two buckets into one.
+	 */
+	private void halve(int[][][] min, int[][][] max, boolean[][][] minFirst, int[] bucketRows,
+			int level) {
+		int prevRows = bucketRows[level-1];
+		int prevBuckets = min[level-1][0].length;
+		int buckets = (prevBuckets + 1) / 2;
+		bucketRows[level] = prevRows * 2;
+		min[level] = new int[cols][buckets];
+		max[level] = new int[cols][buckets];
+		minFirst[level] = new boolean[cols][buckets];
+		for (int col=0; col<cols; col++) {
+			int[] prevMin = min[level-1][col], prevMax = max[level-1][col];
+			boolean[] prevMinFirst = minFirst[level-1][col];
+			for (int bucket=0; bucket<buckets; bucket++) {
+				int a = bucket*2, b = a+1;
+				if (b<prevBuckets) {
+					// Ties go to the first bucket, as that's where the value came first
+					boolean isMinInA = prevMin[a]<=prevMin[b], isMaxInA = prevMax[a]>=prevMax[b];
+					min[level][col][bucket] = isMinInA ? prevMin[a] : prevMin[b];
+					max[level][col][bucket] = isMaxInA ? prevMax[a] : prevMax[b];
+					if (isMinInA==isMaxInA)
+						minFirst[level][col][bucket] = isMinInA ? prevMinFirst[a] : prevMinFirst[b];
+					else
+						minFirst[level][col][bucket] = isMinInA;
+				} else {
+					min[level][col][bucket] = prevMin[a];
+					max[level][col][bucket] = prevMax[a];
+					minFirst[level][col][bucket] = prevMinFirst[a];
+				}
+			}
+		}
+	}
+
+	private void endBucket() {
+		ensureCapacity(mBuckets+1);
+		for (int col=0; col<cols; col++) {
+			mMin[col][mBuckets] = mBucketMin[col];
+			mMax[col][mBuckets] = mBucketMax[col];
+			mMinFirst[col][mBuckets] = mBucketMinAt[col]<=mBucketMaxAt[col];
+		}
+		mBuckets++;
+		mBucketCount = 0;
+	}
+
+	private void ensureCapacity(int buckets) {
+		if (cols==0 || mMin[0].length>=buckets)
+			return;
+		int capacity = Math.max(mMin[0].length + (mMin[0].length>>1), buckets);
+		for (int col=0; col<cols; col++) {
+			mMin[col] = Arrays.copyOf(mMin[col], capacity);
+			mMax[col] = Arrays.copyOf(mMax[col], capacity);
+			mMinFirst[col] = Arrays.copyOf(mMinFirst[col], capacity);
+		}
+	}
+}
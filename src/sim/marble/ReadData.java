@@ -11,17 +11,26 @@ package sim.marble;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 
 import sim.example.readandroid.R;
 
+import com.jjoe64.graphview.GraphViewDataInterface;
+import com.jjoe64.graphview.GraphViewSeries;
+import com.jjoe64.graphview.LineGraphView;
+
 import android.annotation.SuppressLint;
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.graphics.Color;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
@@ -29,6 +38,7 @@ import android.os.Message;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
+import android.widget.LinearLayout;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -43,27 +53,59 @@ public class ReadData extends Activity {
 	public static final int MESSAGE_WRITE = 3;
 	public static final int MESSAGE_DEVICE_NAME = 4;
 	public static final int MESSAGE_TOAST = 5;	
+	public static final int MESSAGE_RECONNECTED = 6;
 
 	// Key names received from the BluetoothChatService Handler
 	public static final String DEVICE_NAME = "device_name";
 	public static final String TOAST = "toast";
 
-	private boolean isDone = false, hasStarted = true;
-	private int mBytesRead = 0;
 	private final String ACTIVITY_NAME = "ReadData";
 
+	// Up to 256 batches of 64 rows waiting to be written, spilling to disk beyond that so the
+	// reader never waits, and when to flush them: every 1024 rows or every second
+	private static final CaptureWriter.Policy CAPTURE_POLICY = new CaptureWriter.Policy(256, 64,
+			RowRing.OVERFLOW_SPILL, 1024, 1000, true);
+
+	// The live graph: the last 512 rows of XPos, YPos, ZPos and Luminance of the first board,
+	// and how hard it's being shaken, redrawn at most ten times a second rather than once per
+	// batch of rows
+	private static final int[] LIVE_COLUMNS = {7, 8, 9, 10};
+	private static final String[] LIVE_TITLES = {"XPos/mG", "YPos/mG", "ZPos/mG", "Luminance/lux",
+		"|XYZ|/mG"};
+	private static final int[] LIVE_COLORS = {
+		Color.rgb(108, 98, 13), Color.rgb(100, 150, 25), Color.rgb(30,180,20), Color.rgb(30,10,200),
+		Color.rgb(200, 40, 40)
+	};
+	// How hard the board's being shaken is the magnitude of XPos, YPos and ZPos, low-pass
+	// filtered with this weight, i.e. over about the last 8 rows
+	private static final double LIVE_SMOOTHING = 0.125;
+	private static final int LIVE_FILTER_BATCH = 64;
+	private static final int LIVE_CAPACITY = 512;
+	private static final long FRAME_MILLIS = 100;
+
 	private final File FILE_DIR = new File(Environment.getExternalStorageDirectory(), "Marble");
 
 	private Button plotGraph;
 	private BluetoothAdapter mBluetoothAdapter;
-	private BluetoothDevice mDevice = null;
-	private BluetoothSerialService mBluetoothSerialService;
-	private File currentFile;
+	// One per board, all capturing at once
+	private CaptureSession[] mSessions = new CaptureSession[0];
+	// When the first board was connected to, for working out the throughput
+	private long mCaptureStart = 0;
 	private Marble mMarble;
-	private PrintWriter mPrintWriter;
 	private SimpleDateFormat mDateFormat = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss");
 	private TextView mTitle, mProgress;
 
+	private FilterChain mLiveFilter;
+	private SeriesRingBuffer mLiveBuffer;
+	private LineGraphView mLiveGraph;
+	private GraphViewSeries[] mLiveSeries;
+	// Reused every frame: the snapshot of the ring buffer and the points handed to GraphView
+	private int[][] mLiveValues;
+	private LivePoint[][] mLivePoints;
+	private GraphViewDataInterface[][] mLiveData;
+	private long mLastFrameTotal = 0;
+	private final Handler mFrameHandler = new Handler();
+
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -71,20 +113,25 @@ public class ReadData extends Activity {
 
 		mMarble = (Marble)getApplication();
 
-		// Creates the file for the data to be written to
 		if (!FILE_DIR.isDirectory())
 			FILE_DIR.mkdir();
-		currentFile = new File(FILE_DIR, mDateFormat.format(new Date()) + ".txt");
-		try {
-			if (!currentFile.isFile())
-				currentFile.createNewFile();
-			mPrintWriter = new PrintWriter(currentFile);
-			if (D) Log.i(TAG, "mPrintWriter created");
-			if (D) Log.i(TAG, currentFile.getAbsolutePath());
-		} catch (IOException e) {
-			Log.e(TAG, "IOException at file creation/mPrintWriter: " + e.getMessage());
-		}
 		mProgress = (TextView)findViewById(R.id.progress);
+		// The derived channel's worked out on the thread that parses the rows, on its way to the
+		// ring buffer, and kept alongside the raw columns
+		mLiveFilter = new FilterChain(RecordingFormat.DEFAULT_SCHEMA.length, LIVE_FILTER_BATCH);
+		int magnitude = mLiveFilter.addMagnitude(LIVE_COLUMNS[0], LIVE_COLUMNS[1], LIVE_COLUMNS[2]);
+		int shaking = mLiveFilter.addLowPass(magnitude, LIVE_SMOOTHING);
+		int[] liveColumns = Arrays.copyOf(LIVE_COLUMNS, LIVE_TITLES.length);
+		liveColumns[LIVE_COLUMNS.length] = shaking;
+		mLiveBuffer = new SeriesRingBuffer(mLiveFilter.getCols(), liveColumns, LIVE_CAPACITY);
+		mLiveFilter.setSink(mLiveBuffer);
+		mLiveValues = new int[LIVE_TITLES.length][LIVE_CAPACITY];
+		mLivePoints = new LivePoint[LIVE_TITLES.length][LIVE_CAPACITY];
+		for (int series=0; series<LIVE_TITLES.length; series++) {
+			for (int i=0; i<LIVE_CAPACITY; i++)
+				mLivePoints[series][i] = new LivePoint();
+		}
+		mLiveData = new GraphViewDataInterface[LIVE_TITLES.length][];
 		mTitle = (TextView)findViewById(R.id.title_text_right);
 		plotGraph = (Button)findViewById(R.id.b1);
 
@@ -92,25 +139,95 @@ public class ReadData extends Activity {
 
 			@Override
 			public void onClick(View arg0) {
-				if (isDone)
-					startPlotGraphActivity(currentFile.getAbsolutePath());
+				if (isDone())
+					choosePlotGraphFile();
 				else butter("Not done receiving yet!");
 			}
 		});
 
 		// Set up AND enable BT in the main menu screen
 		mBluetoothAdapter = mMarble.getAdapter();
-		mDevice = mMarble.getDevice();
+		List<Transport> transports = getTransports();
+		if (transports==null)
+			return;
+
+		// Creates a file for every board's data to be written to, and starts capturing from all
+		// of them at once
+		Date startDate = new Date();
+		mSessions = new CaptureSession[transports.size()];
+		for (int i=0; i<mSessions.length; i++) {
+			Transport transport = transports.get(i);
+			String name = mDateFormat.format(startDate);
+			// The boards all have the same name, so they're told apart by their address
+			if (mSessions.length>1)
+				name += " " + transport.getAddress().replace(":", "");
+			File file = new File(FILE_DIR, name + RecordingFormat.EXTENSION);
+			mSessions[i] = new CaptureSession(this, transport, file, new SessionHandler(i));
+			// A replay that's over stays over
+			if (transport instanceof ReplayTransport)
+				mSessions[i].getService().setReconnectPolicy(null);
+			try {
+				mSessions[i].openRecording(startDate.getTime(), CAPTURE_POLICY);
+			} catch (IOException e) {
+				Log.e(TAG, "IOException at file creation/mRecordingWriter: " + e.getMessage());
+			}
+		}
+		// The rows go through the filter chain into the live graph's ring buffer on the thread
+		// that parses them
+		mSessions[0].getService().setRowListener(mLiveFilter);
+		for (CaptureSession session : mSessions)
+			session.connect();
+	}
+
+	/**
+	 * Works out what to capture from: every board set in MainMenu, or, if the Intent says so,
+	 * a TCP socket ("Tcp", as host:port) or a recording played back ("Replay", the path, at
+	 * "ReplaySpeed" times the rate it was recorded at, 0 for as fast as it can), to load test
+	 * the capture without a board.
+	 * @return The Transports, or null if there aren't any, in which case the activity's finished
+	 */
+	private List<Transport> getTransports() {
+		List<Transport> transports = new ArrayList<Transport>();
+		String replay = getIntent().getStringExtra("Replay");
+		String tcp = getIntent().getStringExtra("Tcp");
+		if (replay!=null) {
+			transports.add(new ReplayTransport(new File(replay),
+					getIntent().getDoubleExtra("ReplaySpeed", 1)));
+			return transports;
+		}
+		if (tcp!=null) {
+			int colon = tcp.lastIndexOf(':');
+			int port = -1;
+			if (colon>0) {
+				try {
+					port = Integer.parseInt(tcp.substring(colon+1));
+				} catch (NumberFormatException e) {
+					// Not a number, so it's no port either
+				}
+			}
+			if (port<1 || port>65535) {
+				butter("Tcp should be host:port, not " + tcp);
+				finish();
+				return null;
+			}
+			transports.add(new TcpTransport(tcp.substring(0, colon), port));
+			return transports;
+		}
 
 		// BT adapter should already be enabled in the main menu
-		if (mBluetoothAdapter.isEnabled()) {
-			mBluetoothSerialService = new BluetoothSerialService(this, mBtHandler);
-			mBluetoothSerialService.start();
-		} else {
+		if (mBluetoothAdapter==null || !mBluetoothAdapter.isEnabled()) {
 			butter("Adapter wasn't enabled!");
 			finish();
+			return null;
+		}
+		for (BluetoothDevice device : mMarble.getDevices())
+			transports.add(new BluetoothTransport(device));
+		if (transports.isEmpty()) {
+			butter("No Marble paired!");
+			finish();
+			return null;
 		}
-		mBluetoothSerialService.connect(mDevice);
+		return transports;
 	}
 
 	private void butter(String message) {
@@ -131,71 +248,250 @@ public class ReadData extends Activity {
 		startActivity(intent);
 	}
 
-	// The Handler that gets information back from the BluetoothService
+	/**
+	 * Plots the recording of the only board, or brings up a dialog to choose which board's
+	 * recording to plot if there were several.
+	 */
+	private void choosePlotGraphFile() {
+		final List<File> files = new ArrayList<File>();
+		List<String> labels = new ArrayList<String>();
+		for (CaptureSession session : mSessions) {
+			if (session.hasRows()) {
+				files.add(session.getFile());
+				labels.add(session.getTransport().getAddress() + ": "
+						+ session.getRowsFlushed() + " rows");
+			}
+		}
+		if (files.isEmpty())
+			butter("No data received!!");
+		else if (files.size()==1)
+			startPlotGraphActivity(files.get(0).getAbsolutePath());
+		else {
+			new AlertDialog.Builder(this)
+			.setTitle("Choose the board to plot:")
+			.setItems(labels.toArray(new String[labels.size()]),
+					new DialogInterface.OnClickListener() {
+
+				@Override
+				public void onClick(DialogInterface dialogue, int which) {
+					startPlotGraphActivity(files.get(which).getAbsolutePath());
+				}
+			})
+			.show();
+		}
+	}
+
+	/**
+	 * Checks if the capture's over: at least one board's done, and none are still connected or
+	 * getting their connection back. Boards that were never connected to don't hold it up.
+	 */
+	private boolean isDone() {
+		boolean isDone = false;
+		for (CaptureSession session : mSessions) {
+			if (session.hasStarted())
+				return false;
+			isDone |= session.isDone();
+		}
+		return isDone;
+	}
+
+	/**
+	 * Shows how much has come in from all the boards together, and how fast.
+	 */
+	private void updateProgress() {
+		long bytes = 0, rows = 0, flushed = 0, dropped = 0;
+		for (CaptureSession session : mSessions) {
+			bytes += session.getBytesRead();
+			rows += session.getRowsSubmitted();
+			flushed += session.getRowsFlushed();
+			dropped += session.getOverrunRows();
+		}
+		long millis = System.currentTimeMillis() - mCaptureStart;
+		long rate = mCaptureStart==0 || millis<=0 ? 0 : rows*1000 / millis;
+		String progress = bytes + " bytes received, " + flushed + " rows saved, " + rate
+				+ " rows/s";
+		if (dropped>0)
+			progress += ", " + dropped + " dropped";
+		if (mSessions.length>1)
+			progress = mSessions.length + " boards: " + progress;
+		mProgress.setText(progress);
+	}
+
+	/**
+	 * Returns what the title's prefixed with for a board's messages: nothing if there's only
+	 * the one, or its address otherwise.
+	 */
+	private String labelOf(CaptureSession session) {
+		return mSessions.length==1 ? "" : session.getTransport().getAddress() + ": ";
+	}
+
+	/**
+	 * A point on the live graph. They're kept and reused from frame to frame, so drawing the live
+	 * graph doesn't allocate anything once the ring buffer's full.
+	 */
+	private static class LivePoint implements GraphViewDataInterface {
+		double x, y;
+
+		@Override
+		public double getX() {
+			return x;
+		}
+
+		@Override
+		public double getY() {
+			return y;
+		}
+	}
+
+	// Draws a frame of the live graph, if any rows came in since the last one, then the next one
+	private final Runnable mFrame = new Runnable() {
+		@Override
+		public void run() {
+			if (mLiveBuffer.getTotal()!=mLastFrameTotal)
+				drawLiveGraph();
+			mFrameHandler.postDelayed(this, FRAME_MILLIS);
+		}
+	};
+
+	/**
+	 * Draws the live graph from a snapshot of the ring buffer. The graph's created on the first
+	 * frame that has any rows to show.
+	 */
+	private void drawLiveGraph() {
+		long total = mLiveBuffer.snapshot(mLiveValues);
+		int size = (int)Math.min(total, LIVE_CAPACITY);
+		long firstRow = total - size;
+		for (int series=0; series<LIVE_TITLES.length; series++) {
+			// GraphView takes the number of points from the length of the array, so a new one's
+			// only needed until the ring buffer's full
+			if (mLiveData[series]==null || mLiveData[series].length!=size) {
+				mLiveData[series] = new GraphViewDataInterface[size];
+				System.arraycopy(mLivePoints[series], 0, mLiveData[series], 0, size);
+			}
+			int[] values = mLiveValues[series];
+			LivePoint[] points = mLivePoints[series];
+			for (int i=0; i<size; i++) {
+				points[i].x = firstRow + i;
+				points[i].y = values[i];
+			}
+		}
+		mLastFrameTotal = total;
+
+		if (mLiveGraph==null) {
+			mLiveGraph = new LineGraphView(this, "Live");
+			mLiveSeries = new GraphViewSeries[LIVE_TITLES.length];
+			for (int series=0; series<LIVE_TITLES.length; series++) {
+				mLiveSeries[series] =
+						new GraphViewSeries(LIVE_TITLES[series], null, mLiveData[series]);
+				mLiveSeries[series].getStyle().color = LIVE_COLORS[series];
+				mLiveGraph.addSeries(mLiveSeries[series]);
+			}
+			mLiveGraph.setShowLegend(true);
+			((LinearLayout)findViewById(R.id.live_graph)).addView(mLiveGraph);
+		} else {
+			for (int series=0; series<LIVE_TITLES.length; series++)
+				mLiveSeries[series].resetData(mLiveData[series]);
+		}
+	}
+
+	// The Handler that gets information back from one board's BluetoothService. Every board
+	// has its own, so the messages can be told apart.
 	@SuppressLint("HandlerLeak")
-	private Handler mBtHandler = new Handler() {
+	private class SessionHandler extends Handler {
+		private final int mmIndex;
+
+		SessionHandler(int index) {
+			mmIndex = index;
+		}
+
 		@Override
-		public void handleMessage(Message msg) {        	
-			switch (msg.what) {
-			case MESSAGE_STATE_CHANGE:
-				switch (msg.arg1) {
-				case BluetoothSerialService.STATE_CONNECTED:
-					if(D) Log.i(TAG, "Connected to device");
-					mTitle.setText("Connected to device");
-					hasStarted = true;
-					break;
-
-				case BluetoothSerialService.STATE_CONNECTING:
-					if(D) Log.i(TAG, "Connecting to device");
-					mTitle.setText("Connecting to device...");
-					break;
-
-				case BluetoothSerialService.STATE_LISTEN:
-				case BluetoothSerialService.STATE_NONE:
-					if (hasStarted) {
-						hasStarted = false;
-						isDone = true;
-						if (currentFile.length()==0) {
-							if(D) Log.i(TAG, "No data, deleting");
-							mTitle.setText("No data received!");
-							butter("No data received!!");
-						}
-						if(D) Log.i(TAG, "Data receiving is DONE WOWOWO");
-						mTitle.setText("Done!");
-						butter("Data received! Saved at: " + currentFile.getPath());
-					} else {
-						if(D) Log.i(TAG, "Not connected to device");
-						mTitle.setText("Not connected yet");
-					}
-					break;
-				}
+		public void handleMessage(Message msg) {
+			handleSessionMessage(mSessions[mmIndex], msg);
+		}
+	}
+
+	private void handleSessionMessage(CaptureSession session, Message msg) {
+		String label = labelOf(session);
+		switch (msg.what) {
+		case MESSAGE_STATE_CHANGE:
+			switch (msg.arg1) {
+			case BluetoothSerialService.STATE_CONNECTED:
+				if(D) Log.i(TAG, label + "Connected to device");
+				mTitle.setText(label + "Connected to device");
+				session.setStarted(true);
+				if (mCaptureStart==0)
+					mCaptureStart = System.currentTimeMillis();
 				break;
 
-			case MESSAGE_READ:
-				String message = (String)msg.obj;
-				if (D) Log.i(TAG, message);
-				mPrintWriter.write((String)message);
-				mProgress.setText(String.valueOf(mBytesRead+=msg.arg1) + " bytes received");
+			case BluetoothSerialService.STATE_CONNECTING:
+				if(D) Log.i(TAG, label + "Connecting to device");
+				mTitle.setText(label + "Connecting to device...");
 				break;
 
-			case MESSAGE_DEVICE_NAME:
-				String mConnectedDeviceName = msg.getData().getString(DEVICE_NAME);
-				Toast.makeText(ReadData.this, "Connected to: "
-						+ mConnectedDeviceName, Toast.LENGTH_SHORT).show();
+			case BluetoothSerialService.STATE_RECONNECTING:
+				// The recording's kept open; the rows carry on in it once the link's back
+				if(D) Log.i(TAG, label + "Lost the device, reconnecting");
+				mTitle.setText(label + "Connection lost, reconnecting...");
 				break;
 
-			case MESSAGE_TOAST:
-				Toast.makeText(ReadData.this, msg.getData().getString(TOAST), Toast.LENGTH_SHORT).show();
+			case BluetoothSerialService.STATE_LISTEN:
+			case BluetoothSerialService.STATE_NONE:
+				if (session.hasStarted()) {
+					session.setStarted(false);
+					session.setDone(true);
+					session.closeRecording();
+					if (!session.hasRows()) {
+						if(D) Log.i(TAG, label + "No data, deleting");
+						mTitle.setText(label + "No data received!");
+						butter(label + "No data received!!");
+						break;
+					}
+					if(D) Log.i(TAG, label + "Data receiving is DONE WOWOWO");
+					mTitle.setText(isDone() ? "Done!" : label + "Done!");
+					butter("Data received! Saved at: " + session.getFile().getPath());
+				} else {
+					if(D) Log.i(TAG, label + "Not connected to device");
+					mTitle.setText(label + "Not connected yet");
+				}
 				break;
 			}
+			break;
+
+		case MESSAGE_READ:
+			// More rows came in. They've gone straight from the BluetoothSerialService to the
+			// session's CaptureWriter; all that's done here is updating the progress.
+			session.getService().acknowledgeRead();
+			if (D) Log.i(TAG, label + session.getService().getRowsRead() + " rows received");
+			if (session.isRecording())
+				updateProgress();
+			break;
+
+		case MESSAGE_RECONNECTED:
+			// msg.obj holds when the link was lost and when it was back. The
+			// BluetoothSerialService has marked the gap in the recording already.
+			long[] gap = (long[])msg.obj;
+			Toast.makeText(ReadData.this, label + "Reconnected after "
+					+ (gap[1]-gap[0]) / 1000.0 + " s", Toast.LENGTH_SHORT).show();
+			break;
+
+		case MESSAGE_DEVICE_NAME:
+			String mConnectedDeviceName = msg.getData().getString(DEVICE_NAME);
+			Toast.makeText(ReadData.this, "Connected to: "
+					+ mConnectedDeviceName, Toast.LENGTH_SHORT).show();
+			break;
+
+		case MESSAGE_TOAST:
+			Toast.makeText(ReadData.this, label + msg.getData().getString(TOAST),
+					Toast.LENGTH_SHORT).show();
+			break;
 		}
-	};    
+	}
 
 	//////////////////////////
 	//*   LOGS 'N' STUFF   *//
 	//////////////////////////
 	protected void onStart() {
-		if (!mBluetoothAdapter.isEnabled())
+		if (mBluetoothAdapter!=null && !mBluetoothAdapter.isEnabled())
 			mBluetoothAdapter.enable();
 		super.onStart();
 		if (D) Log.i(TAG, "+++ On Start +++");
@@ -204,9 +500,13 @@ public class ReadData extends Activity {
 	protected void onResume() {
 		super.onResume();
 		if (D) Log.i(TAG, "+++ On Resume +++");
+		// Only draw the live graph while it can be seen, and only ever have the one frame pending
+		mFrameHandler.removeCallbacks(mFrame);
+		mFrameHandler.post(mFrame);
 	}
 
 	protected void onPause() {
+		mFrameHandler.removeCallbacks(mFrame);
 		super.onPause();
 		if (D) Log.i(TAG, "+++ On Pause+++");
 	}
@@ -217,15 +517,17 @@ public class ReadData extends Activity {
 	}
 
 	protected void onDestroy() {
-		// Close all the things: SerialService, and the PrintWriter. And maybe other things.
-		if (mBluetoothSerialService!=null) {
-			mBluetoothSerialService.stop();
-			mBluetoothSerialService = null;
-		}
-		if (mPrintWriter!=null)
-			mPrintWriter.close();
-		if (currentFile.length()==0)
-			currentFile.delete();
+		// The frames keep posting themselves, and hold on to the Activity, until they're removed
+		mFrameHandler.removeCallbacks(mFrame);
+		// Close all the things: every board's SerialService, and their recordings
+		for (CaptureSession session : mSessions)
+			session.stop();
+		for (CaptureSession session : mSessions) {
+			session.closeRecording();
+			session.deleteIfEmpty();
+			// So the STATE_NONE that stop() sends isn't taken for the board dropping out
+			session.setStarted(false);
+		}
 		super.onDestroy();
 		if (D) Log.i(TAG, "+++ On Destroy +++");
 	}
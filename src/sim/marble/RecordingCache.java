@@ -0,0 +1,190 @@
+/*
+ * This is the RecordingCache class. It keeps the recordings PlotGraph has read lately, along with
+ * their stats, their derived channels and the series downsampled for the whole recording, so
+ * that opening one of them again doesn't mean reading, parsing and filtering it again. There's
+ * one for the whole app, kept by Marble.
+ * Recordings are looked up by path, and only count as a hit if they haven't been modified since
+ * they were read. The least recently used ones are dropped first once the cache goes over its
+ * budget in bytes.
+ */
+
+package sim.marble;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.jjoe64.graphview.GraphView.GraphViewData;
+
+public class RecordingCache {
+
+	// Rough sizes of the objects held, for working out what an entry costs
+	private static final int OBJECT_OVERHEAD = 16;
+	private static final int POINT_SIZE = OBJECT_OVERHEAD + 2*8 + 4;
+	private static final int STATS_SIZE_PER_COLUMN = 4 + 4 + 8 + 8 + ColumnStats.BINS*8;
+
+	private final LinkedHashMap<String, Entry> mEntries =
+			new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long mBudget;
+	private long mSize = 0;
+	private long mHits = 0, mMisses = 0, mEvictions = 0;
+
+	/**
+	 * A recording as PlotGraph read it. Nothing in it is changed once it's been cached, since
+	 * it's shared by every PlotGraph that opens the recording.
+	 */
+	public static class Entry {
+		public final IntColumnMatrix dataValues;
+		/** The stats of the recording, or null if it doesn't have any */
+		public final ColumnStats stats;
+		/** The channels PlotGraph worked out from the recording, or null if there aren't any */
+		public final IntColumnMatrix derived;
+		/** The plotted series, downsampled for the whole recording, one array per series */
+		public final GraphViewData[][] series;
+		/** Whether any points had to be dropped from the series */
+		public final boolean isDecimated;
+		/** The width in pixels the series were downsampled for */
+		public final int width;
+		final long length;
+		final long lastModified;
+		final long size;
+
+		public Entry(File file, IntColumnMatrix dataValues, ColumnStats stats,
+				IntColumnMatrix derived, GraphViewData[][] series, boolean isDecimated,
+				int width) {
+			this.dataValues = dataValues;
+			this.stats = stats;
+			this.derived = derived;
+			this.series = series;
+			this.isDecimated = isDecimated;
+			this.width = width;
+			length = file.length();
+			lastModified = file.lastModified();
+			size = estimateSize(dataValues, stats, derived, series);
+		}
+	}
+
+	/**
+	 * @param budget The most bytes the cached recordings should take up, roughly
+	 */
+	public RecordingCache(long budget) {
+		mBudget = budget;
+	}
+
+	/**
+	 * Returns the cached recording, if it's there and the file hasn't changed since. A recording
+	 * that has changed is dropped.
+	 * @param file The recording
+	 * @return The entry, or null on a miss
+	 */
+	public synchronized Entry get(File file) {
+		Entry entry = mEntries.get(file.getPath());
+		if (entry!=null && (entry.length!=file.length()
+				|| entry.lastModified!=file.lastModified())) {
+			remove(file.getPath());
+			entry = null;
+		}
+		if (entry==null)
+			mMisses++;
+		else mHits++;
+		return entry;
+	}
+
+	/**
+	 * Caches a recording, replacing whatever was cached for it before, and drops the least
+	 * recently used recordings until the cache is back under its budget. A recording that's
+	 * bigger than the whole budget isn't cached at all.
+	 * @param file The recording
+	 * @param entry What was read from it
+	 */
+	public synchronized void put(File file, Entry entry) {
+		remove(file.getPath());
+		if (entry.size>mBudget)
+			return;
+		mEntries.put(file.getPath(), entry);
+		mSize += entry.size;
+		trimToSize(mBudget);
+	}
+
+	/**
+	 * Drops the least recently used recordings until the cache takes up at most the given
+	 * number of bytes, e.g. 0 when the system's running low on memory.
+	 */
+	public synchronized void trimToSize(long size) {
+		Iterator<Map.Entry<String, Entry>> eldest = mEntries.entrySet().iterator();
+		while (mSize>size && eldest.hasNext()) {
+			mSize -= eldest.next().getValue().size;
+			eldest.remove();
+			mEvictions++;
+		}
+	}
+
+	/**
+	 * Changes the budget, dropping recordings straight away if the cache's now over it.
+	 */
+	public synchronized void setBudget(long budget) {
+		mBudget = budget;
+		trimToSize(budget);
+	}
+
+	public synchronized long getBudget() {
+		return mBudget;
+	}
+
+	/**
+	 * Returns the number of bytes the cached recordings take up, roughly
+	 */
+	public synchronized long getSize() {
+		return mSize;
+	}
+
+	public synchronized int getCount() {
+		return mEntries.size();
+	}
+
+	public synchronized long getHitCount() {
+		return mHits;
+	}
+
+	public synchronized long getMissCount() {
+		return mMisses;
+	}
+
+	/**
+	 * Returns the number of recordings dropped to stay under the budget. Recordings dropped
+	 * because they'd changed or were replaced don't count.
+	 */
+	public synchronized long getEvictionCount() {
+		return mEvictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "RecordingCache[" + mEntries.size() + " recordings, " + mSize + "/" + mBudget
+				+ " bytes, " + mHits + " hits, " + mMisses + " misses, " + mEvictions
+				+ " evictions]";
+	}
+
+	private void remove(String path) {
+		Entry entry = mEntries.remove(path);
+		if (entry!=null)
+			mSize -= entry.size;
+	}
+
+	private static long estimateSize(IntColumnMatrix dataValues, ColumnStats stats,
+			IntColumnMatrix derived, GraphViewData[][] series) {
+		long size = OBJECT_OVERHEAD + (long)dataValues.getCapacity() * dataValues.getCols() * 4;
+		if (derived!=null)
+			size += OBJECT_OVERHEAD + (long)derived.getCapacity() * derived.getCols() * 4;
+		if (stats!=null)
+			size += OBJECT_OVERHEAD + (long)stats.getCols() * STATS_SIZE_PER_COLUMN;
+		if (series!=null) {
+			for (GraphViewData[] points : series) {
+				if (points!=null)
+					size += OBJECT_OVERHEAD + (long)points.length * POINT_SIZE;
+			}
+		}
+		return size;
+	}
+}
@@ -0,0 +1,311 @@
+/*
+ * This is the RecordingCatalog class. It keeps what PlotGraph's file picker shows about every
+ * recording (size, row count, duration, columns, last-modified time and the range of every
+ * column) in a single file, "catalog.idx", in the recordings' folder, so the picker doesn't have
+ * to open every recording to show it.
+ * ReadData adds each recording as soon as it's closed. Anything else, e.g. recordings copied
+ * onto the device or deleted by hand, is caught by refresh(), which only opens the recordings
+ * whose size or last-modified time don't match what's in the catalog.
+ *
+ * Layout of the catalog, all values big-endian:
+ *   header:  int MAGIC, short version, int entry count
+ *   entries: UTF file name, long length, long last-modified time, long row count (-1 if
+ *            unknown), long start time (-1 if unknown), long end time (-1 if unknown), short
+ *            column count, UTF column names, boolean whether there are stats, and if so the
+ *            ColumnStats without histograms
+ */
+
+package sim.marble;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class RecordingCatalog {
+
+	public static final String FILE_NAME = "catalog.idx";
+	public static final int MAGIC = 0x4D434154; // "MCAT"
+	public static final short VERSION = 3;
+
+	private static final String[] NO_SCHEMA = new String[0];
+
+	/** Newest first */
+	public static final Comparator<Entry> BY_DATE = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry a, Entry b) {
+			return compareLongs(b.lastModified, a.lastModified);
+		}
+	};
+
+	/** Largest first */
+	public static final Comparator<Entry> BY_SIZE = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry a, Entry b) {
+			return compareLongs(b.length, a.length);
+		}
+	};
+
+	/** In alphabetical order */
+	public static final Comparator<Entry> BY_NAME = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry a, Entry b) {
+			return a.name.compareToIgnoreCase(b.name);
+		}
+	};
+
+	private final File mDir;
+	private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+	private boolean mIsDirty = false;
+
+	/**
+	 * What the catalog knows about a recording.
+	 */
+	public static class Entry {
+		/** The name of the file, without the folder */
+		public final String name;
+		public final long length;
+		public final long lastModified;
+		/** The number of rows, or -1 if it isn't known (legacy text recordings) */
+		public final long rows;
+		/** The time the recording was started in ms, or -1 if it isn't known */
+		public final long startTime;
+		/**
+		 * The time the capture ended in ms, as kept in the recording, or -1 if it isn't known
+		 * (it was written by an older version, or it's a legacy text recording)
+		 */
+		public final long endTime;
+		/** The names of the columns; empty if they aren't known */
+		public final String[] schema;
+		/** The statistics of every column, without histograms, or null if they aren't known */
+		public final ColumnStats stats;
+
+		Entry(String name, long length, long lastModified, long rows, long startTime,
+				long endTime, String[] schema, ColumnStats stats) {
+			this.name = name;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.rows = rows;
+			this.startTime = startTime;
+			this.endTime = endTime;
+			this.schema = schema;
+			this.stats = stats;
+		}
+
+		/**
+		 * Returns how long the recording ran for in ms, from its start time until the capture
+		 * ended, or -1 if it isn't known. Without an end time it's until the file was last
+		 * written to, which is only right as long as it's never been copied or touched.
+		 */
+		public long getDuration() {
+			if (startTime<0)
+				return -1;
+			return Math.max(0, (endTime>0 ? endTime : lastModified) - startTime);
+		}
+
+		boolean isUpToDate(File file) {
+			return file.length()==length && file.lastModified()==lastModified;
+		}
+	}
+
+	private RecordingCatalog(File dir) {
+		mDir = dir;
+	}
+
+	/**
+	 * Loads the catalog of a folder, brings it up to date with the recordings that are actually
+	 * there, and saves it again if anything changed. Takes as long as it takes to open the
+	 * recordings that aren't in the catalog yet, so don't call it on the UI thread.
+	 * @param dir The folder the recordings are kept in
+	 */
+	public static synchronized RecordingCatalog open(File dir) throws IOException {
+		RecordingCatalog catalog = load(dir);
+		catalog.refresh();
+		catalog.save();
+		return catalog;
+	}
+
+	/**
+	 * Adds a recording that's just been closed to the catalog of its folder, or updates it,
+	 * without looking at any of the other recordings.
+	 * @param recording The recording, which must be closed by now
+	 */
+	public static synchronized void update(File recording) throws IOException {
+		RecordingCatalog catalog = load(recording.getParentFile());
+		catalog.put(describe(recording));
+		catalog.save();
+	}
+
+	/**
+	 * Reads the catalog of a folder as it is, without checking it against the recordings.
+	 * A catalog that's missing or can't be read comes out empty.
+	 * @param dir The folder the recordings are kept in
+	 */
+	static RecordingCatalog load(File dir) {
+		RecordingCatalog catalog = new RecordingCatalog(dir);
+		File file = new File(dir, FILE_NAME);
+		if (!file.isFile())
+			return catalog;
+		try {
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(file)));
+			try {
+				// An older catalog's simply worked out again
+				if (in.readInt()!=MAGIC || in.readShort()!=VERSION) {
+					catalog.mIsDirty = true;
+					return catalog;
+				}
+				int count = in.readInt();
+				for (int i=0; i<count; i++) {
+					String name = in.readUTF();
+					long length = in.readLong();
+					long lastModified = in.readLong();
+					long rows = in.readLong();
+					long startTime = in.readLong();
+					long endTime = in.readLong();
+					String[] schema = new String[in.readShort()];
+					for (int col=0; col<schema.length; col++)
+						schema[col] = in.readUTF();
+					ColumnStats stats = in.readBoolean() ? ColumnStats.read(in) : null;
+					catalog.mEntries.put(name, new Entry(name, length, lastModified, rows,
+							startTime, endTime, schema, stats));
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// It's only a cache; whatever's missing is worked out again by refresh()
+			catalog.mEntries.clear();
+			catalog.mIsDirty = true;
+		}
+		return catalog;
+	}
+
+	/**
+	 * Drops the recordings that are gone and adds the ones that are new or have changed.
+	 */
+	public void refresh() throws IOException {
+		File[] files = mDir.listFiles(new FileFilter() {
+
+			@Override
+			public boolean accept(File file) {
+				return file.isFile() && RecordingFormat.isRecording(file.getName());
+			}
+		});
+		Set<String> names = new HashSet<String>();
+		if (files!=null) {
+			for (File file : files) {
+				names.add(file.getName());
+				Entry entry = mEntries.get(file.getName());
+				if (entry==null || !entry.isUpToDate(file)) {
+					try {
+						put(describe(file));
+					} catch (IOException e) {
+						// Probably still being written, or not a recording after all
+						mEntries.remove(file.getName());
+					}
+				}
+			}
+		}
+		if (mEntries.keySet().retainAll(names))
+			mIsDirty = true;
+	}
+
+	/**
+	 * Returns every recording in the catalog, in the given order.
+	 * @param order One of BY_DATE, BY_SIZE or BY_NAME
+	 */
+	public List<Entry> getEntries(Comparator<Entry> order) {
+		List<Entry> entries = new ArrayList<Entry>(mEntries.values());
+		Collections.sort(entries, order);
+		return entries;
+	}
+
+	/**
+	 * Returns the file an entry describes
+	 */
+	public File getFile(Entry entry) {
+		return new File(mDir, entry.name);
+	}
+
+	/**
+	 * Writes the catalog out, if anything's changed since it was loaded. It's written to a
+	 * temporary file first, so a catalog that's half written is never left behind.
+	 */
+	public void save() throws IOException {
+		if (!mIsDirty)
+			return;
+		File file = new File(mDir, FILE_NAME);
+		File temp = new File(mDir, FILE_NAME + ".tmp");
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			out.writeInt(mEntries.size());
+			for (Entry entry : mEntries.values()) {
+				out.writeUTF(entry.name);
+				out.writeLong(entry.length);
+				out.writeLong(entry.lastModified);
+				out.writeLong(entry.rows);
+				out.writeLong(entry.startTime);
+				out.writeLong(entry.endTime);
+				out.writeShort(entry.schema.length);
+				for (String name : entry.schema)
+					out.writeUTF(name);
+				out.writeBoolean(entry.stats!=null);
+				if (entry.stats!=null)
+					entry.stats.write(out, false);
+			}
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file))
+			throw new IOException("Couldn't replace " + file.getPath());
+		mIsDirty = false;
+	}
+
+	private void put(Entry entry) {
+		mEntries.put(entry.name, entry);
+		mIsDirty = true;
+	}
+
+	/**
+	 * Works out the entry of a recording. Only the header, gaps, stats and footer of a binary
+	 * recording are read; a legacy text recording isn't read at all.
+	 */
+	static Entry describe(File file) throws IOException {
+		long length = file.length(), lastModified = file.lastModified();
+		if (!RecordingFormat.isBinary(file.getName()))
+			return new Entry(file.getName(), length, lastModified, -1, -1, -1, NO_SCHEMA,
+					null);
+		FileInputStream in = new FileInputStream(file);
+		try {
+			RecordingFormat.Header header = RecordingFormat.readHeader(
+					new DataInputStream(new BufferedInputStream(in)));
+			long rows = RecordingReader.countRows(in.getChannel(), header);
+			long endTime = RecordingReader.readEndTime(file);
+			return new Entry(file.getName(), length, lastModified, rows, header.startTime,
+					endTime>0 ? endTime : -1, header.schema, RecordingReader.readStats(file));
+		} finally {
+			in.close();
+		}
+	}
+
+	private static int compareLongs(long a, long b) {
+		return a<b ? -1 : (a==b ? 0 : 1);
+	}
+}
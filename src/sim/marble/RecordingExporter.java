@@ -0,0 +1,510 @@
+/*
+ * This is the RecordingExporter class. It converts recordings, binary or legacy text, into files
+ * that are easy to use off the phone: CSV (a header of column names, then one row per line,
+ * comma separated, LF line endings), the binary format (delta encoded, gaps and stats kept), or
+ * one file per column (every value as a big-endian int, e.g. numpy's dtype '>i4').
+ * Recordings are streamed through a chunk at a time (see RecordingReader.read(File, RowSink) and
+ * TextRecordingReader.read(File, int, RowSink)), so none is ever loaded whole, and an export takes
+ * the same memory whatever the size of the recordings. Several recordings are converted at the
+ * same time on a pool of worker threads, and the progress and throughput are reported to a
+ * Listener as they go. The core module's ExportTool runs it on a PC.
+ */
+
+package sim.marble;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class RecordingExporter {
+
+	public static final int FORMAT_CSV = 0;
+	public static final int FORMAT_BINARY = 1;
+	public static final int FORMAT_COLUMNS = 2;
+
+	public static final String CSV_EXTENSION = ".csv";
+	/** What every column file's name ends in, after the recording's and the column's */
+	public static final String COLUMN_EXTENSION = ".i32";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// The number of rows between progress reports, per recording
+	private static final long PROGRESS_ROWS = 64 * 1024;
+
+	/**
+	 * Gets told how an export's going. It's called from the worker threads, but never from two
+	 * at once.
+	 */
+	public interface Listener {
+		void onProgress(Progress progress);
+	}
+
+	/**
+	 * How far an export's got.
+	 */
+	public static class Progress {
+		/** The number of recordings being exported */
+		public final int files;
+		/** The number of recordings that are done, or failed */
+		public final int filesDone;
+		/** The number of recordings that failed */
+		public final int filesFailed;
+		/** The number of rows exported so far */
+		public final long rows;
+		/** The size of the recordings that are done so far, in bytes */
+		public final long bytes;
+		/** The time since the export started, in ms */
+		public final long millis;
+
+		Progress(int files, int filesDone, int filesFailed, long rows, long bytes, long millis) {
+			this.files = files;
+			this.filesDone = filesDone;
+			this.filesFailed = filesFailed;
+			this.rows = rows;
+			this.bytes = bytes;
+			this.millis = millis;
+		}
+
+		public long getRowsPerSecond() {
+			return millis<=0 ? 0 : rows*1000 / millis;
+		}
+
+		public long getBytesPerSecond() {
+			return millis<=0 ? 0 : bytes*1000 / millis;
+		}
+	}
+
+	/**
+	 * What came out of exporting a single recording.
+	 */
+	public static class Result {
+		public final File recording;
+		/** The files written, or whatever was written of them if there was an error */
+		public final List<File> outputs;
+		/** The number of rows exported */
+		public final long rows;
+		/** What went wrong, or null if nothing did */
+		public final IOException error;
+
+		Result(File recording, List<File> outputs, long rows, IOException error) {
+			this.recording = recording;
+			this.outputs = outputs;
+			this.rows = rows;
+			this.error = error;
+		}
+	}
+
+	private final int format;
+	private final File mOutputDir;
+	private final int threads;
+	private Listener mListener;
+	private volatile boolean mIsCancelled = false;
+
+	// Progress of the export that's running, guarded by this
+	private int mFiles, mFilesDone, mFilesFailed;
+	private long mRows, mBytes, mStartTime;
+
+	/**
+	 * @param format One of the FORMAT_ constants
+	 * @param outputDir Where the exported files go; made if it isn't there
+	 * @param threads The most recordings converted at the same time
+	 */
+	public RecordingExporter(int format, File outputDir, int threads) {
+		if (format<FORMAT_CSV || format>FORMAT_COLUMNS)
+			throw new IllegalArgumentException("Unknown format " + format);
+		this.format = format;
+		mOutputDir = outputDir;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Makes an exporter that converts as many recordings at the same time as there are cores.
+	 */
+	public RecordingExporter(int format, File outputDir) {
+		this(format, outputDir, Runtime.getRuntime().availableProcessors());
+	}
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Stops the export that's running as soon as it can. The recordings that weren't done yet
+	 * fail with an IOException, and what was written of them is left behind.
+	 * It can be called before the export's even started, which then fails straight away, so an
+	 * exporter that's been cancelled stays cancelled: the next export needs a new one.
+	 */
+	public void cancel() {
+		mIsCancelled = true;
+	}
+
+	/**
+	 * Exports a number of recordings, several at the same time, and waits for them all.
+	 * A recording that fails doesn't stop the others.
+	 * @param recordings The recordings, binary or legacy text
+	 * @return What came out of every recording, in the same order
+	 * @throws IllegalArgumentException If two recordings have the same name, e.g. one's listed
+	 *         twice, since they'd both be exported to the same files at the same time
+	 */
+	public List<Result> export(List<File> recordings) throws IOException {
+		Set<String> names = new HashSet<String>();
+		for (File recording : recordings) {
+			if (!names.add(recording.getName()))
+				throw new IllegalArgumentException("More than one recording named "
+						+ recording.getName());
+		}
+		if (!mOutputDir.isDirectory() && !mOutputDir.mkdirs())
+			throw new IOException("Can't make " + mOutputDir);
+		synchronized (this) {
+			mFiles = recordings.size();
+			mFilesDone = mFilesFailed = 0;
+			mRows = mBytes = 0;
+			mStartTime = System.currentTimeMillis();
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(
+				Math.max(1, Math.min(threads, recordings.size())));
+		try {
+			// The biggest go first, so one big recording doesn't start last and hold everything up
+			final long[] lengths = new long[recordings.size()];
+			List<Integer> bySize = new ArrayList<Integer>();
+			for (int i=0; i<lengths.length; i++) {
+				lengths[i] = recordings.get(i).length();
+				bySize.add(i);
+			}
+			Collections.sort(bySize, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					long difference = lengths[b] - lengths[a];
+					return difference<0 ? -1 : difference>0 ? 1 : 0;
+				}
+			});
+			List<Future<Result>> futures = new ArrayList<Future<Result>>(
+					Collections.<Future<Result>>nCopies(lengths.length, null));
+			for (int i : bySize) {
+				final File recording = recordings.get(i);
+				futures.set(i, pool.submit(new Callable<Result>() {
+					@Override
+					public Result call() {
+						return exportOne(recording);
+					}
+				}));
+			}
+			List<Result> results = new ArrayList<Result>();
+			for (Future<Result> future : futures)
+				results.add(Futures.getUninterruptibly(future));
+			return results;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Exports a single recording, and waits for it.
+	 */
+	public Result export(File recording) throws IOException {
+		return export(Collections.singletonList(recording)).get(0);
+	}
+
+	/**
+	 * Returns the files a recording would be exported to, in the format and directory of this
+	 * exporter. Their names start with the recording's, extension and all, e.g. X.mrb.csv.
+	 * @param recording The recording
+	 * @param schema Its column names
+	 */
+	public List<File> getOutputs(File recording, String[] schema) {
+		// The recording's extension's kept, so that X.txt and X.mrb don't both export to X.csv
+		String name = recording.getName();
+		List<File> outputs = new ArrayList<File>();
+		if (format==FORMAT_CSV) {
+			outputs.add(new File(mOutputDir, name + CSV_EXTENSION));
+		} else if (format==FORMAT_BINARY) {
+			outputs.add(new File(mOutputDir, name + RecordingFormat.EXTENSION));
+		} else {
+			// Column names go into file names, so anything odd in them is replaced
+			for (String column : schema) {
+				String safe = column.replaceAll("[^A-Za-z0-9_-]", "_");
+				outputs.add(new File(mOutputDir, name + "." + safe + COLUMN_EXTENSION));
+			}
+		}
+		return outputs;
+	}
+
+	private Result exportOne(File recording) {
+		boolean isBinary = RecordingFormat.isBinary(recording.getName());
+		List<File> outputs = Collections.emptyList();
+		ExportSink sink = null;
+		IOException error = null;
+		try {
+			if (mIsCancelled)
+				throw new IOException("Export cancelled");
+			RecordingFormat.Header header = isBinary ? RecordingReader.readHeader(recording) : null;
+			String[] schema = isBinary ? header.schema : RecordingFormat.DEFAULT_SCHEMA;
+			outputs = getOutputs(recording, schema);
+			for (File output : outputs) {
+				if (output.getCanonicalFile().equals(recording.getCanonicalFile()))
+					throw new IOException("Exporting " + recording + " would overwrite it");
+			}
+			if (format==FORMAT_CSV)
+				sink = new CsvSink(outputs.get(0), schema);
+			else if (format==FORMAT_BINARY)
+				sink = new BinarySink(outputs.get(0), schema, isBinary ? header.startTime : 0);
+			else sink = new ColumnSink(outputs, schema.length);
+			try {
+				if (isBinary)
+					RecordingReader.read(recording, sink);
+				else TextRecordingReader.read(recording, schema.length, sink);
+			} catch (ExportException e) {
+				throw e.getCause();
+			}
+			if (sink instanceof BinarySink) {
+				// The copy keeps when the capture ended, rather than when it was exported
+				RecordingWriter writer = ((BinarySink)sink).mmWriter;
+				writer.setEndTime(isBinary ? RecordingReader.readEndTime(recording) : 0);
+				if (isBinary) {
+					for (RecordingFormat.Gap gap : RecordingReader.readGaps(recording))
+						writer.addGap(gap.row, gap.lostTime, gap.resumedTime);
+				}
+			}
+		} catch (IOException e) {
+			error = e;
+		} finally {
+			if (sink!=null) {
+				try {
+					sink.close();
+				} catch (IOException e) {
+					if (error==null)
+						error = e;
+				}
+			}
+		}
+		long rows = sink==null ? 0 : sink.mmRows;
+		synchronized (this) {
+			mFilesDone++;
+			if (error!=null)
+				mFilesFailed++;
+			else mBytes += recording.length();
+			mRows += rows - (sink==null ? 0 : sink.mmReportedRows);
+			report();
+		}
+		return new Result(recording, outputs, rows, error);
+	}
+
+	// Only called while holding the lock
+	private void report() {
+		if (mListener!=null)
+			mListener.onProgress(new Progress(mFiles, mFilesDone, mFilesFailed, mRows, mBytes,
+					System.currentTimeMillis() - mStartTime));
+	}
+
+	/**
+	 * Returns how far the export that's running has got
+	 */
+	public synchronized Progress getProgress() {
+		return new Progress(mFiles, mFilesDone, mFilesFailed, mRows, mBytes,
+				System.currentTimeMillis() - mStartTime);
+	}
+
+	/**
+	 * Carries an IOException out of a RowSink, which can't throw one.
+	 */
+	private static class ExportException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		ExportException(IOException cause) {
+			super(cause);
+		}
+
+		@Override
+		public IOException getCause() {
+			return (IOException)super.getCause();
+		}
+	}
+
+	/**
+	 * Writes the rows it's given to the exported files, and reports the progress every so often.
+	 */
+	private abstract class ExportSink implements RowSink {
+		long mmRows = 0;
+		long mmReportedRows = 0;
+
+		@Override
+		public void onRows(int[] rows, int count) {
+			if (mIsCancelled)
+				throw new ExportException(new IOException("Export cancelled"));
+			try {
+				write(rows, count);
+			} catch (IOException e) {
+				throw new ExportException(e);
+			}
+			mmRows += count;
+			if (mmRows - mmReportedRows>=PROGRESS_ROWS) {
+				synchronized (RecordingExporter.this) {
+					mRows += mmRows - mmReportedRows;
+					report();
+				}
+				mmReportedRows = mmRows;
+			}
+		}
+
+		abstract void write(int[] rows, int count) throws IOException;
+
+		abstract void close() throws IOException;
+	}
+
+	private class CsvSink extends ExportSink {
+		private final int mmCols;
+		private final OutputStream mmOut;
+		private final byte[] mmBuffer = new byte[BUFFER_SIZE];
+		private int mmLength = 0;
+
+		CsvSink(File file, String[] schema) throws IOException {
+			mmCols = schema.length;
+			mmOut = new FileOutputStream(file);
+			StringBuilder header = new StringBuilder();
+			for (int col=0; col<schema.length; col++)
+				header.append(col==0 ? "" : ",").append(schema[col]);
+			mmOut.write(header.append('\n').toString().getBytes("UTF-8"));
+		}
+
+		@Override
+		void write(int[] rows, int count) throws IOException {
+			// A sign and ten digits per value, and a comma or newline after it
+			int maxRowSize = mmCols * 12;
+			byte[] buffer = mmBuffer;
+			int length = mmLength;
+			for (int i=0, size=count*mmCols; i<size; i++) {
+				if (i % mmCols==0 && length + maxRowSize>buffer.length) {
+					mmOut.write(buffer, 0, length);
+					length = 0;
+				}
+				long value = rows[i];
+				if (value<0) {
+					buffer[length++] = '-';
+					value = -value;
+				}
+				int start = length;
+				do {
+					buffer[length++] = (byte)('0' + value % 10);
+					value /= 10;
+				} while (value>0);
+				// The digits came out backwards
+				for (int low=start, high=length-1; low<high; low++, high--) {
+					byte digit = buffer[low];
+					buffer[low] = buffer[high];
+					buffer[high] = digit;
+				}
+				buffer[length++] = (byte)((i+1) % mmCols==0 ? '\n' : ',');
+			}
+			mmLength = length;
+		}
+
+		@Override
+		void close() throws IOException {
+			try {
+				mmOut.write(mmBuffer, 0, mmLength);
+			} finally {
+				mmOut.close();
+			}
+		}
+	}
+
+	private class BinarySink extends ExportSink {
+		private final RecordingWriter mmWriter;
+
+		BinarySink(File file, String[] schema, long startTime) throws IOException {
+			mmWriter = new RecordingWriter(file, schema, startTime, RecordingFormat.ENCODING_DELTA);
+		}
+
+		@Override
+		void write(int[] rows, int count) throws IOException {
+			mmWriter.writeRows(rows, 0, count);
+		}
+
+		@Override
+		void close() throws IOException {
+			mmWriter.close();
+		}
+	}
+
+	private class ColumnSink extends ExportSink {
+		private final int mmCols;
+		private final OutputStream[] mmOuts;
+		private final byte[][] mmBuffers;
+		private int mmLength = 0;
+
+		ColumnSink(List<File> files, int cols) throws IOException {
+			mmCols = cols;
+			mmOuts = new OutputStream[cols];
+			// All the columns together take BUFFER_SIZE
+			mmBuffers = new byte[cols][Math.max(BUFFER_SIZE / cols / 4 * 4, 4)];
+			try {
+				for (int col=0; col<cols; col++)
+					mmOuts[col] = new FileOutputStream(files.get(col));
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		@Override
+		void write(int[] rows, int count) throws IOException {
+			// Every column's buffer fills up at the same time
+			int capacity = mmBuffers[0].length;
+			int index = 0;
+			for (int row=0; row<count; row++) {
+				if (mmLength==capacity)
+					flush();
+				int length = mmLength;
+				for (int col=0; col<mmCols; col++) {
+					int value = rows[index++];
+					byte[] buffer = mmBuffers[col];
+					buffer[length] = (byte)(value >> 24);
+					buffer[length+1] = (byte)(value >> 16);
+					buffer[length+2] = (byte)(value >> 8);
+					buffer[length+3] = (byte)value;
+				}
+				mmLength = length + 4;
+			}
+		}
+
+		private void flush() throws IOException {
+			for (int col=0; col<mmCols; col++)
+				mmOuts[col].write(mmBuffers[col], 0, mmLength);
+			mmLength = 0;
+		}
+
+		@Override
+		void close() throws IOException {
+			IOException error = null;
+			if (mmOuts[mmCols-1]!=null) {
+				try {
+					flush();
+				} catch (IOException e) {
+					error = e;
+				}
+			}
+			for (OutputStream out : mmOuts) {
+				if (out==null)
+					continue;
+				try {
+					out.close();
+				} catch (IOException e) {
+					if (error==null)
+						error = e;
+				}
+			}
+			if (error!=null)
+				throw error;
+		}
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ * This is the RecordingFormat class. It holds the constants that describe the binary recording
+ * format (.mrb) which ReadData writes and PlotGraph reads, along with the helpers to write and
+ * read its header.
+ *
+ * Layout of a recording, all values big-endian:
+ *   header:  int MAGIC, short version, int payload length, then the payload:
+ *            short column count, long start time (ms), one UTF column name per column, and
+ *            (version 3 on) byte encoding
+ *   rows:    ENCODING_RAW:   column count ints per row, one row after the other
+ *            ENCODING_DELTA: blocks of rows, see DeltaCodec
+ *   gaps:    (version 4 on) int gap count, then long row, long lost time (ms) and long resumed
+ *            time (ms) per Gap, (version 5 on) long end time (ms, 0 if it isn't known), then
+ *            int length of the gaps, int GAPS_MAGIC
+ *   stats:   the ColumnStats of every column (version 2 on), then int length of the stats,
+ *            int STATS_MAGIC
+ *   footer:  long row count, int FOOTER_MAGIC
+ * The gaps, stats and footer are only written once the recording is closed. The end time is kept
+ * so the rate the rows came in at can be worked out without trusting the file's modified time,
+ * which changes when it's copied or touched. A recording without a
+ * footer (e.g. the app died mid-capture) is still readable; the row count is then worked out from
+ * the file length, or from the blocks that were written in full.
+ */
+
+package sim.marble;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public final class RecordingFormat {
+
+	public static final String EXTENSION = ".mrb";
+	public static final String LEGACY_EXTENSION = ".txt";
+
+	public static final int MAGIC = 0x4D52424C;        // "MRBL"
+	public static final int FOOTER_MAGIC = 0x4D454E44; // "MEND"
+	public static final int STATS_MAGIC = 0x4D535453;  // "MSTS"
+	public static final int GAPS_MAGIC = 0x4D474150;   // "MGAP"
+	public static final short VERSION = 5;
+
+	/** Rows are stored as they are, four bytes per value */
+	public static final byte ENCODING_RAW = 0;
+	/** Rows are stored in blocks of delta, zigzag and varint encoded columns (see DeltaCodec) */
+	public static final byte ENCODING_DELTA = 1;
+
+	/** Size of the fixed part of the header: magic, version and payload length */
+	public static final int HEADER_PREFIX_SIZE = 4 + 2 + 4;
+	/** Size of the footer: row count and footer magic */
+	public static final int FOOTER_SIZE = 8 + 4;
+	/** Size of what follows the stats: their length and STATS_MAGIC */
+	public static final int STATS_TRAILER_SIZE = 4 + 4;
+	/** Size of what follows the gaps: their length and GAPS_MAGIC */
+	public static final int GAPS_TRAILER_SIZE = 4 + 4;
+	/** Size of a single Gap */
+	public static final int GAP_SIZE = 8 + 8 + 8;
+	/** Size of the end time, after the gaps */
+	public static final int END_TIME_SIZE = 8;
+	/** Size of a single value in a row */
+	public static final int VALUE_SIZE = 4;
+
+	/**
+	 * The columns the board sends, in order. Only the last four are plotted for now.
+	 */
+	public static final String[] DEFAULT_SCHEMA = {
+		"col1", "col2", "col3", "col4", "col5", "col6", "XPos", "YPos", "ZPos", "Luminance"
+	};
+
+	private RecordingFormat() {}
+
+	/**
+	 * The parsed header of a recording.
+	 */
+	public static class Header {
+		public final short version;
+		public final byte encoding;
+		public final long startTime;
+		public final String[] schema;
+		/** Offset of the first row from the start of the file */
+		public final int dataOffset;
+
+		Header(short version, byte encoding, long startTime, String[] schema, int dataOffset) {
+			this.version = version;
+			this.encoding = encoding;
+			this.startTime = startTime;
+			this.schema = schema;
+			this.dataOffset = dataOffset;
+		}
+
+		public int getCols() {
+			return schema.length;
+		}
+
+		/**
+		 * Returns the size of a single row in bytes, as it would be stored with ENCODING_RAW
+		 */
+		public int getRowSize() {
+			return schema.length * VALUE_SIZE;
+		}
+	}
+
+	/**
+	 * A stretch of a capture during which the connection was lost, so no rows were received.
+	 * The rows either side of it are stored one after the other as usual.
+	 */
+	public static class Gap {
+		/** The first row received once the connection was back, 0-based */
+		public final long row;
+		/** When the connection was lost, in ms */
+		public final long lostTime;
+		/** When the connection was back, in ms */
+		public final long resumedTime;
+
+		public Gap(long row, long lostTime, long resumedTime) {
+			this.row = row;
+			this.lostTime = lostTime;
+			this.resumedTime = resumedTime;
+		}
+
+		/**
+		 * Returns how long the connection was down, in ms
+		 */
+		public long getDuration() {
+			return Math.max(0, resumedTime - lostTime);
+		}
+	}
+
+	/**
+	 * Checks if the file name belongs to a binary recording, as opposed to a legacy text one.
+	 */
+	public static boolean isBinary(String fileName) {
+		return fileName.endsWith(EXTENSION);
+	}
+
+	/**
+	 * Checks if the file name belongs to a recording of either kind, as opposed to e.g. a
+	 * RecordingPyramid kept next to one.
+	 */
+	public static boolean isRecording(String fileName) {
+		return fileName.endsWith(EXTENSION) || fileName.endsWith(LEGACY_EXTENSION);
+	}
+
+	/**
+	 * Writes the header of a recording.
+	 * @param out The stream at the very start of the recording
+	 * @param schema The names of the columns, one per column
+	 * @param startTime The time the recording was started, in ms
+	 * @param encoding How the rows are stored; ENCODING_RAW or ENCODING_DELTA
+	 * @return The size of the header in bytes, i.e. the offset of the first row
+	 */
+	public static int writeHeader(DataOutputStream out, String[] schema, long startTime,
+			byte encoding) throws IOException {
+		ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+		DataOutputStream payload = new DataOutputStream(payloadBytes);
+		payload.writeShort(schema.length);
+		payload.writeLong(startTime);
+		for (String name : schema)
+			payload.writeUTF(name);
+		payload.writeByte(encoding);
+		payload.flush();
+
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeInt(payloadBytes.size());
+		payloadBytes.writeTo(out);
+		return HEADER_PREFIX_SIZE + payloadBytes.size();
+	}
+
+	/**
+	 * Reads the header of a recording.
+	 * @param in The stream at the very start of the recording
+	 * @return The parsed header
+	 * @throws IOException If the stream isn't a recording, or its version is newer than this one
+	 */
+	public static Header readHeader(DataInputStream in) throws IOException {
+		if (in.readInt()!=MAGIC)
+			throw new IOException("Not a Marble recording");
+		short version = in.readShort();
+		if (version>VERSION)
+			throw new IOException("Unsupported recording version: " + version);
+		int payloadLength = in.readInt();
+		int cols = in.readShort();
+		long startTime = in.readLong();
+		String[] schema = new String[cols];
+		for (int i=0; i<cols; i++)
+			schema[i] = in.readUTF();
+		byte encoding = version>=3 ? in.readByte() : ENCODING_RAW;
+		if (encoding!=ENCODING_RAW && encoding!=ENCODING_DELTA)
+			throw new IOException("Unsupported recording encoding: " + encoding);
+		return new Header(version, encoding, startTime, schema,
+				HEADER_PREFIX_SIZE + payloadLength);
+	}
+}
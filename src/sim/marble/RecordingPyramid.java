@@ -0,0 +1,211 @@
+/*
+ * This is the RecordingPyramid class. It reads the pyramid that's kept next to a recording, in
+ * "<recording>.pyr", which holds the min and max of every column over buckets of rows: 64
+ * rows per bucket on the first level, 128 on the next, and so on, doubling every level. It also
+ * says whether each bucket's min came before its max, so that they can be drawn in the order they
+ * came in, just like Downsampler does.
+ * The columns are the recording's own, and can be followed by channels derived from them (see
+ * PlotGraph), so that those can be drawn without reading the recording either.
+ * PlotGraph uses it to draw a zoomed-out view from a few hundred buckets instead of scanning every
+ * row on screen. Only the level and the range of buckets that are asked for are read from the file.
+ * It can be read from more than one thread, one read at a time.
+ * Pyramids are written by PyramidBuilder.
+ *
+ * Layout of a pyramid, all values big-endian:
+ *   header:  int MAGIC, short version, long length and long last-modified time of the recording,
+ *            int row count, short column count, short level count
+ *   levels:  int rows per bucket, int bucket count, long offset of the level's data, per level
+ *   data:    per level, per column: int[] min, int[] max, byte[] min first (1 if the min came
+ *            before the max, or at the same row), one value per bucket
+ */
+
+package sim.marble;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class RecordingPyramid {
+
+	public static final String EXTENSION = ".pyr";
+	public static final int MAGIC = 0x4D505952; // "MPYR"
+	public static final short VERSION = 1;
+	/** The number of rows per bucket on the first level */
+	public static final int BASE_BUCKET_ROWS = 64;
+
+	static final int HEADER_SIZE = 4 + 2 + 8 + 8 + 4 + 2 + 2;
+	static final int LEVEL_ENTRY_SIZE = 4 + 4 + 8;
+	// min, max and which came first per bucket
+	static final int BUCKET_SIZE = 4 + 4 + 1;
+
+	private final FileInputStream mIn;
+	private final FileChannel mChannel;
+	private final int rows;
+	private final int cols;
+	private final int[] mBucketRows;
+	private final int[] mBuckets;
+	private final long[] mOffsets;
+	private ByteBuffer mBuffer = ByteBuffer.allocate(0);
+
+	private RecordingPyramid(FileInputStream in, int rows, int cols, int[] bucketRows,
+			int[] buckets, long[] offsets) {
+		mIn = in;
+		mChannel = in.getChannel();
+		this.rows = rows;
+		this.cols = cols;
+		mBucketRows = bucketRows;
+		mBuckets = buckets;
+		mOffsets = offsets;
+	}
+
+	/**
+	 * Returns where the pyramid of a recording is kept
+	 */
+	public static File sidecarFor(File recording) {
+		return new File(recording.getPath() + EXTENSION);
+	}
+
+	/**
+	 * Opens the pyramid of a recording, if there is one and it's still up to date, i.e. the
+	 * recording hasn't changed since the pyramid was built.
+	 * @param recording The recording, not the pyramid itself
+	 * @return The pyramid, or null if there isn't an up to date one. Close it when done.
+	 */
+	public static RecordingPyramid open(File recording) throws IOException {
+		File file = sidecarFor(recording);
+		if (!file.isFile())
+			return null;
+		FileInputStream in = new FileInputStream(file);
+		boolean isOpen = false;
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(channel, header, 0);
+			if (header.getInt()!=MAGIC || header.getShort()!=VERSION)
+				return null;
+			if (header.getLong()!=recording.length() || header.getLong()!=recording.lastModified())
+				return null;
+			int rows = header.getInt();
+			int cols = header.getShort();
+			int levels = header.getShort();
+
+			ByteBuffer entries = ByteBuffer.allocate(levels * LEVEL_ENTRY_SIZE);
+			readFully(channel, entries, HEADER_SIZE);
+			int[] bucketRows = new int[levels], buckets = new int[levels];
+			long[] offsets = new long[levels];
+			for (int i=0; i<levels; i++) {
+				bucketRows[i] = entries.getInt();
+				buckets[i] = entries.getInt();
+				offsets[i] = entries.getLong();
+			}
+			RecordingPyramid pyramid =
+					new RecordingPyramid(in, rows, cols, bucketRows, buckets, offsets);
+			isOpen = true;
+			return pyramid;
+		} finally {
+			if (!isOpen)
+				in.close();
+		}
+	}
+
+	/**
+	 * Returns the number of rows in the recording
+	 */
+	public int getRows() {
+		return rows;
+	}
+
+	public int getCols() {
+		return cols;
+	}
+
+	public int getLevels() {
+		return mBucketRows.length;
+	}
+
+	/**
+	 * Returns the number of rows per bucket on the given level
+	 */
+	public int getBucketRows(int level) {
+		return mBucketRows[level];
+	}
+
+	/**
+	 * Returns the number of buckets on the given level
+	 */
+	public int getBuckets(int level) {
+		return mBuckets[level];
+	}
+
+	/**
+	 * Picks the finest level whose buckets cover at least the given number of rows, so that a
+	 * range of rows comes out as no more buckets than the number of points wanted.
+	 * @param minBucketRows The fewest rows a bucket should cover, i.e. the rows in the range
+	 *        divided by the number of points wanted
+	 * @return The level; the last (coarsest) one if no level's buckets are that big
+	 */
+	public int pickLevel(int minBucketRows) {
+		for (int i=0; i<mBucketRows.length; i++) {
+			if (mBucketRows[i]>=minBucketRows)
+				return i;
+		}
+		return mBucketRows.length-1;
+	}
+
+	/**
+	 * Reads the min and max of a range of buckets of a column.
+	 * @param level The level to read from
+	 * @param col The column, 1-based
+	 * @param from The first bucket
+	 * @param count The number of buckets
+	 * @param outMin Gets the min of each bucket, from index 0
+	 * @param outMax Gets the max of each bucket, from index 0
+	 * @param outMinFirst Gets whether each bucket's min came before its max, from index 0; can be
+	 *        null if the order doesn't matter
+	 */
+	public synchronized void readMinMax(int level, int col, int from, int count, int[] outMin,
+			int[] outMax, boolean[] outMinFirst) throws IOException {
+		long column = columnOffset(level, col);
+		int buckets = mBuckets[level];
+		readInts(column + (long)from*4, count, outMin);
+		readInts(column + (long)(buckets + from)*4, count, outMax);
+		if (outMinFirst==null)
+			return;
+		ByteBuffer buffer = read(column + (long)buckets*8 + from, count);
+		for (int i=0; i<count; i++)
+			outMinFirst[i] = buffer.get()!=0;
+	}
+
+	public void close() throws IOException {
+		mIn.close();
+	}
+
+	private long columnOffset(int level, int col) {
+		return mOffsets[level] + (long)(col-1) * mBuckets[level] * BUCKET_SIZE;
+	}
+
+	private void readInts(long position, int count, int[] out) throws IOException {
+		read(position, count*4).asIntBuffer().get(out, 0, count);
+	}
+
+	private ByteBuffer read(long position, int length) throws IOException {
+		if (mBuffer.capacity()<length)
+			mBuffer = ByteBuffer.allocate(length);
+		mBuffer.clear();
+		mBuffer.limit(length);
+		readFully(mChannel, mBuffer, position);
+		return mBuffer;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+			throws IOException {
+		int start = buffer.position();
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position() - start)<0)
+				throw new IOException("Pyramid ended unexpectedly");
+		}
+		buffer.flip();
+	}
+}
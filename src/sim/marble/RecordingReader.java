@@ -0,0 +1,453 @@
+/*
+ * This is the RecordingReader class. It reads a binary recording (see RecordingFormat) straight
+ * into an IntMatrix, or any other IntTable. Since every row has the same width, the rows are read
+ * in bulk instead of value by value; delta encoded recordings are read and decoded a block at a
+ * time (see DeltaCodec).
+ */
+
+package sim.marble;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+public class RecordingReader {
+
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private RecordingReader() {}
+
+	/**
+	 * Reads only the header of a recording.
+	 * @param file The recording to be read
+	 */
+	public static RecordingFormat.Header readHeader(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			return RecordingFormat.readHeader(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Works out the number of complete rows in a recording, without reading any of them.
+	 * @param file The recording
+	 */
+	public static long countRows(File file) throws IOException {
+		RecordingFormat.Header header = readHeader(file);
+		FileInputStream in = new FileInputStream(file);
+		try {
+			return countRows(in.getChannel(), header);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Works out the number of complete rows in a recording. The footer's row count is used if the
+	 * footer's there; otherwise it's whatever fits in the rest of the file, or for
+	 * ENCODING_DELTA, whatever's in the blocks that were written in full.
+	 * @param channel The channel of the recording
+	 * @param header The header of the recording
+	 */
+	static long countRows(FileChannel channel, RecordingFormat.Header header) throws IOException {
+		long size = channel.size();
+		long dataBytes = size - header.dataOffset;
+		long rows = readFooterRows(channel, header);
+		if (rows>=0) {
+			if (header.encoding==RecordingFormat.ENCODING_DELTA)
+				return rows;
+			long rowBytes = dataBytes - RecordingFormat.FOOTER_SIZE;
+			if (rows*header.getRowSize()==rowBytes)
+				return rows;
+			// From version 2 on, the stats come between the rows and the footer, and from
+			// version 4 on, the gaps come before the stats
+			int statsLength = readStatsLength(channel, header);
+			if (statsLength>=0 && rows*header.getRowSize()==getStatsPosition(channel, statsLength)
+					- header.dataOffset - gapsSize(channel, header, statsLength))
+				return rows;
+		}
+		if (header.encoding==RecordingFormat.ENCODING_DELTA)
+			return countBlockRows(channel, header);
+		return Math.max(dataBytes, 0) / header.getRowSize();
+	}
+
+	/**
+	 * Reads the row count from the footer.
+	 * @return The row count, or -1 if there's no footer
+	 */
+	private static long readFooterRows(FileChannel channel, RecordingFormat.Header header)
+			throws IOException {
+		long size = channel.size();
+		if (size - header.dataOffset<RecordingFormat.FOOTER_SIZE)
+			return -1;
+		ByteBuffer footer = ByteBuffer.allocate(RecordingFormat.FOOTER_SIZE);
+		readFully(channel, footer, size - RecordingFormat.FOOTER_SIZE);
+		long rows = footer.getLong();
+		if (footer.getInt()!=RecordingFormat.FOOTER_MAGIC || rows<0)
+			return -1;
+		return rows;
+	}
+
+	/**
+	 * Adds up the rows of every block that was written in full, for a recording that was never
+	 * closed. Only the start of each block is read.
+	 */
+	private static long countBlockRows(FileChannel channel, RecordingFormat.Header header)
+			throws IOException {
+		long size = channel.size();
+		long position = header.dataOffset;
+		long rows = 0;
+		ByteBuffer blockHeader = ByteBuffer.allocate(DeltaCodec.BLOCK_HEADER_SIZE);
+		while (position + DeltaCodec.BLOCK_HEADER_SIZE<=size) {
+			blockHeader.clear();
+			readFully(channel, blockHeader, position);
+			int count = blockHeader.getInt(), length = blockHeader.getInt();
+			// The file system may have filled what was never written with zeros
+			if (count==0 && length==0)
+				break;
+			DeltaCodec.checkBlockHeader(count, length, header.getCols(), position);
+			if (position + DeltaCodec.BLOCK_HEADER_SIZE + length>size)
+				break;
+			rows += count;
+			position += DeltaCodec.BLOCK_HEADER_SIZE + length;
+		}
+		return rows;
+	}
+
+	/**
+	 * Reads the length of the stats from just before the footer.
+	 * @return The length, or -1 if the recording has no stats
+	 */
+	private static int readStatsLength(FileChannel channel, RecordingFormat.Header header)
+			throws IOException {
+		long position = channel.size() - RecordingFormat.FOOTER_SIZE
+				- RecordingFormat.STATS_TRAILER_SIZE;
+		if (header.version<2 || position<header.dataOffset)
+			return -1;
+		ByteBuffer trailer = ByteBuffer.allocate(RecordingFormat.STATS_TRAILER_SIZE);
+		readFully(channel, trailer, position);
+		int length = trailer.getInt();
+		if (trailer.getInt()!=RecordingFormat.STATS_MAGIC || length<0
+				|| position - length<header.dataOffset)
+			return -1;
+		return length;
+	}
+
+	/**
+	 * Returns where the stats of the given length start
+	 */
+	private static long getStatsPosition(FileChannel channel, int statsLength)
+			throws IOException {
+		return channel.size() - RecordingFormat.FOOTER_SIZE - RecordingFormat.STATS_TRAILER_SIZE
+				- statsLength;
+	}
+
+	/**
+	 * Reads the length of the gaps from just before the stats.
+	 * @return The length, or -1 if the recording has no gaps section
+	 */
+	private static int readGapsLength(FileChannel channel, RecordingFormat.Header header,
+			int statsLength) throws IOException {
+		long position = getStatsPosition(channel, statsLength)
+				- RecordingFormat.GAPS_TRAILER_SIZE;
+		if (header.version<4 || position<header.dataOffset)
+			return -1;
+		ByteBuffer trailer = ByteBuffer.allocate(RecordingFormat.GAPS_TRAILER_SIZE);
+		readFully(channel, trailer, position);
+		int length = trailer.getInt();
+		if (trailer.getInt()!=RecordingFormat.GAPS_MAGIC || length<4
+				|| position - length<header.dataOffset)
+			return -1;
+		return length;
+	}
+
+	/**
+	 * Returns the size of the gaps section including its trailer, or 0 if there isn't one
+	 */
+	private static long gapsSize(FileChannel channel, RecordingFormat.Header header,
+			int statsLength) throws IOException {
+		int length = readGapsLength(channel, header, statsLength);
+		return length<0 ? 0 : length + RecordingFormat.GAPS_TRAILER_SIZE;
+	}
+
+	/**
+	 * Reads the statistics of every column, which are kept at the end of the recording, without
+	 * reading any of the rows.
+	 * @param file The recording to be read
+	 * @return The statistics, or null if the recording doesn't have them (it was written by an
+	 *         older version, or it was never closed)
+	 */
+	public static ColumnStats readStats(File file) throws IOException {
+		RecordingFormat.Header header = readHeader(file);
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			long rows = readFooterRows(channel, header);
+			int length = readStatsLength(channel, header);
+			if (rows<0 || length<0)
+				return null;
+			long position = getStatsPosition(channel, length);
+			if (header.encoding==RecordingFormat.ENCODING_RAW && position
+					!=header.dataOffset + rows*header.getRowSize() + gapsSize(channel, header, length))
+				return null;
+			ByteBuffer stats = ByteBuffer.allocate(length);
+			readFully(channel, stats, position);
+			return ColumnStats.read(new DataInputStream(
+					new ByteArrayInputStream(stats.array())));
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the gaps in a recording, i.e. where the connection was lost during the capture,
+	 * without reading any of the rows.
+	 * @param file The recording to be read
+	 * @return The gaps in the order they happened; empty if there weren't any, or the recording
+	 *         doesn't keep them (it was written by an older version, or it was never closed)
+	 */
+	public static List<RecordingFormat.Gap> readGaps(File file) throws IOException {
+		List<RecordingFormat.Gap> gaps = new ArrayList<RecordingFormat.Gap>();
+		ByteBuffer buffer = readGapsSection(file);
+		if (buffer==null)
+			return gaps;
+		int count = buffer.getInt();
+		for (int i=0; i<count; i++)
+			gaps.add(new RecordingFormat.Gap(buffer.getLong(), buffer.getLong(),
+					buffer.getLong()));
+		return gaps;
+	}
+
+	/**
+	 * Reads when the capture ended, which is kept after the gaps, without reading any of the
+	 * rows.
+	 * @param file The recording to be read
+	 * @return The end time in ms, or 0 if it isn't known (the recording was written by an older
+	 *         version, was never closed, or was exported from one that didn't know either)
+	 */
+	public static long readEndTime(File file) throws IOException {
+		ByteBuffer buffer = readGapsSection(file);
+		// Before version 5, the section ends with the last gap
+		if (buffer==null || buffer.limit()!=4 + buffer.getInt(0)*RecordingFormat.GAP_SIZE
+				+ RecordingFormat.END_TIME_SIZE)
+			return 0;
+		return buffer.getLong(buffer.limit() - RecordingFormat.END_TIME_SIZE);
+	}
+
+	/**
+	 * Works out the rate a recording's rows came in at, from its start and end times, less the
+	 * time the connection was down.
+	 * @param file The recording
+	 * @return The rows per second, or NaN if it isn't known
+	 */
+	public static double readRowsPerSecond(File file) throws IOException {
+		long startTime = readHeader(file).startTime;
+		long endTime = readEndTime(file);
+		if (startTime<=0 || endTime<=startTime)
+			return Double.NaN;
+		long millis = endTime - startTime;
+		for (RecordingFormat.Gap gap : readGaps(file))
+			millis -= gap.getDuration();
+		long rows = countRows(file);
+		return millis>0 && rows>0 ? rows*1000.0 / millis : Double.NaN;
+	}
+
+	/**
+	 * Reads the whole gaps section, trailer aside, checking it adds up.
+	 * @return The section, or null if the recording doesn't have one
+	 */
+	private static ByteBuffer readGapsSection(File file) throws IOException {
+		RecordingFormat.Header header = readHeader(file);
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			int statsLength = readStatsLength(channel, header);
+			if (readFooterRows(channel, header)<0 || statsLength<0)
+				return null;
+			int length = readGapsLength(channel, header, statsLength);
+			if (length<0)
+				return null;
+			ByteBuffer buffer = ByteBuffer.allocate(length);
+			readFully(channel, buffer, getStatsPosition(channel, statsLength)
+					- RecordingFormat.GAPS_TRAILER_SIZE - length);
+			int count = buffer.getInt(0);
+			int endTimeSize = header.version>=5 ? RecordingFormat.END_TIME_SIZE : 0;
+			if (count<0 || 4 + (long)count*RecordingFormat.GAP_SIZE + endTimeSize!=length)
+				throw new IOException("Corrupt gaps");
+			return buffer;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads every row of a recording into a new IntMatrix.
+	 * @param file The recording to be read
+	 * @return The matrix holding the rows of the recording
+	 */
+	public static IntMatrix read(File file) throws IOException {
+		IntMatrix matrix = new IntMatrix(0, readHeader(file).getCols());
+		read(file, matrix);
+		return matrix;
+	}
+
+	/**
+	 * Reads every row of a recording and appends them to the given table.
+	 * @param file The recording to be read
+	 * @param table Where the rows go; must have as many columns as the recording
+	 */
+	public static void read(File file, IntTable table) throws IOException {
+		RecordingFormat.Header header = readHeader(file);
+		if (table.getCols()!=header.getCols())
+			throw new IOException("Recording has " + header.getCols() + " columns, expected "
+					+ table.getCols());
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			long rows = countRows(channel, header);
+			int cols = header.getCols();
+			if ((table.getRows()+rows)*cols>Integer.MAX_VALUE)
+				throw new IOException("Recording too large: " + rows + " rows");
+			table.ensureCapacity(table.getRows() + (int)rows);
+			readRows(channel, header, header.dataOffset, 0, rows, appendTo(table));
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads every row of a recording and hands them to a sink in chunks, without keeping any of
+	 * them, so a recording of any size can be streamed through in constant memory.
+	 * @param file The recording to be read
+	 * @param sink Gets the rows
+	 * @return The number of rows read
+	 */
+	public static long read(File file, RowSink sink) throws IOException {
+		RecordingFormat.Header header = readHeader(file);
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			long rows = countRows(channel, header);
+			readRows(channel, header, header.dataOffset, 0, rows, sink);
+			return rows;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Returns a RowSink that appends the rows it's given to a table
+	 */
+	static RowSink appendTo(final IntTable table) {
+		return new RowSink() {
+			@Override
+			public void onRows(int[] rows, int count) {
+				table.appendRows(rows, 0, count);
+			}
+		};
+	}
+
+	/**
+	 * Reads a number of rows from anywhere in a recording, and hands them to a sink in chunks.
+	 * @param channel The channel of the recording
+	 * @param header The header of the recording
+	 * @param position Where to start reading: the offset of the first row for ENCODING_RAW, or
+	 *        of the block to start decoding from for ENCODING_DELTA
+	 * @param skip The number of rows to skip from there before handing them on; only allowed
+	 *        for ENCODING_DELTA, where it's how far into the blocks the first row is
+	 * @param rows The number of rows to hand on
+	 * @param sink Gets the rows
+	 */
+	static void readRows(FileChannel channel, RecordingFormat.Header header, long position,
+			long skip, long rows, RowSink sink) throws IOException {
+		if (header.encoding==RecordingFormat.ENCODING_DELTA) {
+			readBlocks(channel, header, position, skip, rows, sink);
+			return;
+		}
+
+		// Read whole rows at a time, and hand them on in one go
+		int cols = header.getCols();
+		int rowSize = header.getRowSize();
+		int chunkRows = Math.max(CHUNK_SIZE / rowSize, 1);
+		ByteBuffer chunk = ByteBuffer.allocate(chunkRows * rowSize);
+		IntBuffer chunkInts = chunk.asIntBuffer();
+		int[] chunkValues = new int[chunkRows * cols];
+		long remaining = rows;
+		while (remaining>0) {
+			int count = (int)Math.min(chunkRows, remaining);
+			chunk.clear();
+			chunk.limit(count * rowSize);
+			readFully(channel, chunk, position);
+			chunkInts.clear();
+			chunkInts.get(chunkValues, 0, count * cols);
+			sink.onRows(chunkValues, count);
+			remaining -= count;
+			position += chunk.limit();
+		}
+	}
+
+	/**
+	 * Reads the rows of an ENCODING_DELTA recording a block at a time, decoding each block
+	 * straight into an array of rows which is then handed on in one go. Blocks that are
+	 * skipped altogether aren't decoded, or even read past their start.
+	 */
+	private static void readBlocks(FileChannel channel, RecordingFormat.Header header,
+			long position, long skip, long rows, RowSink sink) throws IOException {
+		int cols = header.getCols();
+		ByteBuffer blockHeader = ByteBuffer.allocate(DeltaCodec.BLOCK_HEADER_SIZE);
+		ByteBuffer block = ByteBuffer.allocate(
+				DeltaCodec.maxBlockSize(DeltaCodec.BLOCK_ROWS, cols));
+		int[] values = new int[DeltaCodec.BLOCK_ROWS * cols];
+		long remaining = rows;
+		while (remaining>0) {
+			blockHeader.clear();
+			readFully(channel, blockHeader, position);
+			int count = blockHeader.getInt(), length = blockHeader.getInt();
+			DeltaCodec.checkBlockHeader(count, length, cols, position);
+			if (skip>=count) {
+				skip -= count;
+				position += DeltaCodec.BLOCK_HEADER_SIZE + length;
+				continue;
+			}
+			if (block.capacity()<length)
+				block = ByteBuffer.allocate(length);
+			if (values.length<count*cols)
+				values = new int[count*cols];
+			block.clear();
+			block.limit(length);
+			readFully(channel, block, position + DeltaCodec.BLOCK_HEADER_SIZE);
+			DeltaCodec.decodeBlock(block.array(), 0, length, count, cols, values);
+			int first = (int)skip;
+			int n = (int)Math.min(count - first, remaining);
+			if (first>0)
+				System.arraycopy(values, first*cols, values, 0, n*cols);
+			sink.onRows(values, n);
+			skip = 0;
+			remaining -= n;
+			position += DeltaCodec.BLOCK_HEADER_SIZE + length;
+		}
+	}
+
+	/**
+	 * Fills the buffer from the given position of the channel, and flips it.
+	 */
+	static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+			throws IOException {
+		int start = buffer.position();
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position() - start)<0)
+				throw new IOException("Recording ended unexpectedly");
+		}
+		buffer.flip();
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ * This is the RecordingWindow class. It reads any range of rows of a binary recording, without
+ * reading the rest of it, so that PlotGraph can look at a recording that's far bigger than the
+ * heap a window at a time.
+ * The recording's RowIndex says where to start reading for the first row of the range: straight
+ * at the row itself for a raw recording, or at the start of the block at most a few blocks
+ * before it for a delta encoded one.
+ * A Cursor reads the rows one after the other instead, for whatever wants all of them in order
+ * but only a few at a time (e.g. ReplayTransport): every block's only decoded once, however few
+ * rows are taken from it at a time.
+ */
+
+package sim.marble;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class RecordingWindow {
+
+	private final FileInputStream mIn;
+	private final FileChannel mChannel;
+	private final RecordingFormat.Header mHeader;
+	private final RowIndex mIndex;
+	private final long rows;
+
+	private RecordingWindow(FileInputStream in, RecordingFormat.Header header, RowIndex index) {
+		mIn = in;
+		mChannel = in.getChannel();
+		mHeader = header;
+		mIndex = index;
+		rows = index.getRows();
+	}
+
+	/**
+	 * Opens a recording to be read a window at a time, building its RowIndex first if it isn't
+	 * there or is out of date.
+	 * @param recording The recording, which must be closed
+	 * @return The window. Close it when done.
+	 */
+	public static RecordingWindow open(File recording) throws IOException {
+		RecordingFormat.Header header = RecordingReader.readHeader(recording);
+		RowIndex index = RowIndex.open(recording);
+		return new RecordingWindow(new FileInputStream(recording), header, index);
+	}
+
+	/**
+	 * Returns the number of rows in the recording
+	 */
+	public long getRows() {
+		return rows;
+	}
+
+	public int getCols() {
+		return mHeader.getCols();
+	}
+
+	public RecordingFormat.Header getHeader() {
+		return mHeader;
+	}
+
+	/**
+	 * Reads a range of rows and appends them to a table.
+	 * @param from The first row, 0-based
+	 * @param count The number of rows; cut short at the end of the recording
+	 * @param table Where the rows go; must have as many columns as the recording
+	 * @return The number of rows read
+	 */
+	public int read(long from, int count, IntTable table) throws IOException {
+		if (table.getCols()!=getCols())
+			throw new IOException("Recording has " + getCols() + " columns, expected "
+					+ table.getCols());
+		int n = (int)Math.max(0, Math.min(count, rows - from));
+		table.ensureCapacity(table.getRows() + n);
+		read(from, n, RecordingReader.appendTo(table));
+		return n;
+	}
+
+	/**
+	 * Reads a range of rows and hands them to a sink in chunks.
+	 * @param from The first row, 0-based
+	 * @param count The number of rows; mustn't go past the end of the recording
+	 * @param sink Gets the rows
+	 */
+	public void read(long from, long count, RowSink sink) throws IOException {
+		if (from<0 || from + count>rows)
+			throw new IOException("Rows " + from + " to " + (from+count) + " out of " + rows);
+		if (count==0)
+			return;
+		int entry = mIndex.find(from);
+		long position = mIndex.getOffset(entry);
+		long skip = from - mIndex.getFirstRow(entry);
+		if (mHeader.encoding==RecordingFormat.ENCODING_RAW) {
+			position += skip * mHeader.getRowSize();
+			skip = 0;
+		}
+		RecordingReader.readRows(mChannel, mHeader, position, skip, count, sink);
+	}
+
+	/**
+	 * Hands every row of the recording to a sink in chunks, e.g. to build its pyramid without
+	 * having all of it in memory.
+	 */
+	public void scan(RowSink sink) throws IOException {
+		read(0, rows, sink);
+	}
+
+	/**
+	 * Starts reading the rows one after the other.
+	 * @param from The first row, 0-based
+	 * @return The cursor, which is only good until the window's closed
+	 */
+	public Cursor cursor(long from) throws IOException {
+		if (from<0 || from>rows)
+			throw new IOException("Row " + from + " out of " + rows);
+		return new Cursor(from);
+	}
+
+	public void close() throws IOException {
+		mIn.close();
+	}
+
+	/**
+	 * Reads the rows of the recording in order, a block (or for a raw recording, as many rows as
+	 * would be in one) at a time, and hands them out as they're asked for.
+	 */
+	public class Cursor {
+		// Where the next block or chunk of rows starts in the file
+		private long mmPosition;
+		// The next row to be handed out
+		private long mmRow;
+		// Rows that have been read but not handed out yet, from mmStart on
+		private int[] mmValues;
+		private int mmStart = 0, mmCount = 0;
+		// How many rows at the start of the next block are before mmRow
+		private long mmSkip;
+		private final ByteBuffer mmBlockHeader =
+				ByteBuffer.allocate(DeltaCodec.BLOCK_HEADER_SIZE);
+		private ByteBuffer mmBlock;
+
+		private Cursor(long from) {
+			int cols = getCols();
+			int entry = mIndex.find(from);
+			mmPosition = entry<0 ? mHeader.dataOffset : mIndex.getOffset(entry);
+			mmSkip = entry<0 ? 0 : from - mIndex.getFirstRow(entry);
+			if (mHeader.encoding==RecordingFormat.ENCODING_RAW) {
+				mmPosition += mmSkip * mHeader.getRowSize();
+				mmSkip = 0;
+			}
+			mmRow = from;
+			mmValues = new int[DeltaCodec.BLOCK_ROWS * cols];
+			mmBlock = ByteBuffer.allocate(mHeader.encoding==RecordingFormat.ENCODING_DELTA
+					? DeltaCodec.maxBlockSize(DeltaCodec.BLOCK_ROWS, cols)
+					: DeltaCodec.BLOCK_ROWS * mHeader.getRowSize());
+		}
+
+		/**
+		 * Returns the next row to be read, 0-based
+		 */
+		public long getRow() {
+			return mmRow;
+		}
+
+		/**
+		 * Reads the next rows.
+		 * @param out Gets the rows, laid out one after the other from index 0
+		 * @param count The most rows to read
+		 * @return The number of rows read; 0 once the end of the recording's been reached
+		 */
+		public int read(int[] out, int count) throws IOException {
+			int cols = getCols();
+			int done = 0;
+			while (done<count && mmRow<rows) {
+				if (mmCount==0)
+					fill();
+				int n = Math.min(count - done, mmCount);
+				System.arraycopy(mmValues, mmStart*cols, out, done*cols, n*cols);
+				mmStart += n;
+				mmCount -= n;
+				mmRow += n;
+				done += n;
+			}
+			return done;
+		}
+
+		/**
+		 * Reads the next block, or chunk of raw rows
+		 */
+		private void fill() throws IOException {
+			int cols = getCols();
+			if (mHeader.encoding==RecordingFormat.ENCODING_RAW) {
+				int count = (int)Math.min(DeltaCodec.BLOCK_ROWS, rows - mmRow);
+				mmBlock.clear();
+				mmBlock.limit(count * mHeader.getRowSize());
+				RecordingReader.readFully(mChannel, mmBlock, mmPosition);
+				mmBlock.asIntBuffer().get(mmValues, 0, count*cols);
+				mmPosition += mmBlock.limit();
+				mmStart = 0;
+				mmCount = count;
+				return;
+			}
+			mmBlockHeader.clear();
+			RecordingReader.readFully(mChannel, mmBlockHeader, mmPosition);
+			int count = mmBlockHeader.getInt(), length = mmBlockHeader.getInt();
+			DeltaCodec.checkBlockHeader(count, length, cols, mmPosition);
+			mmPosition += DeltaCodec.BLOCK_HEADER_SIZE;
+			if (mmSkip>=count) {
+				// Only the first block or so can be skipped, while getting to where it starts
+				mmSkip -= count;
+				mmPosition += length;
+				return;
+			}
+			mmBlock.clear();
+			mmBlock.limit(length);
+			RecordingReader.readFully(mChannel, mmBlock, mmPosition);
+			DeltaCodec.decodeBlock(mmBlock.array(), 0, length, count, cols, mmValues);
+			mmPosition += length;
+			mmStart = (int)mmSkip;
+			mmCount = count - mmStart;
+			mmSkip = 0;
+		}
+	}
+}
@@ -0,0 +1,274 @@
+/*
+ * This is the RecordingWriter class. It writes rows of sensor data into a binary recording, as
+ * described in RecordingFormat. The header is written when the writer is created, and the footer
+ * when it's closed. The ColumnStats of the rows are kept as they're written, and written out just
+ * before the footer.
+ * With RecordingFormat.ENCODING_DELTA, rows are held back until there's a block of them (see
+ * DeltaCodec), or until the writer's flushed, which writes out whatever's held back as a shorter
+ * block. Where every block starts is kept in a RowIndex, which can be written next to the
+ * recording once it's closed.
+ * Gaps in a capture, e.g. while the connection was being brought back, are kept as they're
+ * added and written out with the stats.
+ */
+
+package sim.marble;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class RecordingWriter {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final int cols;
+	private final DataOutputStream mOut;
+	private final FileOutputStream mFileOut;
+	private final byte[] mRowBytes;
+	private final IntBuffer mRowInts;
+	private final ColumnStats mStats;
+	private final byte mEncoding;
+	// The rows held back for the next block, and the bytes it's encoded into
+	private int[] mBlockRows;
+	private byte[] mBlockBytes;
+	private int mBlockCount = 0;
+	// The offset the next block's written at, and the row it starts with
+	private long mPosition;
+	private long mBlockFirstRow = 0;
+	private final RowIndex mIndex = new RowIndex();
+	private final List<RecordingFormat.Gap> mGaps = new ArrayList<RecordingFormat.Gap>();
+	private final int mDataOffset;
+	private long mRowCount = 0;
+	// When the capture ended, or -1 until it's set, in which case it's when close() is called
+	private long mEndTime = -1;
+	private boolean mIsClosed = false;
+
+	/**
+	 * Creates the recording file (overwriting it if it exists) and writes its header. The rows
+	 * are stored as they are (RecordingFormat.ENCODING_RAW).
+	 * @param file The file to be written to
+	 * @param schema The names of the columns, one per column
+	 * @param startTime The time the recording was started, in ms
+	 */
+	public RecordingWriter(File file, String[] schema, long startTime) throws IOException {
+		this(file, schema, startTime, RecordingFormat.ENCODING_RAW);
+	}
+
+	/**
+	 * Creates the recording file (overwriting it if it exists) and writes its header.
+	 * @param file The file to be written to
+	 * @param schema The names of the columns, one per column
+	 * @param startTime The time the recording was started, in ms
+	 * @param encoding How the rows are stored; RecordingFormat.ENCODING_RAW or ENCODING_DELTA
+	 */
+	public RecordingWriter(File file, String[] schema, long startTime, byte encoding)
+			throws IOException {
+		cols = schema.length;
+		mEncoding = encoding;
+		mFileOut = new FileOutputStream(file);
+		mOut = new DataOutputStream(new BufferedOutputStream(mFileOut, BUFFER_SIZE));
+		mRowBytes = new byte[cols * RecordingFormat.VALUE_SIZE];
+		mRowInts = ByteBuffer.wrap(mRowBytes).asIntBuffer();
+		mStats = new ColumnStats(cols);
+		if (encoding==RecordingFormat.ENCODING_DELTA) {
+			mBlockRows = new int[DeltaCodec.BLOCK_ROWS * cols];
+			mBlockBytes = new byte[DeltaCodec.maxBlockSize(DeltaCodec.BLOCK_ROWS, cols)];
+		}
+		try {
+			mDataOffset = RecordingFormat.writeHeader(mOut, schema, startTime, encoding);
+			mPosition = mDataOffset;
+		} catch (IOException e) {
+			mOut.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes a single row.
+	 * @param row The values of the row; must hold at least getCols() values
+	 */
+	public void writeRow(int[] row) throws IOException {
+		writeRows(row, 0, 1);
+	}
+
+	/**
+	 * Writes a number of rows which are laid out one after the other in a single array.
+	 * @param rows The array holding the rows
+	 * @param offset The index in rows of the first value of the first row
+	 * @param count The number of rows to be written
+	 */
+	public void writeRows(int[] rows, int offset, int count) throws IOException {
+		if (mIsClosed)
+			throw new IOException("Recording has been closed");
+		if (mEncoding==RecordingFormat.ENCODING_DELTA) {
+			int done = 0;
+			while (done<count) {
+				int n = Math.min(count - done, DeltaCodec.BLOCK_ROWS - mBlockCount);
+				System.arraycopy(rows, offset + done*cols, mBlockRows, mBlockCount*cols, n*cols);
+				mBlockCount += n;
+				done += n;
+				if (mBlockCount==DeltaCodec.BLOCK_ROWS)
+					writeBlock();
+			}
+		} else {
+			for (int i=0; i<count; i++) {
+				mRowInts.clear();
+				mRowInts.put(rows, offset + i*cols, cols);
+				mOut.write(mRowBytes);
+			}
+		}
+		mStats.add(rows, offset, count);
+		mRowCount += count;
+	}
+
+	/**
+	 * Returns the number of columns of every row
+	 */
+	public int getCols() {
+		return cols;
+	}
+
+	/**
+	 * Returns the number of rows written so far
+	 */
+	public long getRowCount() {
+		return mRowCount;
+	}
+
+	/**
+	 * Returns the statistics of the rows written so far. Only to be used on the thread that
+	 * writes the rows, or once the recording's closed.
+	 */
+	public ColumnStats getStats() {
+		return mStats;
+	}
+
+	/**
+	 * Adds a gap to the recording. Unlike the rows, this can be called from any thread.
+	 * @param row The first row after the gap, 0-based; rows written before it can be
+	 *        still waiting to be written, e.g. in a CaptureWriter's queue
+	 * @param lostTime When the connection was lost, in ms
+	 * @param resumedTime When the connection was back, in ms
+	 */
+	public void addGap(long row, long lostTime, long resumedTime) {
+		synchronized (mGaps) {
+			mGaps.add(new RecordingFormat.Gap(row, lostTime, resumedTime));
+		}
+	}
+
+	/**
+	 * Returns the gaps added so far, in the order they were added
+	 */
+	public List<RecordingFormat.Gap> getGaps() {
+		synchronized (mGaps) {
+			return new ArrayList<RecordingFormat.Gap>(mGaps);
+		}
+	}
+
+	/**
+	 * Sets when the capture ended, as kept in the recording. By default it's when the recording
+	 * is closed; an exported copy keeps the original's instead.
+	 * @param endTime The end time in ms, or 0 if it isn't known
+	 */
+	public void setEndTime(long endTime) {
+		mEndTime = endTime;
+	}
+
+	public boolean isClosed() {
+		return mIsClosed;
+	}
+
+	/**
+	 * Returns how the rows are stored; RecordingFormat.ENCODING_RAW or ENCODING_DELTA
+	 */
+	public byte getEncoding() {
+		return mEncoding;
+	}
+
+	/**
+	 * Pushes any buffered rows out to the file.
+	 */
+	public void flush() throws IOException {
+		writeBlock();
+		mOut.flush();
+	}
+
+	/**
+	 * Pushes any buffered rows out to the file, and waits for the file to actually hit the
+	 * storage, so that the rows survive the app (or the phone) dying.
+	 */
+	public void sync() throws IOException {
+		flush();
+		mFileOut.getFD().sync();
+	}
+
+	/**
+	 * Writes the gaps, the end time, the stats and the footer and closes the file. Does nothing
+	 * if it's already been closed.
+	 */
+	public void close() throws IOException {
+		if (mIsClosed)
+			return;
+		mIsClosed = true;
+		try {
+			writeBlock();
+			List<RecordingFormat.Gap> gaps = getGaps();
+			mOut.writeInt(gaps.size());
+			for (RecordingFormat.Gap gap : gaps) {
+				mOut.writeLong(gap.row);
+				mOut.writeLong(gap.lostTime);
+				mOut.writeLong(gap.resumedTime);
+			}
+			mOut.writeLong(mEndTime<0 ? System.currentTimeMillis() : mEndTime);
+			mOut.writeInt(4 + gaps.size()*RecordingFormat.GAP_SIZE
+					+ RecordingFormat.END_TIME_SIZE);
+			mOut.writeInt(RecordingFormat.GAPS_MAGIC);
+			ByteArrayOutputStream statsBytes = new ByteArrayOutputStream();
+			DataOutputStream stats = new DataOutputStream(statsBytes);
+			mStats.write(stats, true);
+			stats.flush();
+			statsBytes.writeTo(mOut);
+			mOut.writeInt(statsBytes.size());
+			mOut.writeInt(RecordingFormat.STATS_MAGIC);
+			mOut.writeLong(mRowCount);
+			mOut.writeInt(RecordingFormat.FOOTER_MAGIC);
+			mOut.flush();
+		} finally {
+			mOut.close();
+		}
+	}
+
+	/**
+	 * Returns the RowIndex of the recording, to be written next to it with RowIndex.write().
+	 * Only to be used once the recording's closed.
+	 */
+	public RowIndex getRowIndex() {
+		if (mEncoding==RecordingFormat.ENCODING_RAW) {
+			for (long row=0; row<mRowCount; row+=RowIndex.INTERVAL_ROWS)
+				mIndex.add(row, mDataOffset + row*cols*RecordingFormat.VALUE_SIZE);
+		}
+		mIndex.setRows(mRowCount);
+		return mIndex;
+	}
+
+	/**
+	 * Encodes the rows held back, if there are any, and writes them out as a block.
+	 */
+	private void writeBlock() throws IOException {
+		if (mBlockCount==0)
+			return;
+		int size = DeltaCodec.encodeBlock(mBlockRows, 0, mBlockCount, cols, mBlockBytes);
+		mOut.write(mBlockBytes, 0, size);
+		mIndex.add(mBlockFirstRow, mPosition);
+		mBlockFirstRow += mBlockCount;
+		mPosition += size;
+		mBlockCount = 0;
+	}
+}
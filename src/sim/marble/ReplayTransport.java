@@ -0,0 +1,301 @@
+/*
+ * This is the ReplayTransport class. It plays a recording back as the text the board would have
+ * sent (space separated integers, one row per line), so that the whole capture (parsing, writing
+ * and the live graph) can be run, measured and regression tested without a board.
+ * Rows are played back at the rate they were recorded at, times the given speed, or as fast as
+ * they can be read with MAX_SPEED. The rate's worked out from the recording's start and end times
+ * (see RecordingReader.readRowsPerSecond()); if that isn't known (e.g. a legacy text recording),
+ * it's DEFAULT_ROWS_PER_SECOND. Every connection plays the recording from the start, and the input
+ * stream ends once it's all been played.
+ * It answers the handshake the way a board that can frame its rows would (see WireProtocol), and
+ * sends frames from then on, with 2 byte columns wherever the recording's values fit in them.
+ * Binary recordings are read in order through a RecordingWindow.Cursor, a block at a time, so
+ * they can be as big as they like and every block's decoded just once; legacy text recordings are
+ * read into memory first.
+ */
+
+package sim.marble;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+public class ReplayTransport implements Transport {
+
+	/** Play the rows back as fast as they can be read */
+	public static final double MAX_SPEED = 0;
+	/** The rate rows are played back at, at a speed of 1, if the recording doesn't say */
+	public static final double DEFAULT_ROWS_PER_SECOND = 100;
+
+	// The most rows formatted in one go
+	private static final int CHUNK_ROWS = 256;
+	// The most bytes a formatted value can take: a sign, ten digits and a space or newline
+	private static final int MAX_VALUE_SIZE = 12;
+
+	private final File mRecording;
+	private final double mSpeed;
+
+	/**
+	 * @param recording The recording to play back, binary or legacy text
+	 * @param speed How many times faster than it was recorded to play it back, or MAX_SPEED
+	 */
+	public ReplayTransport(File recording, double speed) {
+		mRecording = recording;
+		mSpeed = speed;
+	}
+
+	@Override
+	public Connection createConnection() {
+		return new ReplayConnection();
+	}
+
+	@Override
+	public String getName() {
+		return "Replay of " + mRecording.getName();
+	}
+
+	@Override
+	public String getAddress() {
+		return mRecording.getPath();
+	}
+
+	/**
+	 * Plays the recording back from the start.
+	 */
+	private class ReplayConnection implements Connection {
+		private RecordingWindow mmWindow;
+		// Where the rows are read from next, kept from one call to getRows() to the next
+		private RecordingWindow.Cursor mmCursor;
+		// The rows of a legacy text recording, laid out one after the other
+		private int[] mmTextRows;
+		private long mmRows;
+		private int mmCols;
+		private double mmRowsPerSecond;
+		// The width of every column in a frame
+		private int[] mmWidths;
+		private volatile boolean mmIsFramingRequested = false;
+		private volatile boolean mmIsClosed = false;
+
+		@Override
+		public synchronized void connect() throws IOException {
+			ColumnStats stats;
+			if (RecordingFormat.isBinary(mRecording.getName())) {
+				mmWindow = RecordingWindow.open(mRecording);
+				mmRows = mmWindow.getRows();
+				mmCols = mmWindow.getCols();
+				mmRowsPerSecond = RecordingReader.readRowsPerSecond(mRecording);
+				if (Double.isNaN(mmRowsPerSecond))
+					mmRowsPerSecond = DEFAULT_ROWS_PER_SECOND;
+				stats = RecordingReader.readStats(mRecording);
+			} else {
+				mmCols = RecordingFormat.DEFAULT_SCHEMA.length;
+				IntMatrix matrix = new IntMatrix(0, mmCols);
+				TextRecordingReader.read(mRecording, matrix);
+				mmRows = matrix.getRows();
+				mmTextRows = matrix.toArray();
+				mmRowsPerSecond = DEFAULT_ROWS_PER_SECOND;
+				stats = new ColumnStats(mmCols);
+				stats.add(mmTextRows, 0, (int)mmRows);
+			}
+			mmWidths = new int[mmCols];
+			for (int col=1; col<=mmCols; col++) {
+				// Without the stats there's no telling what fits
+				boolean isShort = stats!=null && stats.getMin(col)>=Short.MIN_VALUE
+						&& stats.getMax(col)<=Short.MAX_VALUE;
+				mmWidths[col-1] = isShort ? 2 : 4;
+			}
+			if (mmIsClosed)
+				close();
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return new ReplayStream(this);
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			// Only the handshake's listened for, which is always sent in one go
+			return new OutputStream() {
+				@Override
+				public void write(int b) {}
+
+				@Override
+				public void write(byte[] buffer, int offset, int length) {
+					String command = new String(buffer, offset, length);
+					if (command.equals(WireProtocol.BINARY_COMMAND))
+						mmIsFramingRequested = true;
+					else if (command.equals(WireProtocol.TEXT_COMMAND))
+						mmIsFramingRequested = false;
+				}
+			};
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			mmIsClosed = true;
+			if (mmWindow!=null) {
+				mmWindow.close();
+				mmWindow = null;
+				mmCursor = null;
+			}
+		}
+
+		/**
+		 * Copies rows of the recording into an array, laid out one after the other. The rows
+		 * are usually asked for in order, which carries straight on from the last call.
+		 */
+		synchronized void getRows(long from, int count, int[] out) throws IOException {
+			if (mmIsClosed)
+				throw new IOException("Replay was closed");
+			if (mmTextRows!=null) {
+				System.arraycopy(mmTextRows, (int)from*mmCols, out, 0, count*mmCols);
+				return;
+			}
+			if (mmCursor==null || mmCursor.getRow()!=from)
+				mmCursor = mmWindow.cursor(from);
+			if (mmCursor.read(out, count)<count)
+				throw new IOException("Recording ended unexpectedly");
+		}
+	}
+
+	/**
+	 * The text of the rows, as the board would send them, a chunk of rows at a time. Reading
+	 * waits until the next row's due.
+	 */
+	private class ReplayStream extends InputStream {
+		private final ReplayConnection mmConnection;
+		private final int[] mmRows;
+		private final byte[] mmText;
+		private int mmPosition = 0, mmLength = 0;
+		private long mmRowsSent = 0;
+		private long mmStartNanos = -1;
+		private boolean mmIsFramed = false;
+		private int mmSequence = 0;
+
+		ReplayStream(ReplayConnection connection) {
+			mmConnection = connection;
+			mmRows = new int[CHUNK_ROWS * connection.mmCols];
+			// Every line also ends in CRLF rather than a space
+			mmText = new byte[Math.max(CHUNK_ROWS * (connection.mmCols*MAX_VALUE_SIZE + 1),
+					WireProtocol.maxFrameSize(WireProtocol.MAX_ROWS_PER_FRAME,
+							connection.mmWidths))];
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1)<0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (mmConnection.mmIsClosed)
+				throw new IOException("Replay was closed");
+			if (length==0)
+				return 0;
+			if (mmPosition==mmLength && !fill())
+				return -1;
+			int n = Math.min(length, mmLength - mmPosition);
+			System.arraycopy(mmText, mmPosition, buffer, offset, n);
+			mmPosition += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return mmLength - mmPosition;
+		}
+
+		@Override
+		public void close() throws IOException {
+			mmConnection.close();
+		}
+
+		/**
+		 * Formats the rows that are due by now, waiting for the next one if none are.
+		 * @return false once the whole recording's been played
+		 */
+		private boolean fill() throws IOException {
+			if (mmConnection.mmIsFramingRequested!=mmIsFramed) {
+				// The answer goes out before the next row, the same as a board's would
+				mmIsFramed = mmConnection.mmIsFramingRequested;
+				if (mmIsFramed) {
+					byte[] answer = WireProtocol.formatAnswer(mmConnection.mmWidths).getBytes();
+					System.arraycopy(answer, 0, mmText, 0, answer.length);
+					mmPosition = 0;
+					mmLength = answer.length;
+					return true;
+				}
+			}
+			long left = mmConnection.mmRows - mmRowsSent;
+			if (left<=0)
+				return false;
+			int count = (int)Math.min(mmIsFramed ? WireProtocol.MAX_ROWS_PER_FRAME : CHUNK_ROWS,
+					left);
+			if (mSpeed>MAX_SPEED) {
+				if (mmStartNanos<0)
+					mmStartNanos = System.nanoTime();
+				double nanosPerRow = 1e9 / (mmConnection.mmRowsPerSecond * mSpeed);
+				long due = (long)((System.nanoTime() - mmStartNanos) / nanosPerRow) + 1;
+				if (due<=mmRowsSent) {
+					long wait = (long)(mmRowsSent * nanosPerRow)
+							- (System.nanoTime() - mmStartNanos);
+					try {
+						if (wait>0)
+							Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+					due = mmRowsSent + 1;
+				}
+				count = (int)Math.min(count, due - mmRowsSent);
+			}
+			mmConnection.getRows(mmRowsSent, count, mmRows);
+			if (mmIsFramed) {
+				mmLength = WireProtocol.encodeFrame(mmSequence++, mmRows, 0, count,
+						mmConnection.mmWidths, mmText, 0);
+			} else {
+				mmLength = format(mmRows, count * mmConnection.mmCols, mmConnection.mmCols,
+						mmText);
+			}
+			mmPosition = 0;
+			mmRowsSent += count;
+			return true;
+		}
+	}
+
+	/**
+	 * Formats rows as space separated integers, one row per line ending in CRLF, without
+	 * allocating anything.
+	 * @return The number of bytes written
+	 */
+	static int format(int[] rows, int size, int cols, byte[] out) {
+		int position = 0;
+		for (int i=0; i<size; i++) {
+			long value = rows[i];
+			if (value<0) {
+				out[position++] = '-';
+				value = -value;
+			}
+			int start = position;
+			do {
+				out[position++] = (byte)('0' + value % 10);
+				value /= 10;
+			} while (value>0);
+			// The digits came out backwards
+			for (int low=start, high=position-1; low<high; low++, high--) {
+				byte digit = out[low];
+				out[low] = out[high];
+				out[high] = digit;
+			}
+			if ((i+1) % cols==0) {
+				out[position++] = '\r';
+				out[position++] = '\n';
+			} else out[position++] = ' ';
+		}
+		return position;
+	}
+}
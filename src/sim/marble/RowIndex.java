@@ -0,0 +1,222 @@
+/*
+ * This is the RowIndex class. It's a sparse index of a binary recording: the byte offset of a row
+ * every 1024 rows or so, so that a range of rows can be read (see RecordingWindow) by seeking
+ * straight to it instead of reading every row before it.
+ * For raw recordings the offsets are simply worked out from the size of a row. For delta encoded
+ * ones (see DeltaCodec) every entry is the start of a block, since that's where decoding can
+ * start; RecordingWriter keeps the index as it writes the blocks, and it's kept next to the
+ * recording, in "<recording>.rix". If it's not there or out of date, it's built again from the
+ * start of every block, without decoding any of them.
+ *
+ * Layout of an index, all values big-endian:
+ *   header:  int MAGIC, short version, long length and long last-modified time of the recording,
+ *            long row count, int entry count
+ *   entries: long first row, long offset of that row (or of the block it starts), per entry
+ */
+
+package sim.marble;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+public class RowIndex {
+
+	public static final String EXTENSION = ".rix";
+	public static final int MAGIC = 0x4D524958; // "MRIX"
+	public static final short VERSION = 1;
+	/** The fewest rows between two entries */
+	public static final int INTERVAL_ROWS = 1024;
+
+	private long mRows = 0;
+	private long[] mFirstRows = new long[16], mOffsets = new long[16];
+	private int mCount = 0;
+
+	RowIndex() {}
+
+	/**
+	 * Returns where the index of a recording is kept
+	 */
+	public static File sidecarFor(File recording) {
+		return new File(recording.getPath() + EXTENSION);
+	}
+
+	/**
+	 * Opens the index of a recording: the one kept next to it if it's up to date, or else a
+	 * new one, which is then written next to the recording for next time.
+	 * @param recording The recording, which must be closed
+	 */
+	public static RowIndex open(File recording) throws IOException {
+		RowIndex index = load(recording);
+		if (index==null) {
+			index = build(recording);
+			try {
+				index.write(recording);
+			} catch (IOException e) {
+				// Only a cache; it's built again next time
+				sidecarFor(recording).delete();
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Reads the index kept next to a recording.
+	 * @return The index, or null if there isn't one or the recording's changed since
+	 */
+	public static RowIndex load(File recording) throws IOException {
+		File file = sidecarFor(recording);
+		if (!file.isFile())
+			return null;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt()!=MAGIC || in.readShort()>VERSION)
+				return null;
+			if (in.readLong()!=recording.length() || in.readLong()!=recording.lastModified())
+				return null;
+			RowIndex index = new RowIndex();
+			index.mRows = in.readLong();
+			int count = in.readInt();
+			index.mFirstRows = new long[Math.max(count, 1)];
+			index.mOffsets = new long[Math.max(count, 1)];
+			for (int i=0; i<count; i++) {
+				index.mFirstRows[i] = in.readLong();
+				index.mOffsets[i] = in.readLong();
+			}
+			index.mCount = count;
+			return index;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Builds the index of a recording. Only the start of every block of a delta encoded
+	 * recording is read; nothing at all is read of a raw one but the header and footer.
+	 */
+	public static RowIndex build(File recording) throws IOException {
+		RecordingFormat.Header header = RecordingReader.readHeader(recording);
+		FileInputStream in = new FileInputStream(recording);
+		try {
+			FileChannel channel = in.getChannel();
+			long rows = RecordingReader.countRows(channel, header);
+			RowIndex index = new RowIndex();
+			if (header.encoding==RecordingFormat.ENCODING_DELTA) {
+				ByteBuffer blockHeader = ByteBuffer.allocate(DeltaCodec.BLOCK_HEADER_SIZE);
+				long position = header.dataOffset, row = 0;
+				while (row<rows) {
+					blockHeader.clear();
+					if (channel.read(blockHeader, position)<DeltaCodec.BLOCK_HEADER_SIZE)
+						break;
+					blockHeader.flip();
+					int count = blockHeader.getInt(), length = blockHeader.getInt();
+					DeltaCodec.checkBlockHeader(count, length, header.getCols(), position);
+					index.add(row, position);
+					row += count;
+					position += DeltaCodec.BLOCK_HEADER_SIZE + length;
+				}
+			} else {
+				for (long row=0; row<rows; row+=INTERVAL_ROWS)
+					index.add(row, header.dataOffset + row*header.getRowSize());
+			}
+			index.setRows(rows);
+			return index;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Adds an entry, unless it's too close to the last one.
+	 * @param firstRow The row the entry's for
+	 * @param offset The offset of that row, or of the block it starts
+	 */
+	void add(long firstRow, long offset) {
+		if (mCount>0 && firstRow - mFirstRows[mCount-1]<INTERVAL_ROWS)
+			return;
+		if (mCount==mFirstRows.length) {
+			int capacity = mCount + (mCount>>1);
+			mFirstRows = Arrays.copyOf(mFirstRows, capacity);
+			mOffsets = Arrays.copyOf(mOffsets, capacity);
+		}
+		mFirstRows[mCount] = firstRow;
+		mOffsets[mCount++] = offset;
+	}
+
+	void setRows(long rows) {
+		mRows = rows;
+	}
+
+	/**
+	 * Returns the number of rows in the recording
+	 */
+	public long getRows() {
+		return mRows;
+	}
+
+	public int getEntryCount() {
+		return mCount;
+	}
+
+	/**
+	 * Finds the entry to start reading from to get to a row: the last one at or before it.
+	 * @param row The row, 0-based
+	 * @return The entry, or -1 if the index is empty
+	 */
+	public int find(long row) {
+		int low = 0, high = mCount-1, found = -1;
+		while (low<=high) {
+			int mid = (low + high) >>> 1;
+			if (mFirstRows[mid]<=row) {
+				found = mid;
+				low = mid+1;
+			} else high = mid-1;
+		}
+		return found;
+	}
+
+	/**
+	 * Returns the row an entry's for, 0-based
+	 */
+	public long getFirstRow(int entry) {
+		return mFirstRows[entry];
+	}
+
+	/**
+	 * Returns the offset in the recording of the row an entry's for, or of the block it starts
+	 */
+	public long getOffset(int entry) {
+		return mOffsets[entry];
+	}
+
+	/**
+	 * Writes the index next to the recording. The recording mustn't change afterwards, or the
+	 * index won't be used.
+	 */
+	public void write(File recording) throws IOException {
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(sidecarFor(recording))));
+		try {
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			out.writeLong(recording.length());
+			out.writeLong(recording.lastModified());
+			out.writeLong(mRows);
+			out.writeInt(mCount);
+			for (int i=0; i<mCount; i++) {
+				out.writeLong(mFirstRows[i]);
+				out.writeLong(mOffsets[i]);
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,504 @@
+/*
+ * This is the RowRing class. It hands rows over from the thread that parses them (the
+ * BluetoothSerialService's reader thread) to the thread that writes them (the CaptureWriter),
+ * through a fixed number of slots that are allocated once and reused, so a capture takes the
+ * same memory however far behind the writing gets.
+ * There's only ever one thread putting rows in and one taking them out, so it doesn't need any
+ * locks: each side only writes its own index, and the side that has to wait parks until the other
+ * one wakes it up. What happens when every slot's full is up to its overflow policy:
+ *   OVERFLOW_BLOCK waits for a slot to free up, which holds the reader up, and the board with it
+ *   OVERFLOW_DROP_OLDEST overwrites the oldest slot; its rows are counted as overrun
+ *   OVERFLOW_SPILL appends the rows to a spill file instead, which is read back, in order, once
+ *     the slots have been emptied. Only the spill file has a lock, and it's only used while
+ *     there's something in it.
+ * Gaps in the capture go through it too, so they end up in order with the rows.
+ *
+ * Layout of a spill file, all values big-endian, one record per slot's worth:
+ *   int row count, then that many rows of ints; or int -1 for a gap, then long lost time and
+ *   long resumed time
+ */
+
+package sim.marble;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+public class RowRing implements RowSink {
+
+	public static final int OVERFLOW_BLOCK = 0;
+	public static final int OVERFLOW_DROP_OLDEST = 1;
+	public static final int OVERFLOW_SPILL = 2;
+
+	/** What a spill file's name ends in, after the recording's */
+	public static final String SPILL_EXTENSION = ".spill";
+
+	// The count of a slot that holds a gap rather than rows
+	private static final int GAP = -1;
+
+	/**
+	 * Gets the rows and gaps taken out of the ring, in the order they were put in.
+	 */
+	public interface Consumer extends RowSink {
+		/**
+		 * Called for a gap, after every row that came before it
+		 * @param lostTime When the connection was lost, in ms
+		 * @param resumedTime When the connection was back, in ms
+		 */
+		void onGap(long lostTime, long resumedTime);
+	}
+
+	private final int cols;
+	private final int slotRows;
+	private final int capacity;
+	private final int overflow;
+	private final int[][] mSlots;
+	private final int[] mCounts;
+	// The number of rows put in before a slot's, to tell how many were overrun
+	private final long[] mFirstRows;
+	// The lost and resumed times of the slots that hold gaps
+	private final long[] mGapTimes;
+	// Where the consumer copies a slot to when it could be overwritten, and reads spilled ones to
+	private final int[] mScratch;
+
+	// Written by the producer only
+	private volatile long mHead = 0;
+	private volatile long mClaimed = -1;
+	private volatile long mRowsPut = 0;
+	// Written by the consumer only
+	private volatile long mTail = 0;
+	private long mNextRow = 0;
+
+	private volatile Thread mWaitingProducer;
+	private volatile Thread mWaitingConsumer;
+	private volatile boolean mIsClosed = false;
+
+	private final File mSpillFile;
+	private final Object mSpillLock = new Object();
+	private FileChannel mSpill;
+	private ByteBuffer mSpillOut, mSpillIn;
+	// The rows in the records, after the count
+	private IntBuffer mSpillOutRows, mSpillInRows;
+	private long mSpillWritePosition = 0, mSpillReadPosition = 0;
+	private volatile int mSpilledSlots = 0;
+	private volatile IOException mSpillError;
+
+	// Metrics
+	private volatile int mHighWaterMark = 0;
+	private volatile long mFullCount = 0;
+	private volatile long mBlockedNanos = 0;
+	private volatile long mOverrunRows = 0;
+	private volatile long mOverrunSlots = 0;
+	private volatile long mSpilledRows = 0;
+	private volatile long mMaxSpillBytes = 0;
+
+	/**
+	 * @param cols The number of values in a row
+	 * @param slotRows The most rows a slot takes; bigger batches are split across slots
+	 * @param capacity The number of slots
+	 * @param overflow What to do when every slot's full, one of the OVERFLOW_ constants
+	 * @param spillFile Where to spill to with OVERFLOW_SPILL; it's deleted once the ring's empty
+	 *        and closed. Can be null otherwise.
+	 */
+	public RowRing(int cols, int slotRows, int capacity, int overflow, File spillFile) {
+		if (overflow==OVERFLOW_SPILL && spillFile==null)
+			throw new IllegalArgumentException("Spilling needs a spill file");
+		this.cols = cols;
+		this.slotRows = slotRows;
+		this.capacity = capacity;
+		this.overflow = overflow;
+		mSlots = new int[capacity][slotRows * cols];
+		mCounts = new int[capacity];
+		mFirstRows = new long[capacity];
+		mGapTimes = new long[2 * capacity];
+		mScratch = new int[slotRows * cols];
+		mSpillFile = spillFile;
+	}
+
+	/**
+	 * Puts rows in. Only to be called by the one producer thread.
+	 * @param rows The rows, laid out one after the other; they're copied
+	 * @param count The number of rows
+	 */
+	@Override
+	public void onRows(int[] rows, int count) {
+		for (int row=0; row<count; row+=slotRows)
+			put(rows, row*cols, Math.min(slotRows, count - row), 0, 0);
+	}
+
+	/**
+	 * Puts a gap in, after every row put in so far. Only to be called by the producer thread, or
+	 * while it's not putting anything in.
+	 * @param lostTime When the connection was lost, in ms
+	 * @param resumedTime When the connection was back, in ms
+	 */
+	public void putGap(long lostTime, long resumedTime) {
+		put(null, 0, GAP, lostTime, resumedTime);
+	}
+
+	/**
+	 * Takes out everything that's been put in so far, waiting for something to come in if the
+	 * ring's empty. Only to be called by the one consumer thread.
+	 * @param consumer Gets the rows and gaps; the rows are only valid until it returns
+	 * @param timeoutMillis The longest to wait
+	 * @return The number of batches of rows and gaps taken out, 0 if nothing came in in time, or
+	 *         -1 once the ring's been closed and everything's been taken out
+	 */
+	public int take(Consumer consumer, long timeoutMillis) {
+		long deadline = System.nanoTime() + timeoutMillis*1000000;
+		while (true) {
+			boolean isClosed = mIsClosed;
+			int taken = drain(consumer);
+			if (taken>0)
+				return taken;
+			if (isClosed) {
+				// Anything put in before it was closed has been taken out by now
+				mOverrunRows += mRowsPut - mNextRow;
+				mNextRow = mRowsPut;
+				deleteSpill();
+				return -1;
+			}
+			long wait = deadline - System.nanoTime();
+			if (wait<=0)
+				return 0;
+			mWaitingConsumer = Thread.currentThread();
+			if (mHead==mTail && mSpilledSlots==0 && !mIsClosed)
+				LockSupport.parkNanos(this, wait);
+			mWaitingConsumer = null;
+		}
+	}
+
+	/**
+	 * Stops anything more being put in, and wakes up both sides. The consumer still gets
+	 * whatever's left.
+	 */
+	public void close() {
+		mIsClosed = true;
+		unpark(mWaitingProducer);
+		unpark(mWaitingConsumer);
+	}
+
+	private void put(int[] rows, int offset, int count, long lostTime, long resumedTime) {
+		if (mIsClosed)
+			return;
+		long head = mHead;
+		boolean isFull = head - mTail>=capacity;
+		if (isFull)
+			mFullCount++;
+		if (overflow==OVERFLOW_SPILL && (isFull || mSpilledSlots>0)) {
+			if (spill(rows, offset, count, lostTime, resumedTime))
+				return;
+			isFull = head - mTail>=capacity;
+		}
+		if (isFull && overflow!=OVERFLOW_DROP_OLDEST && !waitForRoom(head))
+			return;
+		int slot = (int)(head % capacity);
+		long depth;
+		if (overflow==OVERFLOW_DROP_OLDEST) {
+			// The slot's claimed before it's written, so the consumer can tell if it was
+			// overwritten while it was copying it. Reading the consumer's index after the claim
+			// keeps the writes below from being moved up past it.
+			mClaimed = head;
+			depth = Math.min(head + 1 - mTail, capacity);
+		} else depth = head + 1 - mTail;
+		if (count==GAP) {
+			mGapTimes[2*slot] = lostTime;
+			mGapTimes[2*slot + 1] = resumedTime;
+		} else System.arraycopy(rows, offset, mSlots[slot], 0, count*cols);
+		mCounts[slot] = count;
+		mFirstRows[slot] = mRowsPut;
+		mHead = head + 1;
+		if (count!=GAP)
+			mRowsPut += count;
+		if (depth>mHighWaterMark)
+			mHighWaterMark = (int)depth;
+		unpark(mWaitingConsumer);
+	}
+
+	/**
+	 * Waits until the consumer's taken the oldest slot out.
+	 * @return false if the ring was closed, or the thread interrupted, in the meantime
+	 */
+	private boolean waitForRoom(long head) {
+		long start = System.nanoTime();
+		Thread thread = Thread.currentThread();
+		mWaitingProducer = thread;
+		while (head - mTail>=capacity && !mIsClosed && !thread.isInterrupted())
+			LockSupport.park(this);
+		mWaitingProducer = null;
+		mBlockedNanos += System.nanoTime() - start;
+		return head - mTail<capacity;
+	}
+
+	/**
+	 * Takes out every slot that's been put in, then, if the slots are empty, whatever's been
+	 * spilled.
+	 * @return The number of slots taken out
+	 */
+	private int drain(Consumer consumer) {
+		int taken = 0;
+		long head = mHead, tail = mTail;
+		while (tail<head) {
+			int slot = (int)(tail % capacity);
+			if (overflow==OVERFLOW_DROP_OLDEST) {
+				if (head - tail>capacity) {
+					// Overwritten already
+					mOverrunSlots += head - capacity - tail;
+					tail = head - capacity;
+					continue;
+				}
+				int count = mCounts[slot];
+				long firstRow = mFirstRows[slot];
+				long lostTime = mGapTimes[2*slot], resumedTime = mGapTimes[2*slot + 1];
+				if (count>0)
+					System.arraycopy(mSlots[slot], 0, mScratch, 0, count*cols);
+				// Writing the index keeps the reads above from being moved down past the check
+				mTail = ++tail;
+				if (mClaimed>=tail - 1 + capacity) {
+					mOverrunSlots++;
+				} else {
+					if (count!=GAP) {
+						mOverrunRows += firstRow - mNextRow;
+						mNextRow = firstRow + count;
+					}
+					deliver(consumer, mScratch, count, lostTime, resumedTime);
+					taken++;
+				}
+			} else {
+				int count = mCounts[slot];
+				deliver(consumer, mSlots[slot], count, mGapTimes[2*slot], mGapTimes[2*slot + 1]);
+				if (count!=GAP)
+					mNextRow += count;
+				mTail = ++tail;
+				unpark(mWaitingProducer);
+				taken++;
+			}
+			if (tail==head)
+				head = mHead;
+		}
+		if (mSpilledSlots>0)
+			taken += drainSpill(consumer);
+		return taken;
+	}
+
+	private void deliver(Consumer consumer, int[] rows, int count, long lostTime,
+			long resumedTime) {
+		if (count==GAP)
+			consumer.onGap(lostTime, resumedTime);
+		else consumer.onRows(rows, count);
+	}
+
+	/**
+	 * Appends a slot's worth to the spill file.
+	 * @return false if it should go in a slot after all: there's room again and nothing's left
+	 *         in the spill file, or the spill file can't be written to
+	 */
+	private boolean spill(int[] rows, int offset, int count, long lostTime, long resumedTime) {
+		synchronized (mSpillLock) {
+			if (mSpilledSlots==0 && mHead - mTail<capacity || mSpillError!=null || mIsClosed)
+				return false;
+			try {
+				if (mSpill==null) {
+					mSpill = new RandomAccessFile(mSpillFile, "rw").getChannel();
+					mSpillOut = ByteBuffer.allocate(4 + Math.max(16, slotRows*cols*4));
+					mSpillIn = ByteBuffer.allocate(mSpillOut.capacity());
+					mSpillOut.position(4);
+					mSpillOutRows = mSpillOut.slice().asIntBuffer();
+					mSpillIn.position(4);
+					mSpillInRows = mSpillIn.slice().asIntBuffer();
+				}
+				ByteBuffer out = mSpillOut;
+				out.clear();
+				out.putInt(count);
+				if (count==GAP) {
+					out.putLong(lostTime);
+					out.putLong(resumedTime);
+				} else {
+					mSpillOutRows.clear();
+					mSpillOutRows.put(rows, offset, count*cols);
+					out.position(4 + count*cols*4);
+				}
+				out.flip();
+				while (out.hasRemaining())
+					mSpillWritePosition += mSpill.write(out, mSpillWritePosition);
+			} catch (IOException e) {
+				mSpillError = e;
+				return false;
+			}
+			mMaxSpillBytes = Math.max(mMaxSpillBytes, mSpillWritePosition - mSpillReadPosition);
+			mSpilledSlots++;
+			if (count!=GAP) {
+				mSpilledRows += count;
+				mRowsPut += count;
+			}
+		}
+		unpark(mWaitingConsumer);
+		return true;
+	}
+
+	/**
+	 * Takes out everything that's been spilled so far, one record at a time, as long as the
+	 * slots are empty: nothing goes in a slot while there's something in the spill file, so
+	 * anything that's in one is older. The lock's only held while reading a record, not while the
+	 * consumer's got it.
+	 * @return The number of records taken out
+	 */
+	private int drainSpill(Consumer consumer) {
+		int taken = 0;
+		while (true) {
+			int count;
+			long lostTime = 0, resumedTime = 0;
+			synchronized (mSpillLock) {
+				if (mSpilledSlots==0 || mHead!=mTail)
+					return taken;
+				ByteBuffer in = mSpillIn;
+				try {
+					in.clear();
+					in.limit(4);
+					readFully(in);
+					count = in.getInt(0);
+					in.limit(4 + (count==GAP ? 16 : count*cols*4));
+					readFully(in);
+				} catch (IOException e) {
+					// Whatever's left can't be read back, so it's counted as overrun
+					mSpillError = e;
+					mSpilledSlots = 0;
+					return taken;
+				}
+				if (count==GAP) {
+					lostTime = in.getLong(4);
+					resumedTime = in.getLong(12);
+				} else {
+					mSpillInRows.clear();
+					mSpillInRows.get(mScratch, 0, count*cols);
+				}
+				if (--mSpilledSlots==0)
+					// Start over at the beginning of the file next time
+					mSpillWritePosition = mSpillReadPosition = 0;
+			}
+			if (count!=GAP)
+				mNextRow += count;
+			deliver(consumer, mScratch, count, lostTime, resumedTime);
+			taken++;
+		}
+	}
+
+	private void readFully(ByteBuffer in) throws IOException {
+		while (in.hasRemaining()) {
+			int read = mSpill.read(in, mSpillReadPosition);
+			if (read<0)
+				throw new IOException("Spill file ended early");
+			mSpillReadPosition += read;
+		}
+	}
+
+	private void deleteSpill() {
+		synchronized (mSpillLock) {
+			if (mSpill==null)
+				return;
+			try {
+				mSpill.close();
+			} catch (IOException e) {
+				// Deleted anyway
+			}
+			mSpill = null;
+			mSpillFile.delete();
+		}
+	}
+
+	private static void unpark(Thread thread) {
+		if (thread!=null)
+			LockSupport.unpark(thread);
+	}
+
+	//////////////////////////
+	//*      METRICS       *//
+	//////////////////////////
+
+	/**
+	 * Returns the number of slots
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int getOverflow() {
+		return overflow;
+	}
+
+	/**
+	 * Returns the number of slots that are waiting to be taken out
+	 */
+	public int getDepth() {
+		return (int)Math.max(0, Math.min(mHead - mTail, capacity));
+	}
+
+	/**
+	 * Returns the most slots that were waiting to be taken out at once
+	 */
+	public int getHighWaterMark() {
+		return mHighWaterMark;
+	}
+
+	/**
+	 * Returns the number of times rows were put in while every slot was full
+	 */
+	public long getFullCount() {
+		return mFullCount;
+	}
+
+	/**
+	 * Returns how long the producer's spent waiting for room altogether, in ns
+	 */
+	public long getBlockedNanos() {
+		return mBlockedNanos;
+	}
+
+	/**
+	 * Returns the number of rows put in so far
+	 */
+	public long getRowsPut() {
+		return mRowsPut;
+	}
+
+	/**
+	 * Returns the number of rows that were overwritten (or couldn't be read back from the spill
+	 * file) before they were taken out
+	 */
+	public long getOverrunRows() {
+		return mOverrunRows;
+	}
+
+	/**
+	 * Returns the number of slots, gaps included, that were overwritten before they were taken out
+	 */
+	public long getOverrunSlots() {
+		return mOverrunSlots;
+	}
+
+	/**
+	 * Returns the number of rows that went through the spill file
+	 */
+	public long getSpilledRows() {
+		return mSpilledRows;
+	}
+
+	/**
+	 * Returns the most bytes that were waiting in the spill file at once
+	 */
+	public long getMaxSpillBytes() {
+		return mMaxSpillBytes;
+	}
+
+	/**
+	 * Returns the error the spill file ran into, or null if there hasn't been one. Nothing more's
+	 * spilled afterwards; the producer waits for room instead.
+	 */
+	public IOException getSpillError() {
+		return mSpillError;
+	}
+}
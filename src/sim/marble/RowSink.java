@@ -0,0 +1,18 @@
+/*
+ * This is the RowSink interface. Anything that takes in rows of sensor data as they're parsed,
+ * e.g. from RowTokenizer, implements this.
+ */
+
+package sim.marble;
+
+public interface RowSink {
+
+	/**
+	 * Called with a batch of complete rows, laid out one after the other in a single array.
+	 * <p>The array belongs to the caller and gets reused once this returns, so copy out whatever
+	 * needs to be kept.
+	 * @param rows The array holding the rows, starting at index 0
+	 * @param count The number of rows in the batch
+	 */
+	void onRows(int[] rows, int count);
+}
@@ -0,0 +1,213 @@
+/*
+ * This is the RowTokenizer class. It turns the ASCII text sent by the board (space separated
+ * integers, one row per line) into rows of ints, byte by byte, as the bytes come in.
+ * Lines can be split across any number of reads; whatever's left of a line at the end of one
+ * read is picked up again at the start of the next. No objects are allocated while parsing.
+ * Values can be separated by any run of spaces and tabs, lines can end in LF or CRLF, and
+ * values can be negative. Lines starting with '#' are messages from the board (e.g. its answer to
+ * the handshake, see WireProtocol), not rows, and are skipped. The same class parses text
+ * recordings, see TextRecordingReader.
+ */
+
+package sim.marble;
+
+public class RowTokenizer {
+
+	// The number of rejected line numbers that are kept
+	private static final int MAX_REJECTED_LINES = 16;
+	// Values below this can't overflow when another digit's added
+	private static final int OVERFLOW_LIMIT = Integer.MAX_VALUE / 10 - 9;
+
+	private final int cols;
+	private final int batchRows;
+	private final int[] mBatch;
+	private int mRowsInBatch = 0;
+
+	// State of the line being parsed
+	private int mCol = 0;
+	private int mValue = 0;
+	private boolean mInNumber = false;
+	private boolean mIsNegative = false;
+	private boolean mIsMalformed = false;
+	private boolean mIsMessage = false;
+
+	private volatile long mRowCount = 0;
+	private volatile long mMalformedCount = 0;
+	private long mLineNumber = 0;
+	private final long[] mRejectedLines = new long[MAX_REJECTED_LINES];
+
+	/**
+	 * @param cols The number of values a row must have to be accepted
+	 * @param batchRows The max number of rows handed to the RowSink at once
+	 */
+	public RowTokenizer(int cols, int batchRows) {
+		this.cols = cols;
+		this.batchRows = batchRows;
+		mBatch = new int[cols * batchRows];
+	}
+
+	/**
+	 * Parses the given bytes. Every time the batch fills up it's handed to the sink; call
+	 * flush() to hand over a batch that isn't full yet.
+	 * @param buffer The bytes that were read
+	 * @param offset The index of the first byte to parse
+	 * @param length The number of bytes to parse
+	 * @param sink Where the complete rows go
+	 */
+	public void feed(byte[] buffer, int offset, int length, RowSink sink) {
+		// The state's kept in locals while scanning, and only written back to the fields
+		// at the end of a value or a line
+		int value = mValue;
+		boolean inNumber = mInNumber;
+		int end = offset + length;
+		for (int i=offset; i<end; i++) {
+			int digit = buffer[i] - '0';
+			if (digit>=0 && digit<=9) {
+				if (value>=OVERFLOW_LIMIT && value>(Integer.MAX_VALUE - digit) / 10)
+					mIsMalformed = true;
+				value = value*10 + digit;
+				inNumber = true;
+				continue;
+			}
+			int b = buffer[i];
+			if (mIsMessage) {
+				if (b=='\n')
+					endMessage();
+				value = 0;
+				inNumber = false;
+				continue;
+			}
+			mValue = value;
+			mInNumber = inNumber;
+			if (b==' ' || b=='\t' || b=='\r') {
+				endValue();
+			} else if (b=='\n') {
+				endValue();
+				endLine(sink);
+			} else if (b=='-' && !inNumber && !mIsNegative) {
+				mIsNegative = true;
+			} else if (b=='#' && mCol==0 && !inNumber && !mIsNegative && !mIsMalformed) {
+				mIsMessage = true;
+			} else {
+				mIsMalformed = true;
+			}
+			value = mValue;
+			inNumber = mInNumber;
+		}
+		mValue = value;
+		mInNumber = inNumber;
+	}
+
+	/**
+	 * Hands whatever complete rows are in the batch to the sink. The line that's currently
+	 * being parsed is kept for the next feed().
+	 * @param sink Where the complete rows go
+	 */
+	public void flush(RowSink sink) {
+		if (mRowsInBatch>0) {
+			sink.onRows(mBatch, mRowsInBatch);
+			// The values of the line being parsed are already in the slot after the last row;
+			// they move to the first slot along with it
+			if (mCol>0)
+				System.arraycopy(mBatch, mRowsInBatch*cols, mBatch, 0, Math.min(mCol, cols));
+			mRowsInBatch = 0;
+		}
+	}
+
+	/**
+	 * Ends the line that's currently being parsed, as if a newline had been read, and hands
+	 * every complete row to the sink. Use this once there's nothing more to be read, so that a
+	 * last line without a newline isn't lost; it's accepted if it has a full set of values.
+	 * @param sink Where the complete rows go
+	 */
+	public void finish(RowSink sink) {
+		if (mIsMessage) {
+			endMessage();
+		} else if (mInNumber || mIsNegative || mCol>0 || mIsMalformed) {
+			endValue();
+			endLine(sink);
+		}
+		flush(sink);
+	}
+
+	/**
+	 * Returns the number of values a row must have
+	 */
+	public int getCols() {
+		return cols;
+	}
+
+	/**
+	 * Returns the number of rows accepted so far
+	 */
+	public long getRowCount() {
+		return mRowCount;
+	}
+
+	/**
+	 * Returns the number of lines rejected so far, either because they didn't have the right
+	 * number of values or because they had something other than integers in them
+	 */
+	public long getMalformedCount() {
+		return mMalformedCount;
+	}
+
+	/**
+	 * Returns the number of lines that have been ended so far, blank ones included
+	 */
+	public long getLineCount() {
+		return mLineNumber;
+	}
+
+	/**
+	 * Returns the line numbers (1-based) of the first few lines that were rejected. Only the
+	 * first 16 are kept; getMalformedCount() has the full count.
+	 */
+	public long[] getRejectedLines() {
+		int kept = (int)Math.min(mMalformedCount, MAX_REJECTED_LINES);
+		long[] lines = new long[kept];
+		System.arraycopy(mRejectedLines, 0, lines, 0, kept);
+		return lines;
+	}
+
+	private void endValue() {
+		if (mInNumber) {
+			// Values are written straight into the row's slot; a row that's rejected later
+			// just gets overwritten by the next one
+			if (mCol<cols)
+				mBatch[mRowsInBatch*cols + mCol] = mIsNegative ? -mValue : mValue;
+			mCol++;
+		} else if (mIsNegative) {
+			mIsMalformed = true;
+		}
+		mValue = 0;
+		mInNumber = false;
+		mIsNegative = false;
+	}
+
+	private void endMessage() {
+		mLineNumber++;
+		mIsMessage = false;
+		mIsMalformed = false;
+		mValue = 0;
+		mInNumber = false;
+	}
+
+	private void endLine(RowSink sink) {
+		mLineNumber++;
+		boolean isAccepted = mCol==cols && !mIsMalformed;
+		if (!isAccepted && (mCol>0 || mIsMalformed)) {
+			// Blank lines don't count as malformed
+			if (mMalformedCount<MAX_REJECTED_LINES)
+				mRejectedLines[(int)mMalformedCount] = mLineNumber;
+			mMalformedCount++;
+		}
+		mCol = 0;
+		mIsMalformed = false;
+		if (isAccepted) {
+			mRowCount++;
+			if (++mRowsInBatch==batchRows)
+				flush(sink);
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * This is the SeriesRingBuffer class. It keeps the last few hundred values of some of the columns
+ * of a capture, one fixed-size int ring per column, for ReadData's live graph.
+ * It's a RowSink, so rows can be fed to it straight from the thread that parses them; the UI
+ * thread only ever takes a snapshot of it when it's time to draw a frame. Once it's full the
+ * oldest values are overwritten, so it takes the same memory however long the capture runs.
+ */
+
+package sim.marble;
+
+public class SeriesRingBuffer implements RowSink {
+
+	private final int cols;
+	// The columns kept, 0-based
+	private final int[] mColumns;
+	private final int[][] mValues;
+	private final int capacity;
+	// Where the next value goes
+	private int mHead = 0;
+	private volatile long mTotal = 0;
+
+	/**
+	 * @param cols The number of columns in the rows that are fed in
+	 * @param columns The columns to keep, 1-based, one series per column
+	 * @param capacity The number of values kept per series
+	 */
+	public SeriesRingBuffer(int cols, int[] columns, int capacity) {
+		this.cols = cols;
+		this.capacity = capacity;
+		mColumns = new int[columns.length];
+		for (int i=0; i<columns.length; i++)
+			mColumns[i] = columns[i]-1;
+		mValues = new int[columns.length][capacity];
+	}
+
+	@Override
+	public synchronized void onRows(int[] rows, int count) {
+		// Only the last capacity rows would survive anyway
+		int first = Math.max(0, count - capacity);
+		for (int series=0; series<mColumns.length; series++) {
+			int[] values = mValues[series];
+			int index = first*cols + mColumns[series];
+			int head = mHead;
+			for (int row=first; row<count; row++) {
+				values[head] = rows[index];
+				index += cols;
+				if (++head==capacity)
+					head = 0;
+			}
+		}
+		mHead = (int)((mHead + (long)(count - first)) % capacity);
+		mTotal += count;
+	}
+
+	/**
+	 * Returns the number of rows fed in so far, including the ones that have been overwritten.
+	 * Cheap enough to check every frame to see if there's anything new to draw.
+	 */
+	public long getTotal() {
+		return mTotal;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int getSeriesCount() {
+		return mColumns.length;
+	}
+
+	/**
+	 * Copies the values that are kept, oldest first, into the given arrays.
+	 * @param out One array per series, each with room for getCapacity() values
+	 * @return The number of rows fed in at the time of the snapshot. The number of values
+	 *         copied per series is the smaller of that and getCapacity(), and the last value
+	 *         copied is from row (returned value - 1) of the capture, counting from 0
+	 */
+	public synchronized long snapshot(int[][] out) {
+		int size = (int)Math.min(mTotal, capacity);
+		int start = size<capacity ? 0 : mHead;
+		int tail = capacity - start;
+		for (int series=0; series<mColumns.length; series++) {
+			int[] values = mValues[series];
+			if (size<capacity) {
+				System.arraycopy(values, 0, out[series], 0, size);
+			} else {
+				System.arraycopy(values, start, out[series], 0, tail);
+				System.arraycopy(values, 0, out[series], tail, start);
+			}
+		}
+		return mTotal;
+	}
+}
@@ -0,0 +1,290 @@
+/*
+ * This is the SpectrumAnalyzer class. It shows what frequencies the marble's vibrating at: it
+ * runs a Fourier transform (see Fft) over every window of so many rows of some of the columns,
+ * e.g. XPos, YPos and ZPos, as the rows come in, each window overlapping the one before it.
+ * Every window's mean is taken off first (mostly gravity, which would drown out everything
+ * else), and it's tapered with a Hann window, so that the ends of it don't show up as
+ * frequencies that aren't there.
+ * It's a RowSink, so a recording of any length can be streamed through it (see
+ * RecordingReader.read(File, RowSink)): only the last window of rows is kept, and every window's
+ * done with as soon as it's been transformed. What it builds up is
+ *  - the power spectrum of every column, averaged over every window (Welch's method), and
+ *  - the spectrogram: the power of all the columns together, window by window. It's kept to a
+ *    set number of frames; once they're full, every two frames are merged into one, and from then
+ *    on every frame covers twice the windows, so a long recording takes the same memory as a
+ *    short one.
+ * Two columns are transformed at a time, one as the real and the other as the imaginary part,
+ * and pulled apart afterwards, so that three columns take two transforms rather than three.
+ * Frequencies are in cycles per row; see getFrequency() to turn them into Hz.
+ */
+
+package sim.marble;
+
+import java.util.Arrays;
+
+public class SpectrumAnalyzer implements RowSink {
+
+	private final int cols;
+	// The columns analysed, 0-based
+	private final int[] mColumns;
+	private final int size;
+	private final int hop;
+	private final int bins;
+	private final Fft mFft;
+	private final double[] mHann;
+	// Makes up for the power the Hann window takes out, and for the bins being one-sided, so that
+	// the power of all the bins adds up to the mean square of the window
+	private final double mScale;
+
+	// The last size rows of every column analysed, and where the next row goes
+	private final int[][] mHistory;
+	private int mHead = 0;
+	private long mRows = 0;
+	// The rows since the last window
+	private int mSinceWindow = 0;
+
+	// Reused for every transform
+	private final double[] mRe, mIm;
+	// The power of every column in the latest window
+	private final double[][] mPower;
+
+	private long mWindows = 0;
+	private final double[][] mSpectrum;
+
+	private final float[][] mFrames;
+	private int mFrameCount = 0;
+	private int mWindowsPerFrame = 1;
+	private int mWindowsInFrame = 0;
+	private final double[] mFrame;
+
+	/**
+	 * @param cols The number of columns in the rows that are fed in
+	 * @param columns The columns to analyse, 1-based
+	 * @param size The number of rows in a window, a power of two
+	 * @param hop The number of rows between the starts of two windows, e.g. size/2 for windows
+	 *        that overlap by half
+	 * @param maxFrames The most frames the spectrogram's kept to, an even number
+	 */
+	public SpectrumAnalyzer(int cols, int[] columns, int size, int hop, int maxFrames) {
+		if (hop<1 || hop>size)
+			throw new IllegalArgumentException("Hop of " + hop + " rows");
+		if (maxFrames<2 || maxFrames % 2!=0)
+			throw new IllegalArgumentException("Spectrogram of " + maxFrames + " frames");
+		this.cols = cols;
+		this.size = size;
+		this.hop = hop;
+		mFft = new Fft(size);
+		bins = size/2 + 1;
+		mColumns = new int[columns.length];
+		for (int i=0; i<columns.length; i++)
+			mColumns[i] = columns[i]-1;
+
+		mHann = new double[size];
+		double sumOfSquares = 0;
+		for (int i=0; i<size; i++) {
+			mHann[i] = 0.5 - 0.5*Math.cos(2*Math.PI*i / size);
+			sumOfSquares += mHann[i]*mHann[i];
+		}
+		mScale = 2 / (size * sumOfSquares);
+
+		mHistory = new int[columns.length][size];
+		mRe = new double[size];
+		mIm = new double[size];
+		mPower = new double[columns.length][bins];
+		mSpectrum = new double[columns.length][bins];
+		mFrames = new float[maxFrames][bins];
+		mFrame = new double[bins];
+	}
+
+	@Override
+	public void onRows(int[] rows, int count) {
+		int series = mColumns.length;
+		for (int row=0, index=0; row<count; row++, index+=cols) {
+			for (int s=0; s<series; s++)
+				mHistory[s][mHead] = rows[index + mColumns[s]];
+			if (++mHead==size)
+				mHead = 0;
+			mRows++;
+			if (++mSinceWindow>=hop && mRows>=size) {
+				mSinceWindow = 0;
+				analyzeWindow();
+			}
+		}
+	}
+
+	/**
+	 * Transforms the last size rows, and adds their power to the spectrum and spectrogram.
+	 */
+	private void analyzeWindow() {
+		int series = mColumns.length;
+		for (int s=0; s<series; s+=2) {
+			load(s, mRe);
+			if (s+1<series)
+				load(s+1, mIm);
+			else Arrays.fill(mIm, 0);
+			mFft.transform(mRe, mIm);
+			separate(mPower[s], s+1<series ? mPower[s+1] : null);
+		}
+		mWindows++;
+		for (int s=0; s<series; s++) {
+			double[] power = mPower[s], spectrum = mSpectrum[s];
+			for (int bin=0; bin<bins; bin++) {
+				spectrum[bin] += power[bin];
+				mFrame[bin] += power[bin];
+			}
+		}
+		if (++mWindowsInFrame==mWindowsPerFrame)
+			endFrame();
+	}
+
+	/**
+	 * Copies a column's window out of the history, oldest row first, without its mean and
+	 * tapered with the Hann window.
+	 */
+	private void load(int series, double[] out) {
+		int[] history = mHistory[series];
+		long sum = 0;
+		for (int i=0; i<size; i++)
+			sum += history[i];
+		double mean = (double)sum / size;
+		// mHead's the oldest row, since the history's always full by now
+		for (int i=0, j=mHead; i<size; i++) {
+			out[i] = (history[j] - mean) * mHann[i];
+			if (++j==size)
+				j = 0;
+		}
+	}
+
+	/**
+	 * Works out the power of the two columns that were transformed together, one as the real and
+	 * one as the imaginary part. With Z the transform of x + iy, X[k] = (Z[k] + Z*[n-k]) / 2 and
+	 * Y[k] = (Z[k] - Z*[n-k]) / 2i.
+	 * @param powerX Gets the power of the real column
+	 * @param powerY Gets the power of the imaginary column, or null if there's only the one
+	 */
+	private void separate(double[] powerX, double[] powerY) {
+		double[] re = mRe, im = mIm;
+		for (int k=0; k<bins; k++) {
+			int mirror = (size - k) & (size - 1);
+			double sumRe = re[k] + re[mirror], diffRe = re[k] - re[mirror];
+			double sumIm = im[k] + im[mirror], diffIm = im[k] - im[mirror];
+			// DC and the Nyquist frequency only have the one side
+			double scale = (k==0 || k==size/2 ? 0.5 : 1) * mScale / 4;
+			powerX[k] = (sumRe*sumRe + diffIm*diffIm) * scale;
+			if (powerY!=null)
+				powerY[k] = (sumIm*sumIm + diffRe*diffRe) * scale;
+		}
+	}
+
+	private void endFrame() {
+		if (mFrameCount==mFrames.length) {
+			// Merge every two frames into one; every frame covers twice the windows from now on
+			for (int frame=0; frame<mFrameCount/2; frame++) {
+				float[] merged = mFrames[frame], first = mFrames[2*frame],
+						second = mFrames[2*frame+1];
+				for (int bin=0; bin<bins; bin++)
+					merged[bin] = (first[bin] + second[bin]) / 2;
+			}
+			mFrameCount /= 2;
+			mWindowsPerFrame *= 2;
+			// The frame that's just been finished only covers half a frame now, so carry on
+			// adding to it
+			if (mWindowsInFrame<mWindowsPerFrame)
+				return;
+		}
+		float[] out = mFrames[mFrameCount++];
+		for (int bin=0; bin<bins; bin++)
+			out[bin] = (float)(mFrame[bin] / mWindowsInFrame);
+		Arrays.fill(mFrame, 0);
+		mWindowsInFrame = 0;
+	}
+
+	/**
+	 * Returns the number of frequencies in the spectrum, from 0 up to half a cycle per row
+	 */
+	public int getBins() {
+		return bins;
+	}
+
+	/**
+	 * Returns the number of columns analysed
+	 */
+	public int getSeriesCount() {
+		return mColumns.length;
+	}
+
+	/**
+	 * Returns the number of rows fed in so far
+	 */
+	public long getRows() {
+		return mRows;
+	}
+
+	/**
+	 * Returns the number of windows transformed so far
+	 */
+	public long getWindows() {
+		return mWindows;
+	}
+
+	/**
+	 * Returns the number of rows between the starts of two windows
+	 */
+	public int getHop() {
+		return hop;
+	}
+
+	/**
+	 * Returns the frequency of a bin, in cycles per row
+	 */
+	public double getFrequency(int bin) {
+		return (double)bin / size;
+	}
+
+	/**
+	 * Returns the frequency of a bin in Hz
+	 * @param rowsPerSecond The rate the rows were sent at
+	 */
+	public double getFrequency(int bin, double rowsPerSecond) {
+		return getFrequency(bin) * rowsPerSecond;
+	}
+
+	/**
+	 * Gets the power spectrum of a column, averaged over every window so far, in the square of
+	 * the column's units. All 0 if there hasn't been a whole window yet.
+	 * @param series The index of the column in the ones analysed
+	 * @param out Gets the power of every bin; must have room for getBins() values
+	 */
+	public void getSpectrum(int series, double[] out) {
+		double[] spectrum = mSpectrum[series];
+		for (int bin=0; bin<bins; bin++)
+			out[bin] = mWindows==0 ? 0 : spectrum[bin] / mWindows;
+	}
+
+	/**
+	 * Returns the number of frames in the spectrogram so far. The windows since the last whole
+	 * frame aren't in it.
+	 */
+	public int getFrameCount() {
+		return mFrameCount;
+	}
+
+	/**
+	 * Returns the number of windows every frame of the spectrogram covers
+	 */
+	public int getWindowsPerFrame() {
+		return mWindowsPerFrame;
+	}
+
+	/**
+	 * Returns a frame of the spectrogram: the power of every bin, all the columns added up,
+	 * averaged over the frame's windows. The array belongs to the analyzer, and changes as more
+	 * rows come in.
+	 * @param frame The frame, 0 for the first
+	 */
+	public float[] getFrame(int frame) {
+		if (frame>=mFrameCount)
+			throw new IndexOutOfBoundsException("Frame " + frame + " of " + mFrameCount);
+		return mFrames[frame];
+	}
+}
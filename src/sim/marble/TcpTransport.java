@@ -0,0 +1,64 @@
+/*
+ * This is the TcpTransport class. It reads the same text a board sends, but from a TCP socket,
+ * e.g. one on localhost (or on a PC, through adb reverse) that a script's feeding rows into as
+ * fast as it can, to find out how much the capture can take.
+ */
+
+package sim.marble;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+public class TcpTransport implements Transport {
+
+	// How long to wait for the connection to be made, in ms
+	private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+	private final String mHost;
+	private final int mPort;
+
+	public TcpTransport(String host, int port) {
+		mHost = host;
+		mPort = port;
+	}
+
+	@Override
+	public Connection createConnection() {
+		final Socket socket = new Socket();
+		return new Connection() {
+			@Override
+			public void connect() throws IOException {
+				socket.connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT_MILLIS);
+				socket.setTcpNoDelay(true);
+			}
+
+			@Override
+			public InputStream getInputStream() throws IOException {
+				return socket.getInputStream();
+			}
+
+			@Override
+			public OutputStream getOutputStream() throws IOException {
+				return socket.getOutputStream();
+			}
+
+			@Override
+			public void close() throws IOException {
+				socket.close();
+			}
+		};
+	}
+
+	@Override
+	public String getName() {
+		return "TCP " + getAddress();
+	}
+
+	@Override
+	public String getAddress() {
+		return mHost + ":" + mPort;
+	}
+}
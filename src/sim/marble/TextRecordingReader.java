@@ -0,0 +1,234 @@
+/*
+ * This is the TextRecordingReader class. It reads the older text recordings (space separated
+ * integers, one row per line) into an IntMatrix, or any other IntTable.
+ * The file's bytes are parsed straight from the read buffer by a RowTokenizer, so there are no
+ * Strings, no regexes and no Integer.parseInt() calls per row; the only per-file allocations are
+ * the buffer and the tokenizer.
+ * Large files are split into byte ranges which start and end on line boundaries, and the ranges
+ * are parsed at the same time, one per core. The rows are then put back together in file order.
+ * Files of any size can also be streamed through a RowSink, without keeping any of the rows.
+ */
+
+package sim.marble;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class TextRecordingReader {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int BATCH_ROWS = 1024;
+	private static final int MAX_REJECTED_LINES = 16;
+
+	// Files smaller than this aren't worth splitting up
+	private static final long PARALLEL_THRESHOLD = 4 * 1024 * 1024;
+	// The number of ranges per core, so that a slow range doesn't hold everything else up
+	private static final int RANGES_PER_CORE = 2;
+
+	private TextRecordingReader() {}
+
+	/**
+	 * What came out of reading a text recording.
+	 */
+	public static class Result {
+		/** The number of rows read */
+		public final long rows;
+		/** The number of lines skipped because they weren't complete rows */
+		public final long malformed;
+		/** The line numbers (1-based) of the first few lines that were skipped */
+		public final long[] rejectedLines;
+
+		Result(long rows, long malformed, long[] rejectedLines) {
+			this.rows = rows;
+			this.malformed = malformed;
+			this.rejectedLines = rejectedLines;
+		}
+	}
+
+	/**
+	 * Reads every row of a text recording and appends them to the given table. Lines that
+	 * don't have exactly table.getCols() integers are skipped.
+	 * <p>Files over 4MB are parsed on as many threads as there are cores.
+	 * @param file The recording to be read
+	 * @param table Where the rows go
+	 */
+	public static Result read(File file, IntTable table) throws IOException {
+		int cores = Runtime.getRuntime().availableProcessors();
+		if (cores>1 && file.length()>=PARALLEL_THRESHOLD)
+			return readParallel(file, table, cores * RANGES_PER_CORE, cores);
+		return readSequential(file, table);
+	}
+
+	/**
+	 * Reads every row of a text recording on the calling thread.
+	 * @param file The recording to be read
+	 * @param table Where the rows go
+	 */
+	public static Result readSequential(File file, IntTable table) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			RowTokenizer tokenizer = parseRange(channel, 0, channel.size(), table);
+			return new Result(tokenizer.getRowCount(), tokenizer.getMalformedCount(),
+					tokenizer.getRejectedLines());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads every row of a text recording on the calling thread, and hands them to a sink in
+	 * batches without keeping any of them.
+	 * @param file The recording to be read
+	 * @param cols The number of integers a line must have to be a row
+	 * @param sink Gets the rows
+	 */
+	public static Result read(File file, int cols, RowSink sink) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			RowTokenizer tokenizer = new RowTokenizer(cols, BATCH_ROWS);
+			parseRange(channel, 0, channel.size(), sink, tokenizer);
+			return new Result(tokenizer.getRowCount(), tokenizer.getMalformedCount(),
+					tokenizer.getRejectedLines());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads every row of a text recording, parsing a number of byte ranges at the same time.
+	 * Each range starts right after a newline, so no line is ever split between two ranges,
+	 * and the rows end up in the table in the same order as in the file.
+	 * @param file The recording to be read
+	 * @param table Where the rows go
+	 * @param ranges The number of ranges to split the file into
+	 * @param threads The number of threads to parse the ranges on
+	 */
+	public static Result readParallel(File file, IntTable table, int ranges, int threads)
+			throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			final FileChannel channel = in.getChannel();
+			long[] bounds = findRangeBounds(channel, ranges);
+			final int cols = table.getCols();
+
+			List<Future<IntMatrix>> parsed = new ArrayList<Future<IntMatrix>>();
+			final List<RowTokenizer> tokenizers = new ArrayList<RowTokenizer>();
+			for (int i=0; i<bounds.length-1; i++) {
+				final long start = bounds[i], end = bounds[i+1];
+				final RowTokenizer tokenizer = new RowTokenizer(cols, BATCH_ROWS);
+				tokenizers.add(tokenizer);
+				parsed.add(pool.submit(new Callable<IntMatrix>() {
+					@Override
+					public IntMatrix call() throws IOException {
+						IntMatrix rows = new IntMatrix(0, cols);
+						parseRange(channel, start, end, RecordingReader.appendTo(rows), tokenizer);
+						return rows;
+					}
+				}));
+			}
+
+			// Put the ranges back together in order. The line numbers of the skipped lines
+			// are relative to their range, so shift them by the lines in the ranges before
+			long rows = 0, malformed = 0, lines = 0;
+			long[] rejected = new long[MAX_REJECTED_LINES];
+			int rejectedCount = 0;
+			for (int i=0; i<parsed.size(); i++) {
+				IntMatrix range = Futures.getUninterruptibly(parsed.get(i));
+				table.ensureCapacity(table.getRows() + range.getRows());
+				table.appendRows(range.toArray(), 0, range.getRows());
+				RowTokenizer tokenizer = tokenizers.get(i);
+				for (long line : tokenizer.getRejectedLines()) {
+					if (rejectedCount<MAX_REJECTED_LINES)
+						rejected[rejectedCount++] = lines + line;
+				}
+				rows += tokenizer.getRowCount();
+				malformed += tokenizer.getMalformedCount();
+				lines += tokenizer.getLineCount();
+			}
+			long[] rejectedLines = new long[rejectedCount];
+			System.arraycopy(rejected, 0, rejectedLines, 0, rejectedCount);
+			return new Result(rows, malformed, rejectedLines);
+		} finally {
+			pool.shutdownNow();
+			in.close();
+		}
+	}
+
+	/**
+	 * Splits the file into roughly equal ranges, moving every split point forward to just
+	 * after the next newline.
+	 * @return The start of every range, followed by the end of the last one
+	 */
+	private static long[] findRangeBounds(FileChannel channel, int ranges) throws IOException {
+		long size = channel.size();
+		List<Long> bounds = new ArrayList<Long>();
+		bounds.add(0L);
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		for (int i=1; i<ranges; i++) {
+			long position = Math.max(size * i / ranges, bounds.get(bounds.size()-1));
+			long bound = size;
+			search:
+			while (position<size) {
+				buffer.clear();
+				int read = channel.read(buffer, position);
+				if (read<=0)
+					break;
+				for (int j=0; j<read; j++) {
+					if (buffer.get(j)=='\n') {
+						bound = position + j + 1;
+						break search;
+					}
+				}
+				position += read;
+			}
+			if (bound>=size)
+				break;
+			if (bound>bounds.get(bounds.size()-1))
+				bounds.add(bound);
+		}
+		bounds.add(size);
+		long[] result = new long[bounds.size()];
+		for (int i=0; i<result.length; i++)
+			result[i] = bounds.get(i);
+		return result;
+	}
+
+	private static RowTokenizer parseRange(FileChannel channel, long start, long end,
+			IntTable table) throws IOException {
+		RowTokenizer tokenizer = new RowTokenizer(table.getCols(), BATCH_ROWS);
+		parseRange(channel, start, end, RecordingReader.appendTo(table), tokenizer);
+		return tokenizer;
+	}
+
+	/**
+	 * Parses the bytes from start up to end with the given tokenizer. The channel's only read
+	 * at explicit positions, so any number of ranges can be parsed from it at the same time.
+	 */
+	private static void parseRange(FileChannel channel, long start, long end, RowSink sink,
+			RowTokenizer tokenizer) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		long position = start;
+		while (position<end) {
+			buffer.clear();
+			buffer.limit((int)Math.min(BUFFER_SIZE, end - position));
+			int read = channel.read(buffer, position);
+			if (read<0)
+				break;
+			tokenizer.feed(buffer.array(), 0, read, sink);
+			position += read;
+		}
+		tokenizer.finish(sink);
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * This is the Transport interface. It's whatever the bytes sent by a board come in over, so that
+ * BluetoothSerialService doesn't care whether it's reading from a board over Bluetooth
+ * (BluetoothTransport), from a TCP socket (TcpTransport), or from a recording being played back
+ * (ReplayTransport), e.g. to load test the capture without a board anywhere near it.
+ * A Transport can be connected any number of times, e.g. to get a lost connection back; every
+ * time, it hands out a new Connection.
+ */
+
+package sim.marble;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public interface Transport {
+
+	/**
+	 * A single connection over a Transport. It's created first and connected afterwards, so
+	 * that connecting (which can take a while) can be cancelled by closing it from another
+	 * thread.
+	 */
+	public interface Connection {
+		/**
+		 * Makes the connection. Blocks until it's made, it fails, or close() is called.
+		 */
+		void connect() throws IOException;
+
+		InputStream getInputStream() throws IOException;
+
+		OutputStream getOutputStream() throws IOException;
+
+		/**
+		 * Closes the connection, or cancels connect() if it's still being made. Anything
+		 * blocked reading from it gets an IOException.
+		 */
+		void close() throws IOException;
+	}
+
+	/**
+	 * Creates a new connection, without connecting it yet.
+	 */
+	Connection createConnection() throws IOException;
+
+	/**
+	 * Returns a name to show for what's on the other end, e.g. the board's Bluetooth name
+	 */
+	String getName();
+
+	/**
+	 * Returns what tells this Transport apart from any others of the same name, e.g. the
+	 * board's Bluetooth address
+	 */
+	String getAddress();
+}
@@ -0,0 +1,216 @@
+/*
+ * This is the WireProtocol class. It's the binary framing a board can send its rows in instead of
+ * text, which takes about a third of the bytes, so that about three times the rows fit through
+ * the same RFCOMM link, and lost frames show up as gaps in their sequence numbers.
+ * The framing's negotiated right after the connection's made: BluetoothSerialService sends
+ * BINARY_COMMAND, and a board that can frame its rows answers with a line giving the width of
+ * every column, e.g. "#BIN 1 2 2 2 2 2 2 4 4 4 2", and sends nothing but frames after it. A board
+ * that doesn't answer within HANDSHAKE_TIMEOUT_MILLIS (even if it's sent nothing at all) is sent
+ * TEXT_COMMAND, in case the command got through late, and whatever it sends is read as text as
+ * before. Lines starting with '#' aren't rows, so RowTokenizer skips the answer.
+ *
+ * Layout of a frame, all values big-endian:
+ *   header:  byte 0xA5, byte 0x5A (the sync marker), unsigned short sequence number, unsigned
+ *            byte row count (1 to MAX_ROWS_PER_FRAME)
+ *   rows:    every value of every row, one after the other, each a signed short or int as the
+ *            answer to the handshake said
+ *   crc:     unsigned short CRC-16/CCITT of everything but the sync marker and the crc itself
+ * The sequence number goes up by one every frame, and wraps around after 65535.
+ */
+
+package sim.marble;
+
+public class WireProtocol {
+
+	public static final int VERSION = 1;
+	/** Asks the board to send frames from now on */
+	public static final String BINARY_COMMAND = "#BIN " + VERSION + "\n";
+	/** Asks the board to go back to sending text */
+	public static final String TEXT_COMMAND = "#TXT\n";
+	/** How long to wait for the answer to BINARY_COMMAND before sticking with text */
+	public static final long HANDSHAKE_TIMEOUT_MILLIS = 2000;
+
+	public static final byte SYNC_1 = (byte)0xA5;
+	public static final byte SYNC_2 = (byte)0x5A;
+	/** Size of the sync marker, sequence number and row count */
+	public static final int HEADER_SIZE = 2 + 2 + 1;
+	public static final int CRC_SIZE = 2;
+	public static final int MAX_ROWS_PER_FRAME = 255;
+
+	// The answer starts the same as the command, then has the widths after the version
+	private static final String ANSWER_PREFIX = "#BIN ";
+	// The longest answer that's looked for; anything longer isn't one
+	private static final int MAX_ANSWER_LENGTH = 256;
+
+	private static final int[] CRC_TABLE = new int[256];
+	static {
+		for (int i=0; i<256; i++) {
+			int crc = i << 8;
+			for (int bit=0; bit<8; bit++)
+				crc = (crc & 0x8000)!=0 ? (crc << 1) ^ 0x1021 : crc << 1;
+			CRC_TABLE[i] = crc & 0xFFFF;
+		}
+	}
+
+	private WireProtocol() {}
+
+	/**
+	 * Returns the number of bytes a row takes in a frame
+	 * @param widths The width of every column in bytes
+	 */
+	public static int getRowSize(int[] widths) {
+		int size = 0;
+		for (int width : widths)
+			size += width;
+		return size;
+	}
+
+	/**
+	 * Returns the most bytes a frame can take
+	 * @param rows The number of rows in the frame
+	 * @param widths The width of every column in bytes
+	 */
+	public static int maxFrameSize(int rows, int[] widths) {
+		return HEADER_SIZE + rows*getRowSize(widths) + CRC_SIZE;
+	}
+
+	/**
+	 * Works out the CRC-16/CCITT (polynomial 0x1021, starting at 0xFFFF) of some bytes.
+	 */
+	public static int crc16(byte[] buffer, int offset, int length) {
+		int crc = 0xFFFF;
+		for (int i=offset, end=offset+length; i<end; i++)
+			crc = ((crc << 8) ^ CRC_TABLE[((crc >> 8) ^ buffer[i]) & 0xFF]) & 0xFFFF;
+		return crc;
+	}
+
+	/**
+	 * Works out the widths of the columns from the answer to BINARY_COMMAND.
+	 * @param line The answer, without the line ending
+	 * @param cols The number of columns rows must have
+	 * @return The width of every column in bytes, or null if it isn't a version this can read or
+	 *         doesn't give 2 or 4 bytes for exactly cols columns
+	 */
+	public static int[] parseAnswer(String line, int cols) {
+		if (!line.startsWith(ANSWER_PREFIX))
+			return null;
+		String[] fields = line.substring(ANSWER_PREFIX.length()).trim().split("[ \t]+");
+		if (fields.length!=cols + 1 || !fields[0].equals(String.valueOf(VERSION)))
+			return null;
+		int[] widths = new int[cols];
+		for (int col=0; col<cols; col++) {
+			String field = fields[col+1];
+			if (field.equals("2")) widths[col] = 2;
+			else if (field.equals("4")) widths[col] = 4;
+			else return null;
+		}
+		return widths;
+	}
+
+	/**
+	 * Formats the answer a board gives to BINARY_COMMAND, line ending included.
+	 * @param widths The width of every column in bytes
+	 */
+	public static String formatAnswer(int[] widths) {
+		StringBuilder answer = new StringBuilder(ANSWER_PREFIX).append(VERSION);
+		for (int width : widths)
+			answer.append(' ').append(width);
+		return answer.append("\r\n").toString();
+	}
+
+	/**
+	 * Frames rows the way a board would. Values that don't fit a 2 byte column are clamped.
+	 * @param sequence The frame's sequence number; only the low 16 bits are sent
+	 * @param rows The rows, laid out one after the other
+	 * @param offset The index in rows of the first value of the first row
+	 * @param count The number of rows, 1 to MAX_ROWS_PER_FRAME
+	 * @param widths The width of every column in bytes
+	 * @param out Gets the frame; must have room for maxFrameSize(count, widths) bytes
+	 * @param outOffset The index in out to start the frame at
+	 * @return The number of bytes written
+	 */
+	public static int encodeFrame(int sequence, int[] rows, int offset, int count, int[] widths,
+			byte[] out, int outOffset) {
+		int position = outOffset;
+		out[position++] = SYNC_1;
+		out[position++] = SYNC_2;
+		out[position++] = (byte)(sequence >> 8);
+		out[position++] = (byte)sequence;
+		out[position++] = (byte)count;
+		int cols = widths.length;
+		for (int i=offset, end=offset+count*cols; i<end; ) {
+			for (int col=0; col<cols; col++, i++) {
+				int value = rows[i];
+				if (widths[col]==4) {
+					out[position++] = (byte)(value >> 24);
+					out[position++] = (byte)(value >> 16);
+				} else {
+					value = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+				}
+				out[position++] = (byte)(value >> 8);
+				out[position++] = (byte)value;
+			}
+		}
+		int crc = crc16(out, outOffset + 2, position - outOffset - 2);
+		out[position++] = (byte)(crc >> 8);
+		out[position++] = (byte)crc;
+		return position - outOffset;
+	}
+
+	/**
+	 * Looks for the answer to BINARY_COMMAND in the bytes read after it was sent, which can be
+	 * split across any number of reads, and can come after any number of lines of text.
+	 */
+	public static class Handshake {
+		private final int mmCols;
+		private final StringBuilder mmLine = new StringBuilder();
+		// Whether the line that's being read could still be the answer
+		private boolean mmIsCandidate = true;
+		private int[] mmWidths;
+
+		/**
+		 * @param cols The number of columns rows must have
+		 */
+		public Handshake(int cols) {
+			mmCols = cols;
+		}
+
+		/**
+		 * Scans the given bytes for the answer.
+		 * @return The index just past the end of the answer, where the first frame starts, or -1
+		 *         if it hasn't been read yet
+		 */
+		public int scan(byte[] buffer, int offset, int length) {
+			for (int i=offset, end=offset+length; i<end; i++) {
+				int b = buffer[i] & 0xFF;
+				if (b=='\n') {
+					boolean isAnswer = mmIsCandidate && mmLine.length()>=ANSWER_PREFIX.length();
+					String line = mmLine.toString().trim();
+					mmLine.setLength(0);
+					mmIsCandidate = true;
+					if (isAnswer) {
+						mmWidths = parseAnswer(line, mmCols);
+						return i + 1;
+					}
+				} else if (mmIsCandidate) {
+					// Text rows are thrown away as soon as they can't be the answer
+					int index = mmLine.length();
+					if (index<ANSWER_PREFIX.length() && b!=ANSWER_PREFIX.charAt(index)
+							|| index==MAX_ANSWER_LENGTH) {
+						mmIsCandidate = false;
+						mmLine.setLength(0);
+					} else mmLine.append((char)b);
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Returns the width of every column the answer gave, or null if the answer wasn't one
+		 * that can be read (in which case the board should be sent TEXT_COMMAND)
+		 */
+		public int[] getWidths() {
+			return mmWidths;
+		}
+	}
+}